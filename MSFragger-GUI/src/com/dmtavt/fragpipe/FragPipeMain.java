@@ -14,6 +14,10 @@ public class FragPipeMain {
           Fragpipe.headless = true;
         } else if (args[i].equalsIgnoreCase("--dry-run")) {
           Fragpipe.dryRun = true;
+        } else if (args[i].equalsIgnoreCase("--resume")) {
+          Fragpipe.resume = true;
+        } else if (args[i].equalsIgnoreCase("--isolate-failures")) {
+          Fragpipe.isolateFailures = true;
         } else if (args[i].equalsIgnoreCase("--workflow")) {
           Fragpipe.workflowFile = Paths.get(args[++i]);
         } else if (args[i].equalsIgnoreCase("--manifest")) {
@@ -24,6 +28,14 @@ public class FragPipeMain {
           Fragpipe.threads = Integer.parseInt(args[++i]);
         } else if (args[i].equalsIgnoreCase("--workdir")) {
           Fragpipe.workdir = args[++i].trim();
+        } else if (args[i].equalsIgnoreCase("--batch")) {
+          Fragpipe.batchFile = Paths.get(args[++i]);
+        } else if (args[i].equalsIgnoreCase("--batch-parallel")) {
+          Fragpipe.batchParallel = Integer.parseInt(args[++i]);
+        } else if (args[i].equalsIgnoreCase("--export-jobs")) {
+          Fragpipe.exportJobsDir = Paths.get(args[++i]);
+        } else if (args[i].equalsIgnoreCase("--scheduler")) {
+          Fragpipe.scheduler = args[++i].trim();
         } else if (args[i].equalsIgnoreCase("--config-msfragger")) {
           Fragpipe.msfraggerBinPath = args[++i].trim();
         } else if (args[i].equalsIgnoreCase("--config-philosopher")) {
@@ -49,6 +49,7 @@ import com.dmtavt.fragpipe.messages.NoteFragpipeProperties;
 import com.dmtavt.fragpipe.messages.NoteFragpipeUpdate;
 import com.dmtavt.fragpipe.params.ThisAppProps;
 import com.dmtavt.fragpipe.process.ProcessManager;
+import com.dmtavt.fragpipe.process.ResourceBudget;
 import com.dmtavt.fragpipe.tabs.TabConfig;
 import com.dmtavt.fragpipe.tabs.TabDatabase;
 import com.dmtavt.fragpipe.tabs.TabDiann;
@@ -142,9 +143,15 @@ public class Fragpipe extends JFrameHeadless {
   public static java.util.concurrent.CountDownLatch loadWorkflowDone = new java.util.concurrent.CountDownLatch(1);
   public static java.util.concurrent.CountDownLatch runDone = new java.util.concurrent.CountDownLatch(1);
   public static boolean dryRun = false;
+  public static boolean resume = false;
+  public static boolean isolateFailures = false;
   public static int ram = 0;
-  public static int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, maxProcessors));
+  public static int threads = Math.max(1, Math.min(OsUtils.getAvailableProcessors() - 1, maxProcessors));
   public static String workdir = null;
+  public static Path batchFile = null;
+  public static int batchParallel = 1;
+  public static Path exportJobsDir = null;
+  public static String scheduler = "slurm";
   public static String msfraggerBinPath = null;
   public static String philosopherBinPath = null;
   public static String pythonBinPath = null;
@@ -346,7 +353,7 @@ public class Fragpipe extends JFrameHeadless {
 
 
   static void main0() {
-    if (!headless && (workflowFile != null || manifestFile != null || workdir != null)) {
+    if (!headless && (workflowFile != null || manifestFile != null || workdir != null || batchFile != null)) {
       System.err.println("It looks like you want to run FragPipe in headless mode, but you did not add --headless flag. Please double check your command.");
       System.exit(1);
     }
@@ -358,10 +365,25 @@ public class Fragpipe extends JFrameHeadless {
     FragpipeLoader fragpipeLoader = new FragpipeLoader();
     Bus.register(fragpipeLoader);
     if (headless) {
-      if (workflowFile == null || !Files.exists(workflowFile) || !Files.isReadable(workflowFile) || !Files.isRegularFile(workflowFile)) {
+      if (batchFile != null && (workflowFile != null || manifestFile != null || workdir != null)) {
+        System.err.println("Please provide either --batch or --workflow, --manifest and --workdir, not both.");
+        System.exit(1);
+      } else if (batchFile != null && (!Files.isReadable(batchFile) || !Files.isRegularFile(batchFile))) {
+        System.err.println("Batch file " + batchFile + " does not seem right.");
+        System.exit(1);
+      } else if (batchParallel < 1) {
+        System.err.println("Number of runs at a time is smaller than 1.");
+        System.exit(1);
+      } else if (exportJobsDir != null && (batchFile != null || dryRun)) {
+        System.err.println("--export-jobs can't be combined with --batch or --dry-run.");
+        System.exit(1);
+      } else if (!scheduler.equalsIgnoreCase("slurm") && !scheduler.equalsIgnoreCase("pbs")) {
+        System.err.println("Scheduler should be slurm or pbs, got " + scheduler + ".");
+        System.exit(1);
+      } else if (batchFile == null && (workflowFile == null || !Files.exists(workflowFile) || !Files.isReadable(workflowFile) || !Files.isRegularFile(workflowFile))) {
         System.err.println("Please provide --workflow <path to workflow file> in the headless mode.");
         System.exit(1);
-      } else if (manifestFile == null || !Files.exists(manifestFile) || !Files.isReadable(manifestFile) || !Files.isRegularFile(manifestFile)) {
+      } else if (batchFile == null && (manifestFile == null || !Files.exists(manifestFile) || !Files.isReadable(manifestFile) || !Files.isRegularFile(manifestFile))) {
         System.err.println("Please provide --manifest <path to manifest file> in the headless mode.");
         System.exit(1);
       } else if (ram < 0) {
@@ -370,7 +392,7 @@ public class Fragpipe extends JFrameHeadless {
       } else if (threads < 0) {
         System.err.println("Number of threads is smaller than 0.");
         System.exit(1);
-      } else if (workdir == null || workdir.isEmpty()) {
+      } else if (batchFile == null && (workdir == null || workdir.isEmpty())) {
         System.err.println("The path to workdir does not look right.");
         System.exit(1);
       } else if (msfraggerBinPath != null && (msfraggerBinPath.isEmpty() || !Files.exists(Paths.get(msfraggerBinPath)) || !Files.isReadable(Paths.get(msfraggerBinPath)) || !Files.isRegularFile(Paths.get(msfraggerBinPath)))) {
@@ -383,7 +405,12 @@ public class Fragpipe extends JFrameHeadless {
         System.err.println("Python path " + pythonBinPath + " does not seem right.");
         System.exit(1);
       } else {
-        workdir = Paths.get(workdir).toAbsolutePath().toString();
+        if (workdir != null) {
+          workdir = Paths.get(workdir).toAbsolutePath().toString();
+        }
+        if (exportJobsDir != null) {
+          exportJobsDir = exportJobsDir.toAbsolutePath();
+        }
         if (msfraggerBinPath != null) {
           msfraggerBinPath = Paths.get(msfraggerBinPath).toAbsolutePath().toString();
         }
@@ -394,9 +421,13 @@ public class Fragpipe extends JFrameHeadless {
           pythonBinPath = Paths.get(pythonBinPath).toAbsolutePath().toString();
         }
         if (threads == 0) {
-          threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), maxProcessors));
+          threads = Math.max(1, Math.min(OsUtils.getAvailableProcessors(), maxProcessors));
+        }
+        if (batchFile != null) {
+          batch(batchFile);
+        } else {
+          headless(workflowFile);
         }
-        headless(workflowFile);
       }
     }
   }
@@ -411,9 +442,36 @@ public class Fragpipe extends JFrameHeadless {
     final FragpipeLocations fpl = FragpipeLocations.get();
 
     PropsFile propsFile = fpl.tryLoadSilently(workflowFile, "user");
+    propsFile.setProperty("workdir", Fragpipe.workdir);
+    setHeadlessProps(propsFile);
+
+    Bus.post(new MessageLoadUi(propsFile, true, true));
+    Bus.post(new MessageManifestLoad());
+
+    try {
+      loadWorkflowDone.await();
+      loadManifestDone.await();
+      Thread.sleep(500);
+    } catch (InterruptedException ex) {
+      throw new RuntimeException(ex);
+    }
+
+    Bus.post(new MessageRun(dryRun, resume));
+
+    try {
+      runDone.await();
+      Thread.sleep(1000);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Options given on the command line override those of the workflow.
+   */
+  static void setHeadlessProps(PropsFile propsFile) {
     propsFile.setProperty("workflow.ram", Fragpipe.ram + "");
     propsFile.setProperty("workflow.threads", Fragpipe.threads + "");
-    propsFile.setProperty("workdir", Fragpipe.workdir);
 
     if (msfraggerBinPath != null) {
       propsFile.setProperty("fragpipe-config.bin-msfragger", msfraggerBinPath);
@@ -426,25 +484,40 @@ public class Fragpipe extends JFrameHeadless {
     if (pythonBinPath != null) {
       propsFile.setProperty("fragpipe-config.bin-python", pythonBinPath);
     }
+  }
 
-    Bus.post(new MessageLoadUi(propsFile, true, true));
-    Bus.post(new MessageManifestLoad());
-
+  /**
+   * Runs every workflow/manifest/workdir line of the batch file, all under one CPU/memory budget
+   * of --threads and --ram.
+   */
+  public static void batch(final Path batchFile) {
     try {
-      loadWorkflowDone.await();
-      loadManifestDone.await();
-      Thread.sleep(500);
+      initDone.await();
     } catch (InterruptedException ex) {
       throw new RuntimeException(ex);
     }
 
-    Bus.post(new MessageRun(dryRun));
+    final RunQueue queue = new RunQueue();
+    try {
+      RunQueue.readBatchFile(batchFile).forEach(queue::add);
+    } catch (IOException | IllegalArgumentException ex) {
+      System.err.println("Could not read batch file " + batchFile + ": " + ex.getMessage());
+      System.exit(1);
+    }
+    if (queue.getEntries().isEmpty()) {
+      System.err.println("Batch file " + batchFile + " has no runs.");
+      System.exit(1);
+    }
 
+    final ResourceBudget budget = ResourceBudget.ofGb(threads, ram > 0 ? ram : OsUtils.getDefaultXmx());
+    final int failed;
     try {
-      runDone.await();
-      Thread.sleep(1000);
-    } catch (InterruptedException e) {
-      throw new RuntimeException(e);
+      failed = queue.run(batchParallel, budget, dryRun, resume);
+    } catch (InterruptedException ex) {
+      throw new RuntimeException(ex);
+    }
+    if (failed > 0) {
+      System.exit(1);
     }
   }
 
@@ -925,6 +998,7 @@ public class Fragpipe extends JFrameHeadless {
     sb.append("Running without GUI. Usage:\n");
     sb.append("\tWindows: fragpipe.bat --headless --workflow <path to workflow file> --manifest <path to manifest file> --workdir <path to result directory>\n");
     sb.append("\tLinux: fragpipe --headless --workflow <path to workflow file> --manifest <path to manifest file> --workdir <path to result directory>\n");
+    sb.append("\tSeveral runs: fragpipe --headless --batch <path to batch file>\n");
     sb.append("Options:\n");
     sb.append("\t-h\n");
     sb.append("\t--help                          # Print this help message.\n");
@@ -932,7 +1006,13 @@ public class Fragpipe extends JFrameHeadless {
     sb.append("\t--workflow <string>             # Specify path to workflow file.\n");
     sb.append("\t--manifest <string>             # Specify path to manifest file.\n");
     sb.append("\t--workdir <string>              # Specify the result directory.\n");
+    sb.append("\t--batch <string>                # Instead of the three above, a file with a tab separated workflow, manifest and result directory per line. All the runs share the --threads and --ram.\n");
+    sb.append("\t--batch-parallel <integer>      # (optional) Number of runs of the batch going at the same time. Default = 1\n");
     sb.append("\t--dry-run                       # (optional) Dry run, not really run FragPipe.\n");
+    sb.append("\t--isolate-failures              # (optional) A failed per-file step (DIA-Umpire, MSFragger, Crystal-C, PeptideProphet, Percolator) only drops its own input files, the others go on. The failed inputs are listed at the end.\n");
+    sb.append("\t--export-jobs <string>          # (optional) Instead of running, write the tasks as batch scheduler job scripts with their dependencies and a submit.sh to this directory. Configures the result directory like a run.\n");
+    sb.append("\t--scheduler <string>            # (optional) Batch scheduler of --export-jobs, slurm or pbs. Default = slurm\n");
+    sb.append("\t--resume                        # (optional) Skip the steps that have completed in a previous run in the same result directory.\n");
     sb.append("\t--ram <integer>                 # (optional) Specify the maximum allowed memory size. Set it to 0 to let FragPipe decide. Default = 0\n");
     sb.append("\t--threads <integer>             # (optional) Specify the number of threads. Default = core number - 1\n");
     sb.append("\t--config-msfragger <string>     # (optional) specify the location of the MSFragger jar file. If not specified, using the one in the cache.\n");
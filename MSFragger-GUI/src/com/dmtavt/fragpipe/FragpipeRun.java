@@ -57,6 +57,7 @@ import com.dmtavt.fragpipe.messages.MessageClearConsole;
 import com.dmtavt.fragpipe.messages.MessageManifestSave;
 import com.dmtavt.fragpipe.messages.MessageRun;
 import com.dmtavt.fragpipe.messages.MessageRunButtonEnabled;
+import com.dmtavt.fragpipe.messages.MessageRunMetrics;
 import com.dmtavt.fragpipe.messages.MessageSaveCache;
 import com.dmtavt.fragpipe.messages.MessageSaveLog;
 import com.dmtavt.fragpipe.messages.MessageSaveUiState;
@@ -67,9 +68,20 @@ import com.dmtavt.fragpipe.messages.NoteConfigMsfragger;
 import com.dmtavt.fragpipe.messages.NoteConfigPhilosopher;
 import com.dmtavt.fragpipe.messages.NoteConfigSpeclibgen;
 import com.dmtavt.fragpipe.params.ThisAppProps;
+import com.dmtavt.fragpipe.process.FailedInputs;
+import com.dmtavt.fragpipe.process.JobScripts;
 import com.dmtavt.fragpipe.process.ProcessDescription;
 import com.dmtavt.fragpipe.process.ProcessDescription.Builder;
+import com.dmtavt.fragpipe.process.ProcessTreeSampler;
+import com.dmtavt.fragpipe.process.ResourceBudget;
+import com.dmtavt.fragpipe.process.RunEta;
+import com.dmtavt.fragpipe.process.RunJournal;
+import com.dmtavt.fragpipe.process.RunMetrics;
+import com.dmtavt.fragpipe.process.RunTimeline;
 import com.dmtavt.fragpipe.process.RunnableDescription;
+import com.dmtavt.fragpipe.process.StepCache;
+import com.dmtavt.fragpipe.process.TaskNode;
+import com.dmtavt.fragpipe.process.ThroughputModel;
 import com.dmtavt.fragpipe.tabs.TabDatabase;
 import com.dmtavt.fragpipe.tabs.TabMsfragger;
 import com.dmtavt.fragpipe.tabs.TabRun;
@@ -77,6 +89,8 @@ import com.dmtavt.fragpipe.tabs.TabWorkflow;
 import com.dmtavt.fragpipe.tabs.TabWorkflow.InputDataType;
 import com.dmtavt.fragpipe.tools.crystalc.CrystalcPanel;
 import com.dmtavt.fragpipe.tools.crystalc.CrystalcParams;
+import com.dmtavt.fragpipe.tools.dbsplit.DbSplit2;
+import com.dmtavt.fragpipe.tools.dbsplit.SliceCountEstimator;
 import com.dmtavt.fragpipe.tools.diann.DiannPanel;
 import com.dmtavt.fragpipe.tools.fragger.MsfraggerParams;
 import com.dmtavt.fragpipe.tools.ionquant.QuantPanelLabelfree;
@@ -92,6 +106,7 @@ import com.dmtavt.fragpipe.tools.speclibgen.SpeclibPanel;
 import com.dmtavt.fragpipe.tools.tmtintegrator.QuantLabel;
 import com.dmtavt.fragpipe.tools.tmtintegrator.TmtiPanel;
 import com.dmtavt.fragpipe.tools.umpire.UmpirePanel;
+import com.github.chhh.utils.CgroupLimits;
 import com.github.chhh.utils.MapUtils;
 import com.github.chhh.utils.OsUtils;
 import com.github.chhh.utils.PathUtils;
@@ -109,6 +124,7 @@ import java.text.DecimalFormat;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
@@ -120,6 +136,9 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -143,6 +162,12 @@ import org.slf4j.LoggerFactory;
 public class FragpipeRun {
 
   private static final Logger log = LoggerFactory.getLogger(FragpipeRun.class);
+  /** Directory in the workdir with per-task output logs. */
+  public static final String TASK_LOGS_DIR = "task-logs";
+  /** How often the status of running tasks is printed in headless mode, -Dfragpipe.status.interval.s=N */
+  private static final long STATUS_INTERVAL_MS = Math.max(1, Long.getLong("fragpipe.status.interval.s", 60)) * 1000;
+  /** Split the database as recommended instead of as set, -Dfragpipe.dbsplit.auto=true */
+  private static final boolean DBSPLIT_AUTO = Boolean.getBoolean("fragpipe.dbsplit.auto");
 
   private FragpipeRun() {
   }
@@ -152,13 +177,17 @@ public class FragpipeRun {
     Thread.setDefaultUncaughtExceptionHandler(Fragpipe::uncaughtExceptionHandler);
 
     Bus.post(new MessageSaveCache());
-    Bus.post(new MessageClearConsole());
+    if (!m.isQueued()) {
+      // the console of a queue is cleared by the queue, runs may be going side by side
+      Bus.post(new MessageClearConsole());
+    }
     Bus.post(new MessageRunButtonEnabled(false));
 
     boolean runConfigurationDone = false;
 
     try {
       final boolean isDryRun = m.isDryRun;
+      final boolean isResume = m.isResume;
 
       final TabRun tabRun = Bus.getStickyEvent(TabRun.class);
       if (tabRun == null) {
@@ -178,7 +207,7 @@ public class FragpipeRun {
         throw new IllegalStateException("TabWorkflow has not been posted to the bus");
       }
       if (!isDryRun) {
-        Path preparedWd = prepareWd(tabRun, wd, tabWorkflow);
+        Path preparedWd = prepareWd(tabRun, wd, tabWorkflow, isResume);
         if (preparedWd == null) {
           log.debug("prepareWd() failed");
           return 1;
@@ -241,32 +270,48 @@ public class FragpipeRun {
         log.debug("Ordered tasks:\n{}", s);
       }
 
-      final List<ProcessBuildersDescriptor> pbDescsBuilderDescs = Seq
+      final List<CmdBase> cmdsToRun = Seq
           .seq(new TopologicalOrderIterator<>(dag))
           .filter(CmdBase::isRun)
-          .map(CmdBase::getBuilderDescriptor).toList();
+          .toList();
 
       // =========================================================================================================
       toConsole(OsUtils.OsInfo() + "\n" + OsUtils.JavaInfo() + "\n");
+      if (CgroupLimits.get().isLimited()) {
+        toConsole("Container or job limits: " + CgroupLimits.get() + "\n");
+      }
       toConsole("");
       toConsole("Version info:\n" + createVersionsString());
       toConsole("");
       toConsole("LCMS files:\n" + createLcmsFilesString(lcmsFileGroups));
       toConsole("");
 
-      // Converting process builders descriptors to process builder infos
-      final List<ProcessBuilderInfo> pbis = pbDescsBuilderDescs.stream()
-          .flatMap(pbd -> pbd.pbis.stream().map(pbi ->
-          {
-            PbiBuilder b = new PbiBuilder();
-            b.setPb(pbi.pb);
-            b.setName(pbi.name != null ? pbi.name : pbd.name);
-            b.setFnStdOut(pbi.fnStdout != null ? pbi.fnStdout : pbd.fnStdout);
-            b.setFnStdErr(pbi.fnStderr != null ? pbi.fnStderr : pbd.fnStderr);
-            b.setParallelGroup(
-                pbi.parallelGroup != null ? pbi.parallelGroup : pbd.getParallelGroup());
-            return b.create();
-          }))
+      // Converting process builders descriptors to process builder infos, remembering which command they came from
+      final Map<CmdBase, List<ProcessBuilderInfo>> cmdPbis = new LinkedHashMap<>();
+      final AtomicInteger taskIndex = new AtomicInteger(0);
+      for (CmdBase cmd : cmdsToRun) {
+        final ProcessBuildersDescriptor pbd = cmd.getBuilderDescriptor();
+        cmdPbis.put(cmd, pbd.pbis.stream().map(pbi ->
+        {
+          PbiBuilder b = new PbiBuilder();
+          b.setPb(pbi.pb);
+          b.setName(pbi.name != null ? pbi.name : pbd.name);
+          String fnStdout = pbi.fnStdout != null ? pbi.fnStdout : pbd.fnStdout;
+          String fnStderr = pbi.fnStderr != null ? pbi.fnStderr : pbd.fnStderr;
+          if (StringUtils.isNullOrWhitespace(fnStdout) && StringUtils.isNullOrWhitespace(fnStderr)) {
+            // everything a task prints is kept in its own log file
+            fnStdout = fnStderr = taskLogPath(wd, taskIndex.incrementAndGet(), pbi.name != null ? pbi.name : pbd.name).toString();
+          }
+          b.setFnStdOut(fnStdout);
+          b.setFnStdErr(fnStderr);
+          b.setParallelGroup(
+              pbi.parallelGroup != null ? pbi.parallelGroup : pbd.getParallelGroup());
+          b.setResources(pbi.resources);
+          return b.create();
+        }).collect(Collectors.toList()));
+      }
+      final List<ProcessBuilderInfo> pbis = cmdPbis.values().stream()
+          .flatMap(List::stream)
           .collect(Collectors.toList());
 
       toConsole(String.format(Locale.ROOT, "%d commands to execute:", pbis.size()));
@@ -328,9 +373,31 @@ public class FragpipeRun {
         toConsole("");
       }
 
+      // how long the tools took on this machine before
+      final ThroughputModel throughput = ThroughputModel.ENABLED ? ThroughputModel.load(FragpipeLocations.get().getDirCache().resolve(ThroughputModel.FN)) : null;
+
       if (isDryRun) {
+        if (throughput != null) {
+          printEta(new RunEta(toTaskGraph(dag, cmdPbis, new HashMap<>(), pbi -> describe(pbi, null)), throughput, tabWorkflow.getThreads()));
+        }
         toConsole(Fragpipe.COLOR_RED_DARKEST, "\nIt's a dry-run, not running the commands.\n", true);
         printReference();
+        if (m.isQueued()) {
+          m.done.complete(null);
+        }
+        return 0;
+      }
+
+      if (Fragpipe.exportJobsDir != null) {
+        // same tasks as a run, but handed over to a batch scheduler
+        final Graph<TaskNode, DefEdge> jobGraph = toTaskGraph(dag, cmdPbis, new HashMap<>(), pbi -> describe(pbi, null));
+        try {
+          final Path driver = JobScripts.write(Fragpipe.exportJobsDir, JobScripts.Scheduler.of(Fragpipe.scheduler), jobGraph);
+          toConsole(Fragpipe.COLOR_GREEN_DARKER, "\nJob scripts written to " + Fragpipe.exportJobsDir + ", submit them with: " + driver + "\n", true);
+        } catch (IOException e) {
+          log.error("Could not write job scripts to " + Fragpipe.exportJobsDir, e);
+          return 1;
+        }
         return 0;
       }
 
@@ -351,48 +418,182 @@ public class FragpipeRun {
       // run everything
       long startTime = System.nanoTime();
       final List<RunnableDescription> toRun = new ArrayList<>();
-      for (final ProcessBuilderInfo pbi : pbis) {
-        Runnable runnable = ProcessBuilderInfo.toRunnable(pbi, wd, FragpipeRun::printProcessDescription);
-        ProcessDescription.Builder b = new ProcessDescription.Builder().setName(pbi.name);
-        if (pbi.pb.directory() != null) {
-          b.setWorkDir(pbi.pb.directory().toString());
-        }
-        if (pbi.pb.command() != null && !pbi.pb.command().isEmpty()) {
-          b.setCommand(String.join(" ", pbi.pb.command()));
-        }
-        toRun.add(new RunnableDescription(b.create(), runnable, pbi.parallelGroup, pbi));
+      final Map<CmdBase, TaskNode> cmdNodes = new HashMap<>();
+      // time, CPU, memory and I/O of every task, written to the workdir as tasks finish
+      final RunMetrics runMetrics = new RunMetrics(wd, isResume);
+      runMetrics.planned(pbis);
+      Bus.postSticky(new MessageRunMetrics(runMetrics));
+      if (Fragpipe.headless) {
+        runMetrics.printStatusEvery(STATUS_INTERVAL_MS, line -> toConsole(Fragpipe.COLOR_CMDLINE, "Status: " + line, true));
+      }
+      final Graph<TaskNode, DefEdge> taskGraph = toTaskGraph(dag, cmdPbis, cmdNodes, pbi -> toRunnableDescription(pbi, wd, runMetrics));
+      for (final CmdBase cmd : cmdsToRun) {
+        toRun.addAll(cmdNodes.get(cmd).runDescs);
+      }
+
+      // machine-wide budget for all the tasks of this run, or of all the runs of a queue
+      final ResourceBudget budget = m.budget != null ? m.budget : ResourceBudget.ofGb(tabWorkflow.getThreads(),
+          tabWorkflow.getRamGb() > 0 ? tabWorkflow.getRamGb() : OsUtils.getDefaultXmx());
+      log.debug("Resource budget for the run: {}", budget);
+      if (throughput != null) {
+        final RunEta eta = new RunEta(taskGraph, throughput, budget.threads);
+        runMetrics.setThroughput(throughput, eta);
+        printEta(eta);
       }
 
       // add finalizer process
       final Runnable finalizerRun = () -> {
+        runMetrics.close();
+        try {
+          RunTimeline.write(wd.resolve(RunTimeline.FN), taskGraph, runMetrics, budget.threads);
+          toConsole("Run timeline: " + wd.resolve(RunTimeline.FN));
+        } catch (Exception e) {
+          log.warn("Could not write run timeline", e);
+        }
+        final FailedInputs failedInputs = FailedInputs.get(wd);
+        final boolean inputsFailed = failedInputs != null && !failedInputs.isEmpty();
+        if (failedInputs != null) {
+          FailedInputs.stop(wd);
+        }
+        if (inputsFailed) {
+          toConsole(Fragpipe.COLOR_RED_DARKEST, "\n" + failedInputs.summary(), true);
+          try {
+            toConsole("Failed inputs: " + failedInputs.write());
+          } catch (IOException e) {
+            log.warn("Could not write failed inputs to " + wd, e);
+          }
+          if (m.isQueued()) {
+            m.done.completeExceptionally(new IllegalStateException("some inputs failed, see " + FailedInputs.FN));
+          }
+        }
         printReference();
         String totalTime = String.format("%.1f", (System.nanoTime() - startTime) * 1e-9 / 60);
         toConsole(Fragpipe.COLOR_RED_DARKEST, "\n=============================================================ALL JOBS DONE IN " + totalTime + " MINUTES=============================================================", true);
         Bus.post(MessageSaveLog.saveInDir(wd));
 
-        // save manifest file in GUI mode
-        if (!Fragpipe.headless) {
+        // save manifest file in GUI mode, a queue saves it before the UI moves on to the next run
+        if (!Fragpipe.headless && !m.isQueued()) {
           Path path = wd.resolve("lcms-files_" + TimeUtils.dateTimeNoSpaces() + ".fp-manifest");
           Bus.post(new MessageManifestSave(path));
         }
 
-        Bus.post(new MessageRunButtonEnabled(true));
+        if (!m.isQueued()) {
+          Bus.post(new MessageRunButtonEnabled(true));
+        }
+
+        if (inputsFailed && Fragpipe.headless && !m.isQueued()) {
+          System.exit(1);
+        }
       };
-      toRun.add(new RunnableDescription(new Builder().setName("Finalizer Task").create(), finalizerRun));
+      final RunnableDescription finalizerDesc = new RunnableDescription(new Builder().setName("Finalizer Task").create(), finalizerRun);
+      toRun.add(finalizerDesc);
+
+      // finalizer waits for every branch of the graph
+      final TaskNode finalizerNode = new TaskNode("Finalizer Task", Collections.singletonList(finalizerDesc));
+      final List<TaskNode> sinks = Seq.seq(taskGraph.vertexSet()).filter(node -> taskGraph.outDegreeOf(node) == 0).toList();
+      taskGraph.addVertex(finalizerNode);
+      for (TaskNode sink : sinks) {
+        taskGraph.addEdge(sink, finalizerNode);
+      }
+
+      // journal of the run, to be able to resume it
+      RunJournal journal = null;
+      try {
+        journal = RunJournal.open(wd, isResume);
+        toConsole("Run journal: " + journal.getPath() + (isResume ? ", resuming" : ""));
+      } catch (IOException e) {
+        log.warn("Could not open run journal in " + wd + ", the run won't be resumable", e);
+      }
+      if (tabRun.isIsolateFailures()) {
+        FailedInputs.start(wd);
+        toConsole("Failures of per-file steps only stop their own inputs, see " + wd.resolve(FailedInputs.FN) + " at the end");
+      } else {
+        FailedInputs.stop(wd);
+      }
+      toConsole("Task metrics: " + wd.resolve(RunMetrics.FN_CSV) + (ProcessTreeSampler.get().isSupported() ? "" : ", only wall time on this system"));
+
+      // outputs of earlier runs, in any workdir, that can be reused
+      StepCache stepCache = null;
+      if (StepCache.ENABLED) {
+        try {
+          stepCache = StepCache.open(FragpipeLocations.get().getDirCache().resolve(StepCache.FN), wd);
+        } catch (IOException e) {
+          log.warn("Could not open step cache, results of earlier runs won't be reused", e);
+        }
+      }
 
-      Bus.post(new MessageStartProcesses(toRun));
+      Bus.post(new MessageStartProcesses(toRun, taskGraph, budget, journal, isResume, stepCache, wd, m.done));
 
       // =========================================================================================================
 
       runConfigurationDone = true;
     } finally {
-      if (!runConfigurationDone) {
+      if (!runConfigurationDone && !m.isQueued()) {
         Bus.post(new MessageRunButtonEnabled(true));
       }
     }
     return 0;
   }
 
+  private static void printEta(RunEta eta) {
+    toConsole("Expected time, from the tasks of earlier runs on this machine:");
+    for (String line : eta.describe()) {
+      toConsole(line);
+    }
+    toConsole("");
+  }
+
+  /**
+   * Log file with stdout and stderr of a single task, for tasks that don't redirect their output
+   * anywhere else.
+   */
+  static Path taskLogPath(Path wd, int index, String taskName) {
+    String name = StringUtils.isNullOrWhitespace(taskName) ? "task" : taskName.replaceAll("[^a-zA-Z0-9._-]+", "-");
+    return wd.resolve(TASK_LOGS_DIR).resolve(String.format(Locale.ROOT, "%03d_%s.log", index, name));
+  }
+
+  /**
+   * One node per command of the configured graph, holding the tasks of the command.
+   *
+   * @param cmdNodes Filled with the node of each command.
+   */
+  private static Graph<TaskNode, DefEdge> toTaskGraph(Graph<CmdBase, DefEdge> dag, Map<CmdBase, List<ProcessBuilderInfo>> cmdPbis,
+      Map<CmdBase, TaskNode> cmdNodes, Function<ProcessBuilderInfo, RunnableDescription> toRd) {
+    final Graph<TaskNode, DefEdge> taskGraph = new DirectedAcyclicGraph<>(DefEdge.class);
+    for (final CmdBase cmd : dag.vertexSet()) {
+      final List<RunnableDescription> nodeRun = new ArrayList<>();
+      for (final ProcessBuilderInfo pbi : cmdPbis.getOrDefault(cmd, Collections.emptyList())) {
+        nodeRun.add(toRd.apply(pbi));
+      }
+      // Philosopher keeps its state in the workspace, not in files we can check
+      final TaskNode node = new TaskNode(cmd.getCmdName(), nodeRun, !cmd.usesPhi());
+      cmdNodes.put(cmd, node);
+      taskGraph.addVertex(node);
+    }
+    for (final DefEdge e : dag.edgeSet()) {
+      taskGraph.addEdge(cmdNodes.get(dag.getEdgeSource(e)), cmdNodes.get(dag.getEdgeTarget(e)));
+    }
+    return taskGraph;
+  }
+
+  private static RunnableDescription toRunnableDescription(ProcessBuilderInfo pbi, Path wd, RunMetrics runMetrics) {
+    final AtomicReference<RunnableDescription> rd = new AtomicReference<>();
+    Runnable runnable = ProcessBuilderInfo.toRunnable(pbi, wd, FragpipeRun::printProcessDescription, code -> rd.get().setExitCode(code), runMetrics);
+    rd.set(describe(pbi, runnable));
+    return rd.get();
+  }
+
+  private static RunnableDescription describe(ProcessBuilderInfo pbi, Runnable runnable) {
+    ProcessDescription.Builder b = new ProcessDescription.Builder().setName(pbi.name);
+    if (pbi.pb.directory() != null) {
+      b.setWorkDir(pbi.pb.directory().toString());
+    }
+    if (pbi.pb.command() != null && !pbi.pb.command().isEmpty()) {
+      b.setCommand(String.join(" ", pbi.pb.command()));
+    }
+    return new RunnableDescription(b.create(), runnable, pbi.parallelGroup, pbi);
+  }
+
   private static void printReference() {
     toConsole(Fragpipe.COLOR_RED_DARKEST, "\nPlease cite:", true);
     toConsole(Fragpipe.COLOR_CMDLINE, "(Any searches) ", false);
@@ -476,7 +677,7 @@ public class FragpipeRun {
     return testWdPath;
   }
 
-  private static Path prepareWd(JComponent parent, Path wd, TabWorkflow tabWorkflow) {
+  private static Path prepareWd(JComponent parent, Path wd, TabWorkflow tabWorkflow, boolean isResume) {
     if (!Files.exists(wd)) {
       if (Fragpipe.headless){
         log.warn("Output directory doesn't exist. Creating it.");
@@ -498,7 +699,7 @@ public class FragpipeRun {
         }
         return null;
       }
-    } else {
+    } else if (!isResume) { // when resuming the results of the previous run are expected there
       try (Stream<Path> inWd = Files.list(wd)) {
         if (inWd.findAny().isPresent()) {
           if (Fragpipe.headless) {
@@ -775,6 +976,11 @@ public class FragpipeRun {
     final TabMsfragger tabMsf = Fragpipe.getStickyStrict(TabMsfragger.class);
     final int ramGb = tabWorkflow.getRamGb() > 0 ? tabWorkflow.getRamGb() : OsUtils.getDefaultXmx();
     final int threads = tabWorkflow.getThreads();
+    final CgroupLimits limits = CgroupLimits.get();
+    if (limits.memoryBytes > 0 && ramGb * 1024L * 1024 * 1024 > limits.memoryBytes) {
+      toConsole(Fragpipe.COLOR_RED_DARKEST, String.format(Locale.ROOT, "Warning: RAM is set to %d GB, but this container or job is limited to %.1f GB."
+          + " Tools may get killed for running out of memory, lower the RAM setting or leave it at 0.", ramGb, limits.memoryBytes / (1024.0 * 1024 * 1024)), true);
+    }
 
     CmdCheckCentroid cmdCheckCentroid = new CmdCheckCentroid(true, wd);
     addConfig.accept(cmdCheckCentroid, () -> {
@@ -820,7 +1026,9 @@ public class FragpipeRun {
 
     addConfig.accept(cmdMsfragger, () -> {
       if (cmdMsfragger.isRun()) {
-        if (!cmdMsfragger.configure(parent, isDryRun, jarPath, binMsfragger, fastaFile, tabMsf.getParams(), tabMsf.getNumDbSlices(), ramGb, sharedLcmsFiles, decoyTag, tabWorkflow.hasDda(), tabWorkflow.hasDia(), tabWorkflow.hasGpfDia(), tabWorkflow.hasDiaLib(), cmdUmpire.isRun())) {
+        final boolean canSplit = !tabWorkflow.hasDia() && !tabWorkflow.hasGpfDia() && !tabWorkflow.hasDiaLib() && !p.getShiftedIons();
+        final int numSlices = checkDbSlices(tabMsf.getNumDbSlices(), canSplit, fastaFile, p, sharedLcmsFiles, ramGb);
+        if (!cmdMsfragger.configure(parent, isDryRun, jarPath, binMsfragger, fastaFile, tabMsf.getParams(), numSlices, ramGb, sharedLcmsFiles, decoyTag, tabWorkflow.hasDda(), tabWorkflow.hasDia(), tabWorkflow.hasGpfDia(), tabWorkflow.hasDiaLib(), cmdUmpire.isRun())) {
           return false;
         }
 
@@ -1336,9 +1544,10 @@ public class FragpipeRun {
     addToGraph(graphOrder, cmdTmtLabelQuant, DIRECTION.IN, cmdPhilosopherFilter, cmdTmtFreequant);
     addToGraph(graphOrder, cmdPhilosopherReport, DIRECTION.IN, cmdPhilosopherFilter, cmdFreequant, cmdTmtFreequant, cmdTmtLabelQuant);
     addToGraph(graphOrder, cmdPtmshepherd, DIRECTION.IN, cmdPhilosopherReport, cmdPhilosopherAbacus);
+    // IonQuant rewrites the psm.tsv files PTM-Shepherd reads, so the two never run at the same time
     addToGraph(graphOrder, cmdIonquant, DIRECTION.IN, cmdPhilosopherReport, cmdPhilosopherAbacus, cmdPtmshepherd);
     addToGraph(graphOrder, cmdTmt, DIRECTION.IN, cmdPhilosopherReport, cmdTmtFreequant, cmdTmtLabelQuant, cmdPhilosopherAbacus, cmdPtmshepherd);
-    addToGraph(graphOrder, cmdSpecLibGen, DIRECTION.IN, cmdPhilosopherReport);
+    addToGraph(graphOrder, cmdSpecLibGen, DIRECTION.IN, cmdPhilosopherReport, cmdIonquant); // IonQuant updates psm.tsv files
     addToGraph(graphOrder, cmdDiann, DIRECTION.IN, cmdSpecLibGen);
 
     // compose graph of required dependencies
@@ -1390,6 +1599,17 @@ public class FragpipeRun {
     }
     // now the shared `usePhi` object should have all the paths where Phi is invoked.
 
+    // Philosopher keeps its state in workspaces, commands using it must never overlap
+    CmdBase prevPhiDependentCmd = null;
+    for (CmdBase cmd : Seq.seq(new TopologicalOrderIterator<>(graphOrder)).toList()) {
+      if (cmd.usesPhi()) {
+        if (prevPhiDependentCmd != null) {
+          addToGraph(graphOrder, cmd, DIRECTION.IN, prevPhiDependentCmd);
+        }
+        prevPhiDependentCmd = cmd;
+      }
+    }
+
     // special treatment of phi workspace
     // run Philosopher clean/init in all directories where Philosopher will be invoked
 
@@ -1552,6 +1772,46 @@ public class FragpipeRun {
     return true;
   }
 
+  /**
+   * Checks the number of database splits against what the database and the RAM setting need, see
+   * {@link SliceCountEstimator}. Too few splits and MSFragger runs out of memory, too many make the
+   * search slower than it has to be.
+   *
+   * @param canSplit False if the search can't be split, e.g. for DIA data.
+   * @return Number of splits to use, the recommended one with {@link #DBSPLIT_AUTO}.
+   */
+  private static int checkDbSlices(int numSlices, boolean canSplit, String fastaPath, MsfraggerParams params, List<InputLcmsFile> lcmsFiles, int ramGb) {
+    if (!canSplit || !DbSplit2.get().isInitialized()) {
+      return numSlices;
+    }
+    final SliceCountEstimator.Estimate est;
+    try {
+      est = SliceCountEstimator.estimate(Paths.get(fastaPath), params, SliceCountEstimator.largestInput(lcmsFiles), ramGb);
+    } catch (IOException | RuntimeException e) {
+      log.warn("Could not estimate the number of database splits", e);
+      return numSlices;
+    }
+    log.info("Database split estimate: {}", est);
+    if (est.slices < 0) {
+      toConsole(Fragpipe.COLOR_RED_DARKEST, "Warning: MSFragger will likely run out of memory however the database is split, "
+          + "increase the RAM setting. " + est, true);
+    } else if (est.slices > numSlices) {
+      if (DBSPLIT_AUTO) {
+        toConsole(String.format(Locale.ROOT, "Splitting the database in %d instead of %d. %s", est.slices, numSlices, est));
+        return est.slices;
+      }
+      toConsole(Fragpipe.COLOR_RED_DARKEST, String.format(Locale.ROOT, "Warning: MSFragger will likely run out of memory with the database split in %d,"
+          + " set 'Split database' on the MSFragger tab to %d or more. %s", numSlices, est.slices, est), true);
+    } else if (est.slices < numSlices) {
+      if (DBSPLIT_AUTO) {
+        toConsole(String.format(Locale.ROOT, "Splitting the database in %d instead of %d. %s", est.slices, numSlices, est));
+        return est.slices;
+      }
+      toConsole(String.format(Locale.ROOT, "The database is split in %d, %d would do and be faster. %s", numSlices, est.slices, est));
+    }
+    return numSlices;
+  }
+
   private static boolean checkDbConfig(JComponent parent) {
     NoteConfigDatabase n;
     try {
@@ -0,0 +1,241 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe;
+
+import static com.dmtavt.fragpipe.messages.MessagePrintToConsole.toConsole;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.dmtavt.fragpipe.api.Bus;
+import com.dmtavt.fragpipe.api.PropsFile;
+import com.dmtavt.fragpipe.messages.MessageClearConsole;
+import com.dmtavt.fragpipe.messages.MessageKillAll;
+import com.dmtavt.fragpipe.messages.MessageLoadUi;
+import com.dmtavt.fragpipe.messages.MessageManifestLoad;
+import com.dmtavt.fragpipe.messages.MessageRun;
+import com.dmtavt.fragpipe.messages.MessageRunButtonEnabled;
+import com.dmtavt.fragpipe.messages.MessageSaveUiState;
+import com.dmtavt.fragpipe.process.ResourceBudget;
+import com.dmtavt.fragpipe.tabs.TabWorkflow;
+import com.github.chhh.utils.TimeUtils;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.greenrobot.eventbus.Subscribe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Several runs, each a workflow, a manifest and a workdir, executed one after another or a few at
+ * a time. All of them share one CPU/memory budget, tasks of different runs only go side by side
+ * while they fit into it.
+ * <p>
+ * Runs are configured one at a time, through the same UI state as a single run. Configuring the
+ * next run only waits for a free slot, not for the previous run to finish.
+ */
+public class RunQueue {
+  private static final Logger log = LoggerFactory.getLogger(RunQueue.class);
+  /** Snapshots of workflows and manifests queued from the UI, in the cache directory. */
+  public static final String DIR_SNAPSHOTS = "run-queue";
+  private static final AtomicInteger snapshotCounter = new AtomicInteger(0);
+
+  private final List<Entry> entries = new ArrayList<>();
+  private volatile boolean isStopped = false;
+
+  public static class Entry {
+    public final Path workflow;
+    public final Path manifest;
+    public final Path workdir;
+
+    public Entry(Path workflow, Path manifest, Path workdir) {
+      this.workflow = workflow.toAbsolutePath().normalize();
+      this.manifest = manifest.toAbsolutePath().normalize();
+      this.workdir = workdir.toAbsolutePath().normalize();
+    }
+
+    @Override
+    public String toString() {
+      return workdir.toString();
+    }
+  }
+
+  /**
+   * Reads a batch file with one run per line: paths to the workflow, the manifest and the workdir,
+   * separated by tabs. Relative paths are resolved against the directory of the batch file. Empty
+   * lines and lines starting with '#' are skipped.
+   *
+   * @throws IllegalArgumentException If a line is malformed or a file doesn't exist.
+   */
+  public static List<Entry> readBatchFile(Path batchFile) throws IOException {
+    final Path dir = batchFile.toAbsolutePath().getParent();
+    final List<Entry> entries = new ArrayList<>();
+    final List<String> lines = Files.readAllLines(batchFile, UTF_8);
+    for (int i = 0; i < lines.size(); i++) {
+      final String line = lines.get(i).trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      final String[] split = line.split("\t");
+      if (split.length != 3) {
+        throw new IllegalArgumentException(String.format("Line %d: expected 3 tab separated columns (workflow, manifest, workdir), found %d", i + 1, split.length));
+      }
+      final Entry e = new Entry(dir.resolve(split[0].trim()), dir.resolve(split[1].trim()), dir.resolve(split[2].trim()));
+      if (!Files.isRegularFile(e.workflow)) {
+        throw new IllegalArgumentException(String.format("Line %d: workflow file %s does not exist", i + 1, e.workflow));
+      }
+      if (!Files.isRegularFile(e.manifest)) {
+        throw new IllegalArgumentException(String.format("Line %d: manifest file %s does not exist", i + 1, e.manifest));
+      }
+      entries.add(e);
+    }
+    return entries;
+  }
+
+  /**
+   * Saves the current workflow and manifest of the UI, so that the UI can be changed while the
+   * run waits in the queue.
+   */
+  public static Entry snapshot(Path workdir) throws IOException {
+    final Path dir = FragpipeLocations.get().getDirCache().resolve(DIR_SNAPSHOTS);
+    Files.createDirectories(dir);
+    final String base = TimeUtils.dateTimeNoSpaces() + "_" + snapshotCounter.incrementAndGet();
+    final Path workflow = dir.resolve(base + ".workflow");
+    final Path manifest = dir.resolve(base + ".fp-manifest");
+    Bus.post(new MessageSaveUiState(workflow));
+    Fragpipe.getStickyStrict(TabWorkflow.class).manifestSave(manifest);
+    return new Entry(workflow, manifest, workdir);
+  }
+
+  public synchronized void add(Entry e) {
+    entries.add(e);
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  public synchronized List<Entry> getEntries() {
+    return new ArrayList<>(entries);
+  }
+
+  /**
+   * Executes all the runs of the queue and waits for them to finish. A run that fails doesn't
+   * stop the others, stopping all the processes stops the queue as well.
+   *
+   * @param parallel How many runs may be going at the same time.
+   * @param budget Shared by all the runs.
+   * @return Number of runs that failed or were not started.
+   */
+  public int run(int parallel, ResourceBudget budget, boolean isDryRun, boolean isResume) throws InterruptedException {
+    final List<Entry> todo = getEntries();
+    final Semaphore slots = new Semaphore(Math.max(1, parallel));
+    final Map<Entry, CompletableFuture<Void>> runs = new LinkedHashMap<>();
+    log.debug("Running queue of {} runs, {} at a time, budget {}", todo.size(), parallel, budget);
+    isStopped = false;
+    Bus.register(this);
+    Bus.post(new MessageRunButtonEnabled(false));
+    try {
+      for (int i = 0; i < todo.size() && !isStopped; i++) {
+        final Entry e = todo.get(i);
+        slots.acquire();
+        if (isStopped) {
+          slots.release();
+          break;
+        }
+        if (parallel <= 1) {
+          Bus.post(new MessageClearConsole());
+        }
+        toConsole(Fragpipe.COLOR_TOOL, String.format("Run queue: starting run %d of %d in %s", i + 1, todo.size(), e.workdir), true);
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        runs.put(e, done);
+        done.whenComplete((v, t) -> slots.release());
+        try {
+          load(e);
+          if (FragpipeRun.run(new MessageRun(isDryRun, isResume, budget, done)) != 0) {
+            done.completeExceptionally(new IllegalStateException("the run could not be configured"));
+          } else if (!Fragpipe.headless && !isDryRun) {
+            // same as a single run saves on completion, but the UI is about to move on
+            Fragpipe.getStickyStrict(TabWorkflow.class).manifestSave(e.workdir.resolve("lcms-files_" + TimeUtils.dateTimeNoSpaces() + ".fp-manifest"));
+          }
+        } catch (IOException | RuntimeException ex) {
+          log.error("Error starting run in " + e.workdir, ex);
+          done.completeExceptionally(ex);
+        }
+      }
+
+      int failed = 0;
+      final StringBuilder sb = new StringBuilder("Run queue summary:");
+      for (Entry e : todo) {
+        final CompletableFuture<Void> done = runs.get(e);
+        String status = "done";
+        if (done == null) {
+          status = "not started";
+          failed++;
+        } else {
+          try {
+            done.get();
+          } catch (ExecutionException | CancellationException ex) {
+            final Throwable cause = ex instanceof ExecutionException && ex.getCause() != null ? ex.getCause() : ex;
+            status = "failed, " + cause.getMessage();
+            failed++;
+          }
+        }
+        sb.append("\n    ").append(e.workdir).append(": ").append(status);
+      }
+      toConsole(failed == 0 ? Fragpipe.COLOR_GREEN_DARKER : Fragpipe.COLOR_RED_DARKEST, sb.toString(), true);
+      return failed;
+    } finally {
+      Bus.unregister(this);
+      Bus.post(new MessageRunButtonEnabled(true));
+    }
+  }
+
+  /**
+   * Loads the workflow and the manifest into the UI, the same way as for a single headless run.
+   */
+  private static void load(Entry e) throws InterruptedException {
+    final PropsFile propsFile = FragpipeLocations.get().tryLoadSilently(e.workflow, "user");
+    propsFile.setProperty("workdir", e.workdir.toString());
+    if (Fragpipe.headless) {
+      Fragpipe.setHeadlessProps(propsFile);
+    }
+    Fragpipe.loadWorkflowDone = new CountDownLatch(1);
+    Fragpipe.loadManifestDone = new CountDownLatch(1);
+    Bus.post(new MessageLoadUi(propsFile, true, Fragpipe.headless));
+    Bus.post(new MessageManifestLoad(e.manifest));
+    Fragpipe.loadWorkflowDone.await();
+    Fragpipe.loadManifestDone.await();
+    Thread.sleep(500);
+  }
+
+  @Subscribe
+  public void on(MessageKillAll m) {
+    if (m.wd == null) {
+      // a failed task only stops its own run
+      isStopped = true;
+    }
+  }
+}
@@ -290,10 +290,11 @@ public class DownloadDbHelper {
           .setParallelGroup(null).create();
       ProcessResult pr = new ProcessResult(pbi);
       if (pr.start().waitFor(timeoutMinutes, TimeUnit.MINUTES)) {
-        log.info("Process output: {}", pr.getOutput().toString());
+        pr.awaitOutput();
+        log.info("Process output: {}", pr.getOutput());
         final int exitValue = pr.getProcess().exitValue();
         if (!cmd.toLowerCase().contains("workspace") && exitValue != 0) {
-          throw new IllegalStateException("Process returned non zero value");
+          throw new IllegalStateException("Process returned non zero value, last output:\n" + pr.getOutputTail(20));
         }
       } else {
         throw new InterruptedException(pb + " took more than " + timeoutMinutes + " minutes. Interrupted the process.");
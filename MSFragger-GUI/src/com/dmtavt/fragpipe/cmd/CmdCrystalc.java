@@ -20,8 +20,10 @@ package com.dmtavt.fragpipe.cmd;
 import com.dmtavt.fragpipe.Fragpipe;
 import com.dmtavt.fragpipe.FragpipeLocations;
 import com.dmtavt.fragpipe.api.InputLcmsFile;
+import com.dmtavt.fragpipe.process.TaskResources;
 import com.dmtavt.fragpipe.tools.crystalc.CrystalcPanel;
 import com.dmtavt.fragpipe.tools.crystalc.CrystalcParams;
+import com.github.chhh.utils.OsUtils;
 import com.github.chhh.utils.StringUtils;
 import java.awt.Component;
 import java.io.IOException;
@@ -168,6 +170,7 @@ public class CmdCrystalc extends CmdBase {
     // multiple raw file extensions or multiple lcms file locaitons
     // issue a separate command for each pepxml file
     List<Path> filesToDelete = new ArrayList<>();
+    final int threads = ccParams.getThread() > 0 ? ccParams.getThread() : OsUtils.getAvailableProcessors();
     int index = -1;
     for (Map.Entry<InputLcmsFile, List<Path>> kv : pepxmlFiles.entrySet()) {
       for (Path pepxml : kv.getValue()) {
@@ -214,7 +217,7 @@ public class CmdCrystalc extends CmdBase {
         cmd.add(pepxml.toString());
         ProcessBuilder pb = new ProcessBuilder(cmd);
         pb.directory(outDir.toFile());
-        pbis.add(PbiBuilder.from(pb));
+        pbis.add(new PbiBuilder().setPb(pb).setResources(TaskResources.ofGb(threads, ramGb)).create());
       }
     }
 
@@ -24,6 +24,7 @@ import java.util.List;
 import java.util.Map;
 import com.dmtavt.fragpipe.api.InputLcmsFile;
 import com.dmtavt.fragpipe.tools.philosopher.PhilosopherProps;
+import com.github.chhh.utils.OsUtils;
 import com.github.chhh.utils.UsageTrigger;
 
 public class CmdIprophet extends CmdBase {
@@ -57,7 +58,7 @@ public class CmdIprophet extends CmdBase {
     if (nThreads > 0) {
       threads = nThreads;
     } else {
-      threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+      threads = Math.max(1, OsUtils.getAvailableProcessors() - 1);
     }
     cmd.add(Integer.toString(threads));
     pepxmlFiles.values().stream().flatMap(List::stream).distinct().forEach(pepxml -> cmd.add(pepxml.toString()));
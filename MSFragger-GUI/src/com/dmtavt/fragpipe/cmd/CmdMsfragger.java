@@ -20,16 +20,24 @@ package com.dmtavt.fragpipe.cmd;
 import static com.github.chhh.utils.PathUtils.testFilePath;
 
 import com.dmtavt.fragpipe.Fragpipe;
+import com.dmtavt.fragpipe.FragpipeLocations;
 import com.dmtavt.fragpipe.api.InputLcmsFile;
-import com.dmtavt.fragpipe.api.PyInfo;
 import com.dmtavt.fragpipe.exceptions.NoStickyException;
-import com.dmtavt.fragpipe.messages.NoteConfigPython;
+import com.dmtavt.fragpipe.messages.NoteConfigMsfragger;
+import com.dmtavt.fragpipe.process.ArgFiles;
+import com.dmtavt.fragpipe.process.TaskCost;
+import com.dmtavt.fragpipe.process.TaskResources;
 import com.dmtavt.fragpipe.tools.dbsplit.DbSplit2;
+import com.dmtavt.fragpipe.tools.dbsplit.SplitSearch;
 import com.dmtavt.fragpipe.tools.enums.CleavageType;
 import com.dmtavt.fragpipe.tools.enums.FraggerOutputType;
 import com.dmtavt.fragpipe.tools.enums.MassTolUnits;
 import com.dmtavt.fragpipe.tools.enums.PrecursorMassTolUnits;
+import com.dmtavt.fragpipe.tools.fragger.CalibratedSpectra;
+import com.dmtavt.fragpipe.tools.fragger.MsfraggerBatchPlanner;
 import com.dmtavt.fragpipe.tools.fragger.MsfraggerParams;
+import com.dmtavt.fragpipe.tools.fragger.MsfraggerProps;
+import com.dmtavt.fragpipe.tools.fragger.MsfraggerVerCmp;
 import com.github.chhh.utils.OsUtils;
 import com.github.chhh.utils.StringUtils;
 import com.github.chhh.utils.UsageTrigger;
@@ -43,12 +51,15 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.TreeMap;
 import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import javax.swing.JOptionPane;
@@ -303,7 +314,7 @@ public class CmdMsfragger extends CmdBase {
       // slicing requested
       if (!DbSplit2.get().isInitialized()) {
         if (Fragpipe.headless) {
-          log.error("MSFragger: database splitting in more than 1 chunk. However not all preconditions for enabling slicing were met, check that Python is installed and meets minimum version requirements.");
+          log.error("MSFragger: database splitting in more than 1 chunk. However not all preconditions for enabling slicing were met, check that MSFragger meets minimum version requirements.");
         } else {
           JOptionPane.showMessageDialog(comp,
               "MSFragger: database splitting in more than 1 chunk.\n"
@@ -383,6 +394,60 @@ public class CmdMsfragger extends CmdBase {
     adjustDiaParams(params, paramsDia, "DIA");
     adjustDiaParams(params, paramsGpfDia, "GPF-DIA");
 
+    Map<String, List<InputLcmsFile>> t = new TreeMap<>();
+
+    for (InputLcmsFile inputLcmsFile : lcmsFiles) {
+      if (inputLcmsFile.getDataType().contentEquals("DDA")) {
+        List<InputLcmsFile> tt = t.get("DDA");
+        if (tt == null) {
+          tt = new ArrayList<>();
+          tt.add(inputLcmsFile);
+          t.put("DDA", tt);
+        } else {
+          tt.add(inputLcmsFile);
+        }
+      } else if (inputLcmsFile.getDataType().contentEquals("DIA") || inputLcmsFile.getDataType().contentEquals("DIA-Lib")) { // searching DIA and DIA-Lib together
+        List<InputLcmsFile> tt = t.get("DIA");
+        if (tt == null) {
+          tt = new ArrayList<>();
+          tt.add(inputLcmsFile);
+          t.put("DIA", tt);
+        } else {
+          tt.add(inputLcmsFile);
+        }
+      } else if (inputLcmsFile.getDataType().contentEquals("GPF-DIA")) {
+        List<InputLcmsFile> tt = t.get("GPF-DIA");
+        if (tt == null) {
+          tt = new ArrayList<>();
+          tt.add(inputLcmsFile);
+          t.put("GPF-DIA", tt);
+        } else {
+          tt.add(inputLcmsFile);
+        }
+      }
+    }
+
+    // searches of different data types run side by side if there is memory for all of them
+    final Map<String, MsfraggerBatchPlanner.Batch> plan = planSearches(t, isSlicing, pathFasta, ramGb);
+    final boolean concurrent = plan != null;
+    if (concurrent) {
+      plan.forEach((type, b) -> paramsFor(type).setNumThreads(b.getThreads()));
+    }
+
+    // calibrated spectra left by an earlier search of the same DDA inputs with the same settings
+    // are searched instead of the inputs, without calibrating them again
+    String calibrationKey = null;
+    Map<InputLcmsFile, CalibratedSpectra.Record> calibrated = Collections.emptyMap();
+    if (t.containsKey("DDA") && !isSlicing && paramsDda.getCalibrateMass() > 0) {
+      calibrationKey = CalibratedSpectra.settingsKey(paramsDda, Paths.get(pathFasta), msfraggerVersion());
+      calibrated = reusableCalibration(comp, t.get("DDA"), calibrationKey);
+      if (!calibrated.isEmpty()) {
+        CalibratedSpectra.apply(calibrated.values().iterator().next(), paramsDda);
+      }
+    }
+    final Map<InputLcmsFile, CalibratedSpectra.Record> reused = calibrated;
+    final boolean recordCalibration = calibrationKey != null && reused.isEmpty() && paramsDda.getWriteCalibratedMgf() > 0;
+
     if (!isDryRun) {
       try {
         if (hasDda || isRunDiaU) {
@@ -407,10 +472,11 @@ public class CmdMsfragger extends CmdBase {
       }
     }
 
-    // 32k symbols splitting for regular command.
-    // But for slicing it's all up to the python script.
-    // final int commandLenLimit = isSlicing ? Integer.MAX_VALUE : 32000;
-    final int commandLenLimit = 32000; // Make is a little bit smaller than 1 << 15 to make sure that it won't crash.
+    // Inputs of a data type go to MSFragger in an arg file, so the index is built once per data type.
+    // Split database searches take the inputs on the command line, as do older MSFragger versions,
+    // those are split over as few command lines as the OS allows.
+    final boolean useInputList = !isSlicing && isInputListSupported();
+    final int commandLenLimit = maxCommandLength();
 
     /* disable deletion of temp dir when error occurs
     if (isSlicing) {
@@ -429,93 +495,63 @@ public class CmdMsfragger extends CmdBase {
     }
     */
 
-    StringBuilder sb = new StringBuilder();
-
     Map<InputLcmsFile, List<Path>> mapLcmsToPepxml = outputs(lcmsFiles, "pepXML", wd);
     Map<InputLcmsFile, List<Path>> mapLcmsToTsv = outputs(lcmsFiles, "tsv", wd);
     Map<InputLcmsFile, List<Path>> mapLcmsToPin = outputs(lcmsFiles, "pin", wd);
 
     final List<String> javaCmd = Arrays.asList(
         Fragpipe.getBinJava(), "-jar", "-Dfile.encoding=UTF-8", "-Xmx" + ramGb + "G");
-    final List<String> slicingCmd;
 
-    if (!isSlicing) {
-      slicingCmd = null;
-    } else {
-      try {
-        NoteConfigPython configPython = Fragpipe.getSticky(NoteConfigPython.class);
-        slicingCmd = Arrays.asList(
-            configPython.pi.getCommand(),
-            DbSplit2.get().getScriptDbslicingPath().toAbsolutePath().normalize().toString(),
-            Integer.toString(numSlices),
-            OsUtils.asSingleArgument(String.join(" ", javaCmd))
-        );
-      } catch (NoStickyException e) {
-        if (Fragpipe.headless) {
-          log.error("DbSplit was enabled, but Python was not configured.");
-        } else {
-          JOptionPane.showMessageDialog(comp, "DbSplit was enabled, but Python was not configured.", "Error", JOptionPane.ERROR_MESSAGE);
-        }
-        return false;
+    final List<ProcessBuilderInfo> moves = new ArrayList<>();
+    for (Map.Entry<String, List<InputLcmsFile>> e : t.entrySet()) {
+      final List<String> cmdBase = isSlicing
+          ? splitSearchCmd(jarFragpipe, paramsFor(e.getKey()), numSlices, pathFasta, e.getValue(), ramGb)
+          : new ArrayList<>(javaCmd);
+      if (concurrent) {
+        cmdBase.set(cmdBase.size() - 1, "-Xmx" + plan.get(e.getKey()).getRamGb() + "G");
       }
-    }
-
-    Map<String, List<InputLcmsFile>> t = new TreeMap<>();
+      final List<String> fraggerArgs = new ArrayList<>();
+      fraggerArgs.add(binFragger.useBin());
 
-    for (InputLcmsFile inputLcmsFile : lcmsFiles) {
-      if (inputLcmsFile.getDataType().contentEquals("DDA")) {
-        List<InputLcmsFile> tt = t.get("DDA");
-        if (tt == null) {
-          tt = new ArrayList<>();
-          tt.add(inputLcmsFile);
-          t.put("DDA", tt);
-        } else {
-          tt.add(inputLcmsFile);
-        }
-      } else if (inputLcmsFile.getDataType().contentEquals("DIA") || inputLcmsFile.getDataType().contentEquals("DIA-Lib")) { // searching DIA and DIA-Lib together
-        List<InputLcmsFile> tt = t.get("DIA");
-        if (tt == null) {
-          tt = new ArrayList<>();
-          tt.add(inputLcmsFile);
-          t.put("DIA", tt);
-        } else {
-          tt.add(inputLcmsFile);
-        }
-      } else if (inputLcmsFile.getDataType().contentEquals("GPF-DIA")) {
-        List<InputLcmsFile> tt = t.get("GPF-DIA");
-        if (tt == null) {
-          tt = new ArrayList<>();
-          tt.add(inputLcmsFile);
-          t.put("GPF-DIA", tt);
-        } else {
-          tt.add(inputLcmsFile);
-        }
+      // Execution order after sorting: DDA, DIA and DIA-Lib, GPF-DIA. MSFragger would stop if there were wide isolation windows in DDA mode, which makes it better to let DDA be executed first.
+      if (e.getKey().contentEquals("DDA")) {
+        fraggerArgs.add(savedDdaParamsPath.toString());
+      } else if (e.getKey().contentEquals("DIA")) {
+        fraggerArgs.add(savedDiaParamsPath.toString());
+      } else if (e.getKey().contentEquals("GPF-DIA")) {
+        fraggerArgs.add(savedGpfDiaParamsPath.toString());
       }
-    }
 
-    for (Map.Entry<String, List<InputLcmsFile>> e : t.entrySet()) {
-      int fileIndex = 0;
-      while (fileIndex < e.getValue().size()) {
-        List<String> cmd = new ArrayList<>();
-        if (isSlicing) {
-          cmd.addAll(slicingCmd);
+      Path argFile = null;
+      List<List<InputLcmsFile>> batches = null;
+      if (useInputList) {
+        final List<String> args = new ArrayList<>(fraggerArgs);
+        e.getValue().forEach(f -> args.add(searchedPath(f, reused).toString()));
+        if (ArgFiles.canWrite(args)) {
+          argFile = wd.resolve("fragger_" + e.getKey().toLowerCase(Locale.ROOT).replace("-", "") + "_inputs.txt").toAbsolutePath().normalize();
+          try {
+            if (isDryRun) {
+              ArgFiles.register(argFile, args);
+            } else {
+              ArgFiles.write(argFile, args);
+            }
+          } catch (IOException ex) {
+            if (Fragpipe.headless) {
+              log.error("Could not save MSFragger input list file to working dir.");
+            } else {
+              JOptionPane.showMessageDialog(comp, "Could not save MSFragger input list file to working dir.\n", "Error", JOptionPane.ERROR_MESSAGE);
+            }
+            return false;
+          }
+          batches = Collections.singletonList(e.getValue());
         } else {
-          cmd.addAll(javaCmd);
+          log.info("Paths of MSFragger {} inputs are not plain ASCII, passing them on the command line", e.getKey());
         }
-        cmd.add(binFragger.useBin());
-
-        // Execution order after sorting: DDA, DIA and DIA-Lib, GPF-DIA. MSFragger would stop if there were wide isolation windows in DDA mode, which makes it better to let DDA be executed first.
-        if (e.getKey().contentEquals("DDA")) {
-          cmd.add(savedDdaParamsPath.toString());
-        } else if (e.getKey().contentEquals("DIA")) {
-          cmd.add(savedDiaParamsPath.toString());
-        } else if (e.getKey().contentEquals("GPF-DIA")) {
-          cmd.add(savedGpfDiaParamsPath.toString());
-        }
-
-        // check if the command length is ok so far
-        sb.append(String.join(" ", cmd));
-        if (sb.length() > commandLenLimit) {
+      }
+      if (batches == null) {
+        final int room = commandLenLimit - String.join(" ", cmdBase).length() - String.join(" ", fraggerArgs).length() - 1;
+        batches = planBatches(e.getValue(), f -> searchedPath(f, reused).toString().length(), room);
+        if (batches == null) {
           if (Fragpipe.headless) {
             log.error("MSFragger command line length too large even for a single file.");
           } else {
@@ -523,37 +559,74 @@ public class CmdMsfragger extends CmdBase {
           }
           return false;
         }
+      }
 
-        List<InputLcmsFile> addedLcmsFiles = new ArrayList<>();
-        while (fileIndex < e.getValue().size()) {
-          InputLcmsFile f = e.getValue().get(fileIndex);
-          // if adding this file to the command line will make the command length
-          // longer than the allowed maximum, stop adding files
-          if (sb.length() + f.getPath().toString().length() > commandLenLimit) {
-            break;
-          }
-          sb.append(f.getPath().toString()).append(" ");
-          cmd.add(f.getPath().toString());
-          addedLcmsFiles.add(f);
-          fileIndex++;
+      int batchIndex = 0;
+      for (List<InputLcmsFile> batch : batches) {
+        batchIndex++;
+        List<String> cmd = new ArrayList<>(cmdBase);
+        if (argFile != null) {
+          cmd.add("@" + argFile);
+        } else {
+          cmd.addAll(fraggerArgs);
+          batch.forEach(f -> cmd.add(searchedPath(f, reused).toString()));
         }
 
         ProcessBuilder pb = new ProcessBuilder(cmd);
-
-        if (isSlicing) {
-          PyInfo.modifyEnvironmentVariablesForPythonSubprocesses(pb);
-          pb.environment().put("PYTHONIOENCODING", "utf-8");
-          pb.environment().put("PYTHONUNBUFFERED", "true");
-        }
-
         pb.directory(wd.toFile());
 
-        pbis.add(PbiBuilder.from(pb));
-        sb.setLength(0);
+        final PbiBuilder pbi = new PbiBuilder().setPb(pb);
+        if (concurrent) {
+          final MsfraggerBatchPlanner.Batch b = plan.get(e.getKey());
+          pbi.setParallelGroup(NAME).setResources(TaskResources.ofGb(b.getThreads(), b.getRamGb()));
+        } else {
+          // MSFragger reads its thread count from the params file, the command line doesn't show it
+          pbi.setResources(TaskResources.ofGb(numThreads(paramsFor(e.getKey())), ramGb));
+        }
+        pbi.setOutputs(createdByFragger(batch, reused, Arrays.asList(mapLcmsToPepxml, mapLcmsToTsv, mapLcmsToPin)));
+        final boolean isDda = e.getKey().contentEquals("DDA");
+        if (isDda && recordCalibration) {
+          // the parameters MSFragger finds while calibrating are only in its output
+          final String fraggerLog = wd.resolve(batches.size() > 1 ? "fragger_dda_" + batchIndex + ".log" : "fragger_dda.log")
+              .toAbsolutePath().normalize().toString();
+          pbi.setFnStdOut(fraggerLog).setFnStdErr(fraggerLog);
+          final List<String> cmdRecord = helperCmd(jarFragpipe, CalibratedSpectra.class);
+          cmdRecord.addAll(Arrays.asList("record", calibrationKey, Integer.toString(paramsDda.getCalibrateMass()), fraggerLog));
+          batch.forEach(f -> cmdRecord.add(f.getPath().toAbsolutePath().normalize().toString()));
+          final ProcessBuilder pbRecord = new ProcessBuilder(cmdRecord);
+          pbRecord.directory(wd.toFile());
+          moves.add(new PbiBuilder().setPb(pbRecord).setName(NAME + " record calibrated spectra").create());
+        }
+        pbis.add(pbi.create());
+        if (isDda) {
+          // outputs of calibrated spectra are named after them, they get the names of the inputs
+          for (InputLcmsFile f : batch) {
+            final CalibratedSpectra.Record r = reused.get(f);
+            if (r == null) {
+              continue;
+            }
+            final String fromStem = CalibratedSpectra.stem(r.calibrated);
+            final String toStem = CalibratedSpectra.stem(f.getPath());
+            if (fromStem.equals(toStem)) {
+              continue;
+            }
+            final List<String> cmdRestore = helperCmd(jarFragpipe, CalibratedSpectra.class);
+            cmdRestore.addAll(Arrays.asList("restore", fromStem, toStem));
+            for (Map<InputLcmsFile, List<Path>> m : Arrays.asList(mapLcmsToPepxml, mapLcmsToTsv, mapLcmsToPin)) {
+              for (Path p : m.get(f)) {
+                final String fn = p.getFileName().toString();
+                cmdRestore.add(r.calibrated.toAbsolutePath().normalize().resolveSibling(fromStem + fn.substring(toStem.length())).toString());
+              }
+            }
+            final ProcessBuilder pbRestore = new ProcessBuilder(cmdRestore);
+            pbRestore.directory(wd.toFile());
+            moves.add(new PbiBuilder().setPb(pbRestore).setName(NAME + " rename outputs of calibrated spectra").create());
+          }
+        }
 
         // move the pepxml files if the output directory is not the same as where
         // the lcms files were
-        for (InputLcmsFile f : addedLcmsFiles) {
+        for (InputLcmsFile f : batch) {
           if (fraggerOutputType.valueInParamsFile().contains("pepXML")) {
             List<Path> pepxmlWhereItShouldBeList = mapLcmsToPepxml.get(f);
             if (pepxmlWhereItShouldBeList == null || pepxmlWhereItShouldBeList.isEmpty())
@@ -565,7 +638,7 @@ public class CmdMsfragger extends CmdBase {
                 List<ProcessBuilder> pbsMove = ToolingUtils
                     .pbsMoveFiles(jarFragpipe, pepxmlWhereItShouldBe.getParent(), true,
                         Collections.singletonList(pepxmlAsCreatedByFragger));
-                pbis.addAll(PbiBuilder.from(pbsMove, NAME + " move pepxml"));
+                moves.addAll(PbiBuilder.from(pbsMove, NAME + " move pepxml"));
               }
             }
           }
@@ -579,7 +652,7 @@ public class CmdMsfragger extends CmdBase {
                 List<ProcessBuilder> pbsMove = ToolingUtils
                     .pbsMoveFiles(jarFragpipe, tsvWhereItShouldBe.getParent(), true,
                         Collections.singletonList(tsvAsCreatedByFragger));
-                pbis.addAll(PbiBuilder.from(pbsMove, NAME + " move tsv"));
+                moves.addAll(PbiBuilder.from(pbsMove, NAME + " move tsv"));
               }
             }
           }
@@ -593,18 +666,295 @@ public class CmdMsfragger extends CmdBase {
                 List<ProcessBuilder> pbsMove = ToolingUtils
                     .pbsMoveFiles(jarFragpipe, pinWhereItShouldBe.getParent(), true,
                         Collections.singletonList(pinAsCreatedByFragger));
-                pbis.addAll(PbiBuilder.from(pbsMove, NAME + " move pin"));
+                moves.addAll(PbiBuilder.from(pbsMove, NAME + " move pin"));
               }
             }
           }
         }
+        if (!concurrent) {
+          pbis.addAll(moves);
+          moves.clear();
+        }
       }
     }
+    // concurrent searches are one parallel group, their outputs are moved once all are done
+    pbis.addAll(moves);
 
     isConfigured = true;
     return true;
   }
 
+  /**
+   * MSFragger can get its inputs in a Java launcher arg file, see {@link ArgFiles}, starting with
+   * the version in {@link MsfraggerProps#PROP_MIN_VERSION_INPUT_LIST}.
+   */
+  static boolean isInputListSupported() {
+    if (!ArgFiles.ENABLED) {
+      return false;
+    }
+    final NoteConfigMsfragger m;
+    try {
+      m = Fragpipe.getSticky(NoteConfigMsfragger.class);
+    } catch (NoStickyException e) {
+      return false;
+    }
+    if (!m.isValid() || StringUtils.isNullOrWhitespace(m.version)) {
+      return false;
+    }
+    final String minVer = MsfraggerProps.getProperties().getProperty(MsfraggerProps.PROP_MIN_VERSION_INPUT_LIST, "3.0");
+    return MsfraggerVerCmp.get().compare(m.version, minVer) >= 0;
+  }
+
+  private static Path searchedPath(InputLcmsFile f, Map<InputLcmsFile, CalibratedSpectra.Record> calibrated) {
+    final CalibratedSpectra.Record r = calibrated.get(f);
+    return r == null ? f.getPath() : r.calibrated;
+  }
+
+  /**
+   * Files MSFragger may write for the inputs: next to the file it searches and named after it,
+   * before they are moved where they should be.
+   */
+  private static List<Path> createdByFragger(List<InputLcmsFile> inputs, Map<InputLcmsFile, CalibratedSpectra.Record> calibrated, List<Map<InputLcmsFile, List<Path>>> outputs) {
+    final List<Path> created = new ArrayList<>();
+    for (InputLcmsFile f : inputs) {
+      final Path searched = searchedPath(f, calibrated).toAbsolutePath().normalize();
+      final String stem = CalibratedSpectra.stem(f.getPath());
+      for (Map<InputLcmsFile, List<Path>> m : outputs) {
+        for (Path p : m.getOrDefault(f, Collections.emptyList())) {
+          final String fn = p.getFileName().toString();
+          created.add(searched.resolveSibling(fn.startsWith(stem) ? CalibratedSpectra.stem(searched) + fn.substring(stem.length()) : fn));
+        }
+      }
+    }
+    return created;
+  }
+
+  private static String msfraggerVersion() {
+    try {
+      return Fragpipe.getSticky(NoteConfigMsfragger.class).version;
+    } catch (NoStickyException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Calibrated spectra to search instead of the inputs, see {@link CalibratedSpectra}. Only used
+   * if every input has them and they were all calibrated to the same parameters. The user is asked
+   * first, headless runs use them unless {@code -Dfragpipe.msfragger.reuse-calibrated=false}.
+   *
+   * @return Empty to search the inputs and calibrate them as usual.
+   */
+  private static Map<InputLcmsFile, CalibratedSpectra.Record> reusableCalibration(Component comp, List<InputLcmsFile> inputs, String calibrationKey) {
+    if (!CalibratedSpectra.ENABLED) {
+      return Collections.emptyMap();
+    }
+    final Map<InputLcmsFile, CalibratedSpectra.Record> found = new HashMap<>();
+    for (InputLcmsFile f : inputs) {
+      final CalibratedSpectra.Record r = CalibratedSpectra.find(f.getPath(), calibrationKey);
+      if (r == null) {
+        return Collections.emptyMap();
+      }
+      found.put(f, r);
+    }
+    if (found.values().stream().map(r -> r.params).distinct().count() > 1) {
+      log.info("Calibrated spectra of the MSFragger inputs were calibrated to different parameters, calibrating again");
+      return Collections.emptyMap();
+    }
+    if (Fragpipe.headless) {
+      log.info("Searching calibrated spectra of an earlier search with the same settings for all {} DDA inputs, mass calibration is skipped", inputs.size());
+      return found;
+    }
+    final int choice = JOptionPane.showConfirmDialog(comp,
+        "All " + inputs.size() + " DDA inputs have calibrated spectra from an earlier MSFragger search\n"
+            + "with the same settings and database.\n\n"
+            + "Search the calibrated spectra and skip mass calibration?",
+        "Reuse calibrated spectra", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
+    return choice == JOptionPane.YES_OPTION ? found : Collections.emptyMap();
+  }
+
+  /**
+   * Plans the searches of the data types to run concurrently, see {@link MsfraggerBatchPlanner}.
+   *
+   * @param byType Inputs by data type, each type is searched with its own params.
+   * @return Threads and RAM of the search of each data type, null if they are to run one after
+   * another as usual.
+   */
+  private Map<String, MsfraggerBatchPlanner.Batch> planSearches(Map<String, List<InputLcmsFile>> byType, boolean isSlicing, String pathFasta, int ramGb) {
+    if (byType.size() < 2 || isSlicing) {
+      // a split search starts searches of its own
+      return null;
+    }
+    long fastaBytes = 0;
+    try {
+      fastaBytes = Files.size(Paths.get(pathFasta));
+    } catch (IOException | RuntimeException e) {
+      log.debug("Could not get size of fasta file {}", pathFasta, e);
+    }
+    final int threads = numThreads(paramsDda);
+    final Map<String, MsfraggerBatchPlanner.Batch> plan = new TreeMap<>();
+    for (Map.Entry<String, List<InputLcmsFile>> e : byType.entrySet()) {
+      long largest = 0;
+      long total = 0;
+      for (InputLcmsFile f : e.getValue()) {
+        final long size = TaskCost.size(f.getPath());
+        largest = Math.max(largest, size);
+        total += size;
+      }
+      final long needMb = MsfraggerBatchPlanner.estimateRamMb(paramsFor(e.getKey()), fastaBytes, largest);
+      plan.put(e.getKey(), new MsfraggerBatchPlanner.Batch(e.getKey(), needMb, total));
+    }
+    final List<MsfraggerBatchPlanner.Batch> batches = new ArrayList<>(plan.values());
+    final boolean concurrent = MsfraggerBatchPlanner.plan(batches, ramGb, threads);
+    log.info("MSFragger searches of {} {}: {}", plan.keySet(), concurrent ? "run concurrently" : "run one after another",
+        MsfraggerBatchPlanner.describe(batches));
+    return concurrent ? plan : null;
+  }
+
+  /**
+   * Command of one of FragPipe's helper programs, up to the class name.
+   */
+  private static List<String> helperCmd(Path jarFragpipe, Class<?> helper) {
+    List<String> cmd = new ArrayList<>();
+    cmd.add(Fragpipe.getBinJava());
+    cmd.add("-cp");
+    Path root = FragpipeLocations.get().getDirFragpipeRoot();
+    String libsDir = root.resolve("lib").toString() + "/*";
+    if (Files.isDirectory(jarFragpipe)) {
+      libsDir = jarFragpipe.getParent().getParent().getParent().getParent().resolve("build/install/fragpipe/lib").toString() + "/*";
+      log.warn("Dev message: Looks like FragPipe was run from IDE, changing libs directory to: {}", libsDir);
+    }
+    cmd.add(libsDir);
+    cmd.add(helper.getCanonicalName());
+    return cmd;
+  }
+
+  /**
+   * Command of a split database search, see {@link SplitSearch}, up to the MSFragger jar. Slices
+   * are searched several at a time when there is RAM for it, see {@link MsfraggerBatchPlanner}.
+   */
+  private List<String> splitSearchCmd(Path jarFragpipe, MsfraggerParams p, int numSlices, String pathFasta, List<InputLcmsFile> inputs, int ramGb) {
+    List<String> cmd = helperCmd(jarFragpipe, SplitSearch.class);
+    cmd.add("--xmx");
+    cmd.add(Integer.toString(ramGb));
+
+    final List<MsfraggerBatchPlanner.Batch> slices = planSlices(p, numSlices, pathFasta, inputs, ramGb);
+    if (slices != null) {
+      // slices are alike, each gets the smallest share so that together they stay within the plan
+      final int sliceRamGb = slices.stream().mapToInt(MsfraggerBatchPlanner.Batch::getRamGb).min().getAsInt();
+      final int sliceThreads = slices.stream().mapToInt(MsfraggerBatchPlanner.Batch::getThreads).min().getAsInt();
+      cmd.addAll(Arrays.asList("--parallel", Integer.toString(slices.size()),
+          "--slice-xmx", Integer.toString(sliceRamGb), "--slice-threads", Integer.toString(sliceThreads)));
+    }
+    if (isInputListSupported()) {
+      cmd.add("--argfiles");
+    }
+    cmd.add(Integer.toString(numSlices));
+    cmd.add(Fragpipe.getBinJava());
+    return cmd;
+  }
+
+  /**
+   * Plans the searches of database slices to run concurrently, as many at a time as fit in RAM.
+   *
+   * @return One batch for each slice searched at a time, null if slices are to be searched one
+   * after another.
+   */
+  private static List<MsfraggerBatchPlanner.Batch> planSlices(MsfraggerParams p, int numSlices, String pathFasta, List<InputLcmsFile> inputs, int ramGb) {
+    if (!MsfraggerBatchPlanner.ENABLED) {
+      return null;
+    }
+    long fastaBytes = 0;
+    try {
+      fastaBytes = Files.size(Paths.get(pathFasta));
+    } catch (IOException | RuntimeException e) {
+      log.debug("Could not get size of fasta file {}", pathFasta, e);
+    }
+    long largest = 0;
+    long total = 0;
+    for (InputLcmsFile f : inputs) {
+      final long size = TaskCost.size(f.getPath());
+      largest = Math.max(largest, size);
+      total += size;
+    }
+    final long needMb = MsfraggerBatchPlanner.estimateRamMb(p, fastaBytes / numSlices, largest);
+    for (int k = numSlices; k > 1; k--) {
+      final List<MsfraggerBatchPlanner.Batch> batches = new ArrayList<>();
+      for (int i = 1; i <= k; i++) {
+        batches.add(new MsfraggerBatchPlanner.Batch("slice " + i, needMb, total));
+      }
+      if (MsfraggerBatchPlanner.plan(batches, ramGb, numThreads(p))) {
+        log.info("MSFragger database slices searched {} at a time: {}", k, MsfraggerBatchPlanner.describe(batches));
+        return batches;
+      }
+    }
+    return null;
+  }
+
+  private static int numThreads(MsfraggerParams p) {
+    final int threads = p.getNumThreads();
+    return threads > 0 ? threads : OsUtils.getAvailableProcessors();
+  }
+
+  private MsfraggerParams paramsFor(String dataType) {
+    if (dataType.contentEquals("DIA")) {
+      return paramsDia;
+    } else if (dataType.contentEquals("GPF-DIA")) {
+      return paramsGpfDia;
+    }
+    return paramsDda;
+  }
+
+  /**
+   * Windows limits a command line to 32767 characters. Elsewhere the limit is in the megabytes,
+   * shared with the environment.
+   */
+  static int maxCommandLength() {
+    return OsUtils.isWindows() ? 32000 : 200_000;
+  }
+
+  /**
+   * Splits the inputs over as few command lines as possible, first fit decreasing by the length
+   * of their paths. Inputs keep their order within a batch, batches are in the order of their
+   * first inputs.
+   *
+   * @param room Characters of a command line left for the inputs.
+   * @return Null if a single input doesn't fit.
+   */
+  static <T> List<List<T>> planBatches(List<T> inputs, ToIntFunction<T> length, int room) {
+    // a separator and the quotes ProcessBuilder adds to paths with spaces on Windows
+    final int perInput = 3;
+    final List<Integer> bySize = new ArrayList<>();
+    for (int i = 0; i < inputs.size(); i++) {
+      bySize.add(i);
+    }
+    bySize.sort(Comparator.comparingInt((Integer i) -> length.applyAsInt(inputs.get(i))).reversed());
+    final List<List<Integer>> bins = new ArrayList<>();
+    final List<Integer> left = new ArrayList<>();
+    for (int i : bySize) {
+      final int len = length.applyAsInt(inputs.get(i)) + perInput;
+      if (len > room) {
+        return null;
+      }
+      int bin = 0;
+      while (bin < bins.size() && left.get(bin) < len) {
+        bin++;
+      }
+      if (bin == bins.size()) {
+        bins.add(new ArrayList<>());
+        left.add(room);
+      }
+      bins.get(bin).add(i);
+      left.set(bin, left.get(bin) - len);
+    }
+    bins.forEach(Collections::sort);
+    bins.sort(Comparator.comparingInt(b -> b.get(0)));
+    final List<List<T>> batches = new ArrayList<>();
+    for (List<Integer> bin : bins) {
+      batches.add(bin.stream().map(inputs::get).collect(Collectors.toList()));
+    }
+    return batches;
+  }
+
   private void adjustDiaParams(MsfraggerParams params, MsfraggerParams paramsNew, String dataType) {
     paramsNew.setReportAlternativeProteins(true);
     paramsNew.setShiftedIons(false);
@@ -53,6 +53,9 @@ public class CmdPercolator extends CmdBase {
   private static final Logger log = LoggerFactory.getLogger(CmdPercolator.class);
 
   public static final String NAME = "Percolator";
+  private static final String GROUP_CONVERT = NAME + ": Convert to pepxml";
+  /** Percolator does not scale well beyond a few cores. */
+  private static final int MAX_THREADS_PER_INSTANCE = 4;
 
   public CmdPercolator(boolean isRun, Path workDir) {
     super(isRun, workDir);
@@ -110,6 +113,17 @@ public class CmdPercolator extends CmdBase {
     return s;
   }
 
+  /**
+   * Instead of running files one after another, each with all the threads, several Percolator
+   * instances are run at once with the threads split between them.
+   *
+   * @return Number of threads to give to each Percolator instance.
+   */
+  static int threadsPerInstance(int threads, int numFiles) {
+    final int instances = Math.max(1, Math.min(numFiles, threads / MAX_THREADS_PER_INSTANCE));
+    return Math.max(1, threads / instances);
+  }
+
   /**
    * @param pepxmlFiles Either pepxml files after search or after Crystal-C.
    */
@@ -125,9 +139,15 @@ public class CmdPercolator extends CmdBase {
     }
 
     LinkedList<ProcessBuilderInfo> pbisParallel = new LinkedList<>();
+    LinkedList<ProcessBuilderInfo> pbisConvert = new LinkedList<>();
     LinkedList<ProcessBuilderInfo> pbisPostParallel = new LinkedList<>();
 
     MSBoosterPanel msboosterPanel = Fragpipe.getStickyStrict(MSBoosterPanel.class);
+    TabWorkflow tabWorkflow = Fragpipe.getStickyStrict(TabWorkflow.class);
+    final int numPinFiles = (int) pepxmlFiles.values().stream().flatMap(List::stream)
+        .map(p -> remove_rank_suffix(FilenameUtils.removeExtension(p.getFileName().toString())))
+        .distinct().count();
+    final int threadsPerInstance = threadsPerInstance(tabWorkflow.getThreads(), numPinFiles);
 
     final Set<String> basenames = new HashSet<>();
     for (Entry<InputLcmsFile, List<Path>> e : pepxmlFiles.entrySet()) {
@@ -151,9 +171,8 @@ public class CmdPercolator extends CmdBase {
         }
 
         addFreeCommandLineParams(percolatorParams, cmdPp);
-        TabWorkflow tabWorkflow = Fragpipe.getStickyStrict(TabWorkflow.class);
         cmdPp.add("--num-threads");
-        cmdPp.add("" + tabWorkflow.getThreads());
+        cmdPp.add("" + threadsPerInstance);
         cmdPp.add("--results-psms");
         cmdPp.add(strippedBaseName + "_percolator_target_psms.tsv");
         cmdPp.add("--decoy-results-psms");
@@ -169,12 +188,12 @@ public class CmdPercolator extends CmdBase {
         setupEnv(pepxmlDir, pbPp);
         pbisParallel.add(new PbiBuilder()
             .setPb(pbPp)
-            .setParallelGroup(basename).create());
+            .setParallelGroup(NAME).create());
 
         // convert the percolator output tsv to PeptideProphet's pep.xml format
-        ProcessBuilder pbRewrite = pbConvertToPepxml(jarFragpipe, "interact-" + basename, strippedBaseName, basename, e.getKey().getDataType().contentEquals("DDA"), minProb);
+        ProcessBuilder pbRewrite = pbConvertToPepxml(jarFragpipe, pepxmlPath.getParent(), "interact-" + basename, strippedBaseName, basename, e.getKey().getDataType().contentEquals("DDA"), minProb);
         pbRewrite.directory(pepxmlPath.getParent().toFile());
-        pbisPostParallel.add(new PbiBuilder().setName("Percolator: Convert to pepxml").setPb(pbRewrite).setParallelGroup(ProcessBuilderInfo.GROUP_SEQUENTIAL).create());
+        pbisConvert.add(new PbiBuilder().setName("Percolator: Convert to pepxml").setPb(pbRewrite).setParallelGroup(GROUP_CONVERT).create());
 
         // delete intermediate files
         PercolatorPanel percolatorPanel = Fragpipe.getStickyStrict(PercolatorPanel.class);
@@ -194,6 +213,7 @@ public class CmdPercolator extends CmdBase {
       }
     }
     pbis.addAll(pbisParallel);
+    pbis.addAll(pbisConvert);
     pbis.addAll(pbisPostParallel);
 
     isConfigured = true;
@@ -221,7 +241,10 @@ public class CmdPercolator extends CmdBase {
     return b;
   }
 
-  private static ProcessBuilder pbConvertToPepxml(Path jarFragpipe, String outBaseName, String stripedBasename, String basename, boolean isDDA, double minProb) {
+  /**
+   * @param dir Paths are resolved against it, so that the conversion can also run inside this JVM.
+   */
+  private static ProcessBuilder pbConvertToPepxml(Path jarFragpipe, Path dir, String outBaseName, String stripedBasename, String basename, boolean isDDA, double minProb) {
     if (jarFragpipe == null) {
       throw new IllegalArgumentException("jar can't be null");
     }
@@ -236,11 +259,11 @@ public class CmdPercolator extends CmdBase {
     }
     cmd.add(libsDir);
     cmd.add(PercolatorOutputToPepXML.class.getCanonicalName());
-    cmd.add(stripedBasename + ".pin");
-    cmd.add(basename);
-    cmd.add(stripedBasename + "_percolator_target_psms.tsv");
-    cmd.add(stripedBasename + "_percolator_decoy_psms.tsv");
-    cmd.add(outBaseName);
+    cmd.add(dir.resolve(stripedBasename + ".pin").toString());
+    cmd.add(dir.resolve(basename).toString());
+    cmd.add(dir.resolve(stripedBasename + "_percolator_target_psms.tsv").toString());
+    cmd.add(dir.resolve(stripedBasename + "_percolator_decoy_psms.tsv").toString());
+    cmd.add(dir.resolve(outBaseName).toString());
     cmd.add(isDDA ? "DDA" : "DIA");
     cmd.add(minProb + "");
     return new ProcessBuilder(cmd);
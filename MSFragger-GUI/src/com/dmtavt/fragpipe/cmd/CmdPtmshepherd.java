@@ -21,7 +21,10 @@ package com.dmtavt.fragpipe.cmd;
 import com.dmtavt.fragpipe.Fragpipe;
 import com.dmtavt.fragpipe.FragpipeLocations;
 import com.dmtavt.fragpipe.api.LcmsFileGroup;
+import com.dmtavt.fragpipe.process.TaskResources;
+import com.dmtavt.fragpipe.tools.ptmshepherd.PtmshepherdPanel;
 import com.dmtavt.fragpipe.tools.ptmshepherd.PtmshepherdParams;
+import com.github.chhh.utils.OsUtils;
 import com.github.chhh.utils.PathUtils;
 import com.github.chhh.utils.SwingUtils;
 import java.awt.Component;
@@ -151,9 +154,18 @@ public class CmdPtmshepherd extends CmdBase {
     cmd.add(PathUtils.quotePath(pathConfig.toString(), false));
     ProcessBuilder pb = new ProcessBuilder(cmd);
     pb.directory(wd.toFile());
-    pbis.add(PbiBuilder.from(pb));
+    pbis.add(new PbiBuilder().setPb(pb).setResources(TaskResources.ofGb(numThreads(additionalProps), ramGb)).create());
 
     isConfigured = true;
     return true;
   }
+
+  private static int numThreads(Map<String, String> props) {
+    try {
+      final int threads = Integer.parseInt(props.getOrDefault(PtmshepherdPanel.PROP_threads, "0").trim());
+      return threads > 0 ? threads : OsUtils.getAvailableProcessors();
+    } catch (NumberFormatException e) {
+      return OsUtils.getAvailableProcessors();
+    }
+  }
 }
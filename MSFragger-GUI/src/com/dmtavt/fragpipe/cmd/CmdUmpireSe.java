@@ -21,9 +21,11 @@ import com.dmtavt.fragpipe.Fragpipe;
 import com.dmtavt.fragpipe.FragpipeLocations;
 import com.dmtavt.fragpipe.api.InputLcmsFile;
 import com.dmtavt.fragpipe.exceptions.FileWritingException;
+import com.dmtavt.fragpipe.process.TaskResources;
 import com.dmtavt.fragpipe.tools.umpire.UmpirePanel;
 import com.dmtavt.fragpipe.tools.umpire.UmpireParams;
 import com.dmtavt.fragpipe.tools.umpire.UmpireSeGarbageFiles;
+import com.github.chhh.utils.OsUtils;
 import com.github.chhh.utils.PropertiesUtils;
 import com.github.chhh.utils.StringUtils;
 import java.awt.Component;
@@ -114,6 +116,7 @@ public class CmdUmpireSe extends CmdBase {
     final String javaDParmsStringLibsThermoDir = extLibsThermo == null ? null :
             createJavaDParamString("libs.thermo.dir", extLibsThermo.toString());
     final List<Path> classpathJars = FragpipeLocations.checkToolsMissing(Seq.of(UmpireParams.JAR_UMPIRESE_NAME).concat(JAR_DEPS));
+    final int threads = numThreads(collectedUmpireParams);
 
     for (InputLcmsFile f : lcmsFiles) {
       if (f.getDataType().contentEquals("DDA") || f.getDataType().contentEquals("DIA-Quant")) {
@@ -139,7 +142,7 @@ public class CmdUmpireSe extends CmdBase {
       cmd.add(umpireParamsFilePath.toString());
 
       ProcessBuilder pbUmpireSe = new ProcessBuilder(cmd);
-      pbis.add(PbiBuilder.from(pbUmpireSe));
+      pbis.add(new PbiBuilder().setPb(pbUmpireSe).setResources(TaskResources.ofGb(threads, ramGb)).create());
 
       // check if the working dir is the dir where the mzXML file was
       // if it is, then don't do anything, if it is not, then copy
@@ -165,6 +168,15 @@ public class CmdUmpireSe extends CmdBase {
     return true;
   }
 
+  private static int numThreads(UmpireParams params) {
+    try {
+      final int threads = Integer.parseInt(params.getProps().getProperty(UmpireParams.PROP_Thread, "0").trim());
+      return threads > 0 ? threads : OsUtils.getAvailableProcessors();
+    } catch (NumberFormatException e) {
+      return OsUtils.getAvailableProcessors();
+    }
+  }
+
   private List<String> getGeneratedMgfFnsForMzxml(String mzxmlFn) {
     String baseName = StringUtils.upToLastDot(mzxmlFn);
     final int n = 3;
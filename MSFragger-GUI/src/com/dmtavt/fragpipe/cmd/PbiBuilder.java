@@ -17,6 +17,8 @@
 
 package com.dmtavt.fragpipe.cmd;
 
+import com.dmtavt.fragpipe.process.TaskResources;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -27,6 +29,8 @@ public class PbiBuilder {
   private String fnStdOut;
   private String fnStdErr;
   private String parallelGroup;
+  private TaskResources resources;
+  private List<Path> outputs;
 
   public PbiBuilder setPb(ProcessBuilder pb) {
     this.pb = pb;
@@ -53,8 +57,25 @@ public class PbiBuilder {
     return this;
   }
 
+  /**
+   * Declare CPU/memory demand of the process. If not set, it is inferred from the command line.
+   */
+  public PbiBuilder setResources(TaskResources resources) {
+    this.resources = resources;
+    return this;
+  }
+
+  /**
+   * Declare files the process writes that are not on its command line, e.g. named after its
+   * inputs. They are recorded as its outputs in the run journal.
+   */
+  public PbiBuilder setOutputs(List<Path> outputs) {
+    this.outputs = outputs;
+    return this;
+  }
+
   public ProcessBuilderInfo create() {
-    return new ProcessBuilderInfo(pb, name, fnStdOut, fnStdErr, parallelGroup);
+    return new ProcessBuilderInfo(pb, name, fnStdOut, fnStdErr, parallelGroup, resources, outputs);
   }
 
   public static List<ProcessBuilderInfo> from(List<ProcessBuilder> pbs) {
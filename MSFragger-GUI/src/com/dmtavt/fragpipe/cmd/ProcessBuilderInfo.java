@@ -25,13 +25,31 @@ import com.dmtavt.fragpipe.messages.MessageKillAll.REASON;
 import com.dmtavt.fragpipe.messages.MessageManifestSave;
 import com.dmtavt.fragpipe.messages.MessagePrintToConsole;
 import com.dmtavt.fragpipe.messages.MessageSaveLog;
+import com.dmtavt.fragpipe.messages.MessageTaskProgress;
+import com.dmtavt.fragpipe.process.FailedInputs;
+import com.dmtavt.fragpipe.process.InJvmTask;
+import com.dmtavt.fragpipe.process.ProcessManager;
 import com.dmtavt.fragpipe.process.ProcessResult;
+import com.dmtavt.fragpipe.process.ProgressParser;
+import com.dmtavt.fragpipe.process.RunMetrics;
+import com.dmtavt.fragpipe.process.TaskCost;
+import com.dmtavt.fragpipe.process.TaskMetrics;
+import com.dmtavt.fragpipe.process.TaskProgress;
+import com.dmtavt.fragpipe.process.TaskResources;
 import com.github.chhh.utils.TimeUtils;
 import java.awt.Color;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,20 +61,100 @@ public class ProcessBuilderInfo {
   public final String fnStdout;
   public final String fnStderr;
   public final String parallelGroup;
+  /** Declared CPU/memory demand. Null means it will be inferred from the command line. */
+  public final TaskResources resources;
+  /** Files the process writes that are not on its command line, those that it is known to. */
+  public final List<Path> outputs;
   public static final String GROUP_SEQUENTIAL = "SEQUENTIAL EXECUTION";
+  private static final int ERROR_TAIL_LINES = 50;
+  /** Lines PeptideProphet prints for every spectrum it can't find, not worth showing. */
+  private static final String[] PEPTIDE_PROPHET_NOISE = {"WARNING: CANNOT correct data file", "WARNING: cannot open data file"};
 
   public ProcessBuilderInfo(ProcessBuilder pb, String name, String fnStdout,
       String fnStderr, String parallelGroup) {
+    this(pb, name, fnStdout, fnStderr, parallelGroup, null);
+  }
+
+  public ProcessBuilderInfo(ProcessBuilder pb, String name, String fnStdout,
+      String fnStderr, String parallelGroup, TaskResources resources) {
+    this(pb, name, fnStdout, fnStderr, parallelGroup, resources, Collections.emptyList());
+  }
+
+  public ProcessBuilderInfo(ProcessBuilder pb, String name, String fnStdout,
+      String fnStderr, String parallelGroup, TaskResources resources, List<Path> outputs) {
     this.pb = pb;
     this.name = name;
     this.fnStdout = fnStdout;
     this.fnStderr = fnStderr;
     this.parallelGroup = parallelGroup;
+    this.resources = resources;
+    this.outputs = outputs == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(outputs));
   }
 
   public static Runnable toRunnable(final ProcessBuilderInfo pbi, final Path wdPath, Consumer<ProcessBuilderInfo> pbiPrinter) {
+    return toRunnable(pbi, wdPath, pbiPrinter, null);
+  }
+
+  /**
+   * @param exitCodeConsumer Optional. Gets the exit code once the process has finished.
+   */
+  public static Runnable toRunnable(final ProcessBuilderInfo pbi, final Path wdPath, Consumer<ProcessBuilderInfo> pbiPrinter, IntConsumer exitCodeConsumer) {
+    return toRunnable(pbi, wdPath, pbiPrinter, exitCodeConsumer, null);
+  }
+
+  /**
+   * @param exitCodeConsumer Optional. Gets the exit code once the process has finished.
+   * @param runMetrics Optional. Resources used by the process get recorded there.
+   */
+  public static Runnable toRunnable(final ProcessBuilderInfo pbi, final Path wdPath, Consumer<ProcessBuilderInfo> pbiPrinter, IntConsumer exitCodeConsumer, RunMetrics runMetrics) {
     return () -> {
+      final FailedInputs failedInputs = FailedInputs.get(wdPath);
+      if (failedInputs != null) {
+        final Set<String> failed = failedInputs.beforeStart(pbi);
+        if (!failed.isEmpty()) {
+          Bus.post(new MessagePrintToConsole(Fragpipe.COLOR_RED_DARKEST,
+              String.format(Locale.ROOT, "Skipping '%s', failed earlier: %s", pbi.name, String.join(", ", failed)), true));
+          return;
+        }
+      }
       final ProcessResult pr = new ProcessResult(pbi);
+      final InJvmTask inJvmTask = InJvmTask.of(pbi.pb.command());
+      final TaskMetrics tm = runMetrics == null ? null : new TaskMetrics(pbi.name, String.join(" ", pbi.pb.command()), inJvmTask != null);
+      final boolean isPeptideProphet = pbi.name != null && pbi.name.toLowerCase().contentEquals("peptideprophet");
+      // output is only decoded if someone reads it, otherwise it just goes to the log files
+      final boolean toConsole = Bus.hasSubscriberForEvent(MessageExternalProcessOutput.class);
+      final boolean postProgress = Bus.hasSubscriberForEvent(MessageTaskProgress.class);
+      final ProgressParser progressParser = tm != null || postProgress ? ProgressParser.of(pbi) : null;
+      if (toConsole || progressParser != null) {
+        pr.setOutputListener((isStdErr, s) -> {
+          if (isStdErr && isPeptideProphet) {
+            s = dropLines(s, PEPTIDE_PROPHET_NOISE);
+          }
+          if (progressParser != null) {
+            final TaskProgress progress = progressParser.feed(isStdErr, s);
+            if (progress != null) {
+              if (tm != null) {
+                tm.setProgress(progress);
+              }
+              if (postProgress) {
+                Bus.post(new MessageTaskProgress(pbi.name, progress));
+              }
+            }
+          }
+          if (toConsole) {
+            Bus.post(new MessageExternalProcessOutput(isStdErr, s, pbi.name));
+          }
+        });
+      }
+      if (tm != null) {
+        tm.setInput(TaskCost.estimate(pbi), TaskResources.of(pbi).threads);
+        runMetrics.started(pbi, tm);
+        pr.setMetrics(tm);
+      }
+      if (inJvmTask != null) {
+        runInJvm(pbi, wdPath, pbiPrinter, pr, inJvmTask, exitCodeConsumer);
+        return;
+      }
       Process started = null;
       try {
         log.debug("Starting: {}", pbi.name);
@@ -67,68 +165,24 @@ public class ProcessBuilderInfo {
         log.debug("Started: {}", pbi.name);
       } catch (IOException e) {
         log.error("Error while starting process: " + pbi.name + ", stopping", e);
-        Bus.post(new MessageKillAll(REASON.CANT_START_PROCESS));
+        final boolean queued = ProcessManager.get().isQueued(wdPath);
+        Bus.post(new MessageKillAll(REASON.CANT_START_PROCESS, wdPath));
 
-        if (Fragpipe.headless) {
+        if (Fragpipe.headless && !queued) {
           System.exit(1);
         } else {
           return;
         }
       }
 
-      // main loop reading process' output
+      // output is forwarded by the pump threads of ProcessResult, here we only wait for the exit
       try {
-        while (true) {
-          Thread.sleep(200L);
-          final byte[] pollErr = pr.pollStdErr();
-          String errStr = pr.appendErr(pollErr);
-          if (errStr != null) {
-            if (pbi.name.toLowerCase().contentEquals("peptideprophet")) {
-              errStr = errStr.replaceAll("WARNING: CANNOT correct data file[^\r\n]+[\r\n]+", "").replaceAll("WARNING: cannot open data file[^\r\n]+[\r\n]+", "");
-            }
-            Bus.post(new MessageExternalProcessOutput(true, errStr, pbi.name));
-          }
-          final byte[] pollOut = pr.pollStdOut();
-          final String outStr = pr.appendOut(pollOut);
-          if (outStr != null) {
-            Bus.post(new MessageExternalProcessOutput(false, outStr, pbi.name));
-          }
-          if (started.isAlive()) {
-            continue;
-          }
-
-          try {
-            log.debug("Checking exit value: {}", pbi.name);
-            final int exitValue = started.exitValue();
-            log.debug("Exit value '{}': {}", exitValue, pbi.name);
-            Color c = exitValue == 0 ? Fragpipe.COLOR_GREEN_DARKER : Fragpipe.COLOR_RED;
-            String msg = String.format(Locale.ROOT, "Process '%s' finished, exit code: %d\n", pbi.name, exitValue);
-            Bus.post(new MessagePrintToConsole(c, msg, false));
-            if (exitValue != 0) {
-              log.debug("Exit value not zero, killing all processes");
-              Bus.post(new MessagePrintToConsole(Fragpipe.COLOR_RED, "Process returned non-zero exit code, stopping", true));
-              Bus.post(new MessageKillAll(REASON.NON_ZERO_RETURN_FROM_PROCESS));
-              Bus.post(MessageSaveLog.saveInDir(wdPath));
-
-              // save manifest file in GUI mode
-              if (!Fragpipe.headless) {
-                Path path = wdPath.resolve("lcms-files_" + TimeUtils.dateTimeNoSpaces() + ".fp-manifest");
-                Bus.post(new MessageManifestSave(path));
-              }
-
-              if (Fragpipe.headless) {
-                System.exit(1);
-              } else {
-                break;
-              }
-            }
-          } catch (IllegalThreadStateException ex) {
-            log.warn("Checking for exit value when subprocess was not alive threw exception.");
-          }
-          break;
-        }
-      } catch (IOException e) {
-        log.error("Error while starting process " + pbi.name, e);
+        final int exitValue = started.onExit().get().exitValue();
+        pr.awaitOutput(); // everything the process printed goes before the exit message
+        onExit(pbi, wdPath, pr, exitValue, exitCodeConsumer);
+      } catch (ExecutionException e) {
+        log.error("Error while waiting for process " + pbi.name, e);
+        onExit(pbi, wdPath, pr, 1, exitCodeConsumer);
       } catch (InterruptedException e) {
         // graceful stop request
         String msg = "Processing interrupted, stopping " + pbi.name;
@@ -149,4 +203,129 @@ public class ProcessBuilderInfo {
       }
     };
   }
+
+  /**
+   * Removes the lines that start with one of the markers, along with their line breaks. Only
+   * lines that end within the text are removed. Plain {@code indexOf}, this runs on every chunk
+   * of output.
+   */
+  static String dropLines(String s, String... markers) {
+    StringBuilder sb = null;
+    int from = 0;
+    while (true) {
+      int at = -1;
+      for (String marker : markers) {
+        final int i = s.indexOf(marker, from);
+        if (i >= 0 && (at < 0 || i < at)) {
+          at = i;
+        }
+      }
+      if (at < 0) {
+        break;
+      }
+      int end = at;
+      while (end < s.length() && s.charAt(end) != '\n' && s.charAt(end) != '\r') {
+        end++;
+      }
+      if (end == s.length()) {
+        break;
+      }
+      while (end < s.length() && (s.charAt(end) == '\n' || s.charAt(end) == '\r')) {
+        end++;
+      }
+      if (sb == null) {
+        sb = new StringBuilder(s.length());
+      }
+      sb.append(s, from, at);
+      from = end;
+    }
+    return sb == null ? s : sb.append(s, from, s.length()).toString();
+  }
+
+  /**
+   * Same as running the process, but for FragPipe's own helpers that can run in this JVM.
+   */
+  private static void runInJvm(ProcessBuilderInfo pbi, Path wdPath, Consumer<ProcessBuilderInfo> pbiPrinter, ProcessResult pr, InJvmTask task, IntConsumer exitCodeConsumer) {
+    try {
+      log.debug("Starting in JVM: {}", pbi.name);
+      if (pbiPrinter != null) {
+        pbiPrinter.accept(pbi);
+      }
+      pr.startInJvm();
+    } catch (IOException e) {
+      log.error("Error while starting process: " + pbi.name + ", stopping", e);
+      final boolean queued = ProcessManager.get().isQueued(wdPath);
+      Bus.post(new MessageKillAll(REASON.CANT_START_PROCESS, wdPath));
+      if (Fragpipe.headless && !queued) {
+        System.exit(1);
+      }
+      return;
+    }
+
+    Future<Integer> future = null;
+    try {
+      final int exitValue;
+      try (OutputStream out = pr.getTaskStream(false); OutputStream err = pr.getTaskStream(true)) {
+        future = task.submit(out, err);
+        exitValue = future.get();
+      }
+      onExit(pbi, wdPath, pr, exitValue, exitCodeConsumer);
+    } catch (ExecutionException | IOException e) {
+      // the helper didn't return an exit code, it failed all the same
+      log.error("Error while waiting for process " + pbi.name, e);
+      onExit(pbi, wdPath, pr, 1, exitCodeConsumer);
+    } catch (InterruptedException e) {
+      String msg = "Processing interrupted, stopping " + pbi.name;
+      log.debug(msg, e);
+      Bus.post(new MessagePrintToConsole(Fragpipe.COLOR_RED_DARKEST, msg, true));
+    } finally {
+      if (future != null && !future.isDone()) {
+        log.debug("Interrupting in-JVM task");
+        future.cancel(true);
+      }
+      try {
+        pr.close();
+      } catch (Exception e) {
+        log.error("Error closing redirected std/err streams from in-JVM task", e);
+      }
+    }
+  }
+
+  /**
+   * Reports the exit code, a non-zero one stops everything, or only the run the process belongs
+   * to if that's one of a queue.
+   */
+  private static void onExit(ProcessBuilderInfo pbi, Path wdPath, ProcessResult pr, int exitValue, IntConsumer exitCodeConsumer) {
+    pr.setExitCode(exitValue);
+    if (exitCodeConsumer != null) {
+      exitCodeConsumer.accept(exitValue);
+    }
+    log.debug("Exit value '{}': {}", exitValue, pbi.name);
+    Color c = exitValue == 0 ? Fragpipe.COLOR_GREEN_DARKER : Fragpipe.COLOR_RED;
+    String msg = String.format(Locale.ROOT, "Process '%s' finished, exit code: %d\n", pbi.name, exitValue);
+    Bus.post(new MessagePrintToConsole(c, msg, false));
+    if (exitValue != 0) {
+      log.error("Process '{}' returned non-zero exit code {}, last output:\n{}", pbi.name, exitValue, pr.getOutputTail(ERROR_TAIL_LINES));
+      final FailedInputs failedInputs = FailedInputs.get(wdPath);
+      if (failedInputs != null && failedInputs.failed(pbi, exitValue)) {
+        Bus.post(new MessagePrintToConsole(Fragpipe.COLOR_RED, "Process returned non-zero exit code, continuing without its inputs", true));
+        return;
+      }
+      log.debug("Exit value not zero, killing all processes");
+      final boolean queued = ProcessManager.get().isQueued(wdPath);
+      Bus.post(new MessagePrintToConsole(Fragpipe.COLOR_RED, "Process returned non-zero exit code, stopping", true));
+      Bus.post(new MessageKillAll(REASON.NON_ZERO_RETURN_FROM_PROCESS, wdPath));
+      Bus.post(MessageSaveLog.saveInDir(wdPath));
+
+      // save manifest file in GUI mode, the UI has already moved on to the next run of a queue
+      if (!Fragpipe.headless && !queued) {
+        Path path = wdPath.resolve("lcms-files_" + TimeUtils.dateTimeNoSpaces() + ".fp-manifest");
+        Bus.post(new MessageManifestSave(path));
+      }
+
+      if (Fragpipe.headless && !queued) {
+        System.exit(1);
+      }
+    }
+  }
 }
@@ -133,7 +133,7 @@ public class ToolingUtils {
       }
       cmd.add(file.toAbsolutePath().normalize().toString());
       if (dest != null)
-        cmd.add(dest.resolve(file.getFileName()).toString());
+        cmd.add(dest.resolve(file.getFileName()).toAbsolutePath().toString());
       ProcessBuilder pb = new ProcessBuilder(cmd);
       pbs.add(pb);
     }
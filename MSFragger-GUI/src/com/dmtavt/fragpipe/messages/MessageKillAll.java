@@ -26,15 +26,29 @@ public class MessageKillAll {
   public MessageKillAll(REASON reason, List<Path> pathsToDelete) {
     this.reason = reason;
     this.pathsToDelete = pathsToDelete;
+    this.wd = null;
   }
 
   public MessageKillAll(REASON reason) {
     this.reason = reason;
     this.pathsToDelete = Collections.emptyList();
+    this.wd = null;
+  }
+
+  /**
+   * @param wd Workdir of the run the reason comes from. If it's one of a queue, only that run
+   * is stopped.
+   */
+  public MessageKillAll(REASON reason, Path wd) {
+    this.reason = reason;
+    this.pathsToDelete = Collections.emptyList();
+    this.wd = wd;
   }
 
   public enum REASON {NO_REASON, CANT_START_PROCESS, NON_ZERO_RETURN_FROM_PROCESS, USER_ACTION}
 
   public final REASON reason;
   public final List<Path> pathsToDelete;
+  /** Optional. */
+  public final Path wd;
 }
@@ -17,6 +17,20 @@
 
 package com.dmtavt.fragpipe.messages;
 
+import java.nio.file.Path;
+
 public class MessageManifestLoad {
+  /**
+   * Optional. When present, the files in the table are replaced by the ones from this manifest,
+   * without asking anything.
+   */
+  public final Path path;
+
+  public MessageManifestLoad() {
+    this(null);
+  }
 
+  public MessageManifestLoad(Path path) {
+    this.path = path;
+  }
 }
@@ -17,13 +17,40 @@
 
 package com.dmtavt.fragpipe.messages;
 
+import com.dmtavt.fragpipe.process.ResourceBudget;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * This message is sent when the Run button is clicked.
  */
 public class MessageRun {
   public final boolean isDryRun;
+  /** Skip tasks that have completed in a previous run in the same workdir. */
+  public final boolean isResume;
+  /** Optional. When present, the run shares this budget with other runs instead of having its own. */
+  public final ResourceBudget budget;
+  /**
+   * Optional. When present, the run is one of a queue: it doesn't stop runs that are already
+   * going, and the future is completed once all of its tasks are done.
+   */
+  public final CompletableFuture<Void> done;
 
   public MessageRun(boolean isDryRun) {
+    this(isDryRun, false);
+  }
+
+  public MessageRun(boolean isDryRun, boolean isResume) {
+    this(isDryRun, isResume, null, null);
+  }
+
+  public MessageRun(boolean isDryRun, boolean isResume, ResourceBudget budget, CompletableFuture<Void> done) {
     this.isDryRun = isDryRun;
+    this.isResume = isResume;
+    this.budget = budget;
+    this.done = done;
+  }
+
+  public boolean isQueued() {
+    return done != null;
   }
 }
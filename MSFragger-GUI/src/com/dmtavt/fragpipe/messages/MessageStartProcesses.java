@@ -17,13 +17,61 @@
 
 package com.dmtavt.fragpipe.messages;
 
+import com.dmtavt.fragpipe.internal.DefEdge;
+import com.dmtavt.fragpipe.process.ResourceBudget;
+import com.dmtavt.fragpipe.process.RunJournal;
+import com.dmtavt.fragpipe.process.StepCache;
+import com.dmtavt.fragpipe.process.TaskNode;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import com.dmtavt.fragpipe.process.RunnableDescription;
+import org.jgrapht.Graph;
 
 public class MessageStartProcesses {
   public final List<RunnableDescription> runDescs;
+  /** Optional. When present, tasks are scheduled following the graph, not the order of {@link #runDescs}. */
+  public final Graph<TaskNode, DefEdge> taskGraph;
+  /** Optional. When present, tasks are only started while their demand fits into the budget. */
+  public final ResourceBudget budget;
+  /** Optional. When present, tasks are recorded in it and complete ones are skipped if resuming. */
+  public final RunJournal journal;
+  public final boolean isResume;
+  /** Optional. When present, nodes whose outputs are known from earlier runs are not run again. */
+  public final StepCache stepCache;
+  /** Workdir of the run. Optional unless {@link #done} is present. */
+  public final Path wd;
+  /**
+   * Optional. When present, the run is one of a queue: runs that are already going are not
+   * stopped, and the future is completed once all the tasks are done, or completed exceptionally
+   * if the run is stopped.
+   */
+  public final CompletableFuture<Void> done;
 
   public MessageStartProcesses(List<RunnableDescription> pbi) {
+    this(pbi, null, null);
+  }
+
+  public MessageStartProcesses(List<RunnableDescription> pbi, Graph<TaskNode, DefEdge> taskGraph, ResourceBudget budget) {
+    this(pbi, taskGraph, budget, null, false);
+  }
+
+  public MessageStartProcesses(List<RunnableDescription> pbi, Graph<TaskNode, DefEdge> taskGraph, ResourceBudget budget, RunJournal journal, boolean isResume) {
+    this(pbi, taskGraph, budget, journal, isResume, null);
+  }
+
+  public MessageStartProcesses(List<RunnableDescription> pbi, Graph<TaskNode, DefEdge> taskGraph, ResourceBudget budget, RunJournal journal, boolean isResume, StepCache stepCache) {
+    this(pbi, taskGraph, budget, journal, isResume, stepCache, null, null);
+  }
+
+  public MessageStartProcesses(List<RunnableDescription> pbi, Graph<TaskNode, DefEdge> taskGraph, ResourceBudget budget, RunJournal journal, boolean isResume, StepCache stepCache, Path wd, CompletableFuture<Void> done) {
     this.runDescs = pbi;
+    this.taskGraph = taskGraph;
+    this.budget = budget;
+    this.journal = journal;
+    this.isResume = isResume;
+    this.stepCache = stepCache;
+    this.wd = wd;
+    this.done = done;
   }
 }
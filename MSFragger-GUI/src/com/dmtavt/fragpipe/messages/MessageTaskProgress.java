@@ -0,0 +1,32 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.messages;
+
+import com.dmtavt.fragpipe.process.TaskProgress;
+
+/**
+ * Posted when the output of a running task tells it has moved on.
+ */
+public class MessageTaskProgress {
+  public final String procName;
+  public final TaskProgress progress;
+
+  public MessageTaskProgress(String procName, TaskProgress progress) {
+    this.procName = procName;
+    this.progress = progress;
+  }
+}
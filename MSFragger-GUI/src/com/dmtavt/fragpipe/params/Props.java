@@ -17,6 +17,7 @@
 package com.dmtavt.fragpipe.params;
 
 import com.dmtavt.fragpipe.tools.fragger.MsfraggerParams;
+import com.github.chhh.utils.OsUtils;
 import com.github.chhh.utils.StringUtils;
 import java.io.BufferedWriter;
 import java.io.IOException;
@@ -217,7 +218,7 @@ public class Props {
                 if (StringUtils.isNullOrWhitespace(value))
                         value = "";
                 if (name.contentEquals("num_threads")) {
-                    value = String.valueOf(Runtime.getRuntime().availableProcessors() -1);
+                    value = String.valueOf(OsUtils.getAvailableProcessors() -1);
                 }
                 if (name.contentEquals("search_enzyme_cutafter")) {
                     name = MsfraggerParams.PROP_search_enzyme_cut_1;
@@ -0,0 +1,206 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Java launcher argument files, {@code java -Xmx8G @args.txt}. The launcher reads the rest of the
+ * command line from the file, jar and program arguments included, so long lists of inputs don't
+ * run into the command line length limit of Windows.
+ * <p>
+ * The arguments of the files are also kept in memory, they are known before the files are written
+ * and in dry runs. Code that looks at the arguments of a command, e.g. for its input files, goes
+ * through {@link #expand(List)}. Only the last argument of a command is taken as an arg file.
+ */
+public class ArgFiles {
+  private static final Logger log = LoggerFactory.getLogger(ArgFiles.class);
+  public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("fragpipe.argfiles", "true"));
+  private static final Map<Path, List<String>> known = new ConcurrentHashMap<>();
+
+  private ArgFiles() {
+  }
+
+  /**
+   * The launcher reads arg files in the platform encoding, only plain ASCII is the same everywhere.
+   */
+  public static boolean canWrite(List<String> args) {
+    for (String arg : args) {
+      for (int i = 0; i < arg.length(); i++) {
+        final char c = arg.charAt(i);
+        if (c < 0x20 || c > 0x7e) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Makes the arguments known without writing the file, e.g. in a dry run.
+   */
+  public static void register(Path file, List<String> args) {
+    known.put(normalize(file), Collections.unmodifiableList(new ArrayList<>(args)));
+  }
+
+  public static void write(Path file, List<String> args) throws IOException {
+    if (!canWrite(args)) {
+      throw new IllegalArgumentException("Arguments can only be plain ASCII in an arg file: " + file);
+    }
+    final StringBuilder sb = new StringBuilder();
+    for (String arg : args) {
+      sb.append(quote(arg)).append('\n');
+    }
+    Files.write(file, sb.toString().getBytes(US_ASCII));
+    register(file, args);
+  }
+
+  /**
+   * @return The command with the arguments of its arg file in place of the file.
+   */
+  public static List<String> expand(List<String> cmd) {
+    final Path file = argFile(cmd);
+    if (file == null) {
+      return cmd;
+    }
+    List<String> args = known.get(normalize(file));
+    if (args == null) {
+      try {
+        args = parse(new String(Files.readAllBytes(file), US_ASCII));
+      } catch (IOException e) {
+        return cmd;
+      }
+    }
+    final List<String> expanded = new ArrayList<>(cmd.subList(0, cmd.size() - 1));
+    expanded.addAll(args);
+    return expanded;
+  }
+
+  /**
+   * The other way round from {@link #expand(List)}: puts changed arguments back into the arg file
+   * of the command.
+   *
+   * @param cmd The command as it is, with its arg file.
+   * @param expanded Changed arguments, the part in front of the arg file unchanged.
+   * @return The command to run, {@code expanded} itself if there is no arg file or it could not
+   * be written.
+   */
+  public static List<String> collapse(List<String> cmd, List<String> expanded) {
+    final Path file = argFile(cmd);
+    final List<String> head = file == null ? null : cmd.subList(0, cmd.size() - 1);
+    if (head == null || expanded.size() < head.size() || !expanded.subList(0, head.size()).equals(head)) {
+      return expanded;
+    }
+    final List<String> args = expanded.subList(head.size(), expanded.size());
+    try {
+      if (Files.exists(file)) {
+        write(file, args);
+      } else {
+        register(file, args);
+      }
+      return cmd;
+    } catch (IOException | IllegalArgumentException e) {
+      log.warn("Could not rewrite arg file {}, passing the arguments directly", file, e);
+      return expanded;
+    }
+  }
+
+  /**
+   * @return Null if the last argument is not an arg file.
+   */
+  static Path argFile(List<String> cmd) {
+    if (cmd == null || cmd.size() < 2) {
+      return null;
+    }
+    final String last = cmd.get(cmd.size() - 1);
+    if (last.length() < 2 || last.charAt(0) != '@' || last.charAt(1) == '@') {
+      return null;
+    }
+    try {
+      return Paths.get(last.substring(1));
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Quoted, with backslashes and quotes escaped the way the launcher expects.
+   */
+  static String quote(String arg) {
+    return "\"" + arg.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  /**
+   * Splits arg file contents: white space separated, single or double quoted, backslash escapes
+   * inside quotes, {@code #} comments to the end of the line.
+   */
+  static List<String> parse(String s) {
+    final List<String> args = new ArrayList<>();
+    final StringBuilder cur = new StringBuilder();
+    boolean inArg = false;
+    char quote = 0;
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      if (quote != 0) {
+        if (c == quote) {
+          quote = 0;
+        } else if (c == '\\' && i + 1 < s.length()) {
+          final char next = s.charAt(++i);
+          cur.append(next == 'n' ? '\n' : next == 't' ? '\t' : next == 'r' ? '\r' : next);
+        } else {
+          cur.append(c);
+        }
+      } else if (c == '"' || c == '\'') {
+        quote = c;
+        inArg = true;
+      } else if (c == '#' && !inArg) {
+        while (i + 1 < s.length() && s.charAt(i + 1) != '\n') {
+          i++;
+        }
+      } else if (Character.isWhitespace(c)) {
+        if (inArg) {
+          args.add(cur.toString());
+          cur.setLength(0);
+          inArg = false;
+        }
+      } else {
+        cur.append(c);
+        inArg = true;
+      }
+    }
+    if (inArg) {
+      args.add(cur.toString());
+    }
+    return args;
+  }
+
+  private static Path normalize(Path p) {
+    return p.toAbsolutePath().normalize();
+  }
+}
@@ -0,0 +1,392 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.dmtavt.fragpipe.Fragpipe;
+import com.dmtavt.fragpipe.FragpipeRun;
+import com.dmtavt.fragpipe.api.Bus;
+import com.dmtavt.fragpipe.cmd.CmdCrystalc;
+import com.dmtavt.fragpipe.cmd.CmdMsfragger;
+import com.dmtavt.fragpipe.cmd.CmdPeptideProphet;
+import com.dmtavt.fragpipe.cmd.CmdPercolator;
+import com.dmtavt.fragpipe.cmd.CmdUmpireSe;
+import com.dmtavt.fragpipe.cmd.ProcessBuilderInfo;
+import com.dmtavt.fragpipe.messages.MessagePrintToConsole;
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Opt-in failure isolation for the per-file steps of a run. When a per-file task fails, the
+ * input files it worked on are marked as failed instead of stopping the run. Later per-file tasks
+ * on those inputs are skipped, everything else goes on. Failures of other tasks, or of per-file
+ * tasks whose inputs can't be told from the command line, still stop the run.
+ * <p>
+ * Inputs are followed from step to step by the base name of the files on the command lines, e.g.
+ * a failed search of {@code sample01.mzML} also skips PeptideProphet on {@code sample01.pepXML}
+ * and the rewrite of {@code interact-sample01.pep.xml}. Steps that combine all the files, e.g.
+ * ProteinProphet, run with whatever the per-file steps have produced.
+ * <p>
+ * An MSFragger search of several files that fails is run again with halves of its inputs, and
+ * halves of the halves that fail, until the files it fails on by themselves are found. Only those
+ * are marked as failed, the searches of the rest have their outputs in place by then.
+ */
+public class FailedInputs {
+  private static final Logger log = LoggerFactory.getLogger(FailedInputs.class);
+  public static final String FN = "fragpipe-failed-inputs.tsv";
+  /** Output of the searches run to find the inputs a search failed on, in the task logs folder. */
+  static final String FN_SEARCH_LOG = "failed-inputs-search.log";
+  /** Tasks whose names start with one of these work on one or a few input files at a time. */
+  private static final List<String> PER_FILE_TASKS = Arrays.asList(CmdUmpireSe.NAME, CmdMsfragger.NAME,
+      CmdCrystalc.NAME, CmdPeptideProphet.NAME, CmdPercolator.NAME, "Rewrite pepxml");
+  private static final List<String> PER_FILE_EXTS = Arrays.asList(".mzml", ".mzxml", ".raw", ".d", ".mgf",
+      ".mzbin", ".pep.xml", ".pepxml", ".pin");
+  private static final String INTERACT_PREFIX = "interact-";
+  private static final Map<Path, FailedInputs> byWd = new ConcurrentHashMap<>();
+
+  private final Path wd;
+  /** Failed input base names and what happened to them, in order. */
+  private final Map<String, Set<String>> failed = new LinkedHashMap<>();
+  /** Base names of the inputs of the per-file tasks so far, failed or not. */
+  private final Set<String> known = new HashSet<>();
+  /** Tasks whose failure was recorded here instead of stopping the run. */
+  private final Set<ProcessBuilderInfo> isolated = Collections.newSetFromMap(new IdentityHashMap<>());
+
+  private FailedInputs(Path wd) {
+    this.wd = wd;
+  }
+
+  /**
+   * Turns isolation on for the run in the workdir, forgetting failures of earlier runs there.
+   */
+  public static FailedInputs start(Path wd) {
+    final FailedInputs fi = new FailedInputs(wd.toAbsolutePath().normalize());
+    byWd.put(fi.wd, fi);
+    return fi;
+  }
+
+  /**
+   * @return Null if isolation is not on for the run in the workdir.
+   */
+  public static FailedInputs get(Path wd) {
+    return wd == null ? null : byWd.get(wd.toAbsolutePath().normalize());
+  }
+
+  /**
+   * Turns isolation off for the workdir.
+   */
+  public static void stop(Path wd) {
+    byWd.remove(wd.toAbsolutePath().normalize());
+  }
+
+  /**
+   * @return True if the failure of the task only stopped its own inputs, in any of the runs.
+   */
+  public static boolean isIsolated(ProcessBuilderInfo pbi) {
+    return pbi != null && byWd.values().stream().anyMatch(fi -> fi.hasIsolated(pbi));
+  }
+
+  private synchronized boolean hasIsolated(ProcessBuilderInfo pbi) {
+    return isolated.contains(pbi);
+  }
+
+  public static boolean isPerFile(ProcessBuilderInfo pbi) {
+    return pbi != null && pbi.name != null && PER_FILE_TASKS.stream().anyMatch(pbi.name::startsWith);
+  }
+
+  /**
+   * Records the failure of a per-file task. A failed MSFragger search of several files is first
+   * run again in parts to find the inputs it fails on.
+   *
+   * @return False if the task is not per-file or its inputs are not known, then the failure can't
+   * be isolated.
+   */
+  public boolean failed(ProcessBuilderInfo pbi, int exitCode) {
+    if (!isPerFile(pbi)) {
+      return false;
+    }
+    final List<String> cmd = ArgFiles.expand(pbi.pb.command());
+    Set<String> inputs = inputs(cmd);
+    if (inputs.isEmpty()) {
+      return false;
+    }
+    if (inputs.size() > 1 && CmdMsfragger.NAME.equals(pbi.name)) {
+      inputs = culprits(pbi, cmd);
+      if (inputs.isEmpty()) {
+        return false;
+      }
+    }
+    synchronized (this) {
+      isolated.add(pbi);
+      known.addAll(inputs);
+      for (String input : inputs) {
+        failed.computeIfAbsent(input, k -> new LinkedHashSet<>()).add(String.format(Locale.ROOT, "%s failed, exit code %d", pbi.name, exitCode));
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return Base names of the inputs the search fails on by itself, empty if none do or they could
+   * not be searched again.
+   */
+  private Set<String> culprits(ProcessBuilderInfo pbi, List<String> cmd) {
+    final List<String> inputArgs = new ArrayList<>();
+    for (String arg : cmd) {
+      if (baseName(arg) != null) {
+        inputArgs.add(arg);
+      }
+    }
+    final Path searchLog = wd.resolve(FragpipeRun.TASK_LOGS_DIR).resolve(FN_SEARCH_LOG);
+    Bus.post(new MessagePrintToConsole(Fragpipe.COLOR_RED_DARKEST, String.format(Locale.ROOT,
+        "Searching the %d inputs of '%s' again in parts to find the ones it fails on, see %s", inputArgs.size(), pbi.name, searchLog), true));
+    final Set<String> culprits = new LinkedHashSet<>();
+    try {
+      for (String arg : culprits(inputArgs, subset -> succeeds(pbi, cmd, inputArgs, subset, searchLog))) {
+        culprits.add(baseName(arg));
+      }
+    } catch (IOException e) {
+      log.warn("Could not search the inputs of " + pbi.name + " again", e);
+      return new LinkedHashSet<>();
+    } catch (InterruptedException e) {
+      // the run is being stopped
+      Thread.currentThread().interrupt();
+      return new LinkedHashSet<>();
+    }
+    if (culprits.isEmpty()) {
+      Bus.post(new MessagePrintToConsole(Fragpipe.COLOR_RED, "'" + pbi.name + "' only fails with all of its inputs together", true));
+    }
+    return culprits;
+  }
+
+  interface Search {
+    /**
+     * @return True if the search of only these inputs succeeds.
+     */
+    boolean succeeds(List<String> inputs) throws IOException, InterruptedException;
+  }
+
+  /**
+   * Inputs a search that failed with all of them fails on by themselves: halves of the inputs are
+   * searched again, then halves of the halves that fail, down to single files.
+   *
+   * @return Empty if no part fails by itself.
+   */
+  static List<String> culprits(List<String> inputs, Search search) throws IOException, InterruptedException {
+    if (inputs.size() <= 1) {
+      return inputs;
+    }
+    final List<String> culprits = new ArrayList<>();
+    final int mid = inputs.size() / 2;
+    for (List<String> half : Arrays.asList(inputs.subList(0, mid), inputs.subList(mid, inputs.size()))) {
+      if (!search.succeeds(half)) {
+        culprits.addAll(culprits(half, search));
+      }
+    }
+    return culprits;
+  }
+
+  /**
+   * Runs the task again with only some of its inputs.
+   */
+  private static boolean succeeds(ProcessBuilderInfo pbi, List<String> cmd, List<String> inputArgs, List<String> subset, Path searchLog) throws IOException, InterruptedException {
+    final List<String> args = new ArrayList<>();
+    for (String arg : cmd) {
+      if (!inputArgs.contains(arg) || subset.contains(arg)) {
+        args.add(arg);
+      }
+    }
+    final List<String> original = pbi.pb.command();
+    final Path argFile = ArgFiles.argFile(original);
+    final List<String> head = argFile == null ? null : original.subList(0, original.size() - 1);
+    Path subsetArgFile = null;
+    try {
+      final List<String> run;
+      if (head != null && args.subList(0, head.size()).equals(head) && ArgFiles.canWrite(args)) {
+        subsetArgFile = Files.createTempFile(argFile.toAbsolutePath().getParent(), "subset-", ".txt");
+        ArgFiles.write(subsetArgFile, args.subList(head.size(), args.size()));
+        run = new ArrayList<>(head);
+        run.add("@" + subsetArgFile);
+      } else {
+        run = args;
+      }
+      Files.createDirectories(searchLog.getParent());
+      Files.write(searchLog, ("\n" + String.join(" ", args) + "\n").getBytes(UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      final ProcessBuilder pb = new ProcessBuilder(run).directory(pbi.pb.directory())
+          .redirectErrorStream(true).redirectOutput(Redirect.appendTo(searchLog.toFile()));
+      pb.environment().clear();
+      pb.environment().putAll(pbi.pb.environment());
+      final Process p = pb.start();
+      try {
+        final int exitCode = p.waitFor();
+        log.debug("Search of {} of the inputs of {} again, exit code {}", subset.size(), pbi.name, exitCode);
+        return exitCode == 0;
+      } finally {
+        if (p.isAlive()) {
+          p.destroyForcibly();
+        }
+      }
+    } finally {
+      if (subsetArgFile != null) {
+        Files.deleteIfExists(subsetArgFile);
+      }
+    }
+  }
+
+  /**
+   * Call before starting a task. Drops failed inputs from MSFragger searches of several files.
+   *
+   * @return The failed inputs the task depends on, empty if the task should run.
+   */
+  public synchronized Set<String> beforeStart(ProcessBuilderInfo pbi) {
+    final Set<String> hit = new LinkedHashSet<>();
+    if (!isPerFile(pbi)) {
+      return hit;
+    }
+    final List<String> cmd = ArgFiles.expand(pbi.pb.command());
+    known.addAll(inputs(cmd));
+    if (failed.isEmpty()) {
+      return hit;
+    }
+    for (String arg : cmd) {
+      final String input = failedInputOf(arg);
+      if (input != null) {
+        hit.add(input);
+      }
+    }
+    if (!hit.isEmpty() && CmdMsfragger.NAME.equals(pbi.name) && inputs(cmd).size() > hit.size()) {
+      // a search of several files goes on with the rest of them
+      final List<String> kept = new ArrayList<>();
+      for (String arg : cmd) {
+        final String input = failedInputOf(arg);
+        if (input != null && baseName(arg) != null) {
+          failed.get(input).add(pbi.name + " left it out");
+        } else {
+          kept.add(arg);
+        }
+      }
+      pbi.pb.command(ArgFiles.collapse(pbi.pb.command(), kept));
+      return new LinkedHashSet<>();
+    }
+    for (String input : hit) {
+      failed.get(input).add(pbi.name + " skipped");
+    }
+    return hit;
+  }
+
+  public synchronized boolean isEmpty() {
+    return failed.isEmpty();
+  }
+
+  /**
+   * One line per failed input with what happened to it.
+   */
+  public synchronized String summary() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(failed.size()).append(failed.size() == 1 ? " input failed:" : " inputs failed:");
+    for (Map.Entry<String, Set<String>> kv : failed.entrySet()) {
+      sb.append("\n    ").append(kv.getKey()).append(": ").append(String.join(", ", kv.getValue()));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Writes the failed inputs to {@link #FN} in the workdir.
+   */
+  public synchronized Path write() throws IOException {
+    final StringBuilder sb = new StringBuilder("input\tevents\n");
+    for (Map.Entry<String, Set<String>> kv : failed.entrySet()) {
+      sb.append(kv.getKey()).append('\t').append(String.join("; ", kv.getValue())).append('\n');
+    }
+    final Path path = wd.resolve(FN);
+    Files.write(path, sb.toString().getBytes(UTF_8));
+    return path;
+  }
+
+  /**
+   * The file is taken to be of the input with the longest base name it starts with, so files of
+   * {@code sample_2} aren't taken for files of {@code sample}.
+   *
+   * @return Base name of the failed input the file is of, null if it is of no failed input.
+   */
+  String failedInputOf(String arg) {
+    String fn = fileName(arg);
+    if (fn.startsWith(INTERACT_PREFIX)) {
+      fn = fn.substring(INTERACT_PREFIX.length());
+    }
+    String input = null;
+    for (Set<String> names : Arrays.asList(failed.keySet(), known)) {
+      for (String name : names) {
+        if ((input == null || name.length() > input.length()) && fn.startsWith(name) && fn.length() > name.length()
+            && (fn.charAt(name.length()) == '.' || fn.charAt(name.length()) == '_')) {
+          input = name;
+        }
+      }
+    }
+    return input != null && failed.containsKey(input) ? input : null;
+  }
+
+  static Set<String> inputs(List<String> cmd) {
+    final Set<String> inputs = new LinkedHashSet<>();
+    for (String arg : cmd) {
+      final String base = baseName(arg);
+      if (base != null) {
+        inputs.add(base);
+      }
+    }
+    return inputs;
+  }
+
+  /**
+   * @return Name of the file without the extension and the "interact-" prefix, null if the
+   * argument is not a per-file input or output.
+   */
+  static String baseName(String arg) {
+    String fn = fileName(arg);
+    final String lower = fn.toLowerCase(Locale.ROOT);
+    for (String ext : PER_FILE_EXTS) {
+      if (lower.endsWith(ext) && lower.length() > ext.length()) {
+        fn = fn.substring(0, fn.length() - ext.length());
+        return fn.startsWith(INTERACT_PREFIX) ? fn.substring(INTERACT_PREFIX.length()) : fn;
+      }
+    }
+    return null;
+  }
+
+  private static String fileName(String arg) {
+    final int slash = Math.max(arg.lastIndexOf('/'), arg.lastIndexOf('\\'));
+    return slash < 0 ? arg : arg.substring(slash + 1);
+  }
+}
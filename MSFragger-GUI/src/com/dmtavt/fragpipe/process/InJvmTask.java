@@ -0,0 +1,202 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import com.dmtavt.fragpipe.tools.fragger.CalibratedSpectra;
+import com.dmtavt.fragpipe.tools.percolator.PercolatorOutputToPepXML;
+import com.dmtavt.fragpipe.util.RewritePepxml;
+import com.github.chhh.utils.FileCopy;
+import com.github.chhh.utils.FileDelete;
+import com.github.chhh.utils.FileMove;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * FragPipe's own helper programs (file copy/move/delete, pepxml rewriting, etc.) are started
+ * as {@code java -cp ... SomeClass args}. Starting a JVM for each of them is slower than the work
+ * they do, so such commands are recognized and the helper's {@code run(String[])} is called
+ * directly on a small thread pool instead. The command line is still what gets printed and what
+ * is run when in-JVM execution is disabled with {@code -Dfragpipe.in-jvm=false}.
+ * <p>
+ * Whatever the helper prints to {@link System#out} and {@link System#err} from the pool thread
+ * goes to the streams given to {@link #submit(OutputStream, OutputStream)}, same as the output
+ * of an external process. Arguments must be absolute paths, the working directory of the
+ * process builder is not applied.
+ */
+public class InJvmTask {
+  private static final Logger log = LoggerFactory.getLogger(InJvmTask.class);
+  public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("fragpipe.in-jvm", "true"));
+  private static final int POOL_SIZE = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+  private static final Map<String, Main> MAINS;
+  private static ExecutorService pool;
+  private static RoutingStream routeOut;
+  private static RoutingStream routeErr;
+
+  // Only short helpers whose classes are all on FragPipe's own classpath. CheckCentroid needs
+  // batmass-io, which is given to its JVM on the command line only. SplitSearch drives MSFragger
+  // searches for as long as they take, it keeps its own JVM and the resources declared for them.
+  static {
+    Map<String, Main> m = new HashMap<>();
+    m.put(FileCopy.class.getCanonicalName(), FileCopy::run);
+    m.put(FileMove.class.getCanonicalName(), FileMove::run);
+    m.put(FileDelete.class.getCanonicalName(), FileDelete::run);
+    m.put(RewritePepxml.class.getCanonicalName(), RewritePepxml::run);
+    m.put(PercolatorOutputToPepXML.class.getCanonicalName(), PercolatorOutputToPepXML::run);
+    m.put(CalibratedSpectra.class.getCanonicalName(), CalibratedSpectra::run);
+    MAINS = Collections.unmodifiableMap(m);
+  }
+
+  /** Entry point of a helper, same as its {@code main}, but returns the exit code. */
+  @FunctionalInterface
+  public interface Main {
+    int run(String[] args) throws Exception;
+  }
+
+  public final String className;
+  public final String[] args;
+  private final Main main;
+
+  private InJvmTask(String className, Main main, String[] args) {
+    this.className = className;
+    this.main = main;
+    this.args = args;
+  }
+
+  /**
+   * @param command Command line of a process.
+   * @return Null if the command is not a known helper or in-JVM execution is disabled.
+   */
+  public static InJvmTask of(List<String> command) {
+    if (!ENABLED || command == null || command.size() < 2) {
+      return null;
+    }
+    final String exe = command.get(0).replace('\\', '/');
+    final String exeName = exe.substring(exe.lastIndexOf('/') + 1).toLowerCase();
+    if (!exeName.equals("java") && !exeName.equals("java.exe")) {
+      return null;
+    }
+    // skip JVM options, the first non-option is the main class
+    for (int i = 1; i < command.size(); i++) {
+      final String arg = command.get(i);
+      if ("-cp".equals(arg) || "-classpath".equals(arg) || "--class-path".equals(arg)) {
+        i++;
+        continue;
+      }
+      if (arg.startsWith("-")) {
+        continue;
+      }
+      final Main main = MAINS.get(arg);
+      if (main == null) {
+        return null;
+      }
+      final List<String> rest = command.subList(i + 1, command.size());
+      return new InJvmTask(arg, main, rest.toArray(new String[0]));
+    }
+    return null;
+  }
+
+  /**
+   * Runs the helper on the shared pool. Cancel the returned future to interrupt it.
+   *
+   * @return Future with the exit code. Exceptions and errors thrown by the helper are printed to
+   * {@code err} and result in exit code 1, same as an uncaught exception in {@code main}.
+   */
+  public Future<Integer> submit(OutputStream out, OutputStream err) {
+    return pool().submit(() -> {
+      final PrintStream psErr = new PrintStream(err, true);
+      routeOut.target.set(out);
+      routeErr.target.set(err);
+      try {
+        return main.run(args);
+      } catch (Throwable e) {
+        e.printStackTrace(psErr);
+        return 1;
+      } finally {
+        System.out.flush();
+        System.err.flush();
+        routeOut.target.remove();
+        routeErr.target.remove();
+      }
+    });
+  }
+
+  private static synchronized ExecutorService pool() {
+    if (pool == null) {
+      routeOut = new RoutingStream(System.out);
+      routeErr = new RoutingStream(System.err);
+      System.setOut(new PrintStream(routeOut, true));
+      System.setErr(new PrintStream(routeErr, true));
+      final AtomicInteger count = new AtomicInteger(0);
+      pool = Executors.newFixedThreadPool(POOL_SIZE, r -> {
+        Thread t = new Thread(r, "in-jvm-task-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+      log.debug("Started pool for in-JVM tasks with {} threads", POOL_SIZE);
+    }
+    return pool;
+  }
+
+  @Override
+  public String toString() {
+    return className + " " + Arrays.toString(args);
+  }
+
+  /**
+   * Writes to the stream set for the current thread, or to the original one.
+   */
+  private static class RoutingStream extends OutputStream {
+    private final OutputStream orig;
+    private final ThreadLocal<OutputStream> target = new ThreadLocal<>();
+
+    RoutingStream(OutputStream orig) {
+      this.orig = orig;
+    }
+
+    private OutputStream current() {
+      final OutputStream t = target.get();
+      return t != null ? t : orig;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      current().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      current().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      current().flush();
+    }
+  }
+}
@@ -0,0 +1,252 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.dmtavt.fragpipe.cmd.ProcessBuilderInfo;
+import com.dmtavt.fragpipe.internal.DefEdge;
+import com.github.chhh.utils.StringUtils;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import org.jgrapht.Graph;
+import org.jgrapht.traverse.TopologicalOrderIterator;
+
+/**
+ * Writes the task graph of a configured run as batch-scheduler job scripts, one per task, and a
+ * driver script that submits them all with their dependencies. Tasks that FragPipe would run in
+ * parallel within a step, e.g. MSFragger or PeptideProphet on each file, become independent jobs.
+ * <p>
+ * Each job asks for the threads and memory found on its command line (the heap of a Java tool
+ * plus some room for the JVM itself). The scheduler nodes must see the workdir and the tools at
+ * the same paths as this machine.
+ */
+public class JobScripts {
+  public static final String FN_DRIVER = "submit.sh";
+  public static final String DIR_LOGS = "logs";
+  /** Room for the JVM beyond the heap. */
+  private static final long JVM_OVERHEAD_MB = 1024;
+  /** For tasks whose command doesn't tell how much memory they need. */
+  private static final long DEFAULT_RAM_MB = 4096;
+
+  public enum Scheduler {
+    SLURM, PBS;
+
+    /**
+     * @throws IllegalArgumentException For names other than slurm or pbs.
+     */
+    public static Scheduler of(String name) {
+      return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+  }
+
+  private static class Job {
+    final int index;
+    final RunnableDescription rd;
+    final List<Job> deps;
+    final String fn;
+
+    Job(int index, RunnableDescription rd, List<Job> deps) {
+      this.index = index;
+      this.rd = rd;
+      this.deps = deps;
+      final String name = StringUtils.isNullOrWhitespace(rd.description.name) ? "task" : rd.description.name;
+      this.fn = String.format(Locale.ROOT, "%03d_%s", index, name.replaceAll("[^a-zA-Z0-9._-]+", "-"));
+    }
+  }
+
+  private JobScripts() {
+  }
+
+  /**
+   * @param graph Tasks of the run, nodes without tasks are passed through.
+   * @return Path to the driver script.
+   */
+  public static Path write(Path dir, Scheduler scheduler, Graph<TaskNode, DefEdge> graph) throws IOException {
+    final List<Job> jobs = toJobs(graph);
+    Files.createDirectories(dir.resolve(DIR_LOGS));
+    for (Job job : jobs) {
+      final Path script = dir.resolve(job.fn + ".sh");
+      Files.write(script, jobScript(dir, scheduler, job).getBytes(UTF_8));
+      setExecutable(script);
+    }
+    final Path driver = dir.resolve(FN_DRIVER);
+    Files.write(driver, driverScript(scheduler, jobs).getBytes(UTF_8));
+    setExecutable(driver);
+    return driver;
+  }
+
+  /**
+   * Jobs in topological order. Within a node, each group of tasks depends on the whole previous
+   * group, the first group on the last groups of all the preceding nodes.
+   */
+  private static List<Job> toJobs(Graph<TaskNode, DefEdge> graph) {
+    final List<Job> jobs = new ArrayList<>();
+    final Map<TaskNode, List<Job>> tails = new HashMap<>();
+    final TopologicalOrderIterator<TaskNode, DefEdge> it = new TopologicalOrderIterator<>(graph);
+    while (it.hasNext()) {
+      final TaskNode node = it.next();
+      final Set<Job> deps = new LinkedHashSet<>();
+      for (DefEdge e : graph.incomingEdgesOf(node)) {
+        deps.addAll(tails.getOrDefault(graph.getEdgeSource(e), Collections.emptyList()));
+      }
+      List<Job> prev = new ArrayList<>(deps);
+      for (List<RunnableDescription> group : ProcessManager.toGroups(node.runDescs)) {
+        final List<Job> current = new ArrayList<>();
+        for (RunnableDescription rd : group) {
+          if (rd.pbi == null || rd.pbi.pb == null) {
+            continue;
+          }
+          final Job job = new Job(jobs.size() + 1, rd, prev);
+          jobs.add(job);
+          current.add(job);
+        }
+        if (!current.isEmpty()) {
+          prev = current;
+        }
+      }
+      tails.put(node, prev);
+    }
+    return jobs;
+  }
+
+  private static String jobScript(Path dir, Scheduler scheduler, Job job) {
+    final ProcessBuilderInfo pbi = job.rd.pbi;
+    final TaskResources r = TaskResources.of(pbi);
+    final int threads = Math.max(1, r.threads);
+    final long ramMb = r.ramMb > 0 ? r.ramMb + JVM_OVERHEAD_MB : DEFAULT_RAM_MB;
+    final String jobName = ("fp" + job.fn).substring(0, Math.min(15, job.fn.length() + 2));
+    final String log = dir.resolve(DIR_LOGS).resolve(job.fn + ".log").toString();
+
+    final StringBuilder sb = new StringBuilder("#!/bin/bash\n");
+    if (scheduler == Scheduler.SLURM) {
+      sb.append("#SBATCH --job-name=").append(jobName).append('\n');
+      sb.append("#SBATCH --nodes=1\n");
+      sb.append("#SBATCH --ntasks=1\n");
+      sb.append("#SBATCH --cpus-per-task=").append(threads).append('\n');
+      sb.append("#SBATCH --mem=").append(ramMb).append("M\n");
+      sb.append("#SBATCH --output=").append(log).append('\n');
+    } else {
+      sb.append("#PBS -N ").append(jobName).append('\n');
+      sb.append("#PBS -l nodes=1:ppn=").append(threads).append('\n');
+      sb.append("#PBS -l mem=").append(ramMb).append("mb\n");
+      sb.append("#PBS -j oe\n");
+      sb.append("#PBS -o ").append(log).append('\n');
+    }
+    sb.append("\n# ").append(job.rd.description.name).append('\n');
+    sb.append("set -e\n");
+    if (pbi.pb.directory() != null) {
+      sb.append("cd ").append(quote(pbi.pb.directory().getAbsolutePath())).append('\n');
+    }
+    final Map<String, String> ours = System.getenv();
+    for (Map.Entry<String, String> kv : pbi.pb.environment().entrySet()) {
+      if (!kv.getValue().equals(ours.get(kv.getKey()))) {
+        sb.append("export ").append(kv.getKey()).append('=').append(quote(kv.getValue())).append('\n');
+      }
+    }
+    final Path out = outputFile(pbi, pbi.fnStdout);
+    final Path err = outputFile(pbi, pbi.fnStderr);
+    for (Path p : new LinkedHashSet<>(Arrays.asList(out, err))) {
+      if (p != null && p.getParent() != null) {
+        sb.append("mkdir -p ").append(quote(p.getParent().toString())).append('\n');
+      }
+    }
+    for (String arg : ArgFiles.expand(pbi.pb.command())) {
+      sb.append(quote(arg)).append(' ');
+    }
+    if (out != null) {
+      sb.append(">> ").append(quote(out.toString())).append(' ');
+    }
+    if (err != null && err.equals(out)) {
+      sb.append("2>&1");
+    } else if (err != null) {
+      sb.append("2>> ").append(quote(err.toString()));
+    }
+    return sb.toString().trim() + "\n";
+  }
+
+  private static String driverScript(Scheduler scheduler, List<Job> jobs) {
+    final StringBuilder sb = new StringBuilder("#!/bin/bash\n");
+    sb.append("# Submits all the ").append(jobs.size()).append(" jobs of the FragPipe run to ")
+        .append(scheduler == Scheduler.SLURM ? "SLURM" : "PBS").append(", each after the jobs it depends on.\n");
+    sb.append("set -e\n");
+    sb.append("cd \"$(dirname \"$0\")\"\n");
+    for (Job job : jobs) {
+      sb.append('j').append(job.index).append("=$(");
+      final StringBuilder deps = new StringBuilder();
+      for (Job d : job.deps) {
+        deps.append(":$j").append(d.index);
+      }
+      if (scheduler == Scheduler.SLURM) {
+        sb.append("sbatch --parsable");
+        if (deps.length() > 0) {
+          sb.append(" --dependency=afterok").append(deps);
+        }
+      } else {
+        sb.append("qsub");
+        if (deps.length() > 0) {
+          sb.append(" -W depend=afterok").append(deps);
+        }
+      }
+      sb.append(' ').append(job.fn).append(".sh)\n");
+    }
+    sb.append("echo \"Submitted ").append(jobs.size()).append(" jobs, logs in $(pwd)/").append(DIR_LOGS).append("\"\n");
+    return sb.toString();
+  }
+
+  /**
+   * Same resolution as for a task run by FragPipe, relative paths are relative to the working
+   * directory of the task.
+   */
+  private static Path outputFile(ProcessBuilderInfo pbi, String fn) {
+    if (StringUtils.isNullOrWhitespace(fn)) {
+      return null;
+    }
+    final Path p = Paths.get(fn);
+    if (p.isAbsolute()) {
+      return p;
+    }
+    return pbi.pb.directory() == null ? null : pbi.pb.directory().toPath().resolve(p);
+  }
+
+  static String quote(String s) {
+    if (!s.isEmpty() && s.matches("[a-zA-Z0-9_./=:,+@%-]+")) {
+      return s;
+    }
+    return "'" + s.replace("'", "'\\''") + "'";
+  }
+
+  private static void setExecutable(Path p) {
+    try {
+      Files.setPosixFilePermissions(p, PosixFilePermissions.fromString("rwxr-xr-x"));
+    } catch (UnsupportedOperationException | IOException ignored) {
+      // not a POSIX filesystem, the scripts are meant for one anyway
+    }
+  }
+}
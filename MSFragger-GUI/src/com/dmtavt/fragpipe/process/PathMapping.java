@@ -0,0 +1,104 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * How paths of this machine look on workers that see the same shared filesystem, by prefix.
+ * With {@code /mnt/data=/data} the argument {@code /mnt/data/run1/a.mzML} becomes
+ * {@code /data/run1/a.mzML}, and so does {@code --out=/mnt/data/run1}. A prefix only matches whole
+ * path components, {@code /mnt/data2} is left alone.
+ */
+public class PathMapping {
+  public static final PathMapping IDENTITY = new PathMapping(new ArrayList<>());
+
+  /** Local and remote prefix pairs, longest local prefix first. */
+  private final List<String[]> prefixes;
+
+  private PathMapping(List<String[]> prefixes) {
+    prefixes.sort(Comparator.comparingInt((String[] p) -> p[0].length()).reversed());
+    this.prefixes = prefixes;
+  }
+
+  /**
+   * @param spec Pairs of {@code local=remote} prefixes, separated by ';'. Blank for no mapping.
+   */
+  public static PathMapping parse(String spec) {
+    if (spec == null || spec.trim().isEmpty()) {
+      return IDENTITY;
+    }
+    final List<String[]> prefixes = new ArrayList<>();
+    for (String pair : spec.split(";")) {
+      if (pair.trim().isEmpty()) {
+        continue;
+      }
+      final int eq = pair.indexOf('=');
+      if (eq <= 0) {
+        throw new IllegalArgumentException("Path mapping should look like local=remote, got: " + pair);
+      }
+      prefixes.add(new String[]{trimSeparator(pair.substring(0, eq).trim()), trimSeparator(pair.substring(eq + 1).trim())});
+    }
+    return new PathMapping(prefixes);
+  }
+
+  public boolean isIdentity() {
+    return prefixes.isEmpty();
+  }
+
+  /**
+   * Replaces all the local prefixes found in the string.
+   */
+  public String map(String s) {
+    if (s == null || prefixes.isEmpty()) {
+      return s;
+    }
+    final StringBuilder sb = new StringBuilder(s.length());
+    int i = 0;
+    outer:
+    while (i < s.length()) {
+      if (i == 0 || isBoundary(s.charAt(i - 1))) {
+        for (String[] p : prefixes) {
+          final int end = i + p[0].length();
+          if (s.startsWith(p[0], i) && (end == s.length() || s.charAt(end) == '/' || s.charAt(end) == '\\')) {
+            sb.append(p[1]);
+            i = end;
+            continue outer;
+          }
+        }
+      }
+      sb.append(s.charAt(i++));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Characters after which a path may start inside an argument, e.g. {@code --out=/path}.
+   */
+  private static boolean isBoundary(char c) {
+    return c == '=' || c == ',' || c == ';' || c == ':' || c == '"' || c == '\'' || Character.isWhitespace(c);
+  }
+
+  private static String trimSeparator(String prefix) {
+    if (prefix.length() > 1 && (prefix.endsWith("/") || prefix.endsWith("\\"))) {
+      return prefix.substring(0, prefix.length() - 1);
+    }
+    return prefix;
+  }
+}
@@ -20,6 +20,7 @@ package com.dmtavt.fragpipe.process;
 import com.dmtavt.fragpipe.Fragpipe;
 import com.dmtavt.fragpipe.api.Bus;
 import com.dmtavt.fragpipe.cmd.ProcessBuilderInfo;
+import com.dmtavt.fragpipe.internal.DefEdge;
 import com.dmtavt.fragpipe.messages.MessageDeletePaths;
 import com.dmtavt.fragpipe.messages.MessageKillAll;
 import com.dmtavt.fragpipe.messages.MessagePrintToConsole;
@@ -38,17 +39,22 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
+import org.jgrapht.Graph;
+import org.jgrapht.traverse.TopologicalOrderIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,7 +64,13 @@ public class ProcessManager {
   private static final ProcessManager instance = new ProcessManager();
   private final Object lock = new Object();
   private final ConcurrentLinkedQueue<List<RunnableDescription>> taskGroups = new ConcurrentLinkedQueue<>();
-  private final ConcurrentLinkedQueue<CompletableFuture<?>> started = new ConcurrentLinkedQueue<>();
+  /** Task graphs being executed, more than one only when runs come from a queue. */
+  private final ConcurrentLinkedQueue<GraphRun> graphRuns = new ConcurrentLinkedQueue<>();
+  /**
+   * Workdirs of queued runs stopped because a task failed, before the MessageKillAll of that task
+   * came. The message must then not stop the other runs.
+   */
+  private final Set<Path> stoppedQueued = ConcurrentHashMap.newKeySet();
 
   private volatile CompletableFuture<Void> cf = CompletableFuture.completedFuture(null);
   private ExecutorService execSingle;
@@ -83,15 +95,21 @@ public class ProcessManager {
     return Executors.newFixedThreadPool(1);
   }
 
-  private ExecutorService newMultiExecutor() {
+  private static ExecutorService newMultiExecutor() {
     return Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
   }
 
+  /**
+   * Threads of this executor only wait for external processes of task graph nodes, the number of
+   * nodes running at the same time is bounded by the width of the graph.
+   */
+  private static ExecutorService newNodesExecutor() {
+    return Executors.newCachedThreadPool();
+  }
+
   private void init0() {
     synchronized (lock) {
       taskGroups.clear();
-      started.forEach(cf -> cf.cancel(true));
-      started.clear();
       cf.cancel(true);
       cf = CompletableFuture.completedFuture(null);
 
@@ -157,9 +175,10 @@ public class ProcessManager {
   private void stop() {
     synchronized (lock) {
       try {
-        for (Future<?> proc : started) {
-          proc.cancel(true);
+        for (GraphRun run : graphRuns) {
+          run.cancel("Stopped");
         }
+        graphRuns.clear();
       } finally {
         // whatever happens, kill the old executor service, start a new one, clear queues
         init0();
@@ -173,28 +192,18 @@ public class ProcessManager {
       if (m.runDescs.isEmpty()) {
         return;
       }
-      stop();
 
-      Iterator<RunnableDescription> it = m.runDescs.iterator();
-      final List<RunnableDescription> group = new ArrayList<>();
-      while (it.hasNext()) {
-        RunnableDescription next = it.next();
-
-        // are we starting a new group?
-        if (!group.isEmpty()) {
-          RunnableDescription last = group.get(group.size() - 1);
-          if (last.parallelGroup.equals(next.parallelGroup)) {
-            group.add(next);
-            continue;
-          } else {
-            processGroup(group);
-          }
-        }
-        // next is either a null/sequential group element or a new group element
-        group.add(next);
-        if (next.parallelGroup == null || next.parallelGroup.equals(ProcessBuilderInfo.GROUP_SEQUENTIAL)) {
-          processGroup(group);
+      if (m.taskGraph != null && !Fragpipe.printCommandsInDetail) {
+        if (m.done == null) {
+          stop();
         }
+        submitGraph(new GraphRun(m), m.taskGraph);
+        return;
+      }
+      stop();
+
+      for (List<RunnableDescription> group : toGroups(m.runDescs)) {
+        processGroup(group);
       }
 
       if (taskGroups.isEmpty()) {
@@ -283,6 +292,248 @@ public class ProcessManager {
     }
   }
 
+  /**
+   * Splits tasks into groups. Consecutive tasks with the same parallel group name end up in the
+   * same group, tasks without a parallel group or in {@link ProcessBuilderInfo#GROUP_SEQUENTIAL}
+   * each get a group of their own.
+   */
+  static List<List<RunnableDescription>> toGroups(List<RunnableDescription> runDescs) {
+    final List<List<RunnableDescription>> groups = new ArrayList<>();
+    Iterator<RunnableDescription> it = runDescs.iterator();
+    final List<RunnableDescription> group = new ArrayList<>();
+    while (it.hasNext()) {
+      RunnableDescription next = it.next();
+
+      // are we starting a new group?
+      if (!group.isEmpty()) {
+        RunnableDescription last = group.get(group.size() - 1);
+        if (last.parallelGroup.equals(next.parallelGroup)) {
+          group.add(next);
+          continue;
+        } else {
+          groups.add(new ArrayList<>(group));
+          group.clear();
+        }
+      }
+      // next is either a null/sequential group element or a new group element
+      group.add(next);
+      if (next.parallelGroup == null || next.parallelGroup.equals(ProcessBuilderInfo.GROUP_SEQUENTIAL)) {
+        groups.add(new ArrayList<>(group));
+        group.clear();
+      }
+    }
+    if (!group.isEmpty()) {
+      groups.add(new ArrayList<>(group));
+    }
+    return groups;
+  }
+
+  /**
+   * Schedules the whole task graph at once. Each node is started as soon as all of its
+   * predecessors are done, so independent branches of the workflow run concurrently.
+   */
+  private void submitGraph(GraphRun run, Graph<TaskNode, DefEdge> graph) {
+    synchronized (lock) {
+      graphRuns.add(run);
+      final Map<TaskNode, CompletableFuture<Void>> nodeFutures = new HashMap<>();
+      // a node is dirty if any of its tasks, or of its predecessors' tasks, has been run
+      final Map<TaskNode, AtomicBoolean> dirty = new HashMap<>();
+      final List<TaskNode> ordered = new ArrayList<>();
+      new TopologicalOrderIterator<>(graph).forEachRemaining(ordered::add);
+      run.notStarted.set(ordered.stream().mapToInt(node -> node.runDescs.size()).sum());
+
+      for (TaskNode node : ordered) {
+        final List<TaskNode> preds = graph.incomingEdgesOf(node).stream()
+            .map(graph::getEdgeSource).collect(Collectors.toList());
+        CompletableFuture<?>[] deps = preds.stream().map(nodeFutures::get)
+            .toArray(CompletableFuture[]::new);
+        final AtomicBoolean nodeDirty = new AtomicBoolean(false);
+        dirty.put(node, nodeDirty);
+        CompletableFuture<Void> f = CompletableFuture.allOf(deps)
+            .thenComposeAsync(v -> {
+              if (preds.stream().anyMatch(p -> dirty.get(p).get())) {
+                nodeDirty.set(true);
+              }
+              return runNode(run, node, nodeDirty);
+            }, run.execNodes);
+        nodeFutures.put(node, f);
+      }
+
+      run.all = CompletableFuture.allOf(nodeFutures.values().toArray(new CompletableFuture[0]));
+      run.all.whenCompleteAsync((v, t) -> {
+        if (t != null) {
+          Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+          if (cause instanceof TaskFailedException) {
+            // the task has also posted MessageKillAll, whichever comes first stops the run
+            log.debug("Task graph execution stopped: {}", cause.getMessage());
+            if (graphRuns.remove(run)) {
+              if (run.isQueued()) {
+                stoppedQueued.add(run.wd);
+              }
+              run.cancel("Stopped: " + cause.getMessage());
+            }
+          } else if (!(cause instanceof CancellationException)) {
+            log.error("Task graph execution failed", cause);
+            graphRuns.remove(run);
+            run.cancel("Task graph execution failed: " + cause);
+          }
+          return;
+        }
+        log.debug("All task graph nodes done, stopping");
+        graphRuns.remove(run);
+        run.finish();
+        if (run.isQueued()) {
+          return;
+        }
+        synchronized (lock) {
+          if (graphRuns.isEmpty()) {
+            stop();
+          }
+        }
+        if (Fragpipe.headless)
+          Fragpipe.runDone.countDown();
+      }, execSingle);
+    }
+  }
+
+  private CompletableFuture<Void> runNode(GraphRun run, TaskNode node, AtomicBoolean dirty) {
+    if (node.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    log.debug("Task graph node started: [{}]", node.name);
+    // nodes running side by side in the same directories can't tell their outputs apart
+    final WriteScopes.Scope scope = WriteScopes.NODES.enter(StepCache.outputDirs(node, run.wd));
+    final StepCache sc = run.stepCache;
+    final StepCache.Probe probe = sc != null && node.resumable ? sc.probe(node) : null;
+    if (probe != null && !dirty.get() && sc.restore(probe, node)) {
+      scope.close();
+      run.notStarted.addAndGet(-node.runDescs.size());
+      log.debug("Task graph node outputs restored from step cache: [{}] {}", node.name, probe.key);
+      Bus.post(new MessagePrintToConsole(Fragpipe.COLOR_GREEN_DARKER,
+          "Skipping '" + node.name + "', reusing results of an identical earlier run", true));
+      return CompletableFuture.completedFuture(null);
+    }
+    CompletableFuture<Void> f = CompletableFuture.completedFuture(null);
+    for (List<RunnableDescription> group : toGroups(node.runDescs)) {
+      f = f.thenComposeAsync(v -> runGroup(run, group, node.resumable, dirty), run.execNodes);
+    }
+    return f.thenRun(() -> {
+      if (probe != null && node.runDescs.stream().allMatch(rd -> Integer.valueOf(0).equals(rd.getExitCode()))) {
+        if (scope.isShared()) {
+          log.debug("Not recording [{}] in step cache, other nodes wrote to the same directories meanwhile", node.name);
+        } else {
+          try {
+            sc.store(probe, node);
+          } catch (IOException e) {
+            log.warn("Could not record outputs of [" + node.name + "] in step cache", e);
+          }
+        }
+      }
+      log.debug("Task graph node done: [{}]", node.name);
+    }).whenComplete((v, e) -> scope.close());
+  }
+
+  /**
+   * @param resumable If tasks of the group may be skipped when resuming.
+   * @param dirty Set once anything in the node or upstream of it has been run, from then on
+   * nothing is skipped.
+   */
+  private CompletableFuture<Void> runGroup(GraphRun run, List<RunnableDescription> group, boolean resumable, AtomicBoolean dirty) {
+    // decided for the whole group up front, parallel tasks don't depend on each other
+    final boolean canSkip = run.isResume && resumable && !dirty.get();
+    if (group.size() == 1) {
+      RunnableDescription rd = group.get(0);
+      log.debug("Submitting for serial execution: [{}] {}", rd.description.name, rd.description.command);
+      return CompletableFuture.runAsync(skipOrRun(run, rd, canSkip, dirty), run.execNodes);
+    }
+    String groupName = group.stream().map(rd -> rd.parallelGroup).distinct()
+        .collect(Collectors.joining(", "));
+    log.debug("Submitting for parallel execution: [{}] {} commands", groupName, group.size());
+    // inputs exist by now, the largest ones go first so they don't end up running alone at the end
+    CompletableFuture<?>[] cfs = TaskCost.largestFirst(group).stream()
+        .map(rd -> CompletableFuture.runAsync(skipOrRun(run, rd, canSkip, dirty), run.execMulti))
+        .toArray(CompletableFuture[]::new);
+    return CompletableFuture.allOf(cfs);
+  }
+
+  private static Runnable skipOrRun(GraphRun run, RunnableDescription rd, boolean canSkip, AtomicBoolean dirty) {
+    final Runnable admitted = admitted(run, rd);
+    return () -> {
+      if (canSkip && rd.pbi != null && run.journal.isComplete(rd.pbi)) {
+        run.notStarted.decrementAndGet();
+        log.debug("Skipping task complete in a previous run: [{}] {}", rd.description.name, rd.description.command);
+        Bus.post(new MessagePrintToConsole(Fragpipe.COLOR_GREEN_DARKER,
+            "Skipping '" + rd.description.name + "', completed in a previous run", true));
+        return;
+      }
+      dirty.set(true);
+      admitted.run();
+    };
+  }
+
+  /**
+   * Wraps the task so that it only starts once its CPU/memory demand fits into the budget of the
+   * run, and gives the resources back when done. Tasks sent to remote workers don't use the
+   * budget of this machine.
+   */
+  private static Runnable admitted(GraphRun run, RunnableDescription rd) {
+    final ResourceBudget b = run.budget;
+    return () -> {
+      if (b == null || TaskExecutors.isRemote(rd.pbi)) {
+        run.notStarted.decrementAndGet();
+        journaled(rd, run.journal);
+        return;
+      }
+      final TaskResources taken;
+      try {
+        taken = b.acquire(TaskResources.of(rd.pbi), rd.description.name);
+      } catch (InterruptedException e) {
+        log.debug("Interrupted while waiting for resources: [{}]", rd.description.name);
+        Thread.currentThread().interrupt();
+        return;
+      }
+      run.notStarted.decrementAndGet();
+      try {
+        journaled(rd, run.journal);
+      } finally {
+        b.release(taken);
+      }
+    };
+  }
+
+  /**
+   * Runs the task, recording its start and end in the journal. Journal errors are logged, but
+   * don't affect the task.
+   *
+   * @throws TaskFailedException If the task exited with a non-zero code and that stops the run,
+   * so that the tasks depending on it never start.
+   */
+  private static void journaled(RunnableDescription rd, RunJournal j) {
+    RunJournal.Attempt attempt = null;
+    if (j != null && rd.pbi != null) {
+      try {
+        attempt = j.started(rd.pbi);
+      } catch (IOException e) {
+        log.warn("Could not write task start to run journal", e);
+      }
+    }
+    try {
+      rd.runnable.run();
+    } finally {
+      if (attempt != null) {
+        try {
+          j.finished(attempt, rd.getExitCode());
+        } catch (IOException e) {
+          log.warn("Could not write task end to run journal", e);
+        }
+      }
+    }
+    final Integer exitCode = rd.getExitCode();
+    if (exitCode != null && exitCode != 0 && !FailedInputs.isIsolated(rd.pbi)) {
+      throw new TaskFailedException(rd.description.name, exitCode);
+    }
+  }
+
   private void processGroup(List<RunnableDescription> group) {
     final List<RunnableDescription> copy = new ArrayList<>(group);
     if (group.size() == 1) {
@@ -304,7 +555,20 @@ public class ProcessManager {
 
   @Subscribe(threadMode = ThreadMode.MAIN_ORDERED)
   public void on(MessageKillAll m) {
-    long notStarted = taskGroups.stream().mapToInt(List::size).sum();
+    if (m.wd != null && stoppedQueued.remove(m.wd.toAbsolutePath().normalize())) {
+      log.debug("Run in {} already stopped", m.wd);
+      return;
+    }
+    final GraphRun queued = m.wd == null ? null : findQueued(m.wd);
+    if (queued != null) {
+      // other runs of the queue go on
+      String msg = String.format("\n~~~~~~~~~~~~~~~~~~~~\nCancelling %d remaining tasks of the run in %s", queued.notStarted.get(), queued.wd);
+      Bus.post(new MessagePrintToConsole(Fragpipe.COLOR_RED_DARKEST, msg, true));
+      graphRuns.remove(queued);
+      queued.cancel("Stopped: " + m.reason);
+      return;
+    }
+    long notStarted = taskGroups.stream().mapToInt(List::size).sum() + graphRuns.stream().mapToInt(run -> run.notStarted.get()).sum();
     String msg = String.format("\n~~~~~~~~~~~~~~~~~~~~\nCancelling %d remaining tasks", notStarted);
     Bus.post(new MessagePrintToConsole(Fragpipe.COLOR_RED_DARKEST, msg, true));
 
@@ -317,6 +581,21 @@ public class ProcessManager {
     }
   }
 
+  /**
+   * @return True if the workdir is that of a run from a queue, which is still going.
+   */
+  public boolean isQueued(Path wd) {
+    return findQueued(wd) != null;
+  }
+
+  private GraphRun findQueued(Path wd) {
+    if (wd == null) {
+      return null;
+    }
+    final Path norm = wd.toAbsolutePath().normalize();
+    return graphRuns.stream().filter(run -> run.isQueued() && norm.equals(run.wd)).findFirst().orElse(null);
+  }
+
   @Subscribe(threadMode = ThreadMode.BACKGROUND)
   public void on(MessageDeletePaths m) {
     log.debug("Delete Paths Message updated: {}", m.toDelete.isEmpty() ? "empty set" : m.toDelete);
@@ -331,4 +610,86 @@ public class ProcessManager {
     s.addAll(toDelete);
     Bus.postSticky(new MessageDeletePaths(s));
   }
+
+  /**
+   * A task exited with a non-zero code, the node it belongs to and everything downstream of it
+   * fail with this.
+   */
+  private static class TaskFailedException extends RuntimeException {
+    TaskFailedException(String name, int exitCode) {
+      super("'" + name + "' failed, exit code " + exitCode);
+    }
+  }
+
+  /**
+   * State of one task graph being executed. Each run has executors of its own, so that it can be
+   * stopped without affecting other runs of a queue.
+   */
+  private static class GraphRun {
+    final ResourceBudget budget;
+    final RunJournal journal;
+    final boolean isResume;
+    final StepCache stepCache;
+    /** Null unless the run is part of a queue. */
+    final Path wd;
+    final CompletableFuture<Void> done;
+    final AtomicInteger notStarted = new AtomicInteger(0);
+    final ExecutorService execNodes = newNodesExecutor();
+    final ExecutorService execMulti = newMultiExecutor();
+    volatile CompletableFuture<Void> all;
+
+    GraphRun(MessageStartProcesses m) {
+      this.budget = m.budget;
+      this.journal = m.journal;
+      this.isResume = m.isResume && m.journal != null;
+      this.stepCache = m.stepCache;
+      this.done = m.done;
+      this.wd = m.done == null || m.wd == null ? null : m.wd.toAbsolutePath().normalize();
+    }
+
+    boolean isQueued() {
+      return done != null;
+    }
+
+    void finish() {
+      execNodes.shutdown();
+      execMulti.shutdown();
+      closeJournal();
+      if (done != null) {
+        done.complete(null);
+      }
+    }
+
+    /**
+     * Interrupts whatever is running, nothing more gets started.
+     */
+    void cancel(String reason) {
+      if (all != null) {
+        all.cancel(true);
+      }
+      execNodes.shutdownNow();
+      execMulti.shutdownNow();
+      closeJournal();
+      if (done != null) {
+        done.completeExceptionally(new CancellationException(reason));
+      }
+    }
+
+    private void closeJournal() {
+      if (journal != null) {
+        try {
+          journal.close();
+        } catch (IOException e) {
+          log.warn("Error closing run journal", e);
+        }
+      }
+      if (stepCache != null) {
+        try {
+          stepCache.close();
+        } catch (IOException e) {
+          log.warn("Error closing step cache", e);
+        }
+      }
+    }
+  }
 }
@@ -19,95 +19,290 @@ package com.dmtavt.fragpipe.process;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.github.chhh.utils.StringUtils;
-import java.io.BufferedOutputStream;
+import com.github.chhh.utils.TailBuffer;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import com.dmtavt.fragpipe.cmd.ProcessBuilderInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class ProcessResult implements AutoCloseable {
+  private static final Logger log = LoggerFactory.getLogger(ProcessResult.class);
+  /** Output is accumulated up to this size while the pipe has more data, then written in one go. */
+  private static final int PUMP_BUFFER_SIZE = 64 * 1024;
+  private static final long PUMP_JOIN_TIMEOUT_MS = 1000;
+  /**
+   * How long output is read after the process has exited. Children it left running may hold the
+   * pipes open for much longer. Can be changed with -Dfragpipe.output.drain.s=N
+   */
+  private static final long OUTPUT_DRAIN_TIMEOUT_MS = Math.max(1, Long.getLong("fragpipe.output.drain.s", 30)) * 1000;
+  /**
+   * How much of the output is kept in memory, the full output only goes to the log files.
+   * Can be changed with -Dfragpipe.output.tail.kb=N
+   */
+  public static final int DEFAULT_OUTPUT_TAIL_BYTES = Math.max(1, Integer.getInteger("fragpipe.output.tail.kb", 256)) * 1024;
+
+  /**
+   * Receives output of the process as soon as it's read from the pipe. Called from the pump
+   * threads, so it must be thread-safe. Output is only decoded to text if a listener is set.
+   */
+  public interface OutputListener {
+    void onOutput(boolean isStdErr, String text);
+  }
 
   private final ProcessBuilderInfo pbi;
 
   private boolean started;
-  private StringBuilder output = new StringBuilder();
+  private final TailBuffer output;
   private Integer exitCode;
   private Process proc;
   private InputStream stdOut;
   private InputStream stdErr;
-  private BufferedOutputStream stdErrRedirect;
-  private BufferedOutputStream stdOutRedirect;
+  private FileChannel stdErrRedirect;
+  private FileChannel stdOutRedirect;
+  private volatile OutputListener listener;
+  private Thread pumpOut;
+  private Thread pumpErr;
+  private volatile boolean closed;
+  private TaskMetrics metrics;
 
   public ProcessResult(ProcessBuilderInfo pbi) {
+    this(pbi, DEFAULT_OUTPUT_TAIL_BYTES);
+  }
+
+  /**
+   * @param outputTailBytes Size of the in-memory tail of stdout and stderr combined.
+   */
+  public ProcessResult(ProcessBuilderInfo pbi, int outputTailBytes) {
     this.pbi = pbi;
+    this.output = new TailBuffer(outputTailBytes);
+  }
+
+  /**
+   * Set before calling {@link #start()} to not miss any output.
+   */
+  public void setOutputListener(OutputListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Set before calling {@link #start()}. The process tree gets sampled while it runs and the
+   * metrics are finished once the exit code is set or this is closed.
+   */
+  public void setMetrics(TaskMetrics metrics) {
+    this.metrics = metrics;
   }
 
   public Process start() throws IOException {
+    openRedirects();
+    proc = TaskExecutors.of(pbi).start(pbi);
+    if (metrics != null) {
+      ProcessTreeSampler.get().start(metrics, proc);
+    }
+    stdOut = proc.getInputStream();
+    stdErr = proc.getErrorStream();
+    pumpOut = startPump(stdOut, false);
+    pumpErr = startPump(stdErr, true);
+    started = true;
+    return proc;
+  }
+
+  /**
+   * For tasks that run inside this JVM instead of starting the process, see {@link InJvmTask}.
+   * Output written to {@link #getTaskStream(boolean)} is handled the same way as the output of
+   * a process.
+   */
+  public void startInJvm() throws IOException {
+    openRedirects();
+    started = true;
+  }
+
+  private void openRedirects() throws IOException {
     stdOutRedirect = redirectToFile(pbi.pb, pbi.fnStdout);
     if (pbi.fnStderr != null && pbi.fnStderr.equals(pbi.fnStdout)) {
       stdErrRedirect = stdOutRedirect;
     } else {
       stdErrRedirect = redirectToFile(pbi.pb, pbi.fnStderr);
     }
+  }
 
-    proc = pbi.pb.start();
-    stdOut = proc.getInputStream();
-    stdErr = proc.getErrorStream();
-    started = true;
-    return proc;
+  /**
+   * Stream for output of a task started with {@link #startInJvm()}. Writes after
+   * {@link #close()} are dropped. Close the stream when the task is done.
+   */
+  public OutputStream getTaskStream(boolean isStdErr) {
+    final FileChannel redirect = isStdErr ? stdErrRedirect : stdOutRedirect;
+    final Decoder decoder = new Decoder();
+    return new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        for (int pos = off; pos < off + len && !closed; pos += PUMP_BUFFER_SIZE) {
+          ProcessResult.this.write(ByteBuffer.wrap(b, pos, Math.min(PUMP_BUFFER_SIZE, off + len - pos)),
+              redirect, decoder, isStdErr, false);
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        if (!closed) {
+          ProcessResult.this.write(ByteBuffer.allocate(0), redirect, decoder, isStdErr, true);
+        }
+      }
+    };
+  }
+
+  /**
+   * Dedicated thread blocking on one of the process' streams. Bytes go to the redirect file
+   * and the in-memory tail as is, they are only decoded for the {@link OutputListener}.
+   * Whatever is already sitting in the pipe is read before writing, so a chatty process
+   * results in few large writes instead of many small ones. The thread ends when the process
+   * closes the stream.
+   */
+  private Thread startPump(InputStream is, boolean isStdErr) {
+    final String name = (isStdErr ? "stderr" : "stdout") + " pump: " + pbi.name;
+    final FileChannel redirect = isStdErr ? stdErrRedirect : stdOutRedirect;
+    Thread t = new Thread(() -> {
+      final ByteBuffer buf = ByteBuffer.allocate(PUMP_BUFFER_SIZE);
+      final Decoder decoder = new Decoder();
+      try {
+        int read;
+        while ((read = is.read(buf.array(), buf.position(), buf.remaining())) != -1) {
+          buf.position(buf.position() + read);
+          if (buf.hasRemaining() && is.available() > 0) {
+            continue;
+          }
+          buf.flip();
+          write(buf, redirect, decoder, isStdErr, false);
+          buf.clear();
+        }
+        buf.flip();
+        write(buf, redirect, decoder, isStdErr, true);
+      } catch (IOException e) {
+        log.debug("Stopped reading {}", name, e);
+      }
+    }, name);
+    t.setDaemon(true);
+    t.start();
+    return t;
+  }
+
+  private void write(ByteBuffer buf, FileChannel redirect, Decoder decoder, boolean isStdErr,
+      boolean isEnd) throws IOException {
+    if (buf.hasRemaining()) {
+      append(buf, redirect);
+    }
+    final OutputListener l = listener;
+    if (l != null) {
+      final String s = decoder.decode(buf, isEnd);
+      if (!s.isEmpty()) {
+        l.onOutput(isStdErr, s);
+      }
+    }
+  }
+
+  /**
+   * Keeps bytes of a multi-byte character split between two reads until the rest arrives.
+   */
+  private static class Decoder {
+    private final CharsetDecoder dec = UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer carry = ByteBuffer.allocate(PUMP_BUFFER_SIZE + 8);
+
+    String decode(ByteBuffer bytes, boolean isEnd) {
+      carry.put(bytes);
+      carry.flip();
+      final CharBuffer out = CharBuffer.allocate(carry.remaining() + 1);
+      dec.decode(carry, out, isEnd);
+      if (isEnd) {
+        dec.flush(out);
+      }
+      carry.compact();
+      out.flip();
+      return out.toString();
+    }
+  }
+
+  /**
+   * Waits until all the output of the process has been read, but not for longer than
+   * {@link #OUTPUT_DRAIN_TIMEOUT_MS}. Call after the process has exited.
+   */
+  public void awaitOutput() throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + OUTPUT_DRAIN_TIMEOUT_MS;
+    for (Thread pump : new Thread[]{pumpOut, pumpErr}) {
+      if (pump != null) {
+        pump.join(Math.max(1, deadline - System.currentTimeMillis()));
+        if (pump.isAlive()) {
+          log.warn("Output of '{}' still open {} ms after it exited, going on without the rest of it", pbi.name, OUTPUT_DRAIN_TIMEOUT_MS);
+          return;
+        }
+      }
+    }
   }
 
   @Override
   public void close() throws Exception {
+    closed = true;
+    // give pumps a chance to write whatever was left in the pipes
+    if (pumpOut != null) {
+      pumpOut.join(PUMP_JOIN_TIMEOUT_MS);
+    }
+    if (pumpErr != null) {
+      pumpErr.join(PUMP_JOIN_TIMEOUT_MS);
+    }
     if (stdOutRedirect != null) {
       stdOutRedirect.close();
     }
     if (stdErrRedirect != null) {
       stdErrRedirect.close();
     }
+    finishMetrics();
   }
 
-  public Process getProcess() {
-    return proc;
-  }
-
-  public byte[] pollStdOut() throws IOException {
-    return poll(stdOut);
-  }
-
-  public byte[] pollStdErr() throws IOException {
-    return poll(stdErr);
+  private void finishMetrics() {
+    if (metrics != null) {
+      ProcessTreeSampler.get().stop(metrics);
+      metrics.finished(exitCode);
+    }
   }
 
-  private static byte[] poll(InputStream is) throws IOException {
-    if (is == null) {
-      return null;
-    }
-    int available = is.available();
-    if (available > 0) {
-      byte[] bytes = new byte[available];
-      int read = is.read(bytes);
-      return bytes;
-    }
-    return null;
+  public Process getProcess() {
+    return proc;
   }
 
   /**
-   * Creates a new file output stream to the
+   * Opens the file the output is redirected to. Relative names are resolved against the
+   * working directory of the process.
    */
-  private static BufferedOutputStream redirectToFile(ProcessBuilder pb, String fn) throws IOException {
-    if (pb == null || pb.directory() == null || StringUtils.isNullOrWhitespace(fn)) {
+  private static FileChannel redirectToFile(ProcessBuilder pb, String fn) throws IOException {
+    if (pb == null || StringUtils.isNullOrWhitespace(fn)) {
       return null;
     }
-    final Path pathLogOut = pb.directory().toPath().resolve(fn);
-    if (!Files.exists(pathLogOut.getParent())) {
-      Files.createDirectories(pathLogOut);
+    final Path fnPath = Paths.get(fn);
+    if (!fnPath.isAbsolute() && pb.directory() == null) {
+      return null;
     }
-    return new BufferedOutputStream(Files
-        .newOutputStream(pathLogOut, StandardOpenOption.CREATE,
-            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+    final Path pathLogOut = fnPath.isAbsolute() ? fnPath : pb.directory().toPath().resolve(fnPath);
+    if (pathLogOut.getParent() != null && !Files.exists(pathLogOut.getParent())) {
+      Files.createDirectories(pathLogOut.getParent());
+    }
+    return FileChannel.open(pathLogOut, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
   }
 
   public ProcessBuilder getProcessBuilder() {
@@ -122,41 +317,49 @@ public class ProcessResult implements AutoCloseable {
     return started;
   }
 
-  public StringBuilder getOutput() {
-    return output;
+  /**
+   * @return The last {@link TailBuffer#capacity()} bytes of combined stdout and stderr.
+   */
+  public String getOutput() {
+    return output.toString();
   }
 
   /**
-   * @return String representation of whatever has been appended, not the whole string after
-   * appending!
+   * @return The last lines of the output, for error reporting.
    */
-  public String appendOut(byte[] bytes) throws IOException {
-    return append(bytes, stdOutRedirect);
+  public String getOutputTail(int maxLines) {
+    final String s = output.toString();
+    int pos = s.length();
+    if (pos > 0 && s.charAt(pos - 1) == '\n') {
+      pos--;
+    }
+    for (int i = 0; i < maxLines && pos > 0; i++) {
+      pos = s.lastIndexOf('\n', pos - 1);
+      if (pos < 0) {
+        return s;
+      }
+    }
+    return pos <= 0 ? s : s.substring(pos + 1);
   }
 
   /**
-   * @return String representation of whatever has been appended, not the whole string after
-   * appending!
+   * @return Number of bytes the process has written to stdout and stderr in total.
    */
-  public String appendErr(byte[] bytes) throws IOException {
-    return append(bytes, stdErrRedirect);
+  public long getOutputTotalBytes() {
+    return output.getTotalBytes();
   }
 
   /**
-   * @return String representation of whatever has been appended, not the whole string after
-   * appending!
+   * Stdout and stderr may share the same redirect file, hence synchronized.
    */
-  private String append(byte[] bytes, BufferedOutputStream bos) throws IOException {
-    if (bytes == null || bytes.length == 0) {
-      return null;
-    }
-    String s = new String(bytes, UTF_8);
-    output.append(s);
-    if (bos != null) {
-      bos.write(bytes);
-      bos.flush();
+  private synchronized void append(ByteBuffer bytes, FileChannel redirect) throws IOException {
+    output.append(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+    if (redirect != null) {
+      final ByteBuffer toWrite = bytes.duplicate();
+      while (toWrite.hasRemaining()) {
+        redirect.write(toWrite);
+      }
     }
-    return s;
   }
 
   public Integer getExitCode() {
@@ -165,5 +368,6 @@ public class ProcessResult implements AutoCloseable {
 
   public void setExitCode(Integer exitCode) {
     this.exitCode = exitCode;
+    finishMetrics();
   }
 }
@@ -0,0 +1,183 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically reads /proc for the process trees of running tasks and updates their
+ * {@link TaskMetrics}. Does nothing where there is no /proc.
+ * <p>
+ * Sampling interval can be changed with -Dfragpipe.sample.ms=N
+ */
+public class ProcessTreeSampler {
+  private static final Logger log = LoggerFactory.getLogger(ProcessTreeSampler.class);
+  private static final long INTERVAL_MS = Math.max(100, Long.getLong("fragpipe.sample.ms", 1000));
+  private static final Path PROC = Paths.get("/proc");
+  /** USER_HZ, the unit of times in /proc/[pid]/stat. It's 100 on all the usual kernels. */
+  private static final long CLOCK_TICKS_PER_SEC = 100;
+  private static final ProcessTreeSampler instance = new ProcessTreeSampler();
+
+  private final boolean supported;
+  private final Map<TaskMetrics, ProcessHandle> running = new ConcurrentHashMap<>();
+  private ScheduledExecutorService exec;
+
+  private ProcessTreeSampler() {
+    supported = Files.isReadable(PROC.resolve("self").resolve("stat"));
+  }
+
+  public static ProcessTreeSampler get() {
+    return instance;
+  }
+
+  public boolean isSupported() {
+    return supported;
+  }
+
+  /**
+   * Starts sampling the process and all of its descendants until {@link #stop(TaskMetrics)}.
+   */
+  public void start(TaskMetrics metrics, Process process) {
+    if (!supported) {
+      return;
+    }
+    final ProcessHandle h;
+    try {
+      h = process.toHandle();
+    } catch (UnsupportedOperationException e) {
+      // runs somewhere else, e.g. on a remote worker
+      return;
+    }
+    running.put(metrics, h);
+    sample(metrics, h);
+    ensureScheduled();
+  }
+
+  /**
+   * Takes the last sample, whatever of the tree is still there.
+   */
+  public void stop(TaskMetrics metrics) {
+    final ProcessHandle h = running.remove(metrics);
+    if (h != null) {
+      sample(metrics, h);
+    }
+  }
+
+  private synchronized void ensureScheduled() {
+    if (exec == null) {
+      exec = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "process-tree-sampler");
+        t.setDaemon(true);
+        return t;
+      });
+      exec.scheduleWithFixedDelay(this::sampleAll, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+      log.debug("Started process tree sampler, every {} ms", INTERVAL_MS);
+    }
+  }
+
+  private void sampleAll() {
+    try {
+      running.forEach(this::sample);
+    } catch (Exception e) {
+      log.debug("Error sampling process trees", e); // never let the scheduled task die
+    }
+  }
+
+  private void sample(TaskMetrics metrics, ProcessHandle root) {
+    final List<ProcessHandle> tree = new ArrayList<>();
+    tree.add(root);
+    root.descendants().forEach(tree::add);
+    long rss = 0;
+    long hwm = 0;
+    int alive = 0;
+    for (ProcessHandle h : tree) {
+      final ProcStat s = ProcStat.read(h.pid());
+      if (s == null) {
+        continue; // already gone
+      }
+      metrics.sample(h.pid(), s.userMs, s.sysMs, s.readBytes, s.writeBytes);
+      rss += s.rssBytes;
+      hwm = Math.max(hwm, s.hwmBytes);
+      alive++;
+    }
+    metrics.sampled(rss, hwm, alive);
+  }
+
+  /**
+   * What we need from /proc/[pid]/stat, status and io.
+   */
+  static class ProcStat {
+    long userMs;
+    long sysMs;
+    long rssBytes;
+    long hwmBytes;
+    long readBytes;
+    long writeBytes;
+
+    static ProcStat read(long pid) {
+      final Path dir = PROC.resolve(Long.toString(pid));
+      final ProcStat s = new ProcStat();
+      try {
+        final String stat = new String(Files.readAllBytes(dir.resolve("stat")), US_ASCII);
+        // the command name in parentheses may contain spaces, fields are counted after it
+        final String[] f = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+        s.userMs = Long.parseLong(f[11]) * 1000 / CLOCK_TICKS_PER_SEC;
+        s.sysMs = Long.parseLong(f[12]) * 1000 / CLOCK_TICKS_PER_SEC;
+        for (String line : Files.readAllLines(dir.resolve("status"), US_ASCII)) {
+          if (line.startsWith("VmRSS:")) {
+            s.rssBytes = kb(line);
+          } else if (line.startsWith("VmHWM:")) {
+            s.hwmBytes = kb(line);
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        return null;
+      }
+      try {
+        for (String line : Files.readAllLines(dir.resolve("io"), US_ASCII)) {
+          if (line.startsWith("read_bytes:")) {
+            s.readBytes = Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+          } else if (line.startsWith("write_bytes:")) {
+            s.writeBytes = Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        // io is not readable for processes of other users, or without the kernel option
+      }
+      return s;
+    }
+
+    private static long kb(String statusLine) {
+      final String v = statusLine.substring(statusLine.indexOf(':') + 1).trim();
+      return Long.parseLong(v.substring(0, v.indexOf(' '))) * 1024;
+    }
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import com.dmtavt.fragpipe.cmd.CmdMsfragger;
+import com.dmtavt.fragpipe.cmd.ProcessBuilderInfo;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Follows the progress of a task from the lines its tool prints: stage headers, file and slice
+ * counters, percentages. Output arrives in chunks that don't respect line boundaries, lines are
+ * put together here. Patterns are compiled once, and a pattern is only tried on lines that
+ * contain its literal hint, so most lines cost an {@code indexOf} or two.
+ * <p>
+ * A line that is still being written, e.g. {@code 0%...10%...20%}, is only looked at for
+ * percentages, and only when a chunk adds a percent sign to it, so progress printed without line
+ * breaks shows up as it comes without going over the whole line for every chunk.
+ */
+public class ProgressParser {
+  /** Longer lines are cut, nothing we look for is that long. */
+  private static final int MAX_LINE = 4096;
+  private static final List<String> LCMS_EXTS = Arrays.asList(".mzml", ".mzxml", ".raw", ".d", ".mgf", ".mzbin");
+
+  private static final Pattern RE_PERCENT = Pattern.compile("(\\d{1,3})%");
+
+  private static final Pattern RE_MSF_STAGE = Pattern.compile("^\\*{3,}\\s*([A-Z][A-Z ,]*[A-Z])\\s*\\*{3,}$");
+  private static final Pattern RE_MSF_SLICE = Pattern.compile("^Operating on slice (\\d+) of (\\d+)");
+  private static final Pattern RE_MSF_FILE = Pattern.compile("^\\s*(\\d{3,})\\.\\s+\\S");
+  private static final Pattern RE_MSF_PROGRESS = Pattern.compile("\\[progress: \\d+/\\d+ \\((\\d{1,3})%\\)");
+
+  private static final Pattern RE_PHI_EXECUTING = Pattern.compile("Executing (\\S+(?: \\S+)*?)\\s+v\\d");
+
+  private static final Pattern RE_COUNTER = Pattern.compile("^\\s*(?:Processing|Loading|Reading|Quantifying)\\b.*?\\b(\\d+)\\s*(?:/|of)\\s*(\\d+)\\b");
+
+  private static final Pattern RE_DIANN_FILE = Pattern.compile("File #(\\d+)/(\\d+)");
+
+  private interface Action {
+    void apply(ProgressParser p, Matcher m);
+  }
+
+  private static class Rule {
+    /** The pattern is only tried on lines that contain one of these. */
+    final List<String> hints;
+    final Pattern pattern;
+    final Action action;
+    /** Use the last match in the line, e.g. for percentages printed one after another. */
+    final boolean last;
+
+    Rule(String hint, Pattern pattern, boolean last, Action action) {
+      this(Collections.singletonList(hint), pattern, last, action);
+    }
+
+    Rule(List<String> hints, Pattern pattern, boolean last, Action action) {
+      this.hints = hints;
+      this.pattern = pattern;
+      this.last = last;
+      this.action = action;
+    }
+
+    boolean isHinted(String line) {
+      for (String hint : hints) {
+        if (line.contains(hint)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static final Rule PERCENT = new Rule("%", RE_PERCENT, true, (p, m) -> p.percent = Math.min(100, Integer.parseInt(m.group(1))));
+  private static final List<Rule> PERCENT_ONLY = Collections.singletonList(PERCENT);
+
+  private static final List<Rule> MSFRAGGER = Arrays.asList(
+      new Rule("***", RE_MSF_STAGE, false, (p, m) -> p.stage(m.group(1))),
+      new Rule("Operating on slice", RE_MSF_SLICE, false, (p, m) -> {
+        p.subStage = "slice " + m.group(1) + "/" + m.group(2);
+        p.item = p.items > 0 ? 0 : -1;
+        p.percent = -1;
+      }),
+      new Rule(".", RE_MSF_FILE, false, (p, m) -> {
+        p.item = Integer.parseInt(m.group(1));
+        p.percent = -1;
+      }),
+      new Rule("[progress:", RE_MSF_PROGRESS, false, (p, m) -> p.percent = Integer.parseInt(m.group(1))));
+
+  private static final List<Rule> PHILOSOPHER = Arrays.asList(
+      new Rule("Executing ", RE_PHI_EXECUTING, false, (p, m) -> p.stage(m.group(1))),
+      PERCENT);
+
+  private static final List<Rule> IONQUANT = Arrays.asList(
+      new Rule(Arrays.asList("Processing", "Loading", "Reading", "Quantifying"), RE_COUNTER, false, ProgressParser::counter),
+      PERCENT);
+
+  private static final List<Rule> DIANN = Arrays.asList(
+      new Rule("File #", RE_DIANN_FILE, false, ProgressParser::counter),
+      PERCENT);
+
+  private final List<Rule> rules;
+  private final StringBuilder[] partial = {new StringBuilder(), new StringBuilder()};
+  private final int inputFiles;
+  private String stage;
+  private String subStage;
+  private int item = -1;
+  private int items = -1;
+  private int percent = -1;
+  private TaskProgress last;
+
+  private ProgressParser(List<Rule> rules, int inputFiles) {
+    this.rules = rules;
+    this.inputFiles = inputFiles;
+    stage(null);
+  }
+
+  /**
+   * @return Null for tools whose progress can't be told from their output.
+   */
+  public static ProgressParser of(ProcessBuilderInfo pbi) {
+    if (pbi == null || pbi.pb == null || pbi.pb.command().isEmpty()) {
+      return null;
+    }
+    final List<String> cmd = pbi.pb.command();
+    if (CmdMsfragger.NAME.equals(pbi.name)) {
+      return new ProgressParser(MSFRAGGER, countInputs(ArgFiles.expand(cmd)));
+    }
+    if ("IonQuant".equals(pbi.name)) {
+      return new ProgressParser(IONQUANT, 0);
+    }
+    if ("DIA-NN".equals(pbi.name)) {
+      return new ProgressParser(DIANN, 0);
+    }
+    String exe;
+    try {
+      exe = Paths.get(cmd.get(0)).getFileName().toString().toLowerCase(Locale.ROOT);
+    } catch (RuntimeException e) {
+      exe = cmd.get(0).toLowerCase(Locale.ROOT);
+    }
+    if (exe.contains("philosopher")) {
+      return new ProgressParser(PHILOSOPHER, 0);
+    }
+    return null;
+  }
+
+  private static int countInputs(List<String> cmd) {
+    int n = 0;
+    for (String arg : cmd) {
+      final String lower = arg.toLowerCase(Locale.ROOT);
+      if (LCMS_EXTS.stream().anyMatch(lower::endsWith)) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Called with the output of the task as it comes, from both pump threads.
+   *
+   * @return The progress if it has changed, null otherwise.
+   */
+  public synchronized TaskProgress feed(boolean isStdErr, String chunk) {
+    final StringBuilder line = partial[isStdErr ? 1 : 0];
+    boolean addedPercent = false;
+    for (int i = 0; i < chunk.length(); i++) {
+      final char c = chunk.charAt(i);
+      if (c == '\n' || c == '\r') {
+        if (line.length() > 0) {
+          parse(line, rules);
+          line.setLength(0);
+        }
+        addedPercent = false;
+      } else if (line.length() < MAX_LINE) {
+        line.append(c);
+        addedPercent |= c == '%';
+      }
+    }
+    if (addedPercent && rules.contains(PERCENT)) {
+      parse(line, PERCENT_ONLY);
+    }
+    final TaskProgress now = new TaskProgress(subStage == null ? stage : (stage == null ? subStage : stage + ", " + subStage),
+        item, items, percent);
+    if (now.equals(last) || (now.stage == null && now.items < 0 && now.percent < 0)) {
+      return null;
+    }
+    last = now;
+    return now;
+  }
+
+  /**
+   * @return Null until anything has been recognized.
+   */
+  public synchronized TaskProgress getLast() {
+    return last;
+  }
+
+  private void parse(CharSequence line, List<Rule> rules) {
+    final String s = line.toString();
+    for (Rule r : rules) {
+      if (!r.isHinted(s)) {
+        continue;
+      }
+      final Matcher m = r.pattern.matcher(s);
+      if (!m.find()) {
+        continue;
+      }
+      if (r.last) {
+        int start = m.start();
+        while (m.find()) {
+          start = m.start();
+        }
+        m.find(start);
+      }
+      r.action.apply(this, m);
+    }
+  }
+
+  private void stage(String name) {
+    stage = name;
+    subStage = null;
+    items = inputFiles > 0 ? inputFiles : -1;
+    item = items > 0 ? 0 : -1;
+    percent = -1;
+  }
+
+  private static void counter(ProgressParser p, Matcher m) {
+    p.item = Integer.parseInt(m.group(1));
+    p.items = Integer.parseInt(m.group(2));
+    p.percent = -1;
+  }
+}
@@ -0,0 +1,324 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import com.dmtavt.fragpipe.cmd.ProcessBuilderInfo;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks on {@link RemoteWorker}s. Each task goes to the worker with the fewest tasks of this
+ * run in flight, a worker that can't be reached is skipped. The worker queues the task until it
+ * has a free slot.
+ * <p>
+ * Paths in the command, the working directory and the environment are rewritten with the
+ * {@link PathMapping}, the files themselves are not copied anywhere.
+ */
+public class RemoteExecutor implements TaskExecutor {
+  private static final Logger log = LoggerFactory.getLogger(RemoteExecutor.class);
+  private static final int CONNECT_TIMEOUT_MS = 10000;
+  private static final int PIPE_BYTES = 64 * 1024;
+
+  private final List<Worker> workers;
+  private final PathMapping mapping;
+  private final String token;
+
+  private static class Worker {
+    final String host;
+    final int port;
+    final AtomicInteger inFlight = new AtomicInteger(0);
+
+    Worker(String host, int port) {
+      this.host = host;
+      this.port = port;
+    }
+
+    @Override
+    public String toString() {
+      return host + ":" + port;
+    }
+  }
+
+  /**
+   * @param workers As {@code host:port} or just {@code host} for the default port.
+   */
+  public RemoteExecutor(List<String> workers, PathMapping mapping, String token) {
+    this.workers = new ArrayList<>();
+    for (String w : workers) {
+      w = w.trim();
+      if (w.isEmpty()) {
+        continue;
+      }
+      final int colon = w.lastIndexOf(':');
+      try {
+        this.workers.add(colon < 0 ? new Worker(w, RemoteProtocol.DEFAULT_PORT)
+            : new Worker(w.substring(0, colon), Integer.parseInt(w.substring(colon + 1))));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Bad worker port: " + w);
+      }
+    }
+    if (this.workers.isEmpty()) {
+      throw new IllegalArgumentException("No workers given");
+    }
+    this.mapping = Objects.requireNonNull(mapping);
+    this.token = token == null ? "" : token;
+  }
+
+  @Override
+  public Process start(ProcessBuilderInfo pbi) throws IOException {
+    final RemoteProtocol.Request req = request(pbi.pb);
+    final List<Worker> byLoad = workers.stream()
+        .sorted(Comparator.comparingInt(w -> w.inFlight.get()))
+        .collect(Collectors.toList());
+    IOException last = null;
+    for (Worker w : byLoad) {
+      final Socket socket = new Socket();
+      try {
+        socket.connect(new InetSocketAddress(w.host, w.port), CONNECT_TIMEOUT_MS);
+      } catch (IOException e) {
+        log.warn("Worker {} not reachable: {}", w, e.getMessage());
+        closeQuietly(socket);
+        last = e;
+        continue;
+      }
+      log.debug("Sending task [{}] to worker {}", pbi.name, w);
+      w.inFlight.incrementAndGet();
+      try {
+        return new RemoteProcess(socket, req, pbi.name + " on " + w, w.inFlight::decrementAndGet);
+      } catch (IOException e) {
+        w.inFlight.decrementAndGet();
+        closeQuietly(socket);
+        throw new IOException("Worker " + w + " could not start " + pbi.name + ": " + e.getMessage(), e);
+      }
+    }
+    throw new IOException("None of the workers " + workers + " is reachable", last);
+  }
+
+  private RemoteProtocol.Request request(ProcessBuilder pb) {
+    final List<String> command = ArgFiles.expand(pb.command()).stream().map(mapping::map).collect(Collectors.toList());
+    final String dir = pb.directory() == null ? "" : mapping.map(pb.directory().getAbsolutePath());
+    final Map<String, String> env = new LinkedHashMap<>();
+    final Map<String, String> ours = System.getenv();
+    for (Map.Entry<String, String> kv : pb.environment().entrySet()) {
+      if (!kv.getValue().equals(ours.get(kv.getKey()))) {
+        env.put(kv.getKey(), mapping.map(kv.getValue()));
+      }
+    }
+    return new RemoteProtocol.Request(token, dir, pb.redirectErrorStream(), command, env);
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  /**
+   * The remote process as seen from here. Output frames are fed into pipes read like the streams
+   * of a local process. There is no local process handle, so there is no resource sampling.
+   */
+  private static class RemoteProcess extends Process {
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final PipedInputStream stdout = new PipedInputStream(PIPE_BYTES);
+    private final PipedInputStream stderr = new PipedInputStream(PIPE_BYTES);
+    private final PipedOutputStream stdoutSink;
+    private final PipedOutputStream stderrSink;
+    private final CompletableFuture<Process> exit = new CompletableFuture<>();
+    private final Runnable onExit;
+    private final String name;
+    private volatile int exitCode = -1;
+    private volatile boolean destroyed;
+
+    /**
+     * Blocks until the worker has started the process.
+     */
+    RemoteProcess(Socket socket, RemoteProtocol.Request req, String name, Runnable onExit) throws IOException {
+      this.socket = socket;
+      this.name = name;
+      this.onExit = onExit;
+      this.stdoutSink = new PipedOutputStream(stdout);
+      this.stderrSink = new PipedOutputStream(stderr);
+      out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      req.write(out);
+      final byte type = in.readByte();
+      if (type == RemoteProtocol.FAILED) {
+        throw new IOException(RemoteProtocol.readString(in));
+      } else if (type != RemoteProtocol.STARTED) {
+        throw new IOException("Unexpected answer from worker: " + type);
+      }
+      final Thread t = new Thread(this::readFrames, "remote-task: " + name);
+      t.setDaemon(true);
+      t.start();
+    }
+
+    private void readFrames() {
+      try {
+        while (true) {
+          final byte type = in.readByte();
+          if (type == RemoteProtocol.STDOUT || type == RemoteProtocol.STDERR) {
+            final byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            forward(type == RemoteProtocol.STDOUT ? stdoutSink : stderrSink, bytes);
+          } else if (type == RemoteProtocol.EXIT) {
+            exitCode = in.readInt();
+            break;
+          } else {
+            throw new IOException("Unexpected frame from worker: " + type);
+          }
+        }
+      } catch (IOException e) {
+        if (!destroyed) {
+          log.warn("Lost connection to remote task [{}]: {}", name, e.getMessage());
+        }
+      } finally {
+        closeQuietly(stdoutSink);
+        closeQuietly(stderrSink);
+        RemoteExecutor.closeQuietly(socket);
+        onExit.run();
+        exit.complete(this);
+      }
+    }
+
+    private static void forward(OutputStream sink, byte[] bytes) {
+      try {
+        sink.write(bytes);
+      } catch (IOException e) {
+        // nobody reads anymore, the output is dropped
+      }
+    }
+
+    private static void closeQuietly(OutputStream os) {
+      try {
+        os.close();
+      } catch (IOException ignored) {
+      }
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return new OutputStream() {
+        @Override
+        public void write(int b) {
+          // tasks get no input
+        }
+      };
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return stdout;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+      return stderr;
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+      try {
+        exit.get();
+      } catch (ExecutionException e) {
+        throw new IllegalStateException(e);
+      }
+      return exitCode;
+    }
+
+    @Override
+    public boolean waitFor(long timeout, TimeUnit unit) throws InterruptedException {
+      try {
+        exit.get(timeout, unit);
+        return true;
+      } catch (TimeoutException e) {
+        return false;
+      } catch (ExecutionException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public int exitValue() {
+      if (!exit.isDone()) {
+        throw new IllegalThreadStateException("Remote task is still running: " + name);
+      }
+      return exitCode;
+    }
+
+    @Override
+    public boolean isAlive() {
+      return !exit.isDone();
+    }
+
+    @Override
+    public CompletableFuture<Process> onExit() {
+      return exit;
+    }
+
+    /**
+     * The worker kills the whole process tree, then reports the exit code.
+     */
+    @Override
+    public void destroy() {
+      if (exit.isDone()) {
+        return;
+      }
+      destroyed = true;
+      try {
+        synchronized (out) {
+          out.writeByte(RemoteProtocol.KILL);
+          out.flush();
+        }
+      } catch (IOException e) {
+        // the worker kills the process when the connection goes away
+        RemoteExecutor.closeQuietly(socket);
+      }
+    }
+
+    @Override
+    public Process destroyForcibly() {
+      destroy();
+      return this;
+    }
+  }
+}
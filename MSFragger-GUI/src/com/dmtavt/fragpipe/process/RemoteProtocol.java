@@ -0,0 +1,125 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What {@link RemoteExecutor} and {@link RemoteWorker} say to each other. One connection is one
+ * task.
+ * <p>
+ * The client sends a {@link Request}. The worker answers with frames, each a type byte followed
+ * by its payload: {@link #STARTED} once the process is running, {@link #STDOUT} and
+ * {@link #STDERR} with a length and that many bytes of output, then {@link #EXIT} with the exit
+ * code, or {@link #FAILED} with a message if the process could not be started. The client may
+ * send {@link #KILL} at any time, closing the connection kills the process as well.
+ */
+final class RemoteProtocol {
+  static final int MAGIC = 0x46505731; // "FPW1"
+  static final int DEFAULT_PORT = 7071;
+
+  static final byte STARTED = 1;
+  static final byte STDOUT = 2;
+  static final byte STDERR = 3;
+  static final byte EXIT = 4;
+  static final byte FAILED = 5;
+  static final byte KILL = 9;
+
+  private static final int MAX_STRING_BYTES = 16 * 1024 * 1024;
+
+  private RemoteProtocol() {
+  }
+
+  static class Request {
+    final String token;
+    /** Empty for the worker's own working directory. */
+    final String dir;
+    final boolean redirectErrorStream;
+    final List<String> command;
+    /** Variables that differ from the environment the worker was started with. */
+    final Map<String, String> env;
+
+    Request(String token, String dir, boolean redirectErrorStream, List<String> command, Map<String, String> env) {
+      this.token = token;
+      this.dir = dir;
+      this.redirectErrorStream = redirectErrorStream;
+      this.command = command;
+      this.env = env;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      out.writeInt(MAGIC);
+      writeString(out, token);
+      writeString(out, dir);
+      out.writeBoolean(redirectErrorStream);
+      out.writeInt(command.size());
+      for (String s : command) {
+        writeString(out, s);
+      }
+      out.writeInt(env.size());
+      for (Map.Entry<String, String> kv : env.entrySet()) {
+        writeString(out, kv.getKey());
+        writeString(out, kv.getValue());
+      }
+      out.flush();
+    }
+
+    static Request read(DataInputStream in) throws IOException {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a FragPipe task request");
+      }
+      final String token = readString(in);
+      final String dir = readString(in);
+      final boolean redirect = in.readBoolean();
+      final int n = in.readInt();
+      final List<String> command = new ArrayList<>(n);
+      for (int i = 0; i < n; i++) {
+        command.add(readString(in));
+      }
+      final int m = in.readInt();
+      final Map<String, String> env = new LinkedHashMap<>();
+      for (int i = 0; i < m; i++) {
+        env.put(readString(in), readString(in));
+      }
+      return new Request(token, dir, redirect, command, env);
+    }
+  }
+
+  static void writeString(DataOutputStream out, String s) throws IOException {
+    final byte[] bytes = s.getBytes(UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static String readString(DataInputStream in) throws IOException {
+    final int len = in.readInt();
+    if (len < 0 || len > MAX_STRING_BYTES) {
+      throw new IOException("Bad string length: " + len);
+    }
+    final byte[] bytes = new byte[len];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks sent by FragPipe on another machine, see {@link TaskExecutors}. Start it on each
+ * worker machine with the FragPipe jar and its libraries on the classpath:
+ * <pre>
+ * java -cp "fragpipe/lib/*" com.dmtavt.fragpipe.process.RemoteWorker --bind 0.0.0.0 --slots 2 --token secret
+ * </pre>
+ * Options: {@code --port} (default 7071), {@code --bind} address to listen on (default only
+ * this machine), {@code --slots} how many tasks to run at the same time (default the number of
+ * cores) and {@code --token} that requests must present. Tasks beyond the slots wait.
+ * <p>
+ * The worker runs whatever command it is sent, so keep it on a trusted network and use a token.
+ */
+public class RemoteWorker {
+  private static final Logger log = LoggerFactory.getLogger(RemoteWorker.class);
+  private static final int CHUNK_BYTES = 8192;
+
+  private final ServerSocket server;
+  private final Semaphore slots;
+  private final String token;
+  private final AtomicInteger counter = new AtomicInteger(0);
+
+  public RemoteWorker(InetAddress bind, int port, int slots, String token) throws IOException {
+    this.server = new ServerSocket();
+    this.server.bind(new InetSocketAddress(bind, port));
+    this.slots = new Semaphore(Math.max(1, slots), true);
+    this.token = token == null ? "" : token;
+  }
+
+  public static void main(String[] args) throws IOException {
+    int port = RemoteProtocol.DEFAULT_PORT;
+    int slots = Runtime.getRuntime().availableProcessors();
+    String bind = "127.0.0.1";
+    String token = "";
+    for (int i = 0; i < args.length; i++) {
+      final String value = i + 1 < args.length ? args[i + 1] : null;
+      switch (args[i]) {
+        case "--port":
+          port = Integer.parseInt(required(args[i], value));
+          break;
+        case "--slots":
+          slots = Integer.parseInt(required(args[i], value));
+          break;
+        case "--bind":
+          bind = required(args[i], value);
+          break;
+        case "--token":
+          token = required(args[i], value);
+          break;
+        default:
+          System.err.println("Unknown option: " + args[i]);
+          System.err.println("Usage: RemoteWorker [--port 7071] [--bind 127.0.0.1] [--slots N] [--token T]");
+          System.exit(1);
+      }
+      i++;
+    }
+    final InetAddress address = InetAddress.getByName(bind);
+    if (token.isEmpty() && !address.isLoopbackAddress()) {
+      log.warn("Listening on {} without a token, anyone who can connect can run commands here", bind);
+    }
+    final RemoteWorker worker = new RemoteWorker(address, port, slots, token);
+    log.info("FragPipe worker listening on {}:{} with {} slots", bind, port, slots);
+    worker.serve();
+  }
+
+  private static String required(String option, String value) {
+    if (value == null) {
+      throw new IllegalArgumentException("Missing value for " + option);
+    }
+    return value;
+  }
+
+  public int getPort() {
+    return server.getLocalPort();
+  }
+
+  /**
+   * Accepts connections until {@link #close()}.
+   */
+  public void serve() throws IOException {
+    while (!server.isClosed()) {
+      final Socket socket;
+      try {
+        socket = server.accept();
+      } catch (IOException e) {
+        if (server.isClosed()) {
+          return;
+        }
+        throw e;
+      }
+      final Thread t = new Thread(() -> handle(socket), "worker-task-" + counter.incrementAndGet());
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  public void close() throws IOException {
+    server.close();
+  }
+
+  private void handle(Socket socket) {
+    try (Socket s = socket) {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+      final RemoteProtocol.Request req = RemoteProtocol.Request.read(in);
+      // same time whatever the token, it can't be guessed byte by byte
+      if (!MessageDigest.isEqual(token.getBytes(UTF_8), req.token.getBytes(UTF_8))) {
+        log.warn("Rejected a task from {}: wrong token", s.getRemoteSocketAddress());
+        fail(out, "Wrong token");
+        return;
+      }
+      slots.acquire();
+      try {
+        run(req, in, out);
+      } finally {
+        slots.release();
+      }
+    } catch (IOException e) {
+      log.warn("Task connection failed: {}", e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run(RemoteProtocol.Request req, DataInputStream in, DataOutputStream out) throws IOException, InterruptedException {
+    final ProcessBuilder pb = new ProcessBuilder(req.command);
+    if (!req.dir.isEmpty()) {
+      pb.directory(new File(req.dir));
+    }
+    pb.environment().putAll(req.env);
+    pb.redirectErrorStream(req.redirectErrorStream);
+    final Process proc;
+    try {
+      proc = pb.start();
+    } catch (IOException e) {
+      fail(out, e.getMessage());
+      return;
+    }
+    log.info("Started: {}", String.join(" ", req.command));
+    synchronized (out) {
+      out.writeByte(RemoteProtocol.STARTED);
+      out.flush();
+    }
+    final Thread pumpOut = pump(proc.getInputStream(), RemoteProtocol.STDOUT, out);
+    final Thread pumpErr = pump(proc.getErrorStream(), RemoteProtocol.STDERR, out);
+    final Thread killer = new Thread(() -> {
+      try {
+        final int b = in.read();
+        if (b == RemoteProtocol.KILL || b < 0) {
+          log.info("Killing on request: {}", String.join(" ", req.command));
+          kill(proc);
+        }
+      } catch (IOException e) {
+        kill(proc);
+      }
+    }, Thread.currentThread().getName() + "-kill");
+    killer.setDaemon(true);
+    killer.start();
+
+    final int code = proc.waitFor();
+    pumpOut.join();
+    pumpErr.join();
+    log.info("Exit code {}: {}", code, String.join(" ", req.command));
+    synchronized (out) {
+      out.writeByte(RemoteProtocol.EXIT);
+      out.writeInt(code);
+      out.flush();
+    }
+  }
+
+  private static void kill(Process proc) {
+    proc.descendants().forEach(ProcessHandle::destroyForcibly);
+    proc.destroyForcibly();
+  }
+
+  private static void fail(DataOutputStream out, String message) throws IOException {
+    out.writeByte(RemoteProtocol.FAILED);
+    RemoteProtocol.writeString(out, message == null ? "unknown error" : message);
+    out.flush();
+  }
+
+  private static Thread pump(InputStream is, byte type, DataOutputStream out) {
+    final Thread t = new Thread(() -> {
+      final byte[] buf = new byte[CHUNK_BYTES];
+      try {
+        int read;
+        while ((read = is.read(buf)) >= 0) {
+          synchronized (out) {
+            out.writeByte(type);
+            out.writeInt(read);
+            out.write(buf, 0, read);
+            out.flush();
+          }
+        }
+      } catch (IOException e) {
+        // process gone or client gone, either way the exit code tells
+      }
+    }, Thread.currentThread().getName() + (type == RemoteProtocol.STDOUT ? "-out" : "-err"));
+    t.setDaemon(true);
+    t.start();
+    return t;
+  }
+}
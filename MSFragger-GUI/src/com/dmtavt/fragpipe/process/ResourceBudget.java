@@ -0,0 +1,113 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dmtavt.fragpipe.process;
+
+import java.util.Locale;
+import java.util.TreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Machine-wide CPU and memory budget shared by all tasks of a run. A task is admitted only while
+ * its demand fits into what is left. Demands larger than the whole budget are clamped, so such a
+ * task just runs alone instead of never being admitted.
+ * <p>
+ * Waiting tasks are admitted in the order they asked, a later one only goes ahead of an earlier
+ * one that doesn't fit yet. Tasks submitted most expensive first are thus also started that way.
+ */
+public class ResourceBudget {
+  private static final Logger log = LoggerFactory.getLogger(ResourceBudget.class);
+
+  public final int threads;
+  public final long ramMb;
+  private int threadsUsed = 0;
+  private long ramMbUsed = 0;
+  private long nextTicket = 0;
+  /** Demands of the tasks waiting to be admitted, in the order they asked. */
+  private final TreeMap<Long, TaskResources> waiting = new TreeMap<>();
+
+  public ResourceBudget(int threads, long ramMb) {
+    this.threads = Math.max(1, threads);
+    this.ramMb = Math.max(1, ramMb);
+  }
+
+  public static ResourceBudget ofGb(int threads, int ramGb) {
+    return new ResourceBudget(threads, ramGb * 1024L);
+  }
+
+  /**
+   * Blocks until the demand fits into the budget.
+   * @return The demand that was actually taken from the budget, to be passed to {@link #release}.
+   */
+  public synchronized TaskResources acquire(TaskResources demand, String name) throws InterruptedException {
+    final TaskResources clamped = new TaskResources(Math.min(threads, demand.threads), Math.min(ramMb, demand.ramMb));
+    boolean logged = false;
+    final long ticket = nextTicket++;
+    waiting.put(ticket, clamped);
+    try {
+      while (!fits(clamped) || earlierFits(ticket)) {
+        if (!logged) {
+          log.debug("Task [{}] needs {}, waiting for resources ({} threads, {} MB in use)", name, clamped, threadsUsed, ramMbUsed);
+          logged = true;
+        }
+        wait();
+      }
+    } finally {
+      waiting.remove(ticket);
+      // tasks that let this one go first look again
+      notifyAll();
+    }
+    threadsUsed += clamped.threads;
+    ramMbUsed += clamped.ramMb;
+    return clamped;
+  }
+
+  public synchronized void release(TaskResources taken) {
+    threadsUsed = Math.max(0, threadsUsed - taken.threads);
+    ramMbUsed = Math.max(0, ramMbUsed - taken.ramMb);
+    notifyAll();
+  }
+
+  public synchronized int getThreadsUsed() {
+    return threadsUsed;
+  }
+
+  public synchronized long getRamMbUsed() {
+    return ramMbUsed;
+  }
+
+  private boolean earlierFits(long ticket) {
+    for (TaskResources r : waiting.headMap(ticket).values()) {
+      if (fits(r)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean fits(TaskResources r) {
+    final boolean threadsOk = threadsUsed == 0 || threadsUsed + r.threads <= threads;
+    final boolean ramOk = ramMbUsed == 0 || ramMbUsed + r.ramMb <= ramMb;
+    return threadsOk && ramOk;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.ROOT, "%d threads, %d MB", threads, ramMb);
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import com.dmtavt.fragpipe.cmd.ProcessBuilderInfo;
+import com.dmtavt.fragpipe.internal.DefEdge;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.jgrapht.Graph;
+import org.jgrapht.traverse.TopologicalOrderIterator;
+
+/**
+ * Expected run time of a task graph, from the {@link ThroughputModel} of earlier runs. Before
+ * the run every task counts, during the run finished tasks are left out and running ones count
+ * with what is left of their expected time.
+ * <p>
+ * Nodes start when their predecessors are done, the tasks of a parallel group share the thread
+ * budget of the run. Branches of the graph running side by side are not assumed to slow each
+ * other down, and tasks without history count as taking no time, so the estimate is on the
+ * optimistic side when those are many.
+ */
+public class RunEta {
+  /** Live estimates look at the input files of all the tasks, not on every refresh. */
+  private static final long REFRESH_MS = 30000;
+  private static final DateTimeFormatter HH_MM = DateTimeFormatter.ofPattern("HH:mm", Locale.ROOT);
+
+  private final Graph<TaskNode, DefEdge> graph;
+  private final ThroughputModel model;
+  private final int threads;
+  private long refreshedMs;
+  private String line;
+
+  public static class Estimate {
+    /** Until all the tasks are done. */
+    public final long totalMs;
+    /** Time of each node with tasks left, in the order the nodes start. */
+    public final Map<TaskNode, Long> stageMs;
+    /** Tasks left, and how many of them have no history. */
+    public final int tasks;
+    public final int unknown;
+
+    Estimate(long totalMs, Map<TaskNode, Long> stageMs, int tasks, int unknown) {
+      this.totalMs = totalMs;
+      this.stageMs = Collections.unmodifiableMap(stageMs);
+      this.tasks = tasks;
+      this.unknown = unknown;
+    }
+  }
+
+  /**
+   * @param threads Thread budget of the run.
+   */
+  public RunEta(Graph<TaskNode, DefEdge> graph, ThroughputModel model, int threads) {
+    this.graph = graph;
+    this.model = model;
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * @param metrics Null before the run.
+   */
+  public Estimate estimate(RunMetrics metrics) {
+    final long now = System.currentTimeMillis();
+    final List<TaskNode> order = new ArrayList<>();
+    new TopologicalOrderIterator<>(graph).forEachRemaining(order::add);
+
+    // once anything downstream of a node has started, the node itself is done
+    final Map<TaskNode, Boolean> startedBelow = new HashMap<>();
+    for (int i = order.size() - 1; i >= 0; i--) {
+      final TaskNode node = order.get(i);
+      boolean below = false;
+      for (DefEdge e : graph.outgoingEdgesOf(node)) {
+        final TaskNode child = graph.getEdgeTarget(e);
+        below |= startedBelow.get(child) || lastStartedGroup(ProcessManager.toGroups(child.runDescs), metrics) >= 0;
+      }
+      startedBelow.put(node, below);
+    }
+
+    final Map<TaskNode, Long> finish = new HashMap<>();
+    final Map<TaskNode, Long> stageMs = new LinkedHashMap<>();
+    final int[] counts = new int[2];
+    long total = 0;
+    for (TaskNode node : order) {
+      long start = 0;
+      for (DefEdge e : graph.incomingEdgesOf(node)) {
+        start = Math.max(start, finish.getOrDefault(graph.getEdgeSource(e), 0L));
+      }
+      long ms = 0;
+      if (!startedBelow.get(node)) {
+        final List<List<RunnableDescription>> groups = ProcessManager.toGroups(node.runDescs);
+        final int lastStarted = lastStartedGroup(groups, metrics);
+        for (int gi = Math.max(0, lastStarted); gi < groups.size(); gi++) {
+          ms += groupMs(groups.get(gi), metrics, now, counts);
+        }
+      }
+      finish.put(node, start + ms);
+      if (ms > 0) {
+        stageMs.put(node, ms);
+      }
+      total = Math.max(total, start + ms);
+    }
+    return new Estimate(total, stageMs, counts[0], counts[1]);
+  }
+
+  /**
+   * Time of a group of tasks, the longest task or the thread-time of all of them spread over the
+   * budget, whichever is longer.
+   *
+   * @param counts Tasks left and tasks without history are added here.
+   */
+  private long groupMs(List<RunnableDescription> group, RunMetrics metrics, long now, int[] counts) {
+    long longest = 0;
+    double threadMs = 0;
+    for (RunnableDescription rd : group) {
+      final ProcessBuilderInfo pbi = rd.pbi;
+      if (pbi == null || pbi.pb == null) {
+        continue;
+      }
+      final TaskMetrics tm = metrics == null ? null : metrics.get(pbi);
+      if (tm != null && tm.isFinished()) {
+        continue;
+      }
+      final int t = Math.min(threads, Math.max(1, TaskResources.of(pbi).threads));
+      long ms = model.predictMs(pbi.name, TaskCost.estimate(pbi), t);
+      counts[0]++;
+      if (ms < 0) {
+        counts[1]++;
+        continue;
+      }
+      if (tm != null) {
+        ms = Math.max(0, ms - (now - tm.getStartMs()));
+      }
+      longest = Math.max(longest, ms);
+      threadMs += (double) ms * t;
+    }
+    return group.size() == 1 ? longest : Math.max(longest, Math.round(threadMs / threads));
+  }
+
+  /**
+   * @return Index of the last group with a started task, -1 if none.
+   */
+  private static int lastStartedGroup(List<List<RunnableDescription>> groups, RunMetrics metrics) {
+    if (metrics == null) {
+      return -1;
+    }
+    for (int gi = groups.size() - 1; gi >= 0; gi--) {
+      for (RunnableDescription rd : groups.get(gi)) {
+        if (rd.pbi != null && metrics.get(rd.pbi) != null) {
+          return gi;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Expected time of the whole run and of each step, for printing before the run.
+   */
+  public List<String> describe() {
+    final Estimate est = estimate(null);
+    final List<String> lines = new ArrayList<>();
+    for (Map.Entry<TaskNode, Long> kv : est.stageMs.entrySet()) {
+      final double rate = model.mbPerThreadSec(kv.getKey().name);
+      lines.add(String.format(Locale.ROOT, "    %s: %s%s", kv.getKey().name, formatMs(kv.getValue()),
+          Double.isNaN(rate) ? "" : String.format(Locale.ROOT, ", %.1f MB per thread-second", rate)));
+    }
+    lines.add(String.format(Locale.ROOT, "Estimated run time: %s%s", formatMs(est.totalMs), unknownNote(est)));
+    return lines;
+  }
+
+  /**
+   * One line about the time left, e.g. {@code about 1h 20m left, done around 14:35}. Cached for
+   * a while, the estimate looks at the input files of all the tasks left.
+   */
+  public synchronized String remainingLine(RunMetrics metrics) {
+    final long now = System.currentTimeMillis();
+    if (line != null && now - refreshedMs < REFRESH_MS) {
+      return line;
+    }
+    final Estimate est = estimate(metrics);
+    if (est.tasks == est.unknown) {
+      line = "time left not known, no history for the tasks left";
+    } else {
+      final StringBuilder sb = new StringBuilder();
+      sb.append("about ").append(formatMs(est.totalMs)).append(" left, done around ")
+          .append(LocalDateTime.now().plusNanos(est.totalMs * 1000000L).format(HH_MM));
+      if (!est.stageMs.isEmpty()) {
+        final Map.Entry<TaskNode, Long> current = est.stageMs.entrySet().iterator().next();
+        sb.append(", ").append(current.getKey().name).append(' ').append(formatMs(current.getValue()));
+      }
+      line = sb.append(unknownNote(est)).toString();
+    }
+    refreshedMs = now;
+    return line;
+  }
+
+  private static String unknownNote(Estimate est) {
+    return est.unknown == 0 ? "" : String.format(Locale.ROOT, " (%d of %d tasks without history not counted)", est.unknown, est.tasks);
+  }
+
+  /**
+   * Short duration, e.g. {@code 2h 05m}, {@code 12m}, {@code <1m}.
+   */
+  public static String formatMs(long ms) {
+    final long min = Math.round(ms / 60000.0);
+    if (min < 1) {
+      return "<1m";
+    }
+    return min < 60 ? min + "m" : String.format(Locale.ROOT, "%dh %02dm", min / 60, min % 60);
+  }
+}
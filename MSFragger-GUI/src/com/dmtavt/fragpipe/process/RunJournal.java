@@ -0,0 +1,588 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.dmtavt.fragpipe.FragpipeRun;
+import com.dmtavt.fragpipe.cmd.ProcessBuilderInfo;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only record of the tasks of a run, kept in the workdir. Every task start and finish is
+ * written and synced to disk right away, so the journal survives the process being killed.
+ * <p>
+ * For each task the journal keeps its command, the files from its command line that existed
+ * when it started (inputs) and the files that were written while it ran (outputs). Outputs are
+ * the files that are new or different at the end of the task, compared to a {@link Snapshot} of
+ * its working directory, the directories of the paths on its command line and the files it
+ * declares, see {@link ProcessBuilderInfo#outputs}. FragPipe's own files like this journal are
+ * left out. If another task ran in one of the same directories at the same time, see
+ * {@link WriteScopes}, only the paths on the command line, the declared files and the files its
+ * output was redirected to count, the rest could be theirs.
+ * <p>
+ * When resuming, a task is complete if the same command finished with exit code zero before,
+ * its outputs are exactly as they were last seen by any finished task and its inputs haven't
+ * changed since. An output that a later task removed, e.g. moved elsewhere, only counts as intact
+ * if that task is complete as well.
+ */
+public class RunJournal implements AutoCloseable {
+  private static final Logger log = LoggerFactory.getLogger(RunJournal.class);
+  public static final String FN = "fragpipe-journal.tsv";
+  /** Inputs up to this size are compared by content, larger ones by size and time. */
+  private static final long HASH_SIZE_LIMIT = 4 * 1024 * 1024;
+
+  private static final String START = "START";
+  private static final String IN = "IN";
+  private static final String OUT = "OUT";
+  private static final String GONE = "GONE";
+  private static final String DONE = "DONE";
+  private static final Fingerprint FP_GONE = new Fingerprint(-1, -1, null);
+  /** FragPipe's own files in the workdir, written while tasks run but by none of them. */
+  private static final Set<String> BOOKKEEPING = new HashSet<>(Arrays.asList(
+      FN, RunMetrics.FN_CSV, RunMetrics.FN_JSON, RunMetrics.FN_JSON + ".tmp", RunTimeline.FN, FailedInputs.FN));
+
+  private final Path path;
+  private final FileChannel channel;
+  /** Last successful record of each task from the journal as it was when opened. */
+  private final Map<String, Record> completed = new HashMap<>();
+  /** State of each file as seen by the last finished task that touched it. */
+  private final Map<Path, Fingerprint> lastSeen = new HashMap<>();
+  /** Key of the finished task that removed the file, for files that are gone. */
+  private final Map<Path, String> goneBy = new HashMap<>();
+
+  private RunJournal(Path path, FileChannel channel) {
+    this.path = path;
+    this.channel = channel;
+  }
+
+  /**
+   * @param resume When false, the previous journal is discarded.
+   */
+  public static RunJournal open(Path wd, boolean resume) throws IOException {
+    final Path path = wd.resolve(FN);
+    final FileChannel ch = resume
+        ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+        : FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    final RunJournal j = new RunJournal(path, ch);
+    if (resume) {
+      j.read(new String(Files.readAllBytes(path), UTF_8));
+      log.debug("Read run journal {}, {} completed tasks", path, j.completed.size());
+    }
+    ch.position(ch.size());
+    return j;
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  public static String key(ProcessBuilderInfo pbi) {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(pbi.name).append('\n');
+    sb.append(pbi.pb.directory()).append('\n');
+    for (String s : ArgFiles.expand(pbi.pb.command())) {
+      sb.append(s).append('\0');
+    }
+    return hex(sha1().digest(sb.toString().getBytes(UTF_8))).substring(0, 16);
+  }
+
+  /**
+   * @return True if the task has completed successfully in a previous run and its results are
+   * still intact.
+   */
+  public boolean isComplete(ProcessBuilderInfo pbi) {
+    return isIntact(key(pbi), new HashSet<>());
+  }
+
+  /**
+   * @param checked Keys of the tasks checked so far, each is only checked once.
+   */
+  private boolean isIntact(String key, Set<String> checked) {
+    final Record r = completed.get(key);
+    if (r == null) {
+      return false;
+    }
+    if (!checked.add(key)) {
+      return true;
+    }
+    for (Map.Entry<Path, Fingerprint> out : r.outputs.entrySet()) {
+      final Fingerprint last = lastSeen.getOrDefault(out.getKey(), out.getValue());
+      if (last == FP_GONE) {
+        // removed later by another finished task, e.g. moved, whatever it made of it must be intact
+        final String by = goneBy.get(out.getKey());
+        if (by != null && !isIntact(by, checked)) {
+          log.debug("Output taken by a task that is not complete: {}", out.getKey());
+          return false;
+        }
+        continue;
+      }
+      final Fingerprint now = Fingerprint.of(out.getKey(), false);
+      if (now == null || !now.sameAs(last)) {
+        log.debug("Output changed or missing: {}", out.getKey());
+        return false;
+      }
+    }
+    for (Map.Entry<Path, Fingerprint> in : r.inputs.entrySet()) {
+      if (r.outputs.containsKey(in.getKey()) || !Files.exists(in.getKey())) {
+        continue; // modified in place, or consumed by the task
+      }
+      final Fingerprint now = Fingerprint.of(in.getKey(), in.getValue().hash != null);
+      if (now == null || !now.sameAs(in.getValue())) {
+        log.debug("Input changed: {}", in.getKey());
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Records the start of a task.
+   */
+  public Attempt started(ProcessBuilderInfo pbi) throws IOException {
+    final Attempt a = new Attempt(key(pbi), pbi, System.currentTimeMillis());
+    try {
+      startLines(a, pbi);
+    } catch (IOException | RuntimeException e) {
+      a.scope.close();
+      throw e;
+    }
+    return a;
+  }
+
+  private void startLines(Attempt a, ProcessBuilderInfo pbi) throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    line(sb, START, a.key, Long.toString(a.startMs), pbi.name, String.join(" ", pbi.pb.command()));
+    for (Path p : a.args) {
+      if (Files.isRegularFile(p)) {
+        final Fingerprint fp = Fingerprint.of(p, true);
+        if (fp != null) {
+          a.inputs.add(p);
+          line(sb, IN, a.key, Long.toString(fp.size), Long.toString(fp.mtime), fp.hash == null ? "-" : fp.hash, p.toString());
+        }
+      }
+    }
+    write(sb);
+  }
+
+  /**
+   * Records the end of a task. Must be called for every attempt, however the task ended.
+   *
+   * @param exitCode Null if the task didn't run to the end, nothing is recorded then.
+   */
+  public void finished(Attempt a, Integer exitCode) throws IOException {
+    try {
+      finishLines(a, exitCode);
+    } finally {
+      a.scope.close();
+    }
+  }
+
+  private void finishLines(Attempt a, Integer exitCode) throws IOException {
+    if (exitCode == null) {
+      return;
+    }
+    final StringBuilder sb = new StringBuilder();
+    if (exitCode == 0) {
+      for (Path p : a.outputs(path)) {
+        final Fingerprint fp = Fingerprint.of(p, false);
+        if (fp != null) {
+          line(sb, OUT, a.key, Long.toString(fp.size), Long.toString(fp.mtime), p.toString());
+        }
+      }
+      for (Path p : a.inputs) {
+        if (!Files.exists(p)) {
+          line(sb, GONE, a.key, p.toString());
+        }
+      }
+    }
+    line(sb, DONE, a.key, Long.toString(System.currentTimeMillis()), Integer.toString(exitCode));
+    write(sb);
+  }
+
+  private synchronized void write(StringBuilder sb) throws IOException {
+    final ByteBuffer bb = ByteBuffer.wrap(sb.toString().getBytes(UTF_8));
+    while (bb.hasRemaining()) {
+      channel.write(bb);
+    }
+    channel.force(false);
+  }
+
+  private static void line(StringBuilder sb, String... fields) {
+    for (int i = 0; i < fields.length; i++) {
+      if (i > 0) {
+        sb.append('\t');
+      }
+      sb.append(fields[i].replace('\t', ' ').replace('\n', ' ').replace('\r', ' '));
+    }
+    sb.append('\n');
+  }
+
+  /**
+   * Only records of tasks that have a DONE line are used, anything after the last complete line
+   * (e.g. written while the machine went down) is ignored.
+   */
+  void read(String text) {
+    final Map<String, Record> pending = new HashMap<>();
+    final String[] lines = text.split("\n", -1);
+    for (int i = 0; i < lines.length - 1; i++) { // last piece is empty or an incomplete line
+      final String[] f = lines[i].split("\t", -1);
+      try {
+        switch (f[0]) {
+          case START:
+            pending.put(f[1], new Record());
+            break;
+          case IN:
+            recordOf(pending, f[1]).inputs.put(Paths.get(f[5]),
+                new Fingerprint(Long.parseLong(f[2]), Long.parseLong(f[3]), "-".equals(f[4]) ? null : f[4]));
+            break;
+          case OUT:
+            recordOf(pending, f[1]).outputs.put(Paths.get(f[4]),
+                new Fingerprint(Long.parseLong(f[2]), Long.parseLong(f[3]), null));
+            break;
+          case GONE:
+            recordOf(pending, f[1]).gone.add(Paths.get(f[2]));
+            break;
+          case DONE:
+            final Record r = pending.remove(f[1]);
+            if (r != null && Integer.parseInt(f[3]) == 0) {
+              completed.put(f[1], r);
+              lastSeen.putAll(r.outputs);
+              goneBy.keySet().removeAll(r.outputs.keySet());
+              for (Path p : r.gone) {
+                lastSeen.put(p, FP_GONE);
+                goneBy.put(p, f[1]);
+              }
+            }
+            break;
+          default:
+            log.debug("Unknown run journal line: {}", lines[i]);
+        }
+      } catch (RuntimeException e) {
+        log.debug("Skipping malformed run journal line: {}", lines[i]);
+      }
+    }
+  }
+
+  private static Record recordOf(Map<String, Record> pending, String key) {
+    return pending.computeIfAbsent(key, k -> new Record());
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  static MessageDigest sha1() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static String hex(byte[] bytes) {
+    final StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+
+  private static class Record {
+    final Map<Path, Fingerprint> inputs = new LinkedHashMap<>();
+    final Map<Path, Fingerprint> outputs = new LinkedHashMap<>();
+    final List<Path> gone = new ArrayList<>();
+  }
+
+  /**
+   * A single execution of a task, between {@link #started} and {@link #finished}.
+   */
+  public static class Attempt {
+    final String key;
+    final long startMs;
+    final Path dir;
+    /** Command line arguments that look like paths, resolved against the working directory. */
+    final Set<Path> args = new LinkedHashSet<>();
+    /** Files the output of the task goes to. */
+    final Set<Path> redirects = new LinkedHashSet<>();
+    /** Files the task declares it writes. */
+    final Set<Path> declared = new LinkedHashSet<>();
+    final List<Path> inputs = new ArrayList<>();
+    final Snapshot before;
+    final WriteScopes.Scope scope;
+
+    Attempt(String key, ProcessBuilderInfo pbi, long startMs) {
+      this.key = key;
+      this.startMs = startMs;
+      this.dir = pbi.pb.directory() == null ? null : pbi.pb.directory().toPath().toAbsolutePath().normalize();
+      args.addAll(pathArgs(pbi));
+      for (String fn : new String[]{pbi.fnStdout, pbi.fnStderr}) {
+        final Path p = fn == null || fn.isEmpty() ? null : toPath(fn, dir);
+        if (p != null) {
+          redirects.add(p);
+        }
+      }
+      for (Path p : pbi.outputs) {
+        declared.add(p.toAbsolutePath().normalize());
+      }
+      final Set<Path> scan = scanDirs(dirs(), own());
+      this.before = Snapshot.take(scan, own());
+      this.scope = WriteScopes.TASKS.enter(scan);
+    }
+
+    /**
+     * Paths that are the task's own whatever else runs next to it.
+     */
+    private Set<Path> own() {
+      final Set<Path> own = new LinkedHashSet<>(args);
+      own.addAll(declared);
+      own.addAll(redirects);
+      return own;
+    }
+
+    private Set<Path> dirs() {
+      final Set<Path> dirs = new LinkedHashSet<>();
+      if (dir != null) {
+        dirs.add(dir);
+      }
+      return dirs;
+    }
+
+    /**
+     * Files written since the task started: in the working directory, next to the paths from
+     * the command line and the declared outputs, and those paths themselves. Only the paths from
+     * the command line, the declared outputs and the redirected output if another task wrote to
+     * the same directories meanwhile.
+     */
+    Collection<Path> outputs(Path journal) {
+      final Path wd = journal.toAbsolutePath().normalize().getParent();
+      final Set<Path> outputs = before.changed();
+      if (scope.isShared()) {
+        outputs.retainAll(own());
+      }
+      outputs.removeIf(p -> isBookkeeping(wd, p));
+      return outputs;
+    }
+  }
+
+  /**
+   * @return True for the journal, task metrics, timeline, failed inputs and task logs of the run
+   * in the workdir, which are not outputs of any task.
+   */
+  static boolean isBookkeeping(Path wd, Path p) {
+    if (p.startsWith(wd.resolve(FragpipeRun.TASK_LOGS_DIR))) {
+      return true;
+    }
+    return wd.equals(p.getParent()) && BOOKKEEPING.contains(p.getFileName().toString());
+  }
+
+  /**
+   * Command line arguments of a task that look like paths, resolved against its working
+   * directory. Values of {@code --opt=value} options are included.
+   */
+  static Set<Path> pathArgs(ProcessBuilderInfo pbi) {
+    final Path dir = pbi.pb.directory() == null ? null : pbi.pb.directory().toPath().toAbsolutePath().normalize();
+    final Set<Path> paths = new LinkedHashSet<>();
+    final List<String> cmd = ArgFiles.expand(pbi.pb.command());
+    for (int i = 1; i < cmd.size(); i++) {
+      final Path p = toPath(cmd.get(i), dir);
+      if (p != null) {
+        paths.add(p);
+      }
+    }
+    return paths;
+  }
+
+  private static Path toPath(String arg, Path dir) {
+    if (arg.startsWith("-")) {
+      final int eq = arg.indexOf('=');
+      if (eq < 0) {
+        return null;
+      }
+      arg = arg.substring(eq + 1);
+    }
+    if (arg.isEmpty()) {
+      return null;
+    }
+    try {
+      Path p = Paths.get(arg);
+      if (!p.isAbsolute()) {
+        if (dir == null) {
+          return null;
+        }
+        p = dir.resolve(p);
+      }
+      return p.normalize();
+    } catch (InvalidPathException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Directories a {@link Snapshot} is taken of: the given ones, those among the paths and those of
+   * the paths.
+   */
+  static Set<Path> scanDirs(Collection<Path> dirs, Collection<Path> paths) {
+    final Set<Path> scan = new LinkedHashSet<>(dirs);
+    for (Path p : paths) {
+      if (Files.isDirectory(p)) {
+        scan.add(p);
+      } else if (p.getParent() != null && Files.isDirectory(p.getParent())) {
+        scan.add(p.getParent());
+      }
+    }
+    return scan;
+  }
+
+  /**
+   * Size and time of the regular files in some directories and of some paths. Files that are new
+   * or different in a later look are the ones written in between, whatever their time says: a
+   * moved file keeps the time it had before it was moved.
+   */
+  static class Snapshot {
+    private final Set<Path> dirs;
+    private final Set<Path> paths;
+    private final Map<Path, Fingerprint> files;
+
+    private Snapshot(Set<Path> dirs, Set<Path> paths, Map<Path, Fingerprint> files) {
+      this.dirs = dirs;
+      this.paths = paths;
+      this.files = files;
+    }
+
+    static Snapshot take(Collection<Path> dirs, Collection<Path> paths) {
+      final Set<Path> d = new LinkedHashSet<>(dirs);
+      final Set<Path> p = new LinkedHashSet<>(paths);
+      return new Snapshot(d, p, list(d, p));
+    }
+
+    /**
+     * @return Files that are not in the snapshot or differ from it now.
+     */
+    Set<Path> changed() {
+      final Set<Path> changed = new LinkedHashSet<>();
+      for (Map.Entry<Path, Fingerprint> now : list(dirs, paths).entrySet()) {
+        final Fingerprint then = files.get(now.getKey());
+        if (then == null || !then.sameAs(now.getValue())) {
+          changed.add(now.getKey());
+        }
+      }
+      return changed;
+    }
+
+    private static Map<Path, Fingerprint> list(Set<Path> dirs, Set<Path> paths) {
+      final Map<Path, Fingerprint> files = new LinkedHashMap<>();
+      for (Path p : paths) {
+        final Fingerprint fp = Fingerprint.of(p, false);
+        if (fp != null) {
+          files.put(p, fp);
+        }
+      }
+      for (Path d : dirs) {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(d)) {
+          for (Path p : ds) {
+            final Fingerprint fp = Fingerprint.of(p, false);
+            if (fp != null) {
+              files.put(p.normalize(), fp);
+            }
+          }
+        } catch (IOException e) {
+          log.debug("Could not list directory for task outputs: {}", d, e);
+        }
+      }
+      return files;
+    }
+  }
+
+  static class Fingerprint {
+    final long size;
+    final long mtime;
+    /** Content hash, only for small input files. */
+    final String hash;
+
+    Fingerprint(long size, long mtime, String hash) {
+      this.size = size;
+      this.mtime = mtime;
+      this.hash = hash;
+    }
+
+    static Fingerprint of(Path p, boolean withHash) {
+      try {
+        BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class);
+        if (!a.isRegularFile()) {
+          return null;
+        }
+        String hash = null;
+        if (withHash && a.size() <= HASH_SIZE_LIMIT) {
+          final MessageDigest md = sha1();
+          try (InputStream is = Files.newInputStream(p)) {
+            final byte[] buf = new byte[8192];
+            int read;
+            while ((read = is.read(buf)) != -1) {
+              md.update(buf, 0, read);
+            }
+          }
+          hash = hex(md.digest());
+        }
+        return new Fingerprint(a.size(), a.lastModifiedTime().toMillis(), hash);
+      } catch (IOException e) {
+        return null;
+      }
+    }
+
+    /**
+     * Files with the same content hash are the same regardless of their time.
+     */
+    boolean sameAs(Fingerprint o) {
+      if (hash != null && o.hash != null) {
+        return hash.equals(o.hash);
+      }
+      return size == o.size && mtime == o.mtime;
+    }
+
+    @Override
+    public String toString() {
+      return size + "/" + mtime + "/" + Objects.toString(hash, "-");
+    }
+  }
+}
@@ -0,0 +1,308 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.dmtavt.fragpipe.cmd.ProcessBuilderInfo;
+import com.google.gson.GsonBuilder;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Metrics of all the tasks of a run, written to the workdir as CSV and JSON. A row is appended to
+ * the CSV every time a task finishes, so it is there even if the run fails. A resumed run adds its
+ * rows to the CSV of the run it resumes. The JSON is written once, after all the tasks of the run
+ * are done.
+ * <p>
+ * While the run goes on, the live resource use of the running tasks can be printed
+ * periodically, see {@link #printStatusEvery(long, Consumer)}. With a {@link ThroughputModel}
+ * set, finished tasks are added to it and the status tells the time left.
+ */
+public class RunMetrics implements AutoCloseable {
+  private static final Logger log = LoggerFactory.getLogger(RunMetrics.class);
+  public static final String FN_CSV = "fragpipe-task-metrics.csv";
+  public static final String FN_JSON = "fragpipe-task-metrics.json";
+
+  private final Path wd;
+  /** Keep the rows an earlier run left in the CSV. */
+  private final boolean append;
+  private final List<TaskMetrics> finished = new ArrayList<>();
+  private final List<TaskMetrics> running = new ArrayList<>();
+  private final Map<ProcessBuilderInfo, TaskMetrics> byPbi = new IdentityHashMap<>();
+  /** Number of tasks of each name in the run. */
+  private final Map<String, Integer> planned = new LinkedHashMap<>();
+  private ScheduledExecutorService statusExec;
+  private boolean csvStarted;
+  private boolean jsonWritten;
+  private ThroughputModel throughput;
+  private RunEta eta;
+
+  /**
+   * @param append Add rows to the CSV left by an earlier run in the workdir instead of starting
+   * a new one, e.g. when resuming.
+   */
+  public RunMetrics(Path wd, boolean append) {
+    this.wd = wd;
+    this.append = append;
+  }
+
+  public synchronized void started(ProcessBuilderInfo pbi, TaskMetrics m) {
+    m.setOwner(this);
+    running.add(m);
+    byPbi.put(pbi, m);
+  }
+
+  /**
+   * Tasks the run is going to start, for counting how many of each step are done.
+   */
+  public synchronized void planned(List<ProcessBuilderInfo> pbis) {
+    for (ProcessBuilderInfo pbi : pbis) {
+      planned.merge(String.valueOf(pbi.name), 1, Integer::sum);
+    }
+  }
+
+  /**
+   * How many tasks are done of the steps that are running and have more than one task, e.g.
+   * {@code PeptideProphet 5/12 done}. Empty if there are none.
+   */
+  public synchronized String stepCounts() {
+    final Map<String, Integer> done = new LinkedHashMap<>();
+    for (TaskMetrics m : running) {
+      done.put(String.valueOf(m.name), 0);
+    }
+    for (TaskMetrics m : finished) {
+      done.computeIfPresent(String.valueOf(m.name), (k, v) -> v + 1);
+    }
+    final List<String> parts = new ArrayList<>();
+    for (Map.Entry<String, Integer> kv : done.entrySet()) {
+      final int n = planned.getOrDefault(kv.getKey(), 0);
+      if (n > 1) {
+        parts.add(String.format(Locale.ROOT, "%s %d/%d", kv.getKey(), kv.getValue(), n));
+      }
+    }
+    return parts.isEmpty() ? "" : String.join(", ", parts) + " done";
+  }
+
+  /**
+   * @param eta Estimate for the task graph of this run, made with the same model.
+   */
+  public synchronized void setThroughput(ThroughputModel throughput, RunEta eta) {
+    this.throughput = throughput;
+    this.eta = eta;
+  }
+
+  /**
+   * @return Null if there is no throughput history.
+   */
+  public synchronized RunEta getEta() {
+    return eta;
+  }
+
+  /**
+   * @return Null if the task hasn't been started in this run.
+   */
+  public synchronized TaskMetrics get(ProcessBuilderInfo pbi) {
+    return byPbi.get(pbi);
+  }
+
+  synchronized void finished(TaskMetrics m) {
+    running.remove(m);
+    finished.add(m);
+    if (throughput != null) {
+      throughput.record(m);
+    }
+    try {
+      appendCsv(m.toMap());
+    } catch (IOException e) {
+      log.warn("Could not write task metrics to " + wd, e);
+    }
+  }
+
+  /**
+   * @return Tasks started but not finished yet.
+   */
+  public synchronized List<TaskMetrics> getRunning() {
+    return new ArrayList<>(running);
+  }
+
+  public synchronized List<TaskMetrics> getFinished() {
+    return Collections.unmodifiableList(new ArrayList<>(finished));
+  }
+
+  /**
+   * One line about every running task, e.g.
+   * {@code 2 running: MSFragger [MAIN SEARCH, 3/10, 45%] 780% CPU, 21.3G RSS, read 120M/s, write 4.0M/s, 12 min; ...}
+   */
+  public String statusLine() {
+    final List<TaskMetrics> tasks = getRunning();
+    final long now = System.currentTimeMillis();
+    final StringBuilder sb = new StringBuilder();
+    sb.append(tasks.size()).append(" running");
+    for (int i = 0; i < tasks.size(); i++) {
+      final TaskMetrics m = tasks.get(i);
+      sb.append(i == 0 ? ": " : "; ").append(m.name);
+      final TaskProgress progress = m.getProgress();
+      if (progress != null) {
+        sb.append(" [").append(progress).append(']');
+      }
+      final TaskMetrics.Live live = m.getLive();
+      if (live != null) {
+        sb.append(String.format(Locale.ROOT, " %.0f%% CPU, %s RSS, read %s/s, write %s/s,",
+            live.cpuPercent, formatBytes(live.rssBytes), formatBytes(live.readBytesPerSec), formatBytes(live.writeBytesPerSec)));
+      }
+      sb.append(' ').append((now - m.getStartMs()) / 60000).append(" min");
+    }
+    final String counts = stepCounts();
+    if (!counts.isEmpty()) {
+      sb.append(" | ").append(counts);
+    }
+    final RunEta e = getEta();
+    if (e != null) {
+      sb.append(" | ").append(e.remainingLine(this));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Prints {@link #statusLine()} with the given interval while there are running tasks, until
+   * closed.
+   */
+  public synchronized void printStatusEvery(long intervalMs, Consumer<String> out) {
+    if (statusExec != null) {
+      return;
+    }
+    statusExec = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "run-status");
+      t.setDaemon(true);
+      return t;
+    });
+    statusExec.scheduleWithFixedDelay(() -> {
+      if (!getRunning().isEmpty()) {
+        out.accept(statusLine());
+      }
+    }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops printing the status and writes the JSON of all finished tasks.
+   */
+  @Override
+  public synchronized void close() {
+    if (statusExec != null) {
+      statusExec.shutdownNow();
+      statusExec = null;
+    }
+    if (!jsonWritten && !finished.isEmpty()) {
+      jsonWritten = true;
+      final List<Map<String, Object>> rows = finished.stream().map(TaskMetrics::toMap).collect(Collectors.toList());
+      try {
+        replace(wd.resolve(FN_JSON), new GsonBuilder().serializeNulls().setPrettyPrinting().create().toJson(rows));
+      } catch (IOException e) {
+        log.warn("Could not write task metrics to " + wd, e);
+      }
+    }
+  }
+
+  /**
+   * Short binary-prefixed size, e.g. 512, 4.0K, 21.3G.
+   */
+  public static String formatBytes(long bytes) {
+    if (bytes < 1024) {
+      return Long.toString(bytes);
+    }
+    final String units = "KMGTP";
+    double v = bytes;
+    int u = -1;
+    while (v >= 1024 && u < units.length() - 1) {
+      v /= 1024;
+      u++;
+    }
+    return String.format(Locale.ROOT, "%.1f%c", v, units.charAt(u));
+  }
+
+  /**
+   * Appends the row of a finished task, the first one of the run replaces the file of an earlier
+   * run and writes the header.
+   */
+  private void appendCsv(Map<String, Object> row) throws IOException {
+    final StringBuilder csv = new StringBuilder();
+    final String header = String.join(",", row.keySet());
+    if (!csvStarted && append && header.equals(firstLine(wd.resolve(FN_CSV)))) {
+      csvStarted = true;
+    }
+    if (!csvStarted) {
+      csv.append(header).append('\n');
+    }
+    csv.append(row.values().stream().map(RunMetrics::csv).collect(Collectors.joining(","))).append('\n');
+    if (csvStarted) {
+      Files.write(wd.resolve(FN_CSV), csv.toString().getBytes(UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    } else {
+      Files.write(wd.resolve(FN_CSV), csv.toString().getBytes(UTF_8), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+      csvStarted = true;
+    }
+  }
+
+  /**
+   * @return Null if the file can't be read.
+   */
+  private static String firstLine(Path path) {
+    try (BufferedReader br = Files.newBufferedReader(path, UTF_8)) {
+      return br.readLine();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static String csv(Object value) {
+    if (value == null) {
+      return "";
+    }
+    final String s = value.toString();
+    if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) {
+      return s;
+    }
+    return '"' + s.replace("\"", "\"\"") + '"';
+  }
+
+  /**
+   * Readers never see a half-written file.
+   */
+  private static void replace(Path path, String content) throws IOException {
+    final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    Files.write(tmp, content.getBytes(UTF_8), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+  }
+}
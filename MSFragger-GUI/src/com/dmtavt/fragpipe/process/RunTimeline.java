@@ -0,0 +1,362 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.dmtavt.fragpipe.internal.DefEdge;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.jgrapht.Graph;
+import org.jgrapht.traverse.TopologicalOrderIterator;
+
+/**
+ * Static HTML report of a finished run: a Gantt chart of the tasks, one row per concurrency slot,
+ * the critical path through the task graph and how much of the thread budget was left unused.
+ * <p>
+ * The critical path is the chain of dependent nodes with the largest total run time, the run
+ * can't be shorter than that no matter how many cores there are. A phase is a stretch of time
+ * during which the same set of nodes was running. For each phase the threads reserved by the
+ * running tasks and the CPU they actually used are compared to the budget.
+ */
+public class RunTimeline {
+  public static final String FN = "fragpipe-timeline.html";
+  private static final int CHART_WIDTH = 1200;
+  private static final int LABEL_WIDTH = 40;
+  private static final int ROW_HEIGHT = 20;
+  private static final int AXIS_HEIGHT = 24;
+  private static final long MIN_IDLE_PHASE_MS = 1000;
+
+  private final Graph<TaskNode, DefEdge> graph;
+  private final RunMetrics metrics;
+  private final int budgetThreads;
+  private final List<Task> tasks = new ArrayList<>();
+  private final Map<TaskNode, long[]> nodeSpans = new LinkedHashMap<>();
+  private final Map<TaskNode, String> nodeColors = new HashMap<>();
+  private long t0 = Long.MAX_VALUE;
+  private long t1 = Long.MIN_VALUE;
+
+  private RunTimeline(Graph<TaskNode, DefEdge> graph, RunMetrics metrics, int budgetThreads) {
+    this.graph = graph;
+    this.metrics = metrics;
+    this.budgetThreads = Math.max(1, budgetThreads);
+  }
+
+  public static void write(Path file, Graph<TaskNode, DefEdge> graph, RunMetrics metrics, int budgetThreads) throws IOException {
+    RunTimeline t = new RunTimeline(graph, metrics, budgetThreads);
+    t.collect();
+    Files.write(file, t.toHtml().getBytes(UTF_8));
+  }
+
+  private static class Task {
+    final TaskNode node;
+    final TaskMetrics m;
+    final long start;
+    final long end;
+    final int threads;
+    int lane;
+
+    Task(TaskNode node, TaskMetrics m, int threads) {
+      this.node = node;
+      this.m = m;
+      this.start = m.getStartMs();
+      this.end = Math.max(m.getStartMs(), m.getEndMs());
+      this.threads = threads;
+    }
+  }
+
+  private static class Phase {
+    long start;
+    long end;
+    Set<TaskNode> nodes;
+    double threadMs;
+    double cpuMs;
+  }
+
+  private void collect() {
+    int i = 0;
+    for (TaskNode node : (Iterable<TaskNode>) () -> new TopologicalOrderIterator<>(graph)) {
+      for (RunnableDescription rd : node.runDescs) {
+        final TaskMetrics m = rd.pbi == null ? null : metrics.get(rd.pbi);
+        if (m == null || !m.isFinished()) {
+          continue; // skipped or not an external task
+        }
+        final Task t = new Task(node, m, Math.min(budgetThreads, Math.max(1, TaskResources.of(rd.pbi).threads)));
+        tasks.add(t);
+        final long[] span = nodeSpans.computeIfAbsent(node, k -> new long[]{Long.MAX_VALUE, Long.MIN_VALUE});
+        span[0] = Math.min(span[0], t.start);
+        span[1] = Math.max(span[1], t.end);
+        t0 = Math.min(t0, t.start);
+        t1 = Math.max(t1, t.end);
+      }
+      if (nodeSpans.containsKey(node)) {
+        nodeColors.put(node, String.format(Locale.ROOT, "hsl(%d,55%%,70%%)", (i++ * 137) % 360));
+      }
+    }
+    // first slot that is free when the task starts
+    tasks.sort(Comparator.comparingLong(t -> t.start));
+    final List<Long> laneEnds = new ArrayList<>();
+    for (Task t : tasks) {
+      int lane = 0;
+      while (lane < laneEnds.size() && laneEnds.get(lane) > t.start) {
+        lane++;
+      }
+      if (lane == laneEnds.size()) {
+        laneEnds.add(t.end);
+      } else {
+        laneEnds.set(lane, t.end);
+      }
+      t.lane = lane;
+    }
+  }
+
+  /**
+   * Longest chain of dependent nodes, by the time from the first start to the last end of their
+   * tasks.
+   */
+  private List<TaskNode> criticalPath() {
+    final Map<TaskNode, Long> longest = new HashMap<>();
+    final Map<TaskNode, TaskNode> prev = new HashMap<>();
+    TaskNode last = null;
+    for (TaskNode node : (Iterable<TaskNode>) () -> new TopologicalOrderIterator<>(graph)) {
+      long best = 0;
+      for (DefEdge e : graph.incomingEdgesOf(node)) {
+        final TaskNode src = graph.getEdgeSource(e);
+        if (prev.get(node) == null || longest.get(src) > best) {
+          best = longest.get(src);
+          prev.put(node, src);
+        }
+      }
+      final long total = best + duration(node);
+      longest.put(node, total);
+      if (last == null || total > longest.get(last)) {
+        last = node;
+      }
+    }
+    final List<TaskNode> path = new ArrayList<>();
+    for (TaskNode n = last; n != null; n = prev.get(n)) {
+      if (duration(n) > 0) {
+        path.add(n);
+      }
+    }
+    Collections.reverse(path);
+    return path;
+  }
+
+  private long duration(TaskNode node) {
+    final long[] span = nodeSpans.get(node);
+    return span == null ? 0 : span[1] - span[0];
+  }
+
+  /**
+   * A node is running from the first start to the last end of its tasks, short gaps between
+   * them don't start a new phase. Neither do short moments with nothing running.
+   */
+  private List<Phase> phases() {
+    final TreeSet<Long> times = new TreeSet<>();
+    for (Task t : tasks) {
+      times.add(t.start);
+      times.add(t.end);
+    }
+    final List<Phase> phases = new ArrayList<>();
+    Long from = null;
+    for (Long to : times) {
+      if (from != null) {
+        final Set<TaskNode> nodes = new LinkedHashSet<>();
+        for (Map.Entry<TaskNode, long[]> span : nodeSpans.entrySet()) {
+          if (span.getValue()[0] <= from && span.getValue()[1] >= to) {
+            nodes.add(span.getKey());
+          }
+        }
+        double threadMs = 0;
+        double cpuMs = 0;
+        for (Task t : tasks) {
+          if (t.start <= from && t.end >= to && t.end > t.start) {
+            threadMs += (double) t.threads * (to - from);
+            final Long cpu = t.m.getCpuMs();
+            if (cpu != null) {
+              cpuMs += cpu * (double) (to - from) / (t.end - t.start);
+            }
+          }
+        }
+        Phase p = phases.isEmpty() ? null : phases.get(phases.size() - 1);
+        final boolean isBlip = nodes.isEmpty() && to - from < MIN_IDLE_PHASE_MS;
+        if (p == null || !isBlip && !p.nodes.equals(nodes)) {
+          p = new Phase();
+          p.start = from;
+          p.nodes = nodes;
+          phases.add(p);
+        }
+        p.end = to;
+        p.threadMs += threadMs;
+        p.cpuMs += cpuMs;
+      }
+      from = to;
+    }
+    return phases;
+  }
+
+  private String toHtml() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>FragPipe run timeline</title>\n");
+    sb.append("<style>body{font-family:sans-serif;font-size:13px} table{border-collapse:collapse}"
+        + " td,th{border:1px solid #ccc;padding:2px 6px;text-align:right} td:first-child,th:first-child{text-align:left}"
+        + " svg text{font-size:11px}</style></head><body>\n");
+    if (tasks.isEmpty()) {
+      sb.append("<p>No tasks were run.</p></body></html>\n");
+      return sb.toString();
+    }
+    final long makespan = t1 - t0;
+    final List<TaskNode> critical = criticalPath();
+    final List<Phase> phases = phases();
+    double cpuMs = 0;
+    double threadMs = 0;
+    for (Phase p : phases) {
+      cpuMs += p.cpuMs;
+      threadMs += p.threadMs;
+    }
+    final double capacityMs = (double) budgetThreads * makespan;
+
+    sb.append("<h2>Run timeline</h2>\n<p>");
+    sb.append(tasks.size()).append(" tasks in ").append(esc(formatDuration(makespan)));
+    sb.append(", thread budget ").append(budgetThreads);
+    sb.append(String.format(Locale.ROOT, ", threads reserved %.0f%% and CPU used %.0f%% of the budget over the whole run.",
+        100 * threadMs / capacityMs, 100 * cpuMs / capacityMs));
+    sb.append(" Tasks on the critical path have a black border, hover for details.</p>\n");
+    appendChart(sb, new LinkedHashSet<>(critical));
+
+    sb.append("<h2>Critical path</h2>\n<p>The run can't take less than ");
+    sb.append(esc(formatDuration(critical.stream().mapToLong(this::duration).sum())));
+    sb.append(" however many cores are added, speeding up other steps doesn't shorten it.</p>\n");
+    sb.append("<table><tr><th>Step</th><th>Tasks</th><th>Start</th><th>Duration</th><th>Share of run</th></tr>\n");
+    for (TaskNode n : critical) {
+      final long[] span = nodeSpans.get(n);
+      sb.append("<tr><td>").append(esc(n.name)).append("</td><td>")
+          .append(tasks.stream().filter(t -> t.node == n).count()).append("</td><td>")
+          .append(esc(formatDuration(span[0] - t0))).append("</td><td>")
+          .append(esc(formatDuration(span[1] - span[0]))).append("</td><td>")
+          .append(String.format(Locale.ROOT, "%.1f%%", 100.0 * (span[1] - span[0]) / Math.max(1, makespan)))
+          .append("</td></tr>\n");
+    }
+    sb.append("</table>\n");
+
+    sb.append("<h2>Phases</h2>\n<p>Stretches of time with the same steps running. Idle threads are the budget minus");
+    sb.append(" the threads reserved by running tasks, idle cores the budget minus the measured CPU use.</p>\n");
+    sb.append("<table><tr><th>Running</th><th>Start</th><th>Duration</th><th>Threads reserved</th><th>Cores used</th>"
+        + "<th>Idle threads</th><th>Idle core-hours</th></tr>\n");
+    for (Phase p : phases) {
+      final double dur = Math.max(1, p.end - p.start);
+      final double avgThreads = p.threadMs / dur;
+      final double avgCores = p.cpuMs / dur;
+      sb.append("<tr><td>").append(p.nodes.isEmpty() ? "<i>nothing</i>" : esc(joinNames(p.nodes))).append("</td><td>")
+          .append(esc(formatDuration(p.start - t0))).append("</td><td>")
+          .append(esc(formatDuration(p.end - p.start))).append("</td><td>")
+          .append(String.format(Locale.ROOT, "%.1f", avgThreads)).append("</td><td>")
+          .append(String.format(Locale.ROOT, "%.1f", avgCores)).append("</td><td>")
+          .append(String.format(Locale.ROOT, "%.1f", Math.max(0, budgetThreads - avgThreads))).append("</td><td>")
+          .append(String.format(Locale.ROOT, "%.2f", Math.max(0, budgetThreads * dur - p.cpuMs) / 3600e3))
+          .append("</td></tr>\n");
+    }
+    sb.append("</table>\n</body></html>\n");
+    return sb.toString();
+  }
+
+  private void appendChart(StringBuilder sb, Set<TaskNode> critical) {
+    final int lanes = tasks.stream().mapToInt(t -> t.lane).max().orElse(0) + 1;
+    final long makespan = Math.max(1, t1 - t0);
+    final double scale = (double) CHART_WIDTH / makespan;
+    final int height = AXIS_HEIGHT + lanes * ROW_HEIGHT;
+    sb.append(String.format(Locale.ROOT, "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"%d\" height=\"%d\">\n",
+        LABEL_WIDTH + CHART_WIDTH + 10, height + 1));
+    // time axis
+    final long step = tickStep(makespan);
+    for (long t = 0; t <= makespan; t += step) {
+      final double x = LABEL_WIDTH + t * scale;
+      sb.append(String.format(Locale.ROOT, "<line x1=\"%.1f\" y1=\"%d\" x2=\"%.1f\" y2=\"%d\" stroke=\"#ddd\"/>", x, AXIS_HEIGHT - 4, x, height));
+      sb.append(String.format(Locale.ROOT, "<text x=\"%.1f\" y=\"%d\">%s</text>\n", x + 2, AXIS_HEIGHT - 8, esc(formatDuration(t))));
+    }
+    for (int lane = 0; lane < lanes; lane++) {
+      sb.append(String.format(Locale.ROOT, "<text x=\"2\" y=\"%d\">%d</text>\n", AXIS_HEIGHT + lane * ROW_HEIGHT + 14, lane + 1));
+    }
+    for (Task t : tasks) {
+      final double x = LABEL_WIDTH + (t.start - t0) * scale;
+      final double w = Math.max(1, (t.end - t.start) * scale);
+      final int y = AXIS_HEIGHT + t.lane * ROW_HEIGHT;
+      final boolean isCritical = critical.contains(t.node);
+      sb.append(String.format(Locale.ROOT, "<g><title>%s\n%s, %s - %s, %d threads%s</title>",
+          esc(t.m.name), esc(t.node.name), esc(formatDuration(t.start - t0)), esc(formatDuration(t.end - t0)), t.threads,
+          t.m.getCpuMs() == null ? "" : esc(", CPU " + formatDuration(t.m.getCpuMs()))));
+      sb.append(String.format(Locale.ROOT, "<rect x=\"%.1f\" y=\"%d\" width=\"%.1f\" height=\"%d\" fill=\"%s\" stroke=\"%s\" stroke-width=\"%d\"/>",
+          x, y + 1, w, ROW_HEIGHT - 2, nodeColors.get(t.node), isCritical ? "#000" : "#888", isCritical ? 2 : 1));
+      if (w > 60) {
+        sb.append(String.format(Locale.ROOT, "<svg x=\"%.1f\" y=\"%d\" width=\"%.1f\" height=\"%d\"><text x=\"3\" y=\"13\">%s</text></svg>",
+            x, y + 1, w - 2, ROW_HEIGHT - 2, esc(t.m.name)));
+      }
+      sb.append("</g>\n");
+    }
+    sb.append("</svg>\n");
+  }
+
+  /**
+   * About ten ticks on a 1-2-5 scale of seconds, or whole minutes and hours.
+   */
+  private static long tickStep(long makespanMs) {
+    final long[] steps = {1, 2, 5, 10, 15, 30, 60, 120, 300, 600, 900, 1800, 3600, 7200, 14400, 28800, 86400};
+    for (long s : steps) {
+      if (makespanMs / (s * 1000) <= 10) {
+        return s * 1000;
+      }
+    }
+    return 86400 * 1000L;
+  }
+
+  static String formatDuration(long ms) {
+    if (ms < 10000) {
+      return String.format(Locale.ROOT, "%.1fs", ms / 1000.0);
+    }
+    final long sec = Math.round(ms / 1000.0);
+    if (sec < 60) {
+      return sec + "s";
+    }
+    if (sec < 3600) {
+      return String.format(Locale.ROOT, "%dm%02ds", sec / 60, sec % 60);
+    }
+    return String.format(Locale.ROOT, "%dh%02dm", sec / 3600, sec / 60 % 60);
+  }
+
+  private static String joinNames(Set<TaskNode> nodes) {
+    final List<String> names = new ArrayList<>();
+    nodes.forEach(n -> names.add(n.name));
+    return String.join(", ", names);
+  }
+
+  private static String esc(String s) {
+    return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+  }
+}
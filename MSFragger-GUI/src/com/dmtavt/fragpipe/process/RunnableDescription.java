@@ -25,6 +25,7 @@ public class RunnableDescription {
   public final Runnable runnable;
   public final String parallelGroup;
   public final ProcessBuilderInfo pbi;
+  private volatile Integer exitCode;
 
   public RunnableDescription(ProcessDescription description,
       Runnable runnable) {
@@ -39,4 +40,15 @@ public class RunnableDescription {
     this.parallelGroup = parallelGroup;
     this.pbi = pbi;
   }
+
+  /**
+   * @return Null until the task has finished, or if it was stopped before finishing.
+   */
+  public Integer getExitCode() {
+    return exitCode;
+  }
+
+  public void setExitCode(Integer exitCode) {
+    this.exitCode = exitCode;
+  }
 }
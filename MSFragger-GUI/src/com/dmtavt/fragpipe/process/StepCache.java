@@ -0,0 +1,481 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.dmtavt.fragpipe.Version;
+import com.dmtavt.fragpipe.cmd.ProcessBuilderInfo;
+import com.dmtavt.fragpipe.process.RunJournal.Fingerprint;
+import com.dmtavt.fragpipe.process.RunJournal.Snapshot;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Outputs of task graph nodes from previous runs, shared by all workdirs. An index of them is
+ * kept in FragPipe's cache directory.
+ * <p>
+ * A node is probed when it is about to start. Its key is made of the command lines of its tasks
+ * (with the workdir replaced by a placeholder), the tool executables and jars and the FragPipe
+ * version. Along with the key the size and modification time of every input file on the command
+ * lines is taken, small inputs are compared by content, so re-written parameter files still
+ * match. Files the node itself modifies don't count as its inputs.
+ * <p>
+ * When a node with the same key and the same inputs has finished before and all of its outputs
+ * are still as they were, the node is not run. If that happened in the same workdir nothing
+ * needs to be done, otherwise the outputs are copied over from the old workdir, keeping their
+ * modification times so that the inputs of downstream nodes match as well. Files are copied
+ * rather than linked, a tool rewriting a file in place in one workdir must not change the
+ * results in the other.
+ */
+public class StepCache implements AutoCloseable {
+  private static final Logger log = LoggerFactory.getLogger(StepCache.class);
+  public static final String FN = "step-cache.tsv";
+  public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("fragpipe.step-cache", "true"));
+  /** Older entries with the same key are dropped when the index is opened. */
+  private static final int MAX_ENTRIES_PER_KEY = 3;
+  private static final String WD_PLACEHOLDER = "{workdir}";
+
+  private static final String NODE = "NODE";
+  private static final String IN = "IN";
+  private static final String FILE = "FILE";
+  private static final String END = "END";
+
+  private final Path path;
+  private final Path wd;
+  private final FileChannel channel;
+  /** Entries of each key, oldest first. */
+  private final Map<String, List<Entry>> entries = new HashMap<>();
+
+  private StepCache(Path path, Path wd, FileChannel channel) {
+    this.path = path;
+    this.wd = wd.toAbsolutePath().normalize();
+    this.channel = channel;
+  }
+
+  /**
+   * @param index Index file, usually in FragPipe's cache directory.
+   * @param wd Workdir of the run.
+   */
+  public static StepCache open(Path index, Path wd) throws IOException {
+    if (index.getParent() != null) {
+      Files.createDirectories(index.getParent());
+    }
+    final FileChannel ch = FileChannel.open(index, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    final StepCache c = new StepCache(index, wd, ch);
+    final int dropped;
+    synchronized (StepCache.class) {
+      dropped = c.read(new String(Files.readAllBytes(index), UTF_8));
+      if (dropped > 0) {
+        c.compact();
+      }
+    }
+    log.debug("Read step cache index {}, {} keys, {} old entries dropped", index, c.entries.size(), dropped);
+    return c;
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  /**
+   * Must be called right before the node is started, while its inputs are as the tasks will see
+   * them.
+   *
+   * @return Null if the node can't be cached, e.g. it contains tasks that aren't external
+   * processes.
+   */
+  public Probe probe(TaskNode node) {
+    if (node.isEmpty() || node.runDescs.stream().anyMatch(rd -> rd.pbi == null)) {
+      return null;
+    }
+    final StringBuilder sb = new StringBuilder();
+    sb.append(node.name).append('\n');
+    sb.append(Version.version()).append('\n');
+    for (RunnableDescription rd : node.runDescs) {
+      final ProcessBuilderInfo pbi = rd.pbi;
+      sb.append(pbi.name).append('\n');
+      sb.append(pbi.pb.directory() == null ? "" : relative(pbi.pb.directory().toPath())).append('\n');
+      for (String arg : ArgFiles.expand(pbi.pb.command())) {
+        sb.append(arg.replace(wd.toString(), WD_PLACEHOLDER)).append('\0');
+      }
+      sb.append('\n');
+      // only what differs from the environment FragPipe itself got
+      final Map<String, String> env = new TreeMap<>(pbi.pb.environment());
+      env.entrySet().removeAll(System.getenv().entrySet());
+      sb.append(env).append('\n');
+      for (Path p : tools(pbi)) {
+        final Fingerprint fp = Fingerprint.of(p, false);
+        if (fp != null) {
+          sb.append("tool ").append(p).append(' ').append(fp).append('\n');
+        }
+      }
+    }
+    final Set<Path> dirs = new LinkedHashSet<>();
+    final Set<Path> paths = new LinkedHashSet<>();
+    collect(node, dirs, paths);
+    final Probe probe = new Probe(RunJournal.hex(RunJournal.sha1().digest(sb.toString().getBytes(UTF_8))),
+        Snapshot.take(RunJournal.scanDirs(dirs, paths), paths));
+    for (RunnableDescription rd : node.runDescs) {
+      for (Path p : RunJournal.pathArgs(rd.pbi)) {
+        final Fingerprint fp = Fingerprint.of(p, true);
+        if (fp != null) {
+          probe.inputs.put(p, fp);
+        }
+      }
+    }
+    return probe;
+  }
+
+  /**
+   * The executable, the jar it runs and the jars on the class path, those stand for the tool
+   * version.
+   */
+  private static List<Path> tools(ProcessBuilderInfo pbi) {
+    final List<String> cmd = pbi.pb.command();
+    final List<String> candidates = new ArrayList<>();
+    candidates.add(cmd.get(0));
+    for (int i = 1; i < cmd.size() - 1; i++) {
+      final String arg = cmd.get(i);
+      if ("-cp".equals(arg) || "-classpath".equals(arg) || "--class-path".equals(arg)) {
+        for (String entry : cmd.get(i + 1).split(File.pathSeparator)) {
+          candidates.add(entry);
+        }
+      } else if ("-jar".equals(arg)) {
+        // JVM options may come between -jar and the jar, as in the MSFragger command
+        int jar = i + 1;
+        while (jar < cmd.size() - 1 && cmd.get(jar).startsWith("-")) {
+          jar++;
+        }
+        candidates.add(cmd.get(jar));
+      }
+    }
+    final List<Path> tools = new ArrayList<>();
+    for (String s : candidates) {
+      if (s.isEmpty() || s.endsWith("*")) {
+        continue;
+      }
+      try {
+        tools.add(Paths.get(s).toAbsolutePath().normalize());
+      } catch (InvalidPathException ignored) {
+      }
+    }
+    return tools;
+  }
+
+  private String relative(Path p) {
+    final Path abs = p.toAbsolutePath().normalize();
+    return abs.startsWith(wd) ? WD_PLACEHOLDER + "/" + wd.relativize(abs).toString().replace('\\', '/') : abs.toString();
+  }
+
+  /**
+   * Brings the outputs of an earlier run of the node with the same key into the workdir.
+   *
+   * @return True if the outputs are in place and the node doesn't need to run.
+   */
+  public boolean restore(Probe probe, TaskNode node) {
+    final List<Entry> candidates;
+    synchronized (this) {
+      final List<Entry> list = entries.get(probe.key);
+      if (list == null) {
+        return false;
+      }
+      candidates = new ArrayList<>(list);
+    }
+    // newest first, the same workdir before others
+    candidates.sort((a, b) -> a.wd.equals(wd) != b.wd.equals(wd) ? (a.wd.equals(wd) ? -1 : 1) : Long.compare(b.timeMs, a.timeMs));
+    for (Entry e : candidates) {
+      if (!inputsMatch(e, probe)) {
+        continue;
+      }
+      if (!e.isIntact()) {
+        log.debug("Step cache entry for [{}] from {} is no longer intact", node.name, e.wd);
+        continue;
+      }
+      if (e.wd.equals(wd)) {
+        return true;
+      }
+      try {
+        final Map<Path, Fingerprint> copied = copyToWd(e);
+        add(probe.key, node.name, probe.inputs, copied);
+        return true;
+      } catch (IOException ex) {
+        log.warn("Could not copy cached outputs of [" + node.name + "] from " + e.wd, ex);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The inputs the entry was made with must be there now, in the current workdir if they were in
+   * the workdir of the entry.
+   */
+  private boolean inputsMatch(Entry e, Probe probe) {
+    for (Map.Entry<Path, Fingerprint> in : e.inputs.entrySet()) {
+      final Path p = in.getKey().startsWith(e.wd) ? wd.resolve(e.wd.relativize(in.getKey())) : in.getKey();
+      final Fingerprint now = probe.inputs.get(p);
+      if (now == null || !now.sameAs(in.getValue())) {
+        log.debug("Step cache entry from {} has a different input: {}", e.wd, p);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private Map<Path, Fingerprint> copyToWd(Entry e) throws IOException {
+    final Map<Path, Fingerprint> files = new LinkedHashMap<>();
+    for (Map.Entry<Path, Fingerprint> f : e.files.entrySet()) {
+      if (!f.getKey().startsWith(e.wd)) {
+        files.put(f.getKey(), f.getValue()); // outside of the workdir, shared by both runs
+        continue;
+      }
+      final Path target = wd.resolve(e.wd.relativize(f.getKey()));
+      final Fingerprint existing = Fingerprint.of(target, false);
+      if (existing == null || !existing.sameAs(f.getValue())) {
+        if (target.getParent() != null) {
+          Files.createDirectories(target.getParent());
+        }
+        log.debug("Copying cached output {} to {}", f.getKey(), target);
+        Files.copy(f.getKey(), target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+      }
+      files.put(target, f.getValue());
+    }
+    return files;
+  }
+
+  /**
+   * Records the outputs of a node that has finished successfully.
+   *
+   * @param probe Taken when the node was started, files new or changed since then are its
+   * outputs.
+   */
+  public void store(Probe probe, TaskNode node) throws IOException {
+    final Map<Path, Fingerprint> files = new LinkedHashMap<>();
+    for (Path p : probe.before.changed()) {
+      if (RunJournal.isBookkeeping(wd, p)) {
+        continue;
+      }
+      final Fingerprint fp = Fingerprint.of(p, false);
+      if (fp != null) {
+        files.put(p, fp);
+      }
+    }
+    add(probe.key, node.name, probe.inputs, files);
+  }
+
+  /**
+   * Directories the outputs of a node are looked for in by {@link #store}. Tasks that aren't
+   * external processes are taken to write to the working directory.
+   */
+  static Set<Path> outputDirs(TaskNode node, Path wd) {
+    final Set<Path> dirs = new LinkedHashSet<>();
+    final Set<Path> paths = new LinkedHashSet<>();
+    collect(node, dirs, paths);
+    if (wd != null && node.runDescs.stream().anyMatch(rd -> rd.pbi == null)) {
+      dirs.add(wd);
+    }
+    return RunJournal.scanDirs(dirs, paths);
+  }
+
+  private static void collect(TaskNode node, Set<Path> dirs, Set<Path> paths) {
+    for (RunnableDescription rd : node.runDescs) {
+      if (rd.pbi == null) {
+        continue;
+      }
+      if (rd.pbi.pb.directory() != null) {
+        dirs.add(rd.pbi.pb.directory().toPath().toAbsolutePath().normalize());
+      }
+      paths.addAll(RunJournal.pathArgs(rd.pbi));
+      rd.pbi.outputs.forEach(p -> paths.add(p.toAbsolutePath().normalize()));
+    }
+  }
+
+  /**
+   * @param inputs Files that are also among the outputs are left out.
+   */
+  private synchronized void add(String key, String name, Map<Path, Fingerprint> inputs, Map<Path, Fingerprint> files) throws IOException {
+    final Entry e = new Entry(System.currentTimeMillis(), wd);
+    e.inputs.putAll(inputs);
+    e.inputs.keySet().removeAll(files.keySet());
+    e.files.putAll(files);
+    final StringBuilder sb = new StringBuilder();
+    append(sb, key, name, e);
+    write(sb);
+    entries.computeIfAbsent(key, k -> new ArrayList<>()).add(e);
+  }
+
+  private static void append(StringBuilder sb, String key, String name, Entry e) {
+    line(sb, NODE, key, Long.toString(e.timeMs), e.wd.toString(), name);
+    for (Map.Entry<Path, Fingerprint> in : e.inputs.entrySet()) {
+      final Fingerprint fp = in.getValue();
+      line(sb, IN, key, Long.toString(fp.size), Long.toString(fp.mtime), fp.hash == null ? "-" : fp.hash, in.getKey().toString());
+    }
+    for (Map.Entry<Path, Fingerprint> f : e.files.entrySet()) {
+      line(sb, FILE, key, Long.toString(f.getValue().size), Long.toString(f.getValue().mtime), f.getKey().toString());
+    }
+    line(sb, END, key);
+  }
+
+  /**
+   * Appends to the index. Runs of a queue each have their own instance, so the end of the file is
+   * looked up every time.
+   */
+  private void write(StringBuilder sb) throws IOException {
+    final ByteBuffer bb = ByteBuffer.wrap(sb.toString().getBytes(UTF_8));
+    synchronized (StepCache.class) {
+      channel.position(channel.size());
+      while (bb.hasRemaining()) {
+        channel.write(bb);
+      }
+      channel.force(false);
+    }
+  }
+
+  private static void line(StringBuilder sb, String... fields) {
+    for (int i = 0; i < fields.length; i++) {
+      if (i > 0) {
+        sb.append('\t');
+      }
+      sb.append(fields[i].replace('\t', ' ').replace('\n', ' ').replace('\r', ' '));
+    }
+    sb.append('\n');
+  }
+
+  /**
+   * Only entries that have an END line are used.
+   *
+   * @return Number of entries dropped because there are newer ones with the same key.
+   */
+  int read(String text) {
+    final Map<String, Entry> pending = new HashMap<>();
+    final String[] lines = text.split("\n", -1);
+    for (int i = 0; i < lines.length - 1; i++) { // last piece is empty or an incomplete line
+      final String[] f = lines[i].split("\t", -1);
+      try {
+        switch (f[0]) {
+          case NODE:
+            pending.put(f[1], new Entry(Long.parseLong(f[2]), Paths.get(f[3])));
+            break;
+          case IN:
+            if (pending.containsKey(f[1])) {
+              pending.get(f[1]).inputs.put(Paths.get(f[5]),
+                  new Fingerprint(Long.parseLong(f[2]), Long.parseLong(f[3]), "-".equals(f[4]) ? null : f[4]));
+            }
+            break;
+          case FILE:
+            if (pending.containsKey(f[1])) {
+              pending.get(f[1]).files.put(Paths.get(f[4]), new Fingerprint(Long.parseLong(f[2]), Long.parseLong(f[3]), null));
+            }
+            break;
+          case END:
+            final Entry e = pending.remove(f[1]);
+            if (e != null) {
+              entries.computeIfAbsent(f[1], k -> new ArrayList<>()).add(e);
+            }
+            break;
+          default:
+            log.debug("Unknown step cache line: {}", lines[i]);
+        }
+      } catch (RuntimeException e) {
+        log.debug("Skipping malformed step cache line: {}", lines[i]);
+      }
+    }
+    int dropped = 0;
+    for (List<Entry> list : entries.values()) {
+      while (list.size() > MAX_ENTRIES_PER_KEY) {
+        list.remove(0);
+        dropped++;
+      }
+    }
+    return dropped;
+  }
+
+  /**
+   * Rewrites the index with only the entries that are kept.
+   */
+  private void compact() throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, List<Entry>> kv : entries.entrySet()) {
+      for (Entry e : kv.getValue()) {
+        append(sb, kv.getKey(), "", e);
+      }
+    }
+    channel.truncate(0);
+    channel.position(0);
+    write(sb);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Key of a node and the state of its inputs when it was started.
+   */
+  public static class Probe {
+    public final String key;
+    final Snapshot before;
+    final Map<Path, Fingerprint> inputs = new LinkedHashMap<>();
+
+    Probe(String key, Snapshot before) {
+      this.key = key;
+      this.before = before;
+    }
+  }
+
+  private static class Entry {
+    final long timeMs;
+    final Path wd;
+    final Map<Path, Fingerprint> inputs = new LinkedHashMap<>();
+    /** Outputs. */
+    final Map<Path, Fingerprint> files = new LinkedHashMap<>();
+
+    Entry(long timeMs, Path wd) {
+      this.timeMs = timeMs;
+      this.wd = wd;
+    }
+
+    boolean isIntact() {
+      for (Map.Entry<Path, Fingerprint> f : files.entrySet()) {
+        final Fingerprint now = Fingerprint.of(f.getKey(), false);
+        if (now == null || !now.sameAs(f.getValue())) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
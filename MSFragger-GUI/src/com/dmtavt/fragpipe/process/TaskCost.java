@@ -0,0 +1,108 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import com.dmtavt.fragpipe.cmd.ProcessBuilderInfo;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Rough cost of a task: the total size of the existing files and directories named on its
+ * command line. Tasks of one parallel group run the same tool on different inputs, so the size of
+ * the inputs is what tells them apart. Starting the largest ones first keeps a few huge files
+ * from running alone at the end of the group.
+ */
+public class TaskCost {
+
+  private TaskCost() {
+  }
+
+  /**
+   * @return Total size in bytes of the files the command refers to, 0 if none exist (yet).
+   */
+  public static long estimate(ProcessBuilderInfo pbi) {
+    if (pbi == null || pbi.pb == null) {
+      return 0;
+    }
+    final Path dir = pbi.pb.directory() == null ? null : pbi.pb.directory().toPath();
+    long total = 0;
+    for (String arg : ArgFiles.expand(pbi.pb.command())) {
+      final Path p = toPath(dir, arg);
+      if (p != null) {
+        total += size(p);
+      }
+    }
+    return total;
+  }
+
+  /**
+   * The same tasks, most expensive first. Tasks of equal cost keep their order.
+   */
+  public static List<RunnableDescription> largestFirst(List<RunnableDescription> group) {
+    final Map<RunnableDescription, Long> costs = new IdentityHashMap<>();
+    for (RunnableDescription rd : group) {
+      costs.put(rd, estimate(rd.pbi));
+    }
+    final List<RunnableDescription> sorted = new ArrayList<>(group);
+    sorted.sort(Comparator.comparingLong((RunnableDescription rd) -> costs.get(rd)).reversed());
+    return sorted;
+  }
+
+  private static Path toPath(Path dir, String arg) {
+    if (arg.isEmpty() || arg.startsWith("-") || arg.length() > 4096) {
+      return null;
+    }
+    try {
+      final Path p = Paths.get(arg);
+      return p.isAbsolute() || dir == null ? p : dir.resolve(p);
+    } catch (InvalidPathException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Directories are only counted for vendor formats stored as directories, e.g. Bruker .d.
+   *
+   * @return Size in bytes, 0 if it doesn't exist.
+   */
+  public static long size(Path p) {
+    try {
+      if (Files.isRegularFile(p)) {
+        return Files.size(p);
+      }
+      if (Files.isDirectory(p) && p.getFileName() != null
+          && p.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".d")) {
+        try (Stream<Path> files = Files.walk(p)) {
+          return files.filter(Files::isRegularFile).mapToLong(f -> f.toFile().length()).sum();
+        }
+      }
+    } catch (IOException | SecurityException e) {
+      // not a file we can look at, doesn't count
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,30 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import com.dmtavt.fragpipe.cmd.ProcessBuilderInfo;
+import java.io.IOException;
+
+/**
+ * Starts the process of a task. The returned process is handled the same way wherever it runs,
+ * its output is pumped, it can be waited for and destroyed. See {@link TaskExecutors} for which
+ * executor gets used.
+ */
+public interface TaskExecutor {
+
+  Process start(ProcessBuilderInfo pbi) throws IOException;
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import com.dmtavt.fragpipe.cmd.ProcessBuilderInfo;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses where tasks run. Everything runs as local processes, unless remote workers are given
+ * with {@code -Dfragpipe.remote.workers=host1:7071,host2:7071}. Then the per-file tasks named in
+ * {@code -Dfragpipe.remote.tasks} are sent to the workers, see {@link RemoteWorker} for how to
+ * start one.
+ * <p>
+ * Workers must see the files of the run, the workdir included, on a shared filesystem. Where it is
+ * mounted elsewhere than here, give {@code -Dfragpipe.remote.path-map=/local=/remote;...}. If the
+ * workers were started with a token, give it with {@code -Dfragpipe.remote.token}.
+ */
+public class TaskExecutors {
+  private static final Logger log = LoggerFactory.getLogger(TaskExecutors.class);
+  public static final String PROP_WORKERS = "fragpipe.remote.workers";
+  public static final String PROP_TASKS = "fragpipe.remote.tasks";
+  public static final String PROP_PATH_MAP = "fragpipe.remote.path-map";
+  public static final String PROP_TOKEN = "fragpipe.remote.token";
+  /** Tasks that work on one input file at a time and spend most of the run time. */
+  public static final String DEFAULT_TASKS = "MSFragger,PeptideProphet,Crystal-C,Percolator,UmpireSe";
+
+  public static final TaskExecutor LOCAL = pbi -> pbi.pb.start();
+
+  private static volatile TaskExecutor remote;
+  private static volatile Set<String> remoteTasks = new HashSet<>();
+
+  static {
+    final String workers = System.getProperty(PROP_WORKERS, "").trim();
+    if (!workers.isEmpty()) {
+      try {
+        setRemote(new RemoteExecutor(Arrays.asList(workers.split(",")),
+                PathMapping.parse(System.getProperty(PROP_PATH_MAP)), System.getProperty(PROP_TOKEN, "")),
+            Arrays.asList(System.getProperty(PROP_TASKS, DEFAULT_TASKS).split(",")));
+        log.info("Tasks {} run on remote workers {}", remoteTasks, workers);
+      } catch (IllegalArgumentException e) {
+        log.error("Remote workers not used, bad configuration: " + e.getMessage());
+      }
+    }
+  }
+
+  private TaskExecutors() {
+  }
+
+  /**
+   * @param executor Null to run everything locally.
+   * @param taskNames Names of the tasks ({@link ProcessBuilderInfo#name}) to run with the executor.
+   */
+  public static void setRemote(TaskExecutor executor, Collection<String> taskNames) {
+    remoteTasks = taskNames.stream().map(String::trim).filter(s -> !s.isEmpty()).collect(Collectors.toSet());
+    remote = executor;
+  }
+
+  /**
+   * Remote tasks don't use the CPU and memory of this machine.
+   */
+  public static boolean isRemote(ProcessBuilderInfo pbi) {
+    return remote != null && pbi != null && pbi.pb != null && remoteTasks.contains(pbi.name);
+  }
+
+  public static TaskExecutor of(ProcessBuilderInfo pbi) {
+    final TaskExecutor r = remote;
+    return r != null && isRemote(pbi) ? r : LOCAL;
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Resources used by a single task. Wall time and exit code are always known, CPU time, memory
+ * and I/O only for external processes on Linux, where they are sampled from /proc for the whole
+ * process tree by {@link ProcessTreeSampler}. Being sampled, the numbers miss whatever happened
+ * after the last sample of a process, the peak RSS is the largest total seen in one sample (or
+ * the high-water mark of a single process, if larger).
+ */
+public class TaskMetrics {
+  public final String name;
+  public final String command;
+  public final boolean inJvm;
+  private final long startMs;
+  private RunMetrics owner;
+  private long endMs = -1;
+  private Integer exitCode;
+  private long inputBytes = -1;
+  private int threads;
+  private volatile TaskProgress progress;
+  private boolean sampled;
+  private long peakRssBytes;
+  private Live live;
+  private long lastSampleMs;
+  private final long[] lastTotals = new long[4];
+  /** Last values seen for each process of the tree: user and system CPU in ms, bytes read and written. */
+  private final Map<Long, long[]> perPid = new HashMap<>();
+
+  public TaskMetrics(String name, String command, boolean inJvm) {
+    this.name = name;
+    this.command = command;
+    this.inJvm = inJvm;
+    this.startMs = System.currentTimeMillis();
+  }
+
+  /**
+   * Only the first call counts, the owning {@link RunMetrics} is notified then.
+   */
+  public void finished(Integer exitCode) {
+    final RunMetrics o;
+    synchronized (this) {
+      if (endMs >= 0) {
+        return;
+      }
+      this.endMs = System.currentTimeMillis();
+      this.exitCode = exitCode;
+      o = owner;
+    }
+    if (o != null) {
+      o.finished(this);
+    }
+  }
+
+  /**
+   * @param inputBytes Size of the inputs when the task started, see {@link TaskCost}.
+   * @param threads Threads the task was given, 0 if not known.
+   */
+  public synchronized void setInput(long inputBytes, int threads) {
+    this.inputBytes = inputBytes;
+    this.threads = threads;
+  }
+
+  /** @return -1 if not known. */
+  public synchronized long getInputBytes() {
+    return inputBytes;
+  }
+
+  public synchronized int getThreads() {
+    return threads;
+  }
+
+  public void setProgress(TaskProgress progress) {
+    this.progress = progress;
+  }
+
+  /**
+   * @return Null if the output of the task hasn't told anything, see {@link ProgressParser}.
+   */
+  public TaskProgress getProgress() {
+    return progress;
+  }
+
+  /** @return Null while running. */
+  public synchronized Integer getExitCode() {
+    return exitCode;
+  }
+
+  synchronized void setOwner(RunMetrics owner) {
+    this.owner = owner;
+  }
+
+  public synchronized boolean isFinished() {
+    return endMs >= 0;
+  }
+
+  public long getStartMs() {
+    return startMs;
+  }
+
+  /** @return -1 while running. */
+  public synchronized long getEndMs() {
+    return endMs;
+  }
+
+  /**
+   * Called by the sampler with the state of one process of the tree.
+   */
+  synchronized void sample(long pid, long userMs, long sysMs, long readBytes, long writeBytes) {
+    sampled = true;
+    final long[] v = perPid.computeIfAbsent(pid, k -> new long[4]);
+    // counters only grow, a smaller value means the pid was reused
+    v[0] = Math.max(v[0], userMs);
+    v[1] = Math.max(v[1], sysMs);
+    v[2] = Math.max(v[2], readBytes);
+    v[3] = Math.max(v[3], writeBytes);
+  }
+
+  /**
+   * Called by the sampler after all the processes of the tree have been sampled.
+   *
+   * @param treeRssBytes Resident memory of the whole tree in this sample.
+   * @param maxHwmBytes Largest high-water mark of a single process of the tree.
+   * @param alive Number of processes in the tree.
+   */
+  synchronized void sampled(long treeRssBytes, long maxHwmBytes, int alive) {
+    peakRssBytes = Math.max(peakRssBytes, Math.max(treeRssBytes, maxHwmBytes));
+    final long now = System.currentTimeMillis();
+    final long[] totals = {sum(0), sum(1), sum(2), sum(3)};
+    if (lastSampleMs > 0 && now > lastSampleMs) {
+      final double sec = (now - lastSampleMs) / 1000.0;
+      final double cpuMs = (totals[0] - lastTotals[0]) + (totals[1] - lastTotals[1]);
+      live = new Live(now, cpuMs / 10.0 / sec, treeRssBytes,
+          (long) ((totals[2] - lastTotals[2]) / sec), (long) ((totals[3] - lastTotals[3]) / sec), alive);
+    }
+    lastSampleMs = now;
+    System.arraycopy(totals, 0, lastTotals, 0, totals.length);
+  }
+
+  /**
+   * @return Null until the tree has been sampled twice, or where there is no sampling.
+   */
+  public synchronized Live getLive() {
+    return live;
+  }
+
+  private long sum(int i) {
+    long s = 0;
+    for (long[] v : perPid.values()) {
+      s += v[i];
+    }
+    return s;
+  }
+
+  /**
+   * Resource use between the last two samples.
+   */
+  public static class Live {
+    public final long timeMs;
+    /** 100% is one core. */
+    public final double cpuPercent;
+    public final long rssBytes;
+    public final long readBytesPerSec;
+    public final long writeBytesPerSec;
+    public final int processes;
+
+    Live(long timeMs, double cpuPercent, long rssBytes, long readBytesPerSec, long writeBytesPerSec, int processes) {
+      this.timeMs = timeMs;
+      this.cpuPercent = cpuPercent;
+      this.rssBytes = rssBytes;
+      this.readBytesPerSec = readBytesPerSec;
+      this.writeBytesPerSec = writeBytesPerSec;
+      this.processes = processes;
+    }
+  }
+
+  /**
+   * @return Null if not known.
+   */
+  public synchronized Long getCpuMs() {
+    return sampled ? sum(0) + sum(1) : null;
+  }
+
+  /**
+   * Column names and values, null for what is not known. Same order every time.
+   */
+  public synchronized Map<String, Object> toMap() {
+    final Map<String, Object> m = new LinkedHashMap<>();
+    m.put("name", name);
+    m.put("start_ms", startMs);
+    m.put("end_ms", endMs < 0 ? null : endMs);
+    m.put("wall_ms", endMs < 0 ? null : endMs - startMs);
+    m.put("cpu_user_ms", sampled ? sum(0) : null);
+    m.put("cpu_sys_ms", sampled ? sum(1) : null);
+    m.put("peak_rss_bytes", sampled ? peakRssBytes : null);
+    m.put("read_bytes", sampled ? sum(2) : null);
+    m.put("write_bytes", sampled ? sum(3) : null);
+    m.put("processes", sampled ? perPid.size() : null);
+    m.put("input_bytes", inputBytes < 0 ? null : inputBytes);
+    m.put("threads", threads > 0 ? threads : null);
+    m.put("exit_code", exitCode);
+    m.put("in_jvm", inJvm);
+    m.put("command", command);
+    return m;
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dmtavt.fragpipe.process;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A node of the runtime task graph. Holds all the tasks produced by a single command, those are
+ * executed in order (respecting parallel groups), nodes themselves are started as soon as all of
+ * their predecessors in the graph are done.
+ * <p>
+ * Equality is identity based on purpose, the same command can appear in the graph several times.
+ */
+public class TaskNode {
+
+  public final String name;
+  public final List<RunnableDescription> runDescs;
+  /**
+   * False for tasks whose results can't be checked from the files they write (e.g. they
+   * keep state in a Philosopher workspace), those are always run when resuming.
+   */
+  public final boolean resumable;
+
+  public TaskNode(String name, List<RunnableDescription> runDescs) {
+    this(name, runDescs, true);
+  }
+
+  public TaskNode(String name, List<RunnableDescription> runDescs, boolean resumable) {
+    this.name = name;
+    this.runDescs = runDescs == null ? Collections.emptyList() : runDescs;
+    this.resumable = resumable;
+  }
+
+  public boolean isEmpty() {
+    return runDescs.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
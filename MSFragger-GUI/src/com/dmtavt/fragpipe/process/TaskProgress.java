@@ -0,0 +1,89 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Where a running task is, as far as its output tells, see {@link ProgressParser}.
+ */
+public class TaskProgress {
+  /** What the tool is doing, e.g. "MAIN SEARCH" or "ProteinProphet", may be null. */
+  public final String stage;
+  /** Items of the stage done and in total, e.g. files or slices, -1 if not known. */
+  public final int item;
+  public final int items;
+  /** Progress of the current item, -1 if not known. */
+  public final int percent;
+
+  public TaskProgress(String stage, int item, int items, int percent) {
+    this.stage = stage;
+    this.item = item;
+    this.items = items;
+    this.percent = percent;
+  }
+
+  /**
+   * @return Overall progress of the stage in percent, -1 if not known.
+   */
+  public int overallPercent() {
+    if (item >= 0 && items > 0) {
+      if (item == 0) {
+        return 0;
+      }
+      final double inItem = percent < 0 ? 0 : percent / 100.0;
+      return (int) Math.min(100, Math.round(100.0 * (item - 1 + inItem) / items));
+    }
+    return percent;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    final TaskProgress that = (TaskProgress) o;
+    return item == that.item && items == that.items && percent == that.percent && Objects.equals(stage, that.stage);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(stage, item, items, percent);
+  }
+
+  /**
+   * E.g. {@code MAIN SEARCH, 3/10, 45%}.
+   */
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    if (stage != null) {
+      sb.append(stage);
+    }
+    if (items > 0) {
+      sb.append(sb.length() > 0 ? ", " : "").append(String.format(Locale.ROOT, "%d/%d", Math.max(0, item), items));
+    }
+    if (percent >= 0) {
+      sb.append(sb.length() > 0 ? ", " : "").append(percent).append('%');
+    }
+    return sb.toString();
+  }
+}
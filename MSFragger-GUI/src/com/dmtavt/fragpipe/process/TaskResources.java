@@ -0,0 +1,126 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dmtavt.fragpipe.process;
+
+import com.dmtavt.fragpipe.cmd.ProcessBuilderInfo;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * CPU and memory demand of a single task. Either declared explicitly when building a
+ * {@link ProcessBuilderInfo} or inferred from the command line of the process.
+ */
+public class TaskResources {
+
+  public static final TaskResources NONE = new TaskResources(0, 0);
+  private static final Pattern RE_XMX = Pattern.compile("^-Xmx(\\d+)([kKmMgGtT]?)$");
+  private static final Pattern RE_THREADS_EQ = Pattern.compile("^(--threads|--num-threads|--maxthreads|--thread)=(\\d+)$");
+  private static final List<String> THREAD_FLAGS = Arrays.asList("--threads", "--num-threads", "--maxthreads", "--thread");
+
+  public final int threads;
+  public final long ramMb;
+
+  public TaskResources(int threads, long ramMb) {
+    this.threads = Math.max(0, threads);
+    this.ramMb = Math.max(0, ramMb);
+  }
+
+  public static TaskResources ofGb(int threads, int ramGb) {
+    return new TaskResources(threads, ramGb * 1024L);
+  }
+
+  /**
+   * @return Declared resources of the task, if any, otherwise the ones inferred from its command.
+   */
+  public static TaskResources of(ProcessBuilderInfo pbi) {
+    if (pbi == null) {
+      return NONE;
+    }
+    if (pbi.resources != null) {
+      return pbi.resources;
+    }
+    if (pbi.pb == null) {
+      return NONE;
+    }
+    final TaskResources inferred = infer(pbi.pb.command());
+    if (InJvmTask.of(pbi.pb.command()) != null) {
+      // runs on FragPipe's own heap, -Xmx of the command doesn't apply
+      return new TaskResources(inferred.threads, 0);
+    }
+    return inferred;
+  }
+
+  /**
+   * Looks for JVM max heap size (-Xmx) and the common thread count flags of the tools we run.
+   * Every process is assumed to use at least one thread, unknown memory demand is zero.
+   */
+  public static TaskResources infer(List<String> cmd) {
+    int threads = 1;
+    long ramMb = 0;
+    if (cmd == null) {
+      return new TaskResources(threads, ramMb);
+    }
+    for (int i = 0; i < cmd.size(); i++) {
+      final String arg = cmd.get(i);
+      if (arg == null) {
+        continue;
+      }
+      Matcher m = RE_XMX.matcher(arg);
+      if (m.matches()) {
+        ramMb = toMb(Long.parseLong(m.group(1)), m.group(2));
+        continue;
+      }
+      m = RE_THREADS_EQ.matcher(arg);
+      if (m.matches()) {
+        threads = Math.max(1, Integer.parseInt(m.group(2)));
+        continue;
+      }
+      if (THREAD_FLAGS.contains(arg) && i + 1 < cmd.size()) {
+        try {
+          threads = Math.max(1, Integer.parseInt(cmd.get(i + 1).trim()));
+        } catch (NumberFormatException ignored) {
+          // not a number, flag means something else for this tool
+        }
+      }
+    }
+    return new TaskResources(threads, ramMb);
+  }
+
+  private static long toMb(long value, String unit) {
+    switch (unit.toLowerCase(Locale.ROOT)) {
+      case "t":
+        return value * 1024L * 1024L;
+      case "g":
+        return value * 1024L;
+      case "m":
+        return value;
+      case "k":
+        return Math.max(1, value / 1024L);
+      default: // bytes
+        return Math.max(1, value / (1024L * 1024L));
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.ROOT, "%d threads, %d MB", threads, ramMb);
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How fast each tool has been on this machine, from the tasks of earlier runs. Kept in
+ * FragPipe's cache directory, the latest {@value #MAX_PER_TOOL} successful tasks of every tool.
+ * <p>
+ * Tools are told apart by task name. The work of a task is the size of its inputs (see
+ * {@link TaskCost}), the throughput is the input size per thread-second. Tasks with small inputs
+ * take about the same time whatever the input, for those the typical wall time is used.
+ */
+public class ThroughputModel {
+  private static final Logger log = LoggerFactory.getLogger(ThroughputModel.class);
+  public static final String FN = "throughput.tsv";
+  public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("fragpipe.throughput", "true"));
+  private static final int MAX_PER_TOOL = 50;
+  /** Below this the time of a task is not proportional to its input. */
+  private static final long MIN_SCALED_BYTES = 16L * 1024 * 1024;
+  private static final String HEADER = "tool\tinput_bytes\tthreads\twall_ms\tcpu_ms\tend_ms";
+
+  private final Path path;
+  /**
+   * Observations of each tool, oldest first. Never modified once set, a new history replaces it
+   * as a whole, so reading needs no lock.
+   */
+  private volatile Map<String, List<Obs>> byTool = Collections.emptyMap();
+
+  static class Obs {
+    final String tool;
+    final long inputBytes;
+    final int threads;
+    final long wallMs;
+    /** -1 if not known. */
+    final long cpuMs;
+    final long endMs;
+
+    Obs(String tool, long inputBytes, int threads, long wallMs, long cpuMs, long endMs) {
+      this.tool = tool;
+      this.inputBytes = inputBytes;
+      this.threads = Math.max(1, threads);
+      this.wallMs = wallMs;
+      this.cpuMs = cpuMs;
+      this.endMs = endMs;
+    }
+
+    double threadMsPerByte() {
+      return (double) wallMs * threads / inputBytes;
+    }
+  }
+
+  private ThroughputModel(Path path) {
+    this.path = path;
+  }
+
+  /**
+   * Missing or unreadable history makes an empty model, predictions are just not known then.
+   */
+  public static ThroughputModel load(Path path) {
+    final ThroughputModel model = new ThroughputModel(path);
+    synchronized (ThroughputModel.class) {
+      model.byTool = model.read();
+    }
+    return model;
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  private Map<String, List<Obs>> read() {
+    final Map<String, List<Obs>> byTool = new LinkedHashMap<>();
+    if (!Files.exists(path)) {
+      return byTool;
+    }
+    final List<String> lines;
+    try {
+      lines = Files.readAllLines(path, UTF_8);
+    } catch (IOException e) {
+      log.warn("Could not read task throughput history " + path, e);
+      return byTool;
+    }
+    for (String line : lines) {
+      final String[] cols = line.split("\t");
+      if (cols.length != 6 || line.startsWith("tool\t")) {
+        continue;
+      }
+      try {
+        add(byTool, new Obs(cols[0], Long.parseLong(cols[1]), Integer.parseInt(cols[2]), Long.parseLong(cols[3]),
+            Long.parseLong(cols[4]), Long.parseLong(cols[5])));
+      } catch (NumberFormatException e) {
+        log.debug("Skipping bad line in {}: {}", path, line);
+      }
+    }
+    return byTool;
+  }
+
+  private static void add(Map<String, List<Obs>> byTool, Obs obs) {
+    final List<Obs> list = byTool.computeIfAbsent(obs.tool, k -> new ArrayList<>());
+    list.add(obs);
+    if (list.size() > MAX_PER_TOOL) {
+      list.remove(0);
+    }
+  }
+
+  /**
+   * Adds a finished task to the history and saves it. Failed tasks and tasks without input size
+   * are not used.
+   */
+  public void record(TaskMetrics m) {
+    final long endMs = m.getEndMs();
+    if (endMs < 0 || m.getInputBytes() < 0 || !Integer.valueOf(0).equals(m.getExitCode()) || m.name == null) {
+      return;
+    }
+    final Long cpuMs = m.getCpuMs();
+    final Obs obs = new Obs(m.name.replace('\t', ' '), m.getInputBytes(), m.getThreads(), endMs - m.getStartMs(),
+        cpuMs == null ? -1 : cpuMs, endMs);
+    synchronized (ThroughputModel.class) {
+      // other runs may have added to the file in the meantime
+      final Map<String, List<Obs>> updated = read();
+      add(updated, obs);
+      byTool = updated;
+      try {
+        write(updated);
+      } catch (IOException e) {
+        log.warn("Could not save task throughput history to " + path, e);
+      }
+    }
+  }
+
+  private void write(Map<String, List<Obs>> byTool) throws IOException {
+    final StringBuilder sb = new StringBuilder(HEADER).append('\n');
+    for (List<Obs> list : byTool.values()) {
+      for (Obs o : list) {
+        sb.append(String.format(Locale.ROOT, "%s\t%d\t%d\t%d\t%d\t%d\n", o.tool, o.inputBytes, o.threads, o.wallMs, o.cpuMs, o.endMs));
+      }
+    }
+    if (path.getParent() != null) {
+      Files.createDirectories(path.getParent());
+    }
+    final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    Files.write(tmp, sb.toString().getBytes(UTF_8));
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * @param threads Threads the task will use, 0 if not known.
+   * @return Expected wall time in ms, -1 if the tool has no history.
+   */
+  public long predictMs(String tool, long inputBytes, int threads) {
+    final List<Obs> list = byTool.get(tool);
+    if (list == null || list.isEmpty()) {
+      return -1;
+    }
+    if (inputBytes >= MIN_SCALED_BYTES) {
+      final List<Double> rates = new ArrayList<>();
+      for (Obs o : list) {
+        if (o.inputBytes >= MIN_SCALED_BYTES) {
+          rates.add(o.threadMsPerByte());
+        }
+      }
+      if (!rates.isEmpty()) {
+        return Math.round(median(rates) * inputBytes / Math.max(1, threads));
+      }
+    }
+    final List<Double> walls = new ArrayList<>();
+    for (Obs o : list) {
+      walls.add((double) o.wallMs);
+    }
+    return Math.round(median(walls));
+  }
+
+  /**
+   * @return Number of earlier tasks of the tool.
+   */
+  public int count(String tool) {
+    final List<Obs> list = byTool.get(tool);
+    return list == null ? 0 : list.size();
+  }
+
+  /**
+   * @return Typical throughput in MB per thread-second, NaN if not known for the tool.
+   */
+  public double mbPerThreadSec(String tool) {
+    final List<Double> rates = new ArrayList<>();
+    for (Obs o : byTool.getOrDefault(tool, Collections.emptyList())) {
+      if (o.inputBytes >= MIN_SCALED_BYTES && o.wallMs > 0) {
+        rates.add(o.threadMsPerByte());
+      }
+    }
+    return rates.isEmpty() ? Double.NaN : 1000.0 / median(rates) / (1024 * 1024);
+  }
+
+  private static double median(List<Double> values) {
+    final List<Double> sorted = new ArrayList<>(values);
+    Collections.sort(sorted);
+    final int n = sorted.size();
+    return n % 2 == 1 ? sorted.get(n / 2) : (sorted.get(n / 2 - 1) + sorted.get(n / 2)) / 2;
+  }
+}
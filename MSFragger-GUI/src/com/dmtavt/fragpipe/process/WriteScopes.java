@@ -0,0 +1,80 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Directories that running tasks or task graph nodes may write to. Outputs are found as the files
+ * that are new or changed in those directories after something ran, which only tells whose they
+ * are if nothing else ran in any of the same directories at the same time. A scope that overlapped
+ * with another one while it was open is shared, its outputs can't be told apart that way.
+ */
+class WriteScopes {
+  /** Tasks of all runs, the runs of a queue may share directories. */
+  static final WriteScopes TASKS = new WriteScopes();
+  /** Task graph nodes, from the start of their first task to the end of their last one. */
+  static final WriteScopes NODES = new WriteScopes();
+
+  private final Set<Scope> open = new HashSet<>();
+
+  /**
+   * Opens a scope, it has to be closed once whatever ran in it is done.
+   */
+  Scope enter(Set<Path> dirs) {
+    final Scope s = new Scope(this, dirs);
+    synchronized (open) {
+      for (Scope o : open) {
+        if (!Collections.disjoint(o.dirs, s.dirs)) {
+          o.shared = true;
+          s.shared = true;
+        }
+      }
+      open.add(s);
+    }
+    return s;
+  }
+
+  static class Scope implements AutoCloseable {
+    final Set<Path> dirs;
+    private final WriteScopes owner;
+    private volatile boolean shared;
+
+    private Scope(WriteScopes owner, Set<Path> dirs) {
+      this.owner = owner;
+      this.dirs = new LinkedHashSet<>(dirs);
+    }
+
+    /**
+     * @return True if something else ran in one of the directories while the scope was open.
+     */
+    boolean isShared() {
+      return shared;
+    }
+
+    @Override
+    public void close() {
+      synchronized (owner.open) {
+        owner.open.remove(this);
+      }
+    }
+  }
+}
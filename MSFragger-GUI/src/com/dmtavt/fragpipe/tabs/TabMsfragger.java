@@ -42,6 +42,7 @@ import com.dmtavt.fragpipe.messages.NoteConfigDbsplit;
 import com.dmtavt.fragpipe.messages.NoteConfigMsfragger;
 import com.dmtavt.fragpipe.params.Props.Prop;
 import com.dmtavt.fragpipe.params.ThisAppProps;
+import com.dmtavt.fragpipe.tools.dbsplit.SliceCountEstimator;
 import com.dmtavt.fragpipe.tools.enums.CleavageType;
 import com.dmtavt.fragpipe.tools.enums.FraggerOutputType;
 import com.dmtavt.fragpipe.tools.enums.FraggerPrecursorMassMode;
@@ -55,6 +56,8 @@ import com.dmtavt.fragpipe.tools.fragger.MsfraggerEnzyme;
 import com.dmtavt.fragpipe.tools.fragger.MsfraggerParams;
 import com.dmtavt.fragpipe.tools.fragger.MsfraggerProps;
 import com.github.chhh.utils.MapUtils;
+import com.github.chhh.utils.OsUtils;
+import com.github.chhh.utils.PathUtils;
 import com.github.chhh.utils.StringUtils;
 import com.github.chhh.utils.SwingUtils;
 import com.github.chhh.utils.swing.DocumentFilters;
@@ -296,6 +299,7 @@ public class TabMsfragger extends JPanelBase {
   public UiCombo uiComboOutputType;
   private UiCombo uiComboMassMode;
   private UiSpinnerInt uiSpinnerDbsplit;
+  private JButton btnDbsplitRecommend;
   private UiCheck uiCheckLocalizeDeltaMass;
   private UiText uiTextCustomIonSeries;
   private JLabel labelCustomIonSeries;
@@ -385,6 +389,7 @@ public class TabMsfragger extends JPanelBase {
 
     updateEnabledStatus(this, false); // will get enabled once we receive NoteConfigMsfragger
     updateEnabledStatus(uiSpinnerDbsplit, false); // only gets enabled when DbSlice2 is initialized
+    updateEnabledStatus(btnDbsplitRecommend, false);
 
     // TODO: ACHTUNG: temporary fix, disabling "Define custom ion series field"
     // Remove when custom ion series work properly in msfragger
@@ -727,6 +732,10 @@ public class TabMsfragger extends JPanelBase {
     FormEntry feDbsplit = mu.feb(PROP_misc_slice_db, uiSpinnerDbsplit).label("<html>Split database")
         .tooltip("<html>Split database into smaller chunks.\n"
             + "Only use for very large databases (200MB+) or<br/>non-specific digestion.").create();
+    btnDbsplitRecommend = new JButton("Recommend");
+    btnDbsplitRecommend.setToolTipText("<html>Digests the database with the current settings and sets the smallest<br/>"
+        + "number of splits whose index fits into the RAM set on the Workflow tab.");
+    btnDbsplitRecommend.addActionListener(this::actionDbsplitRecommend);
 
 
     mu.add(p, feCleavageType.label(), mu.ccL()).span(2).split(13);
@@ -774,8 +783,9 @@ public class TabMsfragger extends JPanelBase {
     mu.add(p, new JLabel("-"));
     mu.add(p, fePepMassHi.comp);
 
-    mu.add(p, feDbsplit.label()).gapLeft("10px").split(2);
-    mu.add(p, feDbsplit.comp).pushX().wrap();
+    mu.add(p, feDbsplit.label()).gapLeft("10px").split(3);
+    mu.add(p, feDbsplit.comp);
+    mu.add(p, btnDbsplitRecommend).pushX().wrap();
 
     return p;
   }
@@ -1607,6 +1617,43 @@ public class TabMsfragger extends JPanelBase {
   public void on(NoteConfigDbsplit m) {
     log.debug("Got NoteConfigDbsplit. Setting MSFragger tab DB Split option to enabled={}", m.isValid());
     updateEnabledStatus(uiSpinnerDbsplit, m.isValid());
+    updateEnabledStatus(btnDbsplitRecommend, m.isValid());
+  }
+
+  private void actionDbsplitRecommend(ActionEvent e) {
+    final Path fasta = PathUtils.existing(Fragpipe.getStickyStrict(TabDatabase.class).getFastaPath());
+    if (fasta == null) {
+      JOptionPane.showMessageDialog(this, "Select a FASTA file on the Database tab first.", "No database", JOptionPane.WARNING_MESSAGE);
+      return;
+    }
+    final TabWorkflow tabWorkflow = Fragpipe.getStickyStrict(TabWorkflow.class);
+    final int ramGb = tabWorkflow.getRamGb() > 0 ? tabWorkflow.getRamGb() : OsUtils.getDefaultXmx();
+    final long largestInput = SliceCountEstimator.largestInput(tabWorkflow.getLcmsFiles());
+    final MsfraggerParams params = getParams();
+    btnDbsplitRecommend.setEnabled(false);
+    new Thread(() -> {
+      try {
+        final SliceCountEstimator.Estimate est = SliceCountEstimator.estimate(fasta, params, largestInput, ramGb);
+        log.info("Database split estimate: {}", est);
+        SwingUtilities.invokeLater(() -> {
+          btnDbsplitRecommend.setEnabled(true);
+          if (est.slices > 0) {
+            setNumDbSlices(est.slices);
+          }
+          JOptionPane.showMessageDialog(this, est.slices > 0
+              ? "<html>Database split set to " + est.slices + ".<br/><br/>" + est
+              : "<html>No database split fits into " + ramGb + " GB, increase the RAM on the Workflow tab.<br/><br/>" + est,
+              "Database split", est.slices > 0 ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.WARNING_MESSAGE);
+        });
+      } catch (IOException | RuntimeException ex) {
+        log.error("Could not estimate the number of database splits", ex);
+        SwingUtilities.invokeLater(() -> {
+          btnDbsplitRecommend.setEnabled(true);
+          JOptionPane.showMessageDialog(this, "Could not estimate the number of database splits:\n" + ex.getMessage(),
+              "Database split", JOptionPane.ERROR_MESSAGE);
+        });
+      }
+    }).start();
   }
 
   @Subscribe
@@ -23,6 +23,7 @@ import static com.dmtavt.fragpipe.messages.MessagePrintToConsole.toConsole;
 import com.dmtavt.fragpipe.Fragpipe;
 import com.dmtavt.fragpipe.FragpipeLocations;
 import com.dmtavt.fragpipe.FragpipeRun;
+import com.dmtavt.fragpipe.RunQueue;
 import com.dmtavt.fragpipe.Version;
 import com.dmtavt.fragpipe.api.Bus;
 import com.dmtavt.fragpipe.cmd.CmdMsfragger;
@@ -37,9 +38,16 @@ import com.dmtavt.fragpipe.messages.MessageKillAll.REASON;
 import com.dmtavt.fragpipe.messages.MessagePrintToConsole;
 import com.dmtavt.fragpipe.messages.MessageRun;
 import com.dmtavt.fragpipe.messages.MessageRunButtonEnabled;
+import com.dmtavt.fragpipe.messages.MessageRunMetrics;
 import com.dmtavt.fragpipe.messages.MessageSaveLog;
 import com.dmtavt.fragpipe.messages.MessageShowAboutDialog;
 import com.dmtavt.fragpipe.process.ProcessResult;
+import com.dmtavt.fragpipe.process.ResourceBudget;
+import com.dmtavt.fragpipe.process.RunEta;
+import com.dmtavt.fragpipe.process.RunMetrics;
+import com.dmtavt.fragpipe.process.TaskMetrics;
+import com.dmtavt.fragpipe.process.TaskProgress;
+import com.github.chhh.utils.OsUtils;
 import com.github.chhh.utils.PathUtils;
 import com.github.chhh.utils.StringUtils;
 import com.github.chhh.utils.SwingUtils;
@@ -50,6 +58,7 @@ import com.github.chhh.utils.swing.JPanelWithEnablement;
 import com.github.chhh.utils.swing.MigUtils;
 import com.github.chhh.utils.swing.TextConsole;
 import com.github.chhh.utils.swing.UiCheck;
+import com.github.chhh.utils.swing.UiSpinnerInt;
 import com.github.chhh.utils.swing.UiText;
 import com.github.chhh.utils.swing.UiUtils;
 import java.awt.Color;
@@ -73,7 +82,9 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
@@ -84,8 +95,15 @@ import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.UIManager;
+import javax.swing.table.DefaultTableCellRenderer;
+import javax.swing.table.DefaultTableModel;
+import javax.swing.table.TableCellRenderer;
 import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 import org.jooq.lambda.Seq;
@@ -103,12 +121,24 @@ public class TabRun extends JPanelWithEnablement {
   Color defTextColor;
   private UiText uiTextWorkdir;
   private UiCheck uiCheckDryRun;
+  private UiCheck uiCheckResume;
+  private UiCheck uiCheckIsolateFailures;
   private JButton btnRun;
+  private JButton btnRunQueue;
+  private JLabel labelQueue;
+  private UiSpinnerInt uiSpinnerQueueParallel;
+  private final RunQueue runQueue = new RunQueue();
   private JButton btnOpenPdv;
   private JButton btnClosePdv;
   private Thread pdvThread = null;
   private JPanel pTop;
   private JPanel pConsole;
+  private JPanel pRunning;
+  private DefaultTableModel runningModel;
+  private JLabel labelEta;
+  private volatile RunMetrics runMetrics;
+  private static final int RUNNING_REFRESH_MS = 2000;
+  private static final String[] RUNNING_COLUMNS = {"Task", "Progress", "Time", "CPU", "RSS", "Read", "Write", "Processes"};
   private UiCheck uiCheckWordWrap;
   private Process pdvProcess = null;
 
@@ -140,6 +170,7 @@ public class TabRun extends JPanelWithEnablement {
   @Subscribe(threadMode = ThreadMode.BACKGROUND)
   public void on(MessageRunButtonEnabled m) {
     btnRun.setEnabled(m.isEnabled);
+    btnRunQueue.setEnabled(m.isEnabled);
     btnOpenPdv.setEnabled(m.isEnabled); // When Run button is gray, disable the PDV button. When Run button is not gray, also enable the PDV button.
     btnClosePdv.setEnabled(false);
   }
@@ -179,6 +210,43 @@ public class TabRun extends JPanelWithEnablement {
     toConsole(null, m.output, false); // print with ANSI colors
   }
 
+  @Subscribe(sticky = true, threadMode = ThreadMode.MAIN_ORDERED)
+  public void on(MessageRunMetrics m) {
+    runMetrics = m.metrics;
+    refreshRunning();
+  }
+
+  /**
+   * Live resource use of the running tasks, from the samples of their process trees.
+   */
+  private void refreshRunning() {
+    final RunMetrics rm = runMetrics;
+    final List<TaskMetrics> running = rm == null ? new ArrayList<>() : rm.getRunning();
+    final long now = System.currentTimeMillis();
+    runningModel.setRowCount(0);
+    for (TaskMetrics tm : running) {
+      final TaskMetrics.Live live = tm.getLive();
+      final long sec = (now - tm.getStartMs()) / 1000;
+      runningModel.addRow(new Object[]{
+          tm.name,
+          tm.getProgress(),
+          String.format(Locale.ROOT, "%d:%02d:%02d", sec / 3600, sec / 60 % 60, sec % 60),
+          live == null ? "-" : String.format(Locale.ROOT, "%.0f%%", live.cpuPercent),
+          live == null ? "-" : RunMetrics.formatBytes(live.rssBytes),
+          live == null ? "-" : RunMetrics.formatBytes(live.readBytesPerSec) + "/s",
+          live == null ? "-" : RunMetrics.formatBytes(live.writeBytesPerSec) + "/s",
+          live == null ? "-" : Integer.toString(live.processes)});
+    }
+    final RunEta eta = rm == null ? null : rm.getEta();
+    final String counts = rm == null ? "" : rm.stepCounts();
+    final String left = eta == null || running.isEmpty() ? "" : "Time left: " + eta.remainingLine(rm);
+    labelEta.setText(counts.isEmpty() ? left : (left.isEmpty() ? counts : counts + " | " + left));
+    if (pRunning.isVisible() == running.isEmpty()) {
+      pRunning.setVisible(!running.isEmpty());
+      revalidate();
+    }
+  }
+
   @Subscribe(threadMode = ThreadMode.ASYNC)
   public void on(MessageRun m) {
     int returnCode = FragpipeRun.run(m);
@@ -219,7 +287,64 @@ public class TabRun extends JPanelWithEnablement {
     }
 
     uiCheckDryRun = UiUtils.createUiCheck("Dry Run", false);
-    btnRun = UiUtils.createButton("<html><b>RUN", e -> Bus.post(new MessageRun(isDryRun())));
+    uiCheckResume = UiUtils.createUiCheck("Resume", false);
+    uiCheckResume.setToolTipText("<html>Skip the steps that have completed in a previous run in the same output directory,<br/>\n"
+        + "if their results haven't changed since. Steps that use a Philosopher workspace are always re-run.");
+    uiCheckIsolateFailures = UiUtils.createUiCheck("Isolate failures", Fragpipe.headless && Fragpipe.isolateFailures);
+    uiCheckIsolateFailures.setToolTipText("<html>When a per-file step (DIA-Umpire, MSFragger, Crystal-C, PeptideProphet, Percolator) fails,<br/>\n"
+        + "only drop its input files instead of stopping the whole run. The failed inputs are listed at the end.");
+    btnRun = UiUtils.createButton("<html><b>RUN", e -> Bus.post(new MessageRun(isDryRun(), isResume())));
+
+    JButton btnAddToQueue = UiUtils.createButton("Add to queue", e -> {
+      final String wd = getWorkdirText();
+      if (StringUtils.isBlank(wd)) {
+        SwingUtils.showInfoDialog(TabRun.this, "Please set the output directory first", "No output directory");
+        return;
+      }
+      try {
+        runQueue.add(RunQueue.snapshot(Paths.get(wd)));
+      } catch (Exception ex) {
+        SwingUtils.showErrorDialogWithStacktrace(ex, TabRun.this);
+      }
+      updateQueueLabel();
+    });
+    btnAddToQueue.setToolTipText("<html>Saves the current workflow, LC-MS files and output directory as a run of the queue.<br/>\n"
+        + "The UI can then be set up for the next run.");
+    btnRunQueue = UiUtils.createButton("Run queue", e -> {
+      if (runQueue.getEntries().isEmpty()) {
+        SwingUtils.showInfoDialog(TabRun.this, "Add runs to the queue first", "Empty queue");
+        return;
+      }
+      // threads and RAM set in the workflow tab are the budget of the whole queue
+      final TabWorkflow tabWorkflow = Fragpipe.getStickyStrict(TabWorkflow.class);
+      final ResourceBudget budget = ResourceBudget.ofGb(tabWorkflow.getThreads(),
+          tabWorkflow.getRamGb() > 0 ? tabWorkflow.getRamGb() : OsUtils.getDefaultXmx());
+      final int parallel = uiSpinnerQueueParallel.getActualValue();
+      final boolean isDryRun = isDryRun();
+      final boolean isResume = isResume();
+      Thread t = new Thread(() -> {
+        try {
+          runQueue.run(parallel, budget, isDryRun, isResume);
+        } catch (InterruptedException ex) {
+          log.debug("Interrupted while running the queue", ex);
+        } finally {
+          runQueue.clear();
+          SwingUtilities.invokeLater(this::updateQueueLabel);
+        }
+      }, "run-queue");
+      t.setDaemon(true);
+      t.start();
+    });
+    btnRunQueue.setToolTipText("<html>Runs the queued runs, the threads and RAM of the current workflow are shared by all of them.<br/>\n"
+        + "The workflow and LC-MS files of each run are loaded into the UI when it is started.");
+    JButton btnClearQueue = UiUtils.createButton("Clear queue", e -> {
+      runQueue.clear();
+      updateQueueLabel();
+    });
+    uiSpinnerQueueParallel = new UiSpinnerInt(1, 1, 64, 1, 2);
+    uiSpinnerQueueParallel.setToolTipText("Number of runs of the queue going at the same time");
+    labelQueue = new JLabel();
+    updateQueueLabel();
 
     JButton btnStop = UiUtils.createButton("Stop", e -> {
       Bus.post(new MessageKillAll(REASON.USER_ACTION));
@@ -319,9 +444,17 @@ public class TabRun extends JPanelWithEnablement {
     mu.add(p, feWorkdir.comp).growX();
     mu.add(p, btnBrowse);
     mu.add(p, btnOpenInFileManager).wrap();
-    mu.add(p, btnRun).split(3);
+    mu.add(p, btnRun).split(11);
     mu.add(p, btnStop);
     mu.add(p, uiCheckDryRun);
+    mu.add(p, uiCheckResume);
+    mu.add(p, uiCheckIsolateFailures);
+    mu.add(p, btnAddToQueue).gapLeft("20");
+    mu.add(p, btnRunQueue);
+    mu.add(p, btnClearQueue);
+    mu.add(p, new JLabel("Runs at a time:"));
+    mu.add(p, uiSpinnerQueueParallel);
+    mu.add(p, labelQueue);
     mu.add(p, imageLabel).gapLeft("50").split(3);
     mu.add(p, btnOpenPdv);
     mu.add(p, btnClosePdv).pushX();
@@ -333,10 +466,24 @@ public class TabRun extends JPanelWithEnablement {
     return p;
   }
 
+  private void updateQueueLabel() {
+    final List<RunQueue.Entry> entries = runQueue.getEntries();
+    labelQueue.setText(entries.size() + (entries.size() == 1 ? " run queued" : " runs queued"));
+    labelQueue.setToolTipText(entries.isEmpty() ? null : "<html>" + entries.stream().map(Object::toString).collect(Collectors.joining("<br/>")));
+  }
+
   public boolean isDryRun() {
     return SwingUtils.isEnabledAndChecked(uiCheckDryRun);
   }
 
+  public boolean isResume() {
+    return SwingUtils.isEnabledAndChecked(uiCheckResume);
+  }
+
+  public boolean isIsolateFailures() {
+    return SwingUtils.isEnabledAndChecked(uiCheckIsolateFailures);
+  }
+
   protected void init() {
     defTextColor = UIManager.getColor("TextField.foreground");
     if (defTextColor == null) {
@@ -347,12 +494,61 @@ public class TabRun extends JPanelWithEnablement {
     pTop.setPreferredSize(new Dimension(400, 50));
     initConsole(console);
     pConsole = createPanelConsole(console);
+    pRunning = createPanelRunning();
 
     mu.layout(this, mu.lcNoInsetsTopBottom().fillX());
     mu.add(this, pTop).growX().alignY("top").wrap();
+    mu.add(this, pRunning).growX().alignY("top").hideMode(3).wrap();
     mu.add(this, pConsole).grow().push().alignY("top").wrap();
   }
 
+  private JPanel createPanelRunning() {
+    JPanel p = mu.newPanel("Running tasks", mu.lcNoInsetsTopBottom());
+    runningModel = new DefaultTableModel(RUNNING_COLUMNS, 0) {
+      @Override
+      public boolean isCellEditable(int row, int column) {
+        return false;
+      }
+    };
+    JTable table = new JTable(runningModel);
+    table.setFillsViewportHeight(true);
+    table.getColumnModel().getColumn(0).setPreferredWidth(250);
+    table.getColumnModel().getColumn(1).setPreferredWidth(250);
+    table.getColumnModel().getColumn(1).setCellRenderer(new ProgressRenderer());
+    JScrollPane scroll = SwingUtils.wrapInScroll(table);
+    scroll.setPreferredSize(new Dimension(400, 110));
+    mu.add(p, scroll).growX().pushX().wrap();
+    labelEta = new JLabel();
+    mu.add(p, labelEta).growX().wrap();
+    p.setVisible(false);
+    new Timer(RUNNING_REFRESH_MS, e -> refreshRunning()).start();
+    return p;
+  }
+
+  /**
+   * Progress of a task as a bar, with what the task is doing written on it.
+   */
+  private static class ProgressRenderer implements TableCellRenderer {
+    private final JProgressBar bar = new JProgressBar(0, 100);
+    private final DefaultTableCellRenderer none = new DefaultTableCellRenderer();
+
+    ProgressRenderer() {
+      bar.setStringPainted(true);
+    }
+
+    @Override
+    public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int column) {
+      if (!(value instanceof TaskProgress)) {
+        return none.getTableCellRendererComponent(table, "-", isSelected, hasFocus, row, column);
+      }
+      final TaskProgress p = (TaskProgress) value;
+      final int percent = p.overallPercent();
+      bar.setValue(Math.max(0, percent));
+      bar.setString(p.toString());
+      return bar;
+    }
+  }
+
   private JPanel createPanelConsole(TextConsole tc) {
     JPanel p = mu.newPanel("Console", mu.lcNoInsetsTopBottom());
 
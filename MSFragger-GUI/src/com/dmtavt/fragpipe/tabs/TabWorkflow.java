@@ -503,7 +503,7 @@ public class TabWorkflow extends JPanelWithEnablement {
 
     uiSpinnerRam = new UiSpinnerInt(0, 0, 1024, 1, 3);
     FormEntry feRam = fe(uiSpinnerRam, "ram").label("RAM (GB, 0=auto)").tooltip("Leave at zero to automatically use a reasonable amount of memory").create();
-    uiSpinnerThreads = new UiSpinnerInt(Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, maxProcessors)), 1, maxProcessors, 1);
+    uiSpinnerThreads = new UiSpinnerInt(Math.max(1, Math.min(OsUtils.getAvailableProcessors() - 1, maxProcessors)), 1, maxProcessors, 1);
     FormEntry feThreads = fe(uiSpinnerThreads, "threads").label("Parallelism").create();
 
     mu.add(p, feRam.label()).split();
@@ -519,7 +519,7 @@ public class TabWorkflow extends JPanelWithEnablement {
   }
 
   public int getThreads() {
-    return uiSpinnerThreads.getActualValue() > 0 ? uiSpinnerThreads.getActualValue() : Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), maxProcessors));
+    return uiSpinnerThreads.getActualValue() > 0 ? uiSpinnerThreads.getActualValue() : Math.max(1, Math.min(OsUtils.getAvailableProcessors(), maxProcessors));
   }
 
   public enum InputDataType {RegularMs, ImMsTimsTof}
@@ -1188,7 +1188,7 @@ public class TabWorkflow extends JPanelWithEnablement {
     });
   }
 
-  private void manifestSave(Path path) throws IOException {
+  public void manifestSave(Path path) throws IOException {
     ArrayList<InputLcmsFile> files = tableModelRawFiles.dataCopy();
     String manifest = files.stream().map(f -> String.format("%s\t%s\t%s\t%s",
         f.getPath().toAbsolutePath().normalize(),
@@ -1355,6 +1355,16 @@ public class TabWorkflow extends JPanelWithEnablement {
 
   @Subscribe(threadMode = ThreadMode.BACKGROUND)
   public void on(MessageManifestLoad m) {
+    if (m.path != null) {
+      tableModelRawFiles.dataClear();
+      try {
+        manifestLoad(m.path);
+      } catch (IOException e) {
+        log.error("Could not load manifest " + m.path, e);
+      }
+      Fragpipe.loadManifestDone.countDown();
+      return;
+    }
     String loc = Fragpipe.propsVarGet(ThisAppProps.CONFIG_SAVE_LOCATION);
     JFileChooser fc = FileChooserUtils.builder("Load manifest").paths(Stream.of(loc)).mode(FcMode.ANY).approveButton("Load").multi(false).acceptAll(true).filters(Collections.singletonList(fileNameEndingFilter)).create();
     fc.setFileFilter(fileNameEndingFilter);
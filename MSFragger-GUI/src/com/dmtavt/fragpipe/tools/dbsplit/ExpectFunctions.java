@@ -0,0 +1,90 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.tools.dbsplit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Expect value functions of the spectra of one input, as fitted by MSFragger from the score
+ * histograms of all slices ({@code --generate_expect_functions}). One line per spectrum, in the
+ * order of the spectrum index: {@code a0 a1 limit}, the expect value of a hyperscore {@code h} is
+ * {@code max(10^(a0 + a1 * h), limit)}.
+ */
+final class ExpectFunctions {
+  private double[] a0;
+  private double[] a1;
+  private double[] limit;
+  private int size;
+
+  private ExpectFunctions() {
+    a0 = new double[1024];
+    a1 = new double[1024];
+    limit = new double[1024];
+  }
+
+  static ExpectFunctions read(Path path) throws IOException {
+    final ExpectFunctions f = new ExpectFunctions();
+    try (BufferedReader br = Files.newBufferedReader(path, UTF_8)) {
+      String line;
+      while ((line = br.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty()) {
+          continue;
+        }
+        final String[] parts = line.split("\\s+");
+        if (parts.length < 3) {
+          throw new IOException("Expected 3 columns in expect functions file " + path + ", got: " + line);
+        }
+        f.add(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+      }
+    } catch (NumberFormatException e) {
+      throw new IOException("Could not parse expect functions file " + path, e);
+    }
+    return f;
+  }
+
+  private void add(double a0, double a1, double limit) {
+    if (size == this.a0.length) {
+      final int n = size * 2;
+      this.a0 = Arrays.copyOf(this.a0, n);
+      this.a1 = Arrays.copyOf(this.a1, n);
+      this.limit = Arrays.copyOf(this.limit, n);
+    }
+    this.a0[size] = a0;
+    this.a1[size] = a1;
+    this.limit[size] = limit;
+    size++;
+  }
+
+  /**
+   * @param index Spectrum index as in pepXML, starts at 1.
+   */
+  boolean has(int index) {
+    return index >= 1 && index <= size;
+  }
+
+  double expect(int index, double hyperscore) {
+    final int i = index - 1;
+    return Math.max(Math.pow(10, a0[i] + a1[i] * hyperscore), limit[i]);
+  }
+}
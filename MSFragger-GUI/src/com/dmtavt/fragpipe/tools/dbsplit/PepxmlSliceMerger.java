@@ -0,0 +1,525 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.tools.dbsplit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Merges the pepXML files the slices of a split database search wrote for one input. The files
+ * are read side by side, one spectrum query at a time, in the order of the spectrum index. The
+ * hits of a spectrum from all slices are ranked again by hyperscore, the best ones kept, and their
+ * expect values recomputed from the expect functions of the whole database. Memory use doesn't
+ * depend on the size of the files, apart from the proteins of peptides that more than one slice
+ * reported, see {@link SharedPeptides}.
+ */
+final class PepxmlSliceMerger {
+  private static final String HYPERSCORE = "<search_score name=\"hyperscore\" value=\"";
+  private static final String NEXTSCORE = "<search_score name=\"nextscore\" value=\"";
+  private static final String EXPECT = "<search_score name=\"expect\" value=\"";
+  private static final Pattern RE_DATE = Pattern.compile("(\\sdate=\")[^\"]*(\")");
+  private static final Pattern RE_SUMMARY_XML = Pattern.compile("(\\ssummary_xml=\")[^\"]*(\")");
+  private static final int REPORT_EVERY = 1 << 14;
+
+  private final int topN;
+  private final double maxExpect;
+  private final ExpectFunctions expect;
+  private final Map<String, List<Protein>> proteins;
+  private final Map<String, String> headerReplacements;
+  private final Consumer<String> out;
+
+  /**
+   * @param expect Null to keep the expect values of the slices.
+   * @param proteins Proteins of peptides found in several slices, from
+   * {@link #sharedProteins(List)}.
+   * @param headerReplacements Literal replacements in the header, e.g. the database file name
+   * of the slices for the path of the whole database.
+   */
+  PepxmlSliceMerger(int topN, double maxExpect, ExpectFunctions expect, Map<String, List<Protein>> proteins,
+      Map<String, String> headerReplacements, Consumer<String> out) {
+    this.topN = Math.max(1, topN);
+    this.maxExpect = maxExpect;
+    this.expect = expect;
+    this.proteins = proteins;
+    this.headerReplacements = headerReplacements;
+    this.out = out;
+  }
+
+  /**
+   * @param parts The files of one output from each slice, all ranks of DIA outputs.
+   * @return Union of proteins of the peptides found in more than one slice, sorted.
+   */
+  static Map<String, List<Protein>> sharedProteins(List<List<Path>> parts) throws IOException {
+    final SharedPeptides.Builder b = new SharedPeptides.Builder();
+    for (List<Path> slice : parts) {
+      for (Path p : slice) {
+        try (BufferedReader br = Files.newBufferedReader(p, UTF_8)) {
+          String line;
+          while ((line = br.readLine()) != null) {
+            if (isTag(line, "<search_hit ")) {
+              b.add(attr(line, "peptide"));
+            }
+          }
+        }
+      }
+      b.nextSlice();
+    }
+    final SharedPeptides shared = b.build();
+    if (shared.size() == 0) {
+      return Collections.emptyMap();
+    }
+    final Map<String, TreeSet<Protein>> union = new HashMap<>();
+    for (List<Path> slice : parts) {
+      for (Path p : slice) {
+        try (BufferedReader br = Files.newBufferedReader(p, UTF_8)) {
+          String line;
+          TreeSet<Protein> cur = null;
+          while ((line = br.readLine()) != null) {
+            if (isTag(line, "<search_hit ")) {
+              final String peptide = attr(line, "peptide");
+              cur = shared.contains(peptide) ? union.computeIfAbsent(peptide, k -> new TreeSet<>()) : null;
+              if (cur != null) {
+                cur.add(Protein.of(line));
+              }
+            } else if (cur != null && isTag(line, "<alternative_protein ")) {
+              cur.add(Protein.of(line));
+            } else if (isTag(line, "</search_hit>")) {
+              cur = null;
+            }
+          }
+        }
+      }
+    }
+    final Map<String, List<Protein>> sorted = new HashMap<>();
+    union.forEach((k, v) -> sorted.put(k, new ArrayList<>(v)));
+    return sorted;
+  }
+
+  /**
+   * @param parts Same output of each slice.
+   * @param scans Filled with the scan numbers and indexes of the spectra.
+   */
+  void merge(List<Path> parts, Path outFile, ScanIndex scans) throws IOException {
+    final List<Reader> readers = new ArrayList<>();
+    try (BufferedWriter w = Files.newBufferedWriter(outFile, UTF_8)) {
+      for (Path p : parts) {
+        readers.add(new Reader(p));
+      }
+      w.write(header(readers.get(0).header(), outFile));
+      w.write('\n');
+      for (int i = 1; i < readers.size(); i++) {
+        readers.get(i).header();
+      }
+
+      final Query[] cur = new Query[readers.size()];
+      for (int i = 0; i < readers.size(); i++) {
+        cur[i] = readers.get(i).next();
+      }
+      final List<Query> same = new ArrayList<>();
+      long count = 0;
+      while (true) {
+        int index = Integer.MAX_VALUE;
+        for (Query q : cur) {
+          if (q != null && q.index < index) {
+            index = q.index;
+          }
+        }
+        if (index == Integer.MAX_VALUE) {
+          break;
+        }
+        same.clear();
+        for (int i = 0; i < cur.length; i++) {
+          if (cur[i] != null && cur[i].index == index) {
+            same.add(cur[i]);
+            cur[i] = readers.get(i).next();
+          }
+        }
+        if (same.get(0).scan >= 0) {
+          scans.put(same.get(0).scan, index);
+        }
+        writeSpectrum(w, index, same);
+        if (++count % REPORT_EVERY == 0) {
+          out.accept(String.format(Locale.ROOT, "Writing: %s\tspectrum: %d", outFile.getFileName(), count));
+        }
+      }
+      w.write("</msms_run_summary>\n</msms_pipeline_analysis>\n");
+    } finally {
+      for (Reader r : readers) {
+        r.close();
+      }
+    }
+  }
+
+  private String header(String header, Path outFile) {
+    String h = header;
+    final String now = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss").format(LocalDateTime.now());
+    h = RE_DATE.matcher(h).replaceAll("$1" + Matcher.quoteReplacement(now) + "$2");
+    h = RE_SUMMARY_XML.matcher(h).replaceAll("$1" + Matcher.quoteReplacement(outFile.toString()) + "$2");
+    for (Map.Entry<String, String> e : headerReplacements.entrySet()) {
+      h = h.replace(e.getKey(), e.getValue());
+    }
+    return h;
+  }
+
+  private void writeSpectrum(BufferedWriter w, int index, List<Query> queries) throws IOException {
+    // the same peptide can come from several slices, its proteins are merged anyway
+    final Map<String, Hit> distinct = new LinkedHashMap<>();
+    for (Query q : queries) {
+      for (Hit h : q.hits) {
+        distinct.putIfAbsent(h.key, h);
+      }
+    }
+    final List<Hit> hits = new ArrayList<>(distinct.values());
+    for (Hit h : hits) {
+      if (expect != null && expect.has(index)) {
+        h.expect = expect.expect(index, h.hyperscore);
+      }
+    }
+    hits.sort(Hit.ORDER);
+    final List<Hit> kept = new ArrayList<>();
+    for (Hit h : hits) {
+      if (kept.size() == topN || h.expect > maxExpect) {
+        break;
+      }
+      kept.add(h);
+    }
+    if (kept.isEmpty()) {
+      return;
+    }
+    double minNext = Double.POSITIVE_INFINITY;
+    for (Hit h : kept) {
+      minNext = Math.min(minNext, h.nextscore);
+    }
+
+    w.write(kept.get(0).query.head);
+    w.write("\n<search_result>\n");
+    for (int i = 0; i < kept.size(); i++) {
+      final double next = i + 1 < kept.size() ? kept.get(i + 1).hyperscore : minNext;
+      writeHit(w, kept.get(i), i + 1, next);
+    }
+    w.write("</search_result>\n</spectrum_query>\n");
+  }
+
+  private void writeHit(BufferedWriter w, Hit h, int rank, double nextscore) throws IOException {
+    String first = withAttr(h.lines.get(0), "hit_rank", Integer.toString(rank));
+    final List<Protein> union = proteins.get(h.peptide);
+    final boolean amend = union != null && union.size() > h.numProteins;
+    if (amend) {
+      final Protein p = union.get(0);
+      first = withAttr(first, "protein_descr", p.descr);
+      first = withAttr(first, "protein", p.protein);
+      first = withAttr(first, "peptide_prev_aa", p.prevAa);
+      first = withAttr(first, "peptide_next_aa", p.nextAa);
+      first = withAttr(first, "num_tol_term", p.ntt);
+      first = withAttr(first, "num_tot_proteins", Integer.toString(union.size()));
+    }
+    w.write(first);
+    w.write('\n');
+    if (amend) {
+      for (int i = 1; i < union.size(); i++) {
+        w.write(union.get(i).toAlternative());
+        w.write('\n');
+      }
+    }
+    for (int i = 1; i < h.lines.size(); i++) {
+      final String line = h.lines.get(i);
+      final String t = line.trim();
+      if (amend && t.startsWith("<alternative_protein ")) {
+        continue;
+      }
+      if (t.startsWith(HYPERSCORE)) {
+        w.write(HYPERSCORE + String.format(Locale.ROOT, "%.3f", h.hyperscore) + "\"/>");
+      } else if (t.startsWith(NEXTSCORE)) {
+        w.write(NEXTSCORE + String.format(Locale.ROOT, "%.3f", nextscore) + "\"/>");
+      } else if (t.startsWith(EXPECT)) {
+        w.write(EXPECT + String.format(Locale.ROOT, "%.3e", h.expect) + "\"/>");
+      } else {
+        w.write(line);
+      }
+      w.write('\n');
+    }
+  }
+
+  private static boolean isTag(String line, String start) {
+    int i = 0;
+    while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+      i++;
+    }
+    return line.startsWith(start, i);
+  }
+
+  /**
+   * @return Null if the tag doesn't have the attribute.
+   */
+  static String attr(String tag, String name) {
+    final String key = " " + name + "=\"";
+    final int from = tag.indexOf(key);
+    if (from < 0) {
+      return null;
+    }
+    final int start = from + key.length();
+    final int end = tag.indexOf('"', start);
+    return end < 0 ? null : tag.substring(start, end);
+  }
+
+  /**
+   * @return The tag unchanged if it doesn't have the attribute.
+   */
+  static String withAttr(String tag, String name, String value) {
+    final String key = " " + name + "=\"";
+    final int from = tag.indexOf(key);
+    if (from < 0) {
+      return tag;
+    }
+    final int start = from + key.length();
+    final int end = tag.indexOf('"', start);
+    return end < 0 ? tag : tag.substring(0, start) + value + tag.substring(end);
+  }
+
+  private static double parseScore(String line, String prefix) {
+    final int start = line.indexOf(prefix) + prefix.length();
+    return Double.parseDouble(line.substring(start, line.indexOf('"', start)));
+  }
+
+  /** A protein a peptide maps to, as in {@code search_hit} and {@code alternative_protein}. */
+  static final class Protein implements Comparable<Protein> {
+    private static final Comparator<Protein> ORDER = Comparator
+        .comparing((Protein p) -> p.protein)
+        .thenComparing(p -> p.descr)
+        .thenComparing(p -> p.prevAa)
+        .thenComparing(p -> p.nextAa)
+        .thenComparing(p -> p.ntt);
+    final String protein;
+    final String descr;
+    final String prevAa;
+    final String nextAa;
+    final String ntt;
+
+    Protein(String protein, String descr, String prevAa, String nextAa, String ntt) {
+      this.protein = protein;
+      this.descr = descr;
+      this.prevAa = prevAa;
+      this.nextAa = nextAa;
+      this.ntt = ntt;
+    }
+
+    static Protein of(String tag) {
+      return new Protein(orEmpty(attr(tag, "protein")), orEmpty(attr(tag, "protein_descr")),
+          orEmpty(attr(tag, "peptide_prev_aa")), orEmpty(attr(tag, "peptide_next_aa")),
+          orEmpty(attr(tag, "num_tol_term")));
+    }
+
+    String toAlternative() {
+      return "<alternative_protein protein_descr=\"" + descr + "\" protein=\"" + protein
+          + "\" peptide_prev_aa=\"" + prevAa + "\" peptide_next_aa=\"" + nextAa
+          + "\" num_tol_term=\"" + ntt + "\"/>";
+    }
+
+    private static String orEmpty(String s) {
+      return s == null ? "" : s;
+    }
+
+    @Override
+    public int compareTo(Protein o) {
+      return ORDER.compare(this, o);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      final Protein p = (Protein) o;
+      return protein.equals(p.protein) && descr.equals(p.descr) && prevAa.equals(p.prevAa)
+          && nextAa.equals(p.nextAa) && ntt.equals(p.ntt);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(protein, descr, prevAa, nextAa, ntt);
+    }
+  }
+
+  private static final class Query {
+    final int index;
+    final int scan;
+    final String head;
+    final List<Hit> hits = new ArrayList<>();
+
+    Query(int index, int scan, String head) {
+      this.index = index;
+      this.scan = scan;
+      this.head = head;
+    }
+  }
+
+  private static final class Hit {
+    static final Comparator<Hit> ORDER = Comparator
+        .comparingDouble((Hit h) -> -h.hyperscore)
+        .thenComparingDouble(h -> Math.abs(h.massdiff));
+    final Query query;
+    final List<String> lines;
+    final String peptide;
+    final String key;
+    final int numProteins;
+    final double massdiff;
+    final double hyperscore;
+    final double nextscore;
+    double expect;
+
+    Hit(Query query, List<String> lines) {
+      this.query = query;
+      this.lines = lines;
+      final String first = lines.get(0);
+      peptide = attr(first, "peptide");
+      final String md = attr(first, "massdiff");
+      massdiff = md == null ? 0 : Double.parseDouble(md);
+      // same peptide with the same modifications, whatever proteins it came with
+      final StringBuilder k = new StringBuilder(peptide).append('\n').append(md);
+      int proteins = 1;
+      double hs = Double.NaN;
+      double ns = 0;
+      double ex = 0;
+      for (int i = 1; i < lines.size(); i++) {
+        final String t = lines.get(i).trim();
+        if (t.startsWith("<alternative_protein ")) {
+          proteins++;
+        } else if (t.startsWith(HYPERSCORE)) {
+          hs = parseScore(t, HYPERSCORE);
+        } else if (t.startsWith(NEXTSCORE)) {
+          ns = parseScore(t, NEXTSCORE);
+        } else if (t.startsWith(EXPECT)) {
+          ex = parseScore(t, EXPECT);
+        } else if (t.startsWith("<modification_info") || t.startsWith("<mod_aminoacid_mass")) {
+          k.append('\n').append(t);
+        }
+      }
+      if (Double.isNaN(hs)) {
+        throw new IllegalStateException("No hyperscore in search hit: " + first);
+      }
+      key = k.toString();
+      numProteins = proteins;
+      hyperscore = hs;
+      nextscore = ns;
+      expect = ex;
+    }
+  }
+
+  private static final class Reader implements Closeable {
+    final Path path;
+    final BufferedReader br;
+    int lastIndex;
+
+    Reader(Path path) throws IOException {
+      this.path = path;
+      this.br = Files.newBufferedReader(path, UTF_8);
+    }
+
+    /** Everything up to and including the end of the search summary. */
+    String header() throws IOException {
+      final StringBuilder sb = new StringBuilder();
+      String line;
+      while ((line = br.readLine()) != null) {
+        if (sb.length() > 0) {
+          sb.append('\n');
+        }
+        sb.append(line);
+        if (isTag(line, "</search_summary>")) {
+          return sb.toString();
+        }
+      }
+      throw new IOException("No search summary in pepXML file " + path);
+    }
+
+    /**
+     * @return Null at the end of the file.
+     */
+    Query next() throws IOException {
+      String line;
+      while ((line = br.readLine()) != null && !isTag(line, "<spectrum_query ")) {
+        if (isTag(line, "</msms_run_summary>")) {
+          return null;
+        }
+      }
+      if (line == null) {
+        return null;
+      }
+      final String index = attr(line, "index");
+      final String scan = attr(line, "start_scan");
+      if (index == null) {
+        throw new IOException("No index in spectrum query of " + path + ": " + line);
+      }
+      final Query q;
+      try {
+        q = new Query(Integer.parseInt(index), scan == null ? -1 : Integer.parseInt(scan), line);
+      } catch (NumberFormatException e) {
+        throw new IOException("Could not parse spectrum query of " + path + ": " + line, e);
+      }
+      if (q.index <= lastIndex) {
+        throw new IOException("Spectrum queries are not ordered by index in " + path + " at index " + q.index);
+      }
+      lastIndex = q.index;
+      List<String> hit = null;
+      while ((line = br.readLine()) != null && !isTag(line, "</spectrum_query>")) {
+        if (isTag(line, "<search_hit ")) {
+          hit = new ArrayList<>();
+        }
+        if (hit != null) {
+          hit.add(line);
+          if (isTag(line, "</search_hit>")) {
+            try {
+              q.hits.add(new Hit(q, hit));
+            } catch (RuntimeException e) {
+              throw new IOException("Could not parse search hit in " + path + ": " + hit.get(0), e);
+            }
+            hit = null;
+          }
+        }
+      }
+      return q;
+    }
+
+    @Override
+    public void close() throws IOException {
+      br.close();
+    }
+  }
+}
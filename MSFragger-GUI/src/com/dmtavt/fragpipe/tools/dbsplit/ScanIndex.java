@@ -0,0 +1,62 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.tools.dbsplit;
+
+import java.util.Arrays;
+
+/**
+ * Scan number to spectrum index, as seen in pepXML. Pin and tsv files only have scan numbers,
+ * while expect functions go by spectrum index. Pairs are packed into a sorted {@code long[]}.
+ */
+final class ScanIndex {
+  private long[] pairs = new long[1024];
+  private int size;
+  private boolean sorted = true;
+
+  synchronized void put(int scan, int index) {
+    if (size == pairs.length) {
+      pairs = Arrays.copyOf(pairs, size * 2);
+    }
+    final long pair = ((long) scan << 32) | (index & 0xffffffffL);
+    if (size > 0 && pairs[size - 1] > pair) {
+      sorted = false;
+    }
+    pairs[size++] = pair;
+  }
+
+  synchronized boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @return -1 if the scan is not known.
+   */
+  synchronized int get(long scan) {
+    if (scan < 0 || scan > Integer.MAX_VALUE) {
+      return -1;
+    }
+    if (!sorted) {
+      Arrays.sort(pairs, 0, size);
+      sorted = true;
+    }
+    int i = Arrays.binarySearch(pairs, 0, size, scan << 32);
+    if (i < 0) {
+      i = -i - 1;
+    }
+    return i < size && (pairs[i] >>> 32) == scan ? (int) pairs[i] : -1;
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.tools.dbsplit;
+
+import java.util.Arrays;
+
+/**
+ * Peptides reported by more than one slice of the database. Only those can come from proteins of
+ * several slices, so only their protein lists need to be collected for the merged results, not
+ * the proteins of every peptide. While counting, peptides are kept as 64 bit hashes, 8 bytes per
+ * distinct peptide of a slice. A collision only makes a peptide count as shared when it isn't.
+ */
+final class SharedPeptides {
+  private final long[] hashes;
+
+  private SharedPeptides(long[] hashes) {
+    this.hashes = hashes;
+  }
+
+  boolean contains(String peptide) {
+    return Arrays.binarySearch(hashes, hash(peptide)) >= 0;
+  }
+
+  int size() {
+    return hashes.length;
+  }
+
+  /** Add the peptides of one slice after the other, calling {@link #nextSlice()} in between. */
+  static final class Builder {
+    private long[] all = new long[0];
+    private long[] slice = new long[1024];
+    private int sliceSize;
+
+    void add(String peptide) {
+      if (sliceSize == slice.length) {
+        slice = Arrays.copyOf(slice, sliceSize * 2);
+      }
+      slice[sliceSize++] = hash(peptide);
+    }
+
+    void nextSlice() {
+      if (sliceSize == 0) {
+        return;
+      }
+      final long[] distinct = distinct(slice, sliceSize);
+      final long[] grown = Arrays.copyOf(all, all.length + distinct.length);
+      System.arraycopy(distinct, 0, grown, all.length, distinct.length);
+      all = grown;
+      sliceSize = 0;
+    }
+
+    SharedPeptides build() {
+      nextSlice();
+      Arrays.sort(all);
+      final long[] shared = new long[all.length / 2];
+      int n = 0;
+      for (int i = 1; i < all.length; i++) {
+        // each slice has every peptide only once, seen twice means two slices
+        if (all[i] == all[i - 1] && (n == 0 || shared[n - 1] != all[i])) {
+          shared[n++] = all[i];
+        }
+      }
+      all = new long[0];
+      return new SharedPeptides(Arrays.copyOf(shared, n));
+    }
+
+    private static long[] distinct(long[] a, int size) {
+      Arrays.sort(a, 0, size);
+      int n = 0;
+      for (int i = 0; i < size; i++) {
+        if (n == 0 || a[n - 1] != a[i]) {
+          a[n++] = a[i];
+        }
+      }
+      return Arrays.copyOf(a, n);
+    }
+  }
+
+  /** FNV-1a. */
+  static long hash(String s) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < s.length(); i++) {
+      h ^= s.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+}
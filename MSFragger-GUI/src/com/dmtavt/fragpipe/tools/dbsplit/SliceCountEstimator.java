@@ -0,0 +1,464 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.tools.dbsplit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.dmtavt.fragpipe.api.InputLcmsFile;
+import com.dmtavt.fragpipe.process.TaskCost;
+import com.dmtavt.fragpipe.tools.enums.CleavageType;
+import com.dmtavt.fragpipe.tools.fragger.Mod;
+import com.dmtavt.fragpipe.tools.fragger.MsfraggerBatchPlanner;
+import com.dmtavt.fragpipe.tools.fragger.MsfraggerParams;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recommends the number of database slices for a split search, see {@link SplitSearch}. The
+ * database is digested in the JVM with the enzyme, missed cleavages, length and mass range of the
+ * params, and the modified forms of each peptide are counted from the variable mods. Large
+ * databases are sampled, every n-th protein is digested and the counts are scaled up.
+ * <p>
+ * The number of peptide forms gives the size of the index, see
+ * {@link MsfraggerBatchPlanner#estimateRamMbForIndex}, and the smallest slice count whose index
+ * fits into the RAM setting is recommended. Peptides found in several proteins are counted for
+ * each of them, so the estimate errs on the high side, same as the planner's.
+ */
+public class SliceCountEstimator {
+  private static final Logger log = LoggerFactory.getLogger(SliceCountEstimator.class);
+  /** Peptides to consider at most, the database is sampled to stay around this. */
+  private static final long MAX_CANDIDATES = 5_000_000;
+  /** Largest slice count the MSFragger tab allows. */
+  public static final int MAX_SLICES = 9999;
+  private static final double WATER = 18.0105646863;
+  private static final double[] RESIDUE_MASS = new double[128];
+
+  static {
+    final String aa = "GASPVTCLINDQKEMHFRYWUO";
+    final double[] mass = {57.02146, 71.03711, 87.03203, 97.05276, 99.06841, 101.04768, 103.00919,
+        113.08406, 113.08406, 114.04293, 115.02694, 128.05858, 128.09496, 129.04259, 131.04049,
+        137.05891, 147.06841, 156.10111, 163.06333, 186.07931, 150.95364, 237.14773};
+    for (int i = 0; i < aa.length(); i++) {
+      RESIDUE_MASS[aa.charAt(i)] = mass[i];
+    }
+  }
+
+  public static class Estimate {
+    public final long proteins;
+    /** Proteins that were digested, the counts are scaled up from these. */
+    public final long proteinsDigested;
+    public final double peptides;
+    public final double peptideForms;
+    /** What a search of the whole database needs, in MB. */
+    public final long needMb;
+    /** Smallest slice count that fits into the RAM, -1 if no slice count does. */
+    public final int slices;
+    public final int ramGb;
+
+    Estimate(long proteins, long proteinsDigested, double peptides, double peptideForms, long needMb, int slices, int ramGb) {
+      this.proteins = proteins;
+      this.proteinsDigested = proteinsDigested;
+      this.peptides = peptides;
+      this.peptideForms = peptideForms;
+      this.needMb = needMb;
+      this.slices = slices;
+      this.ramGb = ramGb;
+    }
+
+    @Override
+    public String toString() {
+      final String sampled = proteinsDigested < proteins
+          ? String.format(Locale.ROOT, ", %,d of them digested", proteinsDigested) : "";
+      final String rec = slices > 0
+          ? String.format(Locale.ROOT, "%d slice%s fit%s into %d GB", slices, slices == 1 ? "" : "s", slices == 1 ? "s" : "", ramGb)
+          : String.format(Locale.ROOT, "no number of slices fits into %d GB", ramGb);
+      return String.format(Locale.ROOT, "%,d proteins%s, ~%,.0f peptides, ~%,.0f with modified forms, "
+          + "the search needs ~%.1f GB without splitting; %s", proteins, sampled, peptides, peptideForms, needMb / 1024.0, rec);
+    }
+  }
+
+  private final boolean nonspecific;
+  private final boolean semi;
+  private final List<Enzyme> enzymes = new ArrayList<>();
+  private final int missed;
+  private final int minLen;
+  private final int maxLen;
+  private final double minMass;
+  private final double maxMass;
+  private final boolean clipM;
+  private final double[] residueMass = RESIDUE_MASS.clone();
+  private final double termMass;
+  private final List<Sites> mods = new ArrayList<>();
+  private final int maxModsPerPeptide;
+  private final int maxCombinations;
+  private final Map<Long, Double> formsCache = new HashMap<>();
+
+  double peptides;
+  double forms;
+  long candidates;
+
+  SliceCountEstimator(MsfraggerParams p) {
+    final CleavageType ct = p.getNumEnzymeTermini();
+    enzymes.add(new Enzyme(p.getSearchEnzymeCut1(), p.getSearchEnzymeNocut1(), p.getSearchEnzymeSense1()));
+    int mc = p.getAllowedMissedCleavage1();
+    final String cut2 = p.getSearchEnzymeCut2().trim();
+    if (!cut2.isEmpty() && !"null".equalsIgnoreCase(p.getSearchEnzymeName2().trim())) {
+      // cuts of either enzyme, a peptide can miss cleavages of both
+      enzymes.add(new Enzyme(cut2, p.getSearchEnzymeNocut2(), p.getSearchEnzymeSense2()));
+      mc += p.getAllowedMissedCleavage2();
+    }
+    nonspecific = ct == CleavageType.NONSPECIFIC || enzymes.stream().anyMatch(e -> e.everywhere);
+    semi = ct == CleavageType.SEMI;
+    missed = Math.max(0, mc);
+    minLen = Math.max(1, p.getDigestMinLength());
+    maxLen = Math.max(minLen, p.getDigestMaxLength());
+    final double[] range = p.getDigestMassRange();
+    minMass = range[0];
+    maxMass = range[1];
+    clipM = p.getClipNTermM();
+
+    double term = WATER;
+    for (Mod m : p.getAdditionalMods()) {
+      if (!m.isEnabled || m.massDelta == 0 || m.sites == null || m.sites.isEmpty()) {
+        continue;
+      }
+      if (m.sites.length() == 1 || m.sites.charAt(1) == ' ') {
+        residueMass[m.sites.charAt(0) & 0x7f] += m.massDelta;
+      } else if (m.sites.endsWith("Term Peptide")) {
+        term += m.massDelta;
+      }
+    }
+    termMass = term;
+
+    for (Mod m : p.getVariableMods()) {
+      if (m.isEnabled && m.sites != null && !m.sites.trim().isEmpty()) {
+        mods.add(new Sites(m.sites.trim(), Math.max(1, m.maxOccurrences)));
+      }
+    }
+    maxModsPerPeptide = Math.max(0, p.getMaxVariableModsPerPeptide());
+    maxCombinations = Math.max(1, p.getMaxVariableModsCombinations());
+  }
+
+  /**
+   * @param largestInputBytes Size of the largest input, MSFragger holds the spectra of one file at
+   * a time, see {@link #largestInput(List)}.
+   * @param ramGb RAM given to MSFragger.
+   */
+  public static Estimate estimate(Path fasta, MsfraggerParams p, long largestInputBytes, int ramGb) throws IOException {
+    final SliceCountEstimator e = new SliceCountEstimator(p);
+    final long fastaBytes = Files.size(fasta);
+    // residues are most of a fasta file, the rest are headers and line breaks
+    final double candidates = fastaBytes * 0.8 * e.candidatesPerResidue();
+    final long stride = Math.max(1, (long) Math.ceil(candidates / MAX_CANDIDATES));
+
+    long proteins = 0;
+    long digested = 0;
+    long residues = 0;
+    long residuesDigested = 0;
+    final StringBuilder seq = new StringBuilder();
+    try (BufferedReader br = Files.newBufferedReader(fasta, UTF_8)) {
+      String line;
+      boolean take = false;
+      while ((line = br.readLine()) != null) {
+        if (line.startsWith(">")) {
+          if (take && seq.length() > 0) {
+            e.digest(seq);
+            residuesDigested += seq.length();
+            digested++;
+          }
+          seq.setLength(0);
+          take = proteins % stride == 0;
+          proteins++;
+          continue;
+        }
+        for (int i = 0; i < line.length(); i++) {
+          final char c = line.charAt(i);
+          if (c >= 'A' && c <= 'Z') {
+            residues++;
+            if (take) {
+              seq.append(c);
+            }
+          }
+        }
+      }
+      if (take && seq.length() > 0) {
+        e.digest(seq);
+        residuesDigested += seq.length();
+        digested++;
+      }
+    }
+    final double scale = residuesDigested > 0 ? (double) residues / residuesDigested : 0;
+    final double peptides = e.peptides * scale;
+    final double forms = e.forms * scale;
+    log.debug("Digested {} of {} proteins of {}, {} candidate peptides", digested, proteins, fasta, e.candidates);
+
+    final long needMb = MsfraggerBatchPlanner.estimateRamMbForIndex(p, forms, largestInputBytes);
+    final int slices = recommend(p, forms, largestInputBytes, ramGb, (int) Math.min(MAX_SLICES, Math.max(1, proteins)));
+    return new Estimate(proteins, digested, peptides, forms, needMb, slices, ramGb);
+  }
+
+  /**
+   * @return Smallest number of slices whose index fits into the RAM, -1 if even the most slices
+   * don't.
+   */
+  static int recommend(MsfraggerParams p, double peptideForms, long largestInputBytes, int ramGb, int maxSlices) {
+    for (int n = 1; n <= maxSlices; n++) {
+      if (MsfraggerBatchPlanner.fits(MsfraggerBatchPlanner.estimateRamMbForIndex(p, peptideForms / n, largestInputBytes), ramGb)) {
+        return n;
+      }
+    }
+    return -1;
+  }
+
+  /** Size of the largest of the inputs, in bytes. */
+  public static long largestInput(List<InputLcmsFile> inputs) {
+    long largest = 0;
+    for (InputLcmsFile f : inputs) {
+      largest = Math.max(largest, TaskCost.size(f.getPath()));
+    }
+    return largest;
+  }
+
+  private double candidatesPerResidue() {
+    final int lenSpan = maxLen - minLen + 1;
+    if (nonspecific) {
+      return lenSpan;
+    }
+    // about one cleavage site in ten residues for the common enzymes
+    return semi ? lenSpan * (missed + 1) / 5.0 : (missed + 1) / 10.0;
+  }
+
+  /**
+   * Counts the peptides of a protein and their modified forms into {@link #peptides} and
+   * {@link #forms}.
+   */
+  void digest(CharSequence protein) {
+    final int len = protein.length();
+    final double[] prefixMass = new double[len + 1];
+    for (int i = 0; i < len; i++) {
+      prefixMass[i + 1] = prefixMass[i] + residueMass[protein.charAt(i) & 0x7f];
+    }
+    final int[][] modSites = new int[mods.size()][];
+    for (int m = 0; m < mods.size(); m++) {
+      final int[] counts = new int[len + 1];
+      final Sites s = mods.get(m);
+      for (int i = 0; i < len; i++) {
+        counts[i + 1] = counts[i] + (s.residues[protein.charAt(i) & 0x7f] ? 1 : 0);
+      }
+      modSites[m] = counts;
+    }
+    final Peptides out = (start, end) -> {
+      candidates++;
+      final double mass = prefixMass[end] - prefixMass[start] + termMass;
+      if (mass < minMass || mass > maxMass) {
+        return;
+      }
+      peptides++;
+      forms += forms(protein, start, end, modSites);
+    };
+
+    if (nonspecific) {
+      for (int s = 0; s < len; s++) {
+        for (int e = s + minLen; e <= Math.min(len, s + maxLen); e++) {
+          out.accept(s, e);
+        }
+      }
+      return;
+    }
+
+    // cleavage sites are between residues, 0 and len are the protein termini
+    final boolean[] site = new boolean[len + 1];
+    site[0] = true;
+    site[len] = true;
+    for (Enzyme enzyme : enzymes) {
+      enzyme.mark(protein, site);
+    }
+    final int[] sitesBefore = new int[len + 2];
+    for (int i = 0; i <= len; i++) {
+      sitesBefore[i + 1] = sitesBefore[i] + (site[i] ? 1 : 0);
+    }
+    final boolean[] start = site.clone();
+    start[len] = false;
+    if (clipM && len > 1 && protein.charAt(0) == 'M') {
+      start[1] = true;
+    }
+
+    for (int s = 0; s < len; s++) {
+      if (!start[s]) {
+        continue;
+      }
+      for (int e = s + 1; e <= Math.min(len, s + maxLen); e++) {
+        // sites strictly between s and e are missed cleavages
+        if (sitesBefore[e] - sitesBefore[s + 1] > missed) {
+          break;
+        }
+        if (e - s >= minLen && (semi || site[e])) {
+          out.accept(s, e);
+        }
+      }
+    }
+    if (semi) {
+      // enzymatic end, any start, those with an enzymatic start are counted already
+      for (int e = len; e > 0; e--) {
+        if (!site[e]) {
+          continue;
+        }
+        for (int s = e - 1; s >= Math.max(0, e - maxLen); s--) {
+          if (sitesBefore[e] - sitesBefore[s + 1] > missed) {
+            break;
+          }
+          if (e - s >= minLen && !start[s]) {
+            out.accept(s, e);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Modified forms of a peptide, unmodified one included, within the limits on mods per peptide
+   * and combinations.
+   */
+  private double forms(CharSequence protein, int start, int end, int[][] modSites) {
+    if (mods.isEmpty() || maxModsPerPeptide == 0) {
+      return 1;
+    }
+    long key = 0;
+    for (int m = 0; m < mods.size(); m++) {
+      final Sites s = mods.get(m);
+      int k = modSites[m][end] - modSites[m][start];
+      k += s.terminal(protein, start, end);
+      key = (key << 4) | Math.min(15, k);
+    }
+    return formsCache.computeIfAbsent(key, this::forms);
+  }
+
+  private double forms(long key) {
+    // number of ways to place t mods in total, one mod after another
+    double[] ways = new double[maxModsPerPeptide + 1];
+    ways[0] = 1;
+    for (int m = mods.size() - 1; m >= 0; m--) {
+      final int k = (int) (key & 0xf);
+      key >>>= 4;
+      final int most = Math.min(k, mods.get(m).maxOccurrences);
+      final double[] next = new double[ways.length];
+      for (int t = 0; t < ways.length; t++) {
+        if (ways[t] == 0) {
+          continue;
+        }
+        double choose = 1;
+        for (int j = 0; j <= most && t + j < ways.length; j++) {
+          next[t + j] += ways[t] * choose;
+          choose = choose * (k - j) / (j + 1);
+        }
+      }
+      ways = next;
+    }
+    double sum = 0;
+    for (double w : ways) {
+      sum += w;
+    }
+    return Math.min(sum, maxCombinations);
+  }
+
+  @FunctionalInterface
+  private interface Peptides {
+    void accept(int start, int end);
+  }
+
+  private static final class Enzyme {
+    final boolean[] cut = new boolean[128];
+    final boolean[] nocut = new boolean[128];
+    final boolean cTerm;
+    final boolean everywhere;
+
+    Enzyme(String cuts, String nocuts, String sense) {
+      for (char c : cuts.trim().toCharArray()) {
+        cut[c & 0x7f] = true;
+      }
+      for (char c : nocuts.trim().toCharArray()) {
+        nocut[c & 0x7f] = true;
+      }
+      cTerm = !"N".equalsIgnoreCase(sense.trim());
+      everywhere = cut['-'];
+    }
+
+    void mark(CharSequence protein, boolean[] site) {
+      final int len = protein.length();
+      for (int i = 1; i < len; i++) {
+        final char before = protein.charAt(i - 1);
+        final char after = protein.charAt(i);
+        if (cTerm ? cut[before & 0x7f] && !nocut[after & 0x7f] : cut[after & 0x7f] && !nocut[before & 0x7f]) {
+          site[i] = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Sites of a variable mod as given in the params file, residues, {@code *} for any of them, and
+   * terminal ones: {@code n}/{@code c} for peptide and {@code [}/{@code ]} for protein termini,
+   * followed by a residue or {@code ^} for any residue.
+   */
+  private static final class Sites {
+    final boolean[] residues = new boolean[128];
+    final List<String> terminal = new ArrayList<>();
+    final int maxOccurrences;
+
+    Sites(String spec, int maxOccurrences) {
+      this.maxOccurrences = maxOccurrences;
+      for (int i = 0; i < spec.length(); i++) {
+        final char c = spec.charAt(i);
+        if ((c == 'n' || c == 'c' || c == '[' || c == ']') && i + 1 < spec.length()) {
+          terminal.add(spec.substring(i, i + 2));
+          i++;
+        } else if (c == '*') {
+          for (char aa = 'A'; aa <= 'Z'; aa++) {
+            residues[aa] = true;
+          }
+        } else if (c >= 'A' && c <= 'Z') {
+          residues[c] = true;
+        }
+      }
+    }
+
+    int terminal(CharSequence protein, int start, int end) {
+      int k = 0;
+      for (String t : terminal) {
+        final boolean nTerm = t.charAt(0) == 'n' || t.charAt(0) == '[';
+        if (t.charAt(0) == '[' && start != 0 || t.charAt(0) == ']' && end != protein.length()) {
+          continue;
+        }
+        final char aa = t.charAt(1);
+        final char residue = protein.charAt(nTerm ? start : end - 1);
+        if (aa == '^' || aa == '*' || aa == residue) {
+          k++;
+        }
+      }
+      return k;
+    }
+  }
+}
@@ -0,0 +1,737 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.tools.dbsplit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.dmtavt.fragpipe.process.ArgFiles;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Split database search: searches a database too large for one MSFragger index in slices and
+ * merges the results, all within the JVM.
+ * <ol>
+ *   <li>The FASTA file is streamed into slices with the same number of proteins.</li>
+ *   <li>With mass calibration on, MSFragger calibrates the inputs once ({@code --split1}), the
+ *   slices are searched with the calibrated spectra and the tolerances it found.</li>
+ *   <li>The slices are searched ({@code --partial}), several at a time if FragPipe found there
+ *   is memory for it, see {@code --parallel}.</li>
+ *   <li>The score histograms of the slices are summed and MSFragger fits expect value functions
+ *   for the whole database from them ({@code --generate_expect_functions}).</li>
+ *   <li>The pepXML, pin and tsv files of the slices are merged per spectrum, see
+ *   {@link PepxmlSliceMerger} and {@link TableSliceMerger}.</li>
+ * </ol>
+ * The slices and their results are kept in {@value #TEMP_DIR_NAME} in the directory of the params
+ * file, the directory is deleted when all is done. Outputs go next to the inputs, same as for a
+ * regular MSFragger search.
+ */
+public class SplitSearch {
+  public static final String TEMP_DIR_NAME = "split_peptide_index_tempdir";
+  private static final String USAGE = "Usage: " + SplitSearch.class.getCanonicalName()
+      + " [--xmx <GB>] [--parallel <n> --slice-xmx <GB> --slice-threads <n>] [--argfiles]"
+      + " <num slices> <java> <msfragger jar> <params file> <input files...>";
+  private static final Pattern RE_DATABASE = Pattern.compile("^database_name\\s*=\\s*(.+?)(?:\\s*#.+)?$", Pattern.MULTILINE);
+
+  private final Options o;
+  private final Path tempDir;
+  private final List<Path> sliceDirs = new ArrayList<>();
+  private final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+  private final Set<Process> running = ConcurrentHashMap.newKeySet();
+  private final ExecutorService workers;
+
+  private SplitSearch(Options o) {
+    this.o = o;
+    this.tempDir = o.params.getParent().resolve(TEMP_DIR_NAME);
+    for (int i = 0; i < o.numSlices; i++) {
+      sliceDirs.add(tempDir.resolve(Integer.toString(i)));
+    }
+    final AtomicInteger count = new AtomicInteger(0);
+    workers = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "split-search-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  public static void main(String[] args) throws Exception {
+    final int ret = run(args);
+    if (ret != 0) {
+      System.exit(ret);
+    }
+  }
+
+  /**
+   * Same as {@link #main(String[])}, but returns the exit code instead of exiting the JVM.
+   */
+  public static int run(String[] args) throws Exception {
+    final Options o;
+    try {
+      o = Options.parse(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println(USAGE);
+      return 1;
+    }
+    final SplitSearch s = new SplitSearch(o);
+    try {
+      s.search();
+      return 0;
+    } finally {
+      s.workers.shutdownNow();
+    }
+  }
+
+  private void search() throws Exception {
+    String params = new String(Files.readAllBytes(o.params), UTF_8);
+    final Path fasta = database(params);
+    final String ext = paramString(params, "output_file_extension", "pepXML");
+    final int topN = (int) paramNumber(params, "output_report_topN", 1);
+    final double maxExpect = paramNumber(params, "output_max_expect", 50);
+    final int calibrateMass = (int) paramNumber(params, "calibrate_mass", 0);
+
+    if (Files.exists(tempDir)) {
+      deleteDir(tempDir);
+      say("Deleted existing temporary directory " + tempDir);
+    }
+    for (Path dir : sliceDirs) {
+      Files.createDirectories(dir);
+    }
+    final String fastaName = fasta.getFileName().toString();
+    final List<Path> sliceFastas = new ArrayList<>();
+    for (Path dir : sliceDirs) {
+      sliceFastas.add(dir.resolve(fastaName));
+    }
+    final int[] proteins = splitFasta(fasta, sliceFastas);
+    say(String.format("Split %s into %d slices of %d to %d proteins", fasta, o.numSlices,
+        proteins[proteins.length - 1], proteins[0]));
+
+    List<Path> inputs = o.inputs;
+    final Map<String, String> headerReplacements = new LinkedHashMap<>();
+    headerReplacements.put("\"" + fastaName + "\"", "\"" + fasta + "\"");
+    if (calibrateMass == 1 || calibrateMass == 2) {
+      params = calibrate(params, fasta, calibrateMass);
+      inputs = calibratedInputs(headerReplacements);
+    }
+
+    final List<Path> sliceParams = new ArrayList<>();
+    for (int i = 0; i < o.numSlices; i++) {
+      String p = RE_DATABASE.matcher(params).replaceFirst(Matcher.quoteReplacement("database_name = " + fastaName));
+      if (o.parallel > 1 && o.sliceThreads > 0) {
+        p = setParam(p, "num_threads", "[0-9]+", Integer.toString(o.sliceThreads));
+      }
+      final Path path = sliceDirs.get(i).resolve(o.params.getFileName());
+      Files.write(path, p.getBytes(UTF_8));
+      sliceParams.add(path);
+    }
+
+    searchSlices(sliceParams, inputs);
+
+    for (Path input : o.inputs) {
+      sumHistograms(stem(input));
+    }
+    final List<String> histograms = new ArrayList<>();
+    histograms.add("--generate_expect_functions");
+    for (Path input : o.inputs) {
+      histograms.add(stem(input) + "_scores_histogram.tsv");
+    }
+    await(Collections.singletonList(workers.submit(() -> {
+      exec(msfragger(o.xmxGb, histograms, tempDir.resolve("expect_args.txt")), tempDir, "");
+      return null;
+    })));
+
+    final int mergers = Math.max(1, Math.min(o.inputs.size(), Math.min(4, Runtime.getRuntime().availableProcessors())));
+    final ExecutorService pool = Executors.newFixedThreadPool(mergers, r -> {
+      Thread t = new Thread(r, "split-search-merge");
+      t.setDaemon(true);
+      return t;
+    });
+    try {
+      final List<Future<?>> merges = new ArrayList<>();
+      for (Path input : o.inputs) {
+        merges.add(pool.submit(() -> {
+          mergeResults(input, ext, topN, maxExpect, headerReplacements);
+          return null;
+        }));
+      }
+      await(merges);
+    } finally {
+      pool.shutdownNow();
+    }
+
+    try {
+      deleteDir(tempDir);
+    } catch (IOException e) {
+      say("Could not delete temporary directory " + tempDir + ": " + e);
+    }
+    drain();
+  }
+
+  private void searchSlices(List<Path> sliceParams, List<Path> inputs) throws Exception {
+    final int n = sliceParams.size();
+    final int xmx = o.parallel > 1 && o.sliceXmxGb > 0 ? o.sliceXmxGb : o.xmxGb;
+    final ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(o.parallel, n)), r -> {
+      Thread t = new Thread(r, "split-search-slice");
+      t.setDaemon(true);
+      return t;
+    });
+    if (o.parallel > 1) {
+      say(String.format("Searching up to %d slices at a time", Math.min(o.parallel, n)));
+    }
+    try {
+      final List<Future<?>> slices = new ArrayList<>();
+      for (int i = 0; i < n; i++) {
+        final int slice = i;
+        slices.add(pool.submit(() -> {
+          final List<String> args = new ArrayList<>();
+          args.add(sliceParams.get(slice).toString());
+          inputs.forEach(p -> args.add(p.toString()));
+          args.add("--partial");
+          args.add(Integer.toString(slice));
+          final String of = (slice + 1) + " of " + n;
+          say("Operating on slice " + of);
+          say("STARTED: DB split " + of);
+          exec(msfragger(xmx, args, sliceDirs.get(slice).resolve("args.txt")), sliceDirs.get(slice),
+              o.parallel > 1 ? "[slice " + (slice + 1) + "] " : "");
+          say("DONE: DB split " + of);
+          return null;
+        }));
+      }
+      await(slices);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Calibrates the inputs with the whole database, MSFragger writes the calibrated spectra next
+   * to the inputs and prints the new tolerances.
+   *
+   * @return Params for the slices.
+   */
+  private String calibrate(String params, Path fasta, int calibrateMass) throws Exception {
+    final Path calibrationFasta = tempDir.resolve(fasta.getFileName());
+    Files.copy(fasta, calibrationFasta, StandardCopyOption.REPLACE_EXISTING);
+    final Path calibrationParams = tempDir.resolve(o.params.getFileName());
+    Files.write(calibrationParams, RE_DATABASE.matcher(params)
+        .replaceFirst(Matcher.quoteReplacement("database_name = " + calibrationFasta)).getBytes(UTF_8));
+    final List<String> args = new ArrayList<>();
+    args.add(calibrationParams.toString());
+    args.add("--split1");
+    o.inputs.forEach(p -> args.add(p.toString()));
+    final List<String> found = Collections.synchronizedList(new ArrayList<>());
+    await(Collections.singletonList(workers.submit(() -> {
+      exec(msfragger(o.xmxGb, args, tempDir.resolve("calibrate_args.txt")), tempDir, "", line -> {
+        if (line.startsWith("New ")) {
+          found.add(line.trim());
+        }
+      });
+      return null;
+    })));
+
+    String p = params;
+    if (calibrateMass == 2) {
+      final String precursor = newValue(found, "New precursor_true_tolerance = (.+) PPM");
+      final String fragment = newValue(found, "New fragment_mass_tolerance = (.+) PPM");
+      if (fragment == null) {
+        throw new IOException("MSFragger did not report the new fragment_mass_tolerance after mass calibration");
+      }
+      if (precursor != null) {
+        p = setParam(p, "precursor_true_tolerance", "[0-9.]+", precursor);
+        p = setParam(p, "precursor_true_units", "[01]", "1");
+      }
+      p = setParam(p, "fragment_mass_tolerance", "[0-9.]+", fragment);
+      p = setParam(p, "fragment_mass_units", "[01]", "1");
+      p = setParamIfFound(p, found, "use_topN_peaks", "[0-9]+", "New use_topN_peaks = (.+)");
+      p = setParamIfFound(p, found, "minimum_ratio", "[0-9.]+", "New minimum_ratio = (.+)");
+      p = setParamIfFound(p, found, "intensity_transform", "[0-9]", "New intensity_transform = (.+)");
+      p = setParamIfFound(p, found, "remove_precursor_peak", "[0-9]", "New remove_precursor_peaks = (.+)");
+    }
+    // the calibrated spectra are not checked again for every slice
+    final Matcher m = Pattern.compile("^check_spectral_files\\s*=\\s*[0-9]", Pattern.MULTILINE).matcher(p);
+    p = m.find() ? m.replaceAll("check_spectral_files = 0") : p + "\ncheck_spectral_files = 0";
+    return p;
+  }
+
+  /**
+   * Moves the calibrated spectra MSFragger wrote next to the inputs into the temp dir.
+   *
+   * @return Inputs for the slices, the original file where there are no calibrated spectra.
+   */
+  private List<Path> calibratedInputs(Map<String, String> headerReplacements) throws IOException {
+    final List<Path> inputs = new ArrayList<>();
+    for (Path input : o.inputs) {
+      final Path calibrated = input.resolveSibling(stem(input) + ".mzBIN_calibrated");
+      if (Files.exists(calibrated)) {
+        final Path moved = tempDir.resolve(calibrated.getFileName());
+        Files.move(calibrated, moved, StandardCopyOption.REPLACE_EXISTING);
+        inputs.add(moved);
+        // merged results point to the original input, not the temp dir
+        headerReplacements.put(tempDir.resolve(stem(input)).toString(), input.resolveSibling(stem(input)).toString());
+      } else {
+        inputs.add(input);
+      }
+    }
+    return inputs;
+  }
+
+  private void sumHistograms(String stem) throws IOException {
+    final String name = stem + "_scores_histogram.tsv";
+    final List<BufferedReader> readers = new ArrayList<>();
+    try (BufferedWriter w = Files.newBufferedWriter(tempDir.resolve(name), UTF_8)) {
+      for (Path dir : sliceDirs) {
+        readers.add(Files.newBufferedReader(dir.resolve(name), UTF_8));
+      }
+      while (true) {
+        long[] sum = null;
+        int ended = 0;
+        for (BufferedReader br : readers) {
+          final String line = br.readLine();
+          if (line == null) {
+            ended++;
+            continue;
+          }
+          final String[] cells = line.trim().split("\\s+");
+          if (sum == null) {
+            sum = new long[cells.length];
+          } else if (sum.length != cells.length) {
+            throw new IOException("Score histograms of " + stem + " differ in size between slices");
+          }
+          for (int i = 0; i < cells.length; i++) {
+            sum[i] += Long.parseLong(cells[i]);
+          }
+        }
+        if (ended == readers.size()) {
+          break;
+        }
+        if (ended > 0) {
+          throw new IOException("Score histograms of " + stem + " differ in size between slices");
+        }
+        for (int i = 0; i < sum.length; i++) {
+          if (i > 0) {
+            w.write('\t');
+          }
+          w.write(Long.toString(sum[i]));
+        }
+        w.write('\n');
+      }
+    } catch (NumberFormatException e) {
+      throw new IOException("Could not parse score histogram of " + stem, e);
+    } finally {
+      for (BufferedReader br : readers) {
+        br.close();
+      }
+    }
+  }
+
+  private void mergeResults(Path input, String ext, int topN, double maxExpect, Map<String, String> headerReplacements) throws IOException {
+    final String stem = stem(input);
+    final Path expectFile = tempDir.resolve(stem + "_expectscore.tsv");
+    ExpectFunctions expect = null;
+    if (Files.exists(expectFile)) {
+      expect = ExpectFunctions.read(expectFile);
+    } else {
+      say("No expect functions for " + stem + ", keeping expect values of the slices");
+    }
+
+    // DIA searches write a pepXML file per rank
+    final List<List<Path>> byRank = new ArrayList<>();
+    final List<Path> outputs = new ArrayList<>();
+    if (allExist(sliceFiles(stem + "." + ext))) {
+      byRank.add(sliceFiles(stem + "." + ext));
+      outputs.add(input.resolveSibling(stem + "." + ext));
+    } else {
+      for (int rank = 1; allExist(sliceFiles(stem + "_rank" + rank + "." + ext)); rank++) {
+        byRank.add(sliceFiles(stem + "_rank" + rank + "." + ext));
+        outputs.add(input.resolveSibling(stem + "_rank" + rank + "." + ext));
+      }
+    }
+    final ScanIndex scans = new ScanIndex();
+    if (!byRank.isEmpty()) {
+      final List<List<Path>> bySlice = new ArrayList<>();
+      for (int i = 0; i < o.numSlices; i++) {
+        final List<Path> files = new ArrayList<>();
+        for (List<Path> rank : byRank) {
+          files.add(rank.get(i));
+        }
+        bySlice.add(files);
+      }
+      final PepxmlSliceMerger merger = new PepxmlSliceMerger(topN, maxExpect, expect,
+          PepxmlSliceMerger.sharedProteins(bySlice), headerReplacements, this::say);
+      for (int i = 0; i < byRank.size(); i++) {
+        say("Writing " + outputs.get(i));
+        merger.merge(byRank.get(i), outputs.get(i), scans);
+      }
+    }
+    if (allExist(sliceFiles(stem + ".pin"))) {
+      say("Writing " + input.resolveSibling(stem + ".pin"));
+      new TableSliceMerger(TableSliceMerger.Format.PIN, topN, maxExpect, expect, scans, this::say)
+          .merge(sliceFiles(stem + ".pin"), input.resolveSibling(stem + ".pin"));
+    }
+    if (allExist(sliceFiles(stem + ".tsv"))) {
+      say("Writing " + input.resolveSibling(stem + ".tsv"));
+      new TableSliceMerger(TableSliceMerger.Format.TSV, topN, maxExpect, expect, scans, this::say)
+          .merge(sliceFiles(stem + ".tsv"), input.resolveSibling(stem + ".tsv"));
+    }
+  }
+
+  private List<Path> sliceFiles(String name) {
+    final List<Path> files = new ArrayList<>();
+    for (Path dir : sliceDirs) {
+      files.add(dir.resolve(name));
+    }
+    return files;
+  }
+
+  /**
+   * @return False if none of the files exist.
+   * @throws IOException If only some of them exist, a slice is missing its results.
+   */
+  private static boolean allExist(List<Path> files) throws IOException {
+    final long n = files.stream().filter(Files::exists).count();
+    if (n > 0 && n < files.size()) {
+      throw new IOException("Not all slices have results: " + files);
+    }
+    return n > 0;
+  }
+
+  /**
+   * Java command running MSFragger. The arguments go in an arg file if enabled.
+   */
+  private List<String> msfragger(int xmxGb, List<String> args, Path argFile) throws IOException {
+    final List<String> cmd = new ArrayList<>(Arrays.asList(o.java, "-jar", "-Dfile.encoding=UTF-8"));
+    if (xmxGb > 0) {
+      cmd.add("-Xmx" + xmxGb + "G");
+    }
+    final List<String> rest = new ArrayList<>();
+    rest.add(o.jar.toString());
+    rest.addAll(args);
+    if (o.argFiles && ArgFiles.canWrite(rest)) {
+      ArgFiles.write(argFile, rest);
+      cmd.add("@" + argFile);
+    } else {
+      cmd.addAll(rest);
+    }
+    return cmd;
+  }
+
+  private void exec(List<String> cmd, Path dir, String prefix) throws IOException, InterruptedException {
+    exec(cmd, dir, prefix, null);
+  }
+
+  private void exec(List<String> cmd, Path dir, String prefix, Consumer<String> onLine) throws IOException, InterruptedException {
+    say(prefix + String.join(" ", cmd));
+    final Process p = new ProcessBuilder(cmd).directory(dir.toFile()).redirectErrorStream(true).start();
+    running.add(p);
+    try {
+      try (BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream(), UTF_8))) {
+        String line;
+        while ((line = br.readLine()) != null) {
+          say(prefix + line);
+          if (onLine != null) {
+            onLine.accept(line);
+          }
+        }
+      }
+      final int code = p.waitFor();
+      if (code != 0) {
+        throw new IOException("MSFragger exited with code " + code + ": " + String.join(" ", cmd));
+      }
+    } finally {
+      running.remove(p);
+    }
+  }
+
+  /**
+   * Waits for the tasks while printing their output from the calling thread. Output printed from
+   * other threads would not get to the console when running inside of FragPipe.
+   */
+  private void await(List<? extends Future<?>> tasks) throws Exception {
+    try {
+      while (!tasks.stream().allMatch(Future::isDone)) {
+        final String line = messages.poll(200, TimeUnit.MILLISECONDS);
+        if (line != null) {
+          System.out.println(line);
+        }
+        for (Future<?> f : tasks) {
+          if (f.isDone() && !f.isCancelled()) {
+            try {
+              f.get();
+            } catch (ExecutionException e) {
+              // one failed, the rest are of no use
+              stop(tasks);
+              throw e;
+            }
+          }
+        }
+      }
+      drain();
+      for (Future<?> f : tasks) {
+        f.get();
+      }
+    } catch (InterruptedException e) {
+      stop(tasks);
+      throw e;
+    } catch (ExecutionException e) {
+      drain();
+      final Throwable cause = e.getCause();
+      throw cause instanceof Exception ? (Exception) cause : e;
+    }
+  }
+
+  private void stop(List<? extends Future<?>> tasks) {
+    for (Process p : running) {
+      p.descendants().forEach(ProcessHandle::destroyForcibly);
+      p.destroyForcibly();
+    }
+    tasks.forEach(f -> f.cancel(true));
+  }
+
+  private void drain() {
+    String line;
+    while ((line = messages.poll()) != null) {
+      System.out.println(line);
+    }
+  }
+
+  private void say(String message) {
+    messages.add(message);
+  }
+
+  /**
+   * Splits the database at protein boundaries into slices with the same number of proteins, the
+   * first ones get one more if it doesn't divide evenly. Streams the file twice, once to count.
+   *
+   * @return Number of proteins in each slice.
+   */
+  static int[] splitFasta(Path fasta, List<Path> slices) throws IOException {
+    final long total = countProteins(fasta);
+    final int n = slices.size();
+    if (total < n) {
+      throw new IOException("Database has fewer proteins (" + total + ") than slices (" + n + "): " + fasta);
+    }
+    final int[] counts = new int[n];
+    for (int i = 0; i < n; i++) {
+      counts[i] = (int) (total / n + (i < total % n ? 1 : 0));
+    }
+    final byte[] buf = new byte[1 << 16];
+    int slice = 0;
+    long inSlice = 0;
+    OutputStream os = Files.newOutputStream(slices.get(0));
+    try (InputStream is = new BufferedInputStream(Files.newInputStream(fasta))) {
+      byte prev = '\n';
+      boolean first = true;
+      int len;
+      while ((len = is.read(buf)) > 0) {
+        int from = 0;
+        for (int i = 0; i < len; i++) {
+          // the start of the file counts as a protein, whatever it is
+          if (first || (buf[i] == '>' && prev == '\n')) {
+            if (!first && inSlice == counts[slice]) {
+              os.write(buf, from, i - from);
+              os.close();
+              from = i;
+              os = Files.newOutputStream(slices.get(++slice));
+              inSlice = 0;
+            }
+            inSlice++;
+            first = false;
+          }
+          prev = buf[i];
+        }
+        os.write(buf, from, len - from);
+      }
+    } finally {
+      os.close();
+    }
+    return counts;
+  }
+
+  static long countProteins(Path fasta) throws IOException {
+    final byte[] buf = new byte[1 << 16];
+    long count = 0;
+    try (InputStream is = Files.newInputStream(fasta)) {
+      byte prev = '\n';
+      boolean first = true;
+      int len;
+      while ((len = is.read(buf)) > 0) {
+        for (int i = 0; i < len; i++) {
+          if (first || (buf[i] == '>' && prev == '\n')) {
+            count++;
+            first = false;
+          }
+          prev = buf[i];
+        }
+      }
+    }
+    return count;
+  }
+
+  private static Path database(String params) throws IOException {
+    final Matcher m = RE_DATABASE.matcher(params);
+    if (!m.find()) {
+      throw new IOException("No database_name in params file");
+    }
+    return Paths.get(m.group(1).trim()).toAbsolutePath();
+  }
+
+  private static String paramString(String params, String name, String dflt) {
+    final Matcher m = Pattern.compile("^" + name + "\\s*=\\s*(\\S+)", Pattern.MULTILINE).matcher(params);
+    return m.find() ? m.group(1) : dflt;
+  }
+
+  private static double paramNumber(String params, String name, double dflt) throws IOException {
+    final String s = paramString(params, name, null);
+    try {
+      return s == null ? dflt : Double.parseDouble(s);
+    } catch (NumberFormatException e) {
+      throw new IOException("Could not parse " + name + " in params file: " + s);
+    }
+  }
+
+  static String setParam(String params, String name, String valueRegex, String value) {
+    return Pattern.compile("^" + name + "\\s*=\\s*" + valueRegex, Pattern.MULTILINE).matcher(params)
+        .replaceAll(Matcher.quoteReplacement(name + " = " + value));
+  }
+
+  private static String setParamIfFound(String params, List<String> found, String name, String valueRegex, String regex) {
+    final String value = newValue(found, regex);
+    return value == null ? params : setParam(params, name, valueRegex, value);
+  }
+
+  /**
+   * @return Null unless MSFragger reported exactly one new value.
+   */
+  private static String newValue(List<String> lines, String regex) {
+    final Pattern re = Pattern.compile(regex);
+    String value = null;
+    int n = 0;
+    synchronized (lines) {
+      for (String line : lines) {
+        final Matcher m = re.matcher(line);
+        if (m.find()) {
+          value = m.group(1).trim();
+          n++;
+        }
+      }
+    }
+    return n == 1 ? value : null;
+  }
+
+  /** File name without the extension, as MSFragger names its outputs. */
+  static String stem(Path p) {
+    final String name = p.getFileName().toString();
+    final int dot = name.lastIndexOf('.');
+    return dot > 0 ? name.substring(0, dot) : name;
+  }
+
+  private static void deleteDir(Path dir) throws IOException {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(p);
+      }
+    }
+  }
+
+  private static class Options {
+    int numSlices;
+    String java;
+    Path jar;
+    Path params;
+    List<Path> inputs;
+    int xmxGb;
+    int parallel = 1;
+    int sliceXmxGb;
+    int sliceThreads;
+    boolean argFiles;
+
+    static Options parse(String[] args) {
+      final Options o = new Options();
+      int i = 0;
+      try {
+        for (; i < args.length && args[i].startsWith("--"); i++) {
+          switch (args[i]) {
+            case "--xmx":
+              o.xmxGb = Integer.parseInt(args[++i]);
+              break;
+            case "--parallel":
+              o.parallel = Math.max(1, Integer.parseInt(args[++i]));
+              break;
+            case "--slice-xmx":
+              o.sliceXmxGb = Integer.parseInt(args[++i]);
+              break;
+            case "--slice-threads":
+              o.sliceThreads = Integer.parseInt(args[++i]);
+              break;
+            case "--argfiles":
+              o.argFiles = true;
+              break;
+            default:
+              throw new IllegalArgumentException("Unknown option " + args[i]);
+          }
+        }
+        if (args.length - i < 5) {
+          throw new IllegalArgumentException("Not enough arguments");
+        }
+        o.numSlices = Integer.parseInt(args[i++]);
+      } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+        throw new IllegalArgumentException("Could not parse arguments: " + String.join(" ", args));
+      }
+      if (o.numSlices < 1) {
+        throw new IllegalArgumentException("Number of slices must be positive");
+      }
+      o.java = args[i++];
+      o.jar = Paths.get(args[i++]).toAbsolutePath();
+      o.params = Paths.get(args[i++]).toAbsolutePath();
+      o.inputs = new ArrayList<>();
+      for (; i < args.length; i++) {
+        o.inputs.add(Paths.get(args[i]).toAbsolutePath());
+      }
+      return o;
+    }
+  }
+}
@@ -0,0 +1,474 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.tools.dbsplit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+/**
+ * Merges the Percolator input (pin) or tsv files the slices of a split database search wrote
+ * for one input. Like {@link PepxmlSliceMerger}, the files are read side by side, one spectrum at
+ * a time, and the hits of a spectrum from all slices ranked again. If a file turns out not to be
+ * ordered by scan number, the files are merged in memory instead.
+ */
+final class TableSliceMerger {
+  enum Format {
+    /** Rows ranked by hyperscore, then by the smallest abs_ppm. */
+    PIN,
+    /** Rows ranked by hyperscore, then by the smallest massdiff. */
+    TSV
+  }
+
+  private final Format format;
+  private final int topN;
+  private final double maxExpect;
+  private final ExpectFunctions expect;
+  private final ScanIndex scans;
+  private final Consumer<String> out;
+  private Columns cols;
+  private Map<String, List<String>> proteins = Collections.emptyMap();
+
+  /**
+   * @param expect Null to keep the expect values of the slices.
+   * @param scans Spectrum indexes of the scans, expect values can only be recomputed for scans in
+   * there.
+   */
+  TableSliceMerger(Format format, int topN, double maxExpect, ExpectFunctions expect, ScanIndex scans, Consumer<String> out) {
+    this.format = format;
+    this.topN = Math.max(1, topN);
+    this.maxExpect = maxExpect;
+    this.expect = expect;
+    this.scans = scans;
+    this.out = out;
+  }
+
+  void merge(List<Path> parts, Path outFile) throws IOException {
+    String header = null;
+    for (Path p : parts) {
+      try (BufferedReader br = Files.newBufferedReader(p, UTF_8)) {
+        final String h = br.readLine();
+        if (h == null) {
+          throw new IOException("Empty file " + p);
+        }
+        if (header != null && !header.equals(h)) {
+          throw new IOException("Columns of " + p + " differ from those of " + parts.get(0));
+        }
+        header = h;
+      }
+    }
+    cols = new Columns(format, header.split("\t", -1));
+    if (format == Format.PIN) {
+      proteins = sharedProteins(parts);
+    }
+    try {
+      mergeSorted(parts, outFile, header);
+    } catch (OutOfOrderException e) {
+      out.accept(e.getMessage() + ", merging " + outFile.getFileName() + " in memory");
+      mergeInMemory(parts, outFile, header);
+    }
+  }
+
+  private Map<String, List<String>> sharedProteins(List<Path> parts) throws IOException {
+    final SharedPeptides.Builder b = new SharedPeptides.Builder();
+    for (Path p : parts) {
+      try (BufferedReader br = Files.newBufferedReader(p, UTF_8)) {
+        br.readLine();
+        String line;
+        while ((line = br.readLine()) != null) {
+          final String[] row = line.split("\t", -1);
+          if (row.length > cols.peptide) {
+            b.add(row[cols.peptide]);
+          }
+        }
+      }
+      b.nextSlice();
+    }
+    final SharedPeptides shared = b.build();
+    if (shared.size() == 0) {
+      return Collections.emptyMap();
+    }
+    final Map<String, TreeSet<String>> union = new HashMap<>();
+    for (Path p : parts) {
+      try (BufferedReader br = Files.newBufferedReader(p, UTF_8)) {
+        br.readLine();
+        String line;
+        while ((line = br.readLine()) != null) {
+          final String[] row = line.split("\t", -1);
+          if (row.length > cols.peptide && shared.contains(row[cols.peptide])) {
+            final TreeSet<String> set = union.computeIfAbsent(row[cols.peptide], k -> new TreeSet<>());
+            for (int i = cols.proteins; i < row.length; i++) {
+              if (!row[i].isEmpty()) {
+                set.add(row[i]);
+              }
+            }
+          }
+        }
+      }
+    }
+    final Map<String, List<String>> sorted = new HashMap<>();
+    union.forEach((k, v) -> sorted.put(k, new ArrayList<>(v)));
+    return sorted;
+  }
+
+  private void mergeSorted(List<Path> parts, Path outFile, String header) throws IOException {
+    final List<Reader> readers = new ArrayList<>();
+    try (BufferedWriter w = Files.newBufferedWriter(outFile, UTF_8)) {
+      for (Path p : parts) {
+        final Reader r = new Reader(p);
+        readers.add(r);
+        r.br.readLine();
+      }
+      w.write(header);
+      w.write('\n');
+      final Group[] cur = new Group[readers.size()];
+      for (int i = 0; i < cur.length; i++) {
+        cur[i] = readers.get(i).next();
+      }
+      final List<String[]> rows = new ArrayList<>();
+      while (true) {
+        long key = Long.MAX_VALUE;
+        for (Group g : cur) {
+          if (g != null && g.key < key) {
+            key = g.key;
+          }
+        }
+        if (key == Long.MAX_VALUE) {
+          break;
+        }
+        rows.clear();
+        for (int i = 0; i < cur.length; i++) {
+          if (cur[i] != null && cur[i].key == key) {
+            rows.addAll(cur[i].rows);
+            cur[i] = readers.get(i).next();
+          }
+        }
+        writeSpectrum(w, key, rows);
+      }
+    } finally {
+      for (Reader r : readers) {
+        r.close();
+      }
+    }
+  }
+
+  private void mergeInMemory(List<Path> parts, Path outFile, String header) throws IOException {
+    final TreeMap<Long, List<String[]>> byKey = new TreeMap<>();
+    for (Path p : parts) {
+      try (BufferedReader br = Files.newBufferedReader(p, UTF_8)) {
+        br.readLine();
+        String line;
+        while ((line = br.readLine()) != null) {
+          if (line.isEmpty()) {
+            continue;
+          }
+          final String[] row = line.split("\t", -1);
+          byKey.computeIfAbsent(key(row, p), k -> new ArrayList<>()).add(row);
+        }
+      }
+    }
+    try (BufferedWriter w = Files.newBufferedWriter(outFile, UTF_8)) {
+      w.write(header);
+      w.write('\n');
+      for (Map.Entry<Long, List<String[]>> e : byKey.entrySet()) {
+        writeSpectrum(w, e.getKey(), e.getValue());
+      }
+    }
+  }
+
+  private void writeSpectrum(BufferedWriter w, long scan, List<String[]> rows) throws IOException {
+    final Map<String, Row> distinct = new LinkedHashMap<>();
+    for (String[] r : rows) {
+      final Row row = new Row(r, cols);
+      distinct.putIfAbsent(row.key, row);
+    }
+    final List<Row> hits = new ArrayList<>(distinct.values());
+    hits.sort(Row.ORDER);
+    final int index = scans == null ? -1 : scans.get(scan);
+    final boolean recompute = expect != null && expect.has(index);
+    if (format == Format.PIN) {
+      writePin(w, index, recompute, hits);
+    } else {
+      writeTsv(w, index, recompute, hits);
+    }
+  }
+
+  private void writePin(BufferedWriter w, int index, boolean recompute, List<Row> hits) throws IOException {
+    for (int i = 0; i < hits.size() && i < topN; i++) {
+      final Row h = hits.get(i);
+      String[] row = h.cells;
+      if (cols.deltaHyperscore >= 0 && i + 1 < hits.size()) {
+        row[cols.deltaHyperscore] = num(h.hyperscore - hits.get(i + 1).hyperscore);
+      }
+      if (cols.log10Evalue >= 0 && recompute) {
+        row[cols.log10Evalue] = num(Math.log10(expect.expect(index, h.hyperscore)));
+      }
+      row[cols.rank] = Integer.toString(i + 1);
+      final String specId = row[cols.specId];
+      final int us = specId.lastIndexOf('_');
+      row[cols.specId] = (us < 0 ? specId : specId.substring(0, us)) + "_" + (i + 1);
+      final List<String> union = proteins.get(row[cols.peptide]);
+      if (union != null && union.size() != countProteins(row)) {
+        final String[] amended = Arrays.copyOf(row, cols.proteins + union.size());
+        for (int j = 0; j < union.size(); j++) {
+          amended[cols.proteins + j] = union.get(j);
+        }
+        row = amended;
+      }
+      w.write(String.join("\t", row));
+      w.write('\n');
+    }
+  }
+
+  private void writeTsv(BufferedWriter w, int index, boolean recompute, List<Row> hits) throws IOException {
+    final List<Row> kept = new ArrayList<>();
+    for (Row h : hits) {
+      double e = h.expect;
+      if (recompute) {
+        e = expect.expect(index, h.hyperscore);
+        if (cols.expect >= 0) {
+          h.cells[cols.expect] = String.format(Locale.ROOT, "%.3e", e);
+        }
+      }
+      if (kept.size() == topN || e > maxExpect) {
+        break;
+      }
+      kept.add(h);
+    }
+    double minNext = Double.POSITIVE_INFINITY;
+    for (Row h : kept) {
+      minNext = Math.min(minNext, h.nextscore);
+    }
+    for (int i = 0; i < kept.size(); i++) {
+      final String[] row = kept.get(i).cells;
+      if (cols.rank >= 0) {
+        row[cols.rank] = Integer.toString(i + 1);
+      }
+      if (cols.nextscore >= 0) {
+        final double next = i + 1 < kept.size() ? kept.get(i + 1).hyperscore : minNext;
+        row[cols.nextscore] = String.format(Locale.ROOT, "%.3f", next);
+      }
+      w.write(String.join("\t", row));
+      w.write('\n');
+    }
+  }
+
+  private int countProteins(String[] row) {
+    int n = 0;
+    for (int i = cols.proteins; i < row.length; i++) {
+      if (!row[i].isEmpty()) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  private long key(String[] row, Path p) throws IOException {
+    try {
+      if (format == Format.TSV) {
+        return Long.parseLong(row[cols.scan].trim());
+      }
+      // SpecId is <file>.<scan>.<scan>.<charge>_<rank>
+      final String group = group(row);
+      return Long.parseLong(group.substring(group.lastIndexOf('.') + 1));
+    } catch (RuntimeException e) {
+      throw new IOException("Could not get scan number of row in " + p + ": " + String.join("\t", row), e);
+    }
+  }
+
+  /** Rows of the same spectrum. */
+  private String group(String[] row) {
+    if (format == Format.TSV) {
+      return row[cols.scan];
+    }
+    final String specId = row[cols.specId];
+    final int dot = specId.lastIndexOf('.');
+    return dot < 0 ? specId : specId.substring(0, dot);
+  }
+
+  private static String num(double v) {
+    return Double.toString(v);
+  }
+
+  private static final class Columns {
+    final int specId;
+    final int scan;
+    final int rank;
+    final int hyperscore;
+    final int nextscore;
+    final int expect;
+    final int log10Evalue;
+    final int deltaHyperscore;
+    final int tieBreak;
+    final int peptide;
+    final int proteins;
+    final int[] key;
+
+    Columns(Format format, String[] header) throws IOException {
+      final List<String> h = Arrays.asList(header);
+      if (format == Format.PIN) {
+        specId = required(h, "SpecId");
+        rank = required(h, "rank");
+        peptide = required(h, "Peptide");
+        proteins = required(h, "Proteins");
+        tieBreak = h.indexOf("abs_ppm");
+        scan = -1;
+        nextscore = -1;
+        expect = -1;
+        key = new int[]{peptide};
+      } else {
+        specId = -1;
+        scan = required(h, "scannum");
+        rank = h.indexOf("hit_rank");
+        peptide = h.indexOf("peptide");
+        proteins = -1;
+        tieBreak = h.indexOf("massdiff");
+        nextscore = h.indexOf("nextscore");
+        expect = h.indexOf("expectscore");
+        key = new int[]{h.indexOf("charge"), peptide, h.indexOf("modification_info")};
+      }
+      hyperscore = required(h, "hyperscore");
+      log10Evalue = h.indexOf("log10_evalue");
+      deltaHyperscore = h.indexOf("delta_hyperscore");
+    }
+
+    private static int required(List<String> header, String col) throws IOException {
+      final int i = header.indexOf(col);
+      if (i < 0) {
+        throw new IOException("No column " + col + " in " + String.join(", ", header));
+      }
+      return i;
+    }
+  }
+
+  private static final class Row {
+    static final Comparator<Row> ORDER = Comparator
+        .comparingDouble((Row r) -> -r.hyperscore)
+        .thenComparingDouble(r -> r.tieBreak);
+    final String[] cells;
+    final String key;
+    final double hyperscore;
+    final double nextscore;
+    final double expect;
+    final double tieBreak;
+
+    Row(String[] cells, Columns cols) {
+      this.cells = cells;
+      hyperscore = Double.parseDouble(cells[cols.hyperscore]);
+      nextscore = cols.nextscore < 0 ? 0 : Double.parseDouble(cells[cols.nextscore]);
+      expect = cols.expect < 0 ? 0 : Double.parseDouble(cells[cols.expect]);
+      tieBreak = cols.tieBreak < 0 ? 0 : Math.abs(Double.parseDouble(cells[cols.tieBreak]));
+      // the same peptide of the same spectrum from several slices
+      final StringBuilder sb = new StringBuilder();
+      if (cols.specId >= 0) {
+        final String specId = cells[cols.specId];
+        final int us = specId.lastIndexOf('_');
+        sb.append(us < 0 ? specId : specId.substring(0, us));
+      }
+      for (int i : cols.key) {
+        sb.append('\t').append(i < 0 ? "" : cells[i]);
+      }
+      key = sb.toString();
+    }
+  }
+
+  private static final class Group {
+    final long key;
+    final String id;
+    final List<String[]> rows = new ArrayList<>();
+
+    Group(long key, String id) {
+      this.key = key;
+      this.id = id;
+    }
+  }
+
+  private static final class OutOfOrderException extends IOException {
+    OutOfOrderException(String message) {
+      super(message);
+    }
+  }
+
+  private final class Reader implements Closeable {
+    final Path path;
+    final BufferedReader br;
+    String[] pending;
+    long lastKey = Long.MIN_VALUE;
+
+    Reader(Path path) throws IOException {
+      this.path = path;
+      this.br = Files.newBufferedReader(path, UTF_8);
+    }
+
+    /**
+     * @return Rows of the next spectrum, null at the end of the file.
+     */
+    Group next() throws IOException {
+      String[] row = pending != null ? pending : readRow();
+      pending = null;
+      if (row == null) {
+        return null;
+      }
+      final Group g = new Group(key(row, path), group(row));
+      if (g.key <= lastKey) {
+        throw new OutOfOrderException("Rows of " + path.getFileName() + " are not ordered by scan number");
+      }
+      lastKey = g.key;
+      g.rows.add(row);
+      while ((row = readRow()) != null) {
+        if (!g.id.equals(group(row))) {
+          pending = row;
+          break;
+        }
+        g.rows.add(row);
+      }
+      return g;
+    }
+
+    private String[] readRow() throws IOException {
+      String line;
+      while ((line = br.readLine()) != null) {
+        if (!line.isEmpty()) {
+          return line.split("\t", -1);
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+      br.close();
+    }
+  }
+}
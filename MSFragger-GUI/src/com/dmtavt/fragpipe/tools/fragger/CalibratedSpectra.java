@@ -0,0 +1,375 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.tools.fragger;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.dmtavt.fragpipe.params.Props.Prop;
+import com.dmtavt.fragpipe.process.TaskCost;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Calibrated spectra that MSFragger wrote in an earlier search, reused by later searches of the
+ * same inputs with the same settings so that they can skip mass calibration.
+ * <p>
+ * With {@link MsfraggerParams#PROP_write_calibrated_mgf} on, MSFragger writes the calibrated
+ * spectra of an input next to it. After the search, {@code record} writes a small properties file
+ * next to them with the input they came from, a key of the settings they were calibrated with and
+ * the parameters MSFragger found if it optimized them. A later search whose inputs all have a
+ * record that still matches searches the calibrated spectra instead, with calibration off and the
+ * optimized parameters set. MSFragger names its outputs after the calibrated spectra then,
+ * {@code restore} gives them the names of the original inputs.
+ */
+public class CalibratedSpectra {
+  public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("fragpipe.msfragger.reuse-calibrated", "true"));
+  private static final String USAGE = "Usage: " + CalibratedSpectra.class.getCanonicalName()
+      + " record <settings key> <calibrate_mass> <msfragger log> <input files...>\n"
+      + "       " + CalibratedSpectra.class.getCanonicalName()
+      + " restore <from stem> <to stem> <output files...>";
+  /** What MSFragger may write for an input, in the order they are preferred for a later search. */
+  private static final List<String> SUFFIXES = Arrays.asList(".mzBIN_calibrated", "_calibrated.mgf");
+  private static final String RECORD_SUFFIX = "_calibrated.properties";
+  private static final String PARAM_PREFIX = "param.";
+  /** Params that don't change the calibration or that are set for each run anyway. */
+  private static final Set<String> IGNORED = new HashSet<>(Arrays.asList(
+      MsfraggerParams.PROP_database_name,
+      MsfraggerParams.PROP_num_threads,
+      MsfraggerParams.PROP_check_spectral_files,
+      MsfraggerParams.PROP_write_calibrated_mgf,
+      MsfraggerParams.PROP_output_format,
+      MsfraggerParams.PROP_output_report_topN,
+      MsfraggerParams.PROP_output_max_expect));
+
+  /** Calibrated spectra of one input that a search can use instead of the input. */
+  public static class Record {
+    public final Path calibrated;
+    public final int calibrateMass;
+    /** Params MSFragger found with {@code calibrate_mass = 2}, empty otherwise. */
+    public final Map<String, String> params;
+
+    Record(Path calibrated, int calibrateMass, Map<String, String> params) {
+      this.calibrated = calibrated;
+      this.calibrateMass = calibrateMass;
+      this.params = params;
+    }
+  }
+
+  private CalibratedSpectra() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    final int ret = run(args);
+    if (ret != 0) {
+      System.exit(ret);
+    }
+  }
+
+  /**
+   * Same as {@link #main(String[])}, but returns the exit code instead of exiting the JVM.
+   */
+  public static int run(String[] args) throws Exception {
+    if (args.length >= 4 && args[0].equals("record")) {
+      final List<Path> inputs = new ArrayList<>();
+      for (int i = 4; i < args.length; i++) {
+        inputs.add(Paths.get(args[i]));
+      }
+      final int calibrateMass;
+      try {
+        calibrateMass = Integer.parseInt(args[2]);
+      } catch (NumberFormatException e) {
+        System.err.println("Not a calibrate_mass value: " + args[2]);
+        System.err.println(USAGE);
+        return 1;
+      }
+      record(args[1], calibrateMass, Paths.get(args[3]), inputs);
+      return 0;
+    }
+    if (args.length >= 3 && args[0].equals("restore")) {
+      for (int i = 3; i < args.length; i++) {
+        restore(Paths.get(args[i]), args[1], args[2]);
+      }
+      return 0;
+    }
+    System.err.println(USAGE);
+    return 1;
+  }
+
+  /**
+   * Key of everything that went into a calibration: the search params, the database and the
+   * MSFragger version.
+   */
+  public static String settingsKey(MsfraggerParams params, Path fasta, String version) {
+    final Map<String, String> sorted = new TreeMap<>();
+    for (Prop p : params.getProps().getMap().values()) {
+      if (p.isEnabled && !IGNORED.contains(p.name)) {
+        sorted.put(p.name, p.value == null ? "" : p.value.trim());
+      }
+    }
+    final StringBuilder sb = new StringBuilder();
+    sorted.forEach((k, v) -> sb.append(k).append('=').append(v).append('\n'));
+    sb.append("fasta=").append(fasta.toAbsolutePath().normalize()).append(' ').append(fingerprint(fasta)).append('\n');
+    sb.append("msfragger=").append(version == null ? "" : version).append('\n');
+    final MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    final StringBuilder hex = new StringBuilder();
+    for (byte b : md.digest(sb.toString().getBytes(UTF_8))) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * @return Null unless the input has calibrated spectra from a search with the same settings, and
+   * neither the input nor the calibrated spectra changed since.
+   */
+  public static Record find(Path input, String settingsKey) {
+    final Path recordFile = recordPath(input);
+    if (!Files.isRegularFile(recordFile)) {
+      return null;
+    }
+    final Properties props = new Properties();
+    try (InputStream is = Files.newInputStream(recordFile)) {
+      props.load(is);
+    } catch (IOException | IllegalArgumentException e) {
+      return null;
+    }
+    final String calibrated = props.getProperty("calibrated");
+    if (!settingsKey.equals(props.getProperty("key"))
+        || !input.toAbsolutePath().normalize().toString().equals(props.getProperty("source"))
+        || !fingerprint(input).equals(props.getProperty("source.fingerprint"))
+        || calibrated == null
+        || !fingerprint(Paths.get(calibrated)).equals(props.getProperty("calibrated.fingerprint"))) {
+      return null;
+    }
+    final Map<String, String> params = new TreeMap<>();
+    for (String name : props.stringPropertyNames()) {
+      if (name.startsWith(PARAM_PREFIX)) {
+        params.put(name.substring(PARAM_PREFIX.length()), props.getProperty(name));
+      }
+    }
+    try {
+      return new Record(Paths.get(calibrated), Integer.parseInt(props.getProperty("calibrate_mass", "")), params);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Switches off calibration in the params of a search of calibrated spectra, and sets the params
+   * that MSFragger found when it calibrated them.
+   */
+  public static void apply(Record record, MsfraggerParams params) {
+    params.setCalibrateMass(0);
+    params.setWriteCalibratedMgf(0);
+    record.params.forEach((name, value) -> params.getProps().setProp(name, value));
+  }
+
+  /** Properties file that tells where the calibrated spectra of an input came from. */
+  public static Path recordPath(Path input) {
+    return input.resolveSibling(stem(input) + RECORD_SUFFIX);
+  }
+
+  /** File name without the extension, as MSFragger names its outputs. */
+  public static String stem(Path p) {
+    final String name = p.getFileName().toString();
+    final int dot = name.lastIndexOf('.');
+    return dot > 0 ? name.substring(0, dot) : name;
+  }
+
+  /**
+   * Records the calibrated spectra that a search wrote for its inputs.
+   *
+   * @param log Output of the search, for the parameters MSFragger found.
+   */
+  static void record(String settingsKey, int calibrateMass, Path log, List<Path> inputs) throws IOException {
+    final Map<String, String> params;
+    if (calibrateMass == 2) {
+      params = optimizedParams(newLines(log));
+      if (params == null) {
+        System.out.println("MSFragger did not report the parameters it found, calibrated spectra are not recorded for reuse");
+        return;
+      }
+    } else {
+      params = Collections.emptyMap();
+    }
+    int recorded = 0;
+    for (Path input : inputs) {
+      Path calibrated = null;
+      for (String suffix : SUFFIXES) {
+        final Path p = input.resolveSibling(stem(input) + suffix);
+        if (Files.isRegularFile(p)) {
+          calibrated = p;
+          break;
+        }
+      }
+      if (calibrated == null) {
+        continue;
+      }
+      final Properties props = new Properties();
+      props.setProperty("source", input.toAbsolutePath().normalize().toString());
+      props.setProperty("source.fingerprint", fingerprint(input));
+      props.setProperty("calibrated", calibrated.toAbsolutePath().normalize().toString());
+      props.setProperty("calibrated.fingerprint", fingerprint(calibrated));
+      props.setProperty("key", settingsKey);
+      props.setProperty("calibrate_mass", Integer.toString(calibrateMass));
+      params.forEach((name, value) -> props.setProperty(PARAM_PREFIX + name, value));
+      try (OutputStream os = Files.newOutputStream(recordPath(input))) {
+        props.store(os, "Calibrated spectra written by MSFragger, reused by FragPipe while this matches");
+      }
+      recorded++;
+    }
+    System.out.printf("Recorded calibrated spectra of %d of %d inputs for reuse%n", recorded, inputs.size());
+  }
+
+  /**
+   * @return Params MSFragger found while calibrating, null if it didn't report them.
+   */
+  static Map<String, String> optimizedParams(List<String> lines) {
+    final String fragment = newValue(lines, "New fragment_mass_tolerance = (.+) PPM");
+    if (fragment == null) {
+      return null;
+    }
+    final Map<String, String> params = new LinkedHashMap<>();
+    final String precursor = newValue(lines, "New precursor_true_tolerance = (.+) PPM");
+    if (precursor != null) {
+      params.put(MsfraggerParams.PROP_precursor_true_tolerance, precursor);
+      params.put(MsfraggerParams.PROP_precursor_true_units, "1");
+    }
+    params.put(MsfraggerParams.PROP_fragment_mass_tolerance, fragment);
+    params.put(MsfraggerParams.PROP_fragment_mass_units, "1");
+    putIfFound(params, lines, MsfraggerParams.PROP_use_topN_peaks, "New use_topN_peaks = (.+)");
+    putIfFound(params, lines, MsfraggerParams.PROP_minimum_ratio, "New minimum_ratio = (.+)");
+    putIfFound(params, lines, MsfraggerParams.PROP_intensity_transform, "New intensity_transform = (.+)");
+    putIfFound(params, lines, MsfraggerParams.PROP_remove_precursor_peak, "New remove_precursor_peaks = (.+)");
+    return params;
+  }
+
+  /**
+   * Gives an output of a search of calibrated spectra the name it has in a search of the original
+   * input, paths and spectrum names in it included.
+   */
+  static void restore(Path output, String fromStem, String toStem) throws IOException {
+    final String name = output.getFileName().toString();
+    if (!Files.isRegularFile(output) || !name.startsWith(fromStem)) {
+      return;
+    }
+    final Path target = output.resolveSibling(toStem + name.substring(fromStem.length()));
+    final Path temp = output.resolveSibling(target.getFileName() + ".tmp");
+    // bytes are kept as they are, only the stem changes
+    try (BufferedReader r = Files.newBufferedReader(output, ISO_8859_1);
+        BufferedWriter w = Files.newBufferedWriter(temp, ISO_8859_1)) {
+      final char[] buf = new char[1 << 16];
+      final StringBuilder pending = new StringBuilder();
+      int len;
+      while ((len = r.read(buf)) > 0) {
+        pending.append(buf, 0, len);
+        int from = 0;
+        int i;
+        while ((i = pending.indexOf(fromStem, from)) >= 0) {
+          w.append(pending, from, i).write(toStem);
+          from = i + fromStem.length();
+        }
+        // the start of a stem may be at the end of what was read so far
+        final int done = Math.max(from, pending.length() - fromStem.length() + 1);
+        w.append(pending, from, done);
+        pending.delete(0, done);
+      }
+      w.append(pending);
+    }
+    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+    Files.delete(output);
+  }
+
+  private static List<String> newLines(Path log) throws IOException {
+    final List<String> lines = new ArrayList<>();
+    if (!Files.isRegularFile(log)) {
+      return lines;
+    }
+    try (BufferedReader r = Files.newBufferedReader(log, ISO_8859_1)) {
+      String line;
+      while ((line = r.readLine()) != null) {
+        if (line.startsWith("New ")) {
+          lines.add(line.trim());
+        }
+      }
+    }
+    return lines;
+  }
+
+  private static void putIfFound(Map<String, String> params, List<String> lines, String name, String regex) {
+    final String value = newValue(lines, regex);
+    if (value != null) {
+      params.put(name, value);
+    }
+  }
+
+  /**
+   * @return Null unless MSFragger reported exactly one new value.
+   */
+  private static String newValue(List<String> lines, String regex) {
+    final Pattern re = Pattern.compile(regex);
+    String value = null;
+    int n = 0;
+    for (String line : lines) {
+      final Matcher m = re.matcher(line);
+      if (m.find()) {
+        value = m.group(1).trim();
+        n++;
+      }
+    }
+    return n == 1 ? value : null;
+  }
+
+  /** Size and modification time, "missing" if there's no such file. */
+  private static String fingerprint(Path p) {
+    try {
+      if (!Files.exists(p)) {
+        return "missing";
+      }
+      return TaskCost.size(p) + " " + Files.getLastModifiedTime(p).toMillis();
+    } catch (IOException e) {
+      return "missing";
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.tools.fragger;
+
+import com.dmtavt.fragpipe.tools.enums.CleavageType;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+/**
+ * Decides if the MSFragger searches of different data types (DDA, DIA, GPF-DIA), each with its own
+ * params file, can run at the same time. Each search gets a rough memory estimate from the size of
+ * the database, the digestion settings, mass calibration and the size of its largest input. If the
+ * estimates fit into the RAM setting with some headroom, the searches run concurrently, sharing RAM
+ * and threads. Otherwise they run one after another with all of it, as before.
+ * <p>
+ * The estimate is meant for this decision only. It errs on the high side, and the resource budget
+ * of the run still makes sure the searches together never ask for more than there is.
+ */
+public class MsfraggerBatchPlanner {
+  public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("fragpipe.msfragger.concurrent", "true"));
+  /** Heap a search needs besides the index and the spectra. */
+  private static final long BASE_MB = 1024;
+  /** Peptide entry and its fragments in the index, per peptide form. */
+  private static final double BYTES_PER_PEPTIDE = 120;
+  /** Average length of a fully enzymatic peptide, about that of tryptic ones. */
+  private static final double ENZYMATIC_PEPTIDE_LEN = 9;
+  /** FASTA bytes that are residues, the rest are headers and line breaks. */
+  private static final double RESIDUE_FRACTION = 0.8;
+  private static final double HEADROOM = 1.25;
+  private static final int MIN_THREADS = 2;
+
+  /** One MSFragger search: what it needs, and what it gets in the plan. */
+  public static class Batch {
+    public final String name;
+    public final long needMb;
+    public final long inputBytes;
+    int threads;
+    int ramGb;
+
+    public Batch(String name, long needMb, long inputBytes) {
+      this.name = name;
+      this.needMb = needMb;
+      this.inputBytes = inputBytes;
+    }
+
+    public int getThreads() {
+      return threads;
+    }
+
+    public int getRamGb() {
+      return ramGb;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT, "%s: needs ~%.1f GB, gets %d GB and %d threads", name, needMb / 1024.0, ramGb, threads);
+    }
+  }
+
+  private MsfraggerBatchPlanner() {
+  }
+
+  /**
+   * @param fastaBytes Size of the database, decoys included.
+   * @param largestInputBytes Size of the largest input of the search, MSFragger holds the spectra
+   * of one file at a time.
+   * @return Rough heap size the search needs, in MB.
+   */
+  public static long estimateRamMb(MsfraggerParams params, long fastaBytes, long largestInputBytes) {
+    final double residues = Math.max(0, fastaBytes) * RESIDUE_FRACTION;
+    final int lenSpan = Math.max(1, params.getDigestMaxLength() - params.getDigestMinLength() + 1);
+    final double enzymatic = residues / ENZYMATIC_PEPTIDE_LEN * (1 + Math.max(0, params.getAllowedMissedCleavage1()));
+    final double peptides;
+    final CleavageType ct = params.getNumEnzymeTermini();
+    if (ct == CleavageType.NONSPECIFIC) {
+      peptides = residues * lenSpan;
+    } else if (ct == CleavageType.ENZYMATIC) {
+      peptides = enzymatic;
+    } else {
+      // one enzymatic end, the other one anywhere within the length range
+      peptides = Math.min(residues * lenSpan, enzymatic * lenSpan);
+    }
+    final long varMods = params.getVariableMods().stream().filter(m -> m.isEnabled).count();
+    final double forms = Math.min(Math.max(1, params.getMaxVariableModsCombinations()),
+        1 + varMods * Math.min(3, Math.max(0, params.getMaxVariableModsPerPeptide())));
+    return estimateRamMbForIndex(params, peptides * forms, largestInputBytes);
+  }
+
+  /**
+   * Same as {@link #estimateRamMb(MsfraggerParams, long, long)}, for when the size of the index is
+   * known better, e.g. from digesting the database.
+   *
+   * @param peptideForms Peptides in the index, each modified form counted separately.
+   */
+  public static long estimateRamMbForIndex(MsfraggerParams params, double peptideForms, long largestInputBytes) {
+    final double indexMb = Math.max(0, peptideForms) * BYTES_PER_PEPTIDE / (1024 * 1024);
+    // calibration keeps the spectra around for the second pass
+    final double spectraMb = Math.max(0, largestInputBytes) * (params.getCalibrateMass() > 0 ? 1.5 : 1.0) / (1024 * 1024);
+    return (long) Math.ceil(BASE_MB + indexMb + spectraMb);
+  }
+
+  /**
+   * @return True if a search needing {@code needMb} fits into {@code ramGb} with the headroom
+   * the plans keep.
+   */
+  public static boolean fits(long needMb, int ramGb) {
+    return (long) Math.ceil(needMb * HEADROOM) <= ramGb * 1024L;
+  }
+
+  /**
+   * Fills in threads and RAM of the batches.
+   *
+   * @return True if the batches can run concurrently. Otherwise each of them gets all the threads
+   * and RAM, to be run one after another.
+   */
+  public static boolean plan(List<Batch> batches, int ramGb, int threads) {
+    final int n = batches.size();
+    long need = 0;
+    long inputs = 0;
+    for (Batch b : batches) {
+      need += (long) Math.ceil(b.needMb * HEADROOM);
+      inputs += Math.max(1, b.inputBytes);
+    }
+    final boolean concurrent = ENABLED && n > 1 && threads >= n * MIN_THREADS && need <= ramGb * 1024L;
+    if (!concurrent) {
+      for (Batch b : batches) {
+        b.ramGb = ramGb;
+        b.threads = threads;
+      }
+      return false;
+    }
+    // the estimate is what a search needs, whatever is left over is shared in proportion
+    final long spareMb = ramGb * 1024L - need;
+    int ramLeft = ramGb;
+    int threadsLeft = threads;
+    for (int i = 0; i < n; i++) {
+      final Batch b = batches.get(i);
+      final long mine = (long) Math.ceil(b.needMb * HEADROOM);
+      final boolean last = i == n - 1;
+      b.ramGb = last ? ramLeft : (int) Math.max(1, (mine + spareMb * mine / need) / 1024);
+      // work is about proportional to the amount of spectra
+      b.threads = last ? threadsLeft : (int) Math.max(MIN_THREADS,
+          Math.min(threadsLeft - (n - 1 - i) * MIN_THREADS, Math.round((double) threads * Math.max(1, b.inputBytes) / inputs)));
+      ramLeft -= b.ramGb;
+      threadsLeft -= b.threads;
+    }
+    for (Batch b : batches) {
+      if (b.ramGb * 1024L < b.needMb || b.threads < 1) {
+        // rounding down left a search short, don't risk it
+        for (Batch b2 : batches) {
+          b2.ramGb = ramGb;
+          b2.threads = threads;
+        }
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * For logs, e.g. {@code DDA: needs ~4.2 GB, gets 20 GB and 12 threads; DIA: ...}.
+   */
+  public static String describe(List<Batch> batches) {
+    return batches.stream().map(Batch::toString).collect(Collectors.joining("; "));
+  }
+}
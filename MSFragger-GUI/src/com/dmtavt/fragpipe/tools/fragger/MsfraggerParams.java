@@ -759,6 +759,46 @@ public class MsfraggerParams extends AbstractParams {
         props.setProp(PROP_digest_max_length, Integer.toString(v));
     }
     
+    public int getAllowedMissedCleavage1() {
+        return Integer.parseInt(props.getProp(PROP_allowed_missed_cleavage_1, "2").value);
+    }
+
+    public int getAllowedMissedCleavage2() {
+        return Integer.parseInt(props.getProp(PROP_allowed_missed_cleavage_2, "2").value);
+    }
+
+    public String getSearchEnzymeName1() {
+        return props.getProp(PROP_search_enzyme_name_1, "stricttrypsin").value;
+    }
+
+    public String getSearchEnzymeCut1() {
+        return props.getProp(PROP_search_enzyme_cut_1, "KR").value;
+    }
+
+    public String getSearchEnzymeNocut1() {
+        return props.getProp(PROP_search_enzyme_nocut_1, "").value;
+    }
+
+    public String getSearchEnzymeSense1() {
+        return props.getProp(PROP_search_enzyme_sense_1, "C").value;
+    }
+
+    public String getSearchEnzymeName2() {
+        return props.getProp(PROP_search_enzyme_name_2, "null").value;
+    }
+
+    public String getSearchEnzymeCut2() {
+        return props.getProp(PROP_search_enzyme_cut_2, "").value;
+    }
+
+    public String getSearchEnzymeNocut2() {
+        return props.getProp(PROP_search_enzyme_nocut_2, "").value;
+    }
+
+    public String getSearchEnzymeSense2() {
+        return props.getProp(PROP_search_enzyme_sense_2, "C").value;
+    }
+    
     public double[] getDigestMassRange() {
         String str = props.getProp(PROP_digest_mass_range, "500.0 7000.0").value;
         String[] split = str.split("\\s+");
@@ -49,6 +49,7 @@ public class MsfraggerProps {
     public static final String PROP_LATEST_VERSION = "msfragger.version.latest-known";
     public static final String PROP_MIN_VERSION_SLICING = "msfragger.version.min-for-slicing";
     public static final String PROP_MIN_VERSION_FRAGGER_MASS_CALIBRATE = "msfragger.version.min-for-calibrate";
+    public static final String PROP_MIN_VERSION_INPUT_LIST = "msfragger.version.min-for-input-list";
 
     public static final String PROP_UPDATESERVER_WEBSITE_URL = "msfragger.update-server.website.url";
     public static final String PROP_UPDATESERVER_VERSION_URL = "msfragger.update-server.version-service.url";
@@ -41,6 +41,17 @@ public class PercolatorOutputToPepXML {
 
     public static void main(final String[] args) {
         Locale.setDefault(Locale.US);
+        final int ret = run(args);
+        if (ret != 0) {
+            System.exit(ret);
+        }
+    }
+
+    /**
+     * Same as {@link #main(String[])}, but returns the exit code instead of exiting the JVM.
+     * Doesn't change the default locale, so it's safe to call from within FragPipe.
+     */
+    public static int run(final String[] args) {
         if (args.length == 0) {
             percolatorToPepXML(
                 Paths.get("F:\\dev\\msfragger\\msfraggerdia_old\\20190206_LUM1_CPBA_EASY04_060_30_SA_90mingrad_80B_DIA_400_1000_8mzol_15k_20IIT_4e5agc_1633-01_01.pin"),
@@ -55,6 +66,7 @@ public class PercolatorOutputToPepXML {
         } else {
             percolatorToPepXML(Paths.get(args[0]), args[1], Paths.get(args[2]), Paths.get(args[3]), Paths.get(args[4]), args[5], Double.parseDouble(args[6]));
         }
+        return 0;
     }
 
     private static String getSpectrum(final String line) {
@@ -120,13 +132,9 @@ public class PercolatorOutputToPepXML {
                     return Integer.parseInt(matcher.group(1));
             }
         } catch (IOException e) {
-            System.err.println("Cannot find output_report_topN parameter from " + path.toAbsolutePath());
-            System.exit(1);
-            return -1;
+            throw new IllegalStateException("Cannot find output_report_topN parameter from " + path.toAbsolutePath(), e);
         }
-        System.err.println("Cannot find output_report_topN parameter from " + path.toAbsolutePath());
-        System.exit(1);
-        return -1;
+        throw new IllegalStateException("Cannot find output_report_topN parameter from " + path.toAbsolutePath());
     }
 
     private static StringBuilder handle_search_hit(final List<String> searchHit, final NttNmc nttNmc, final PepScore pepScore, final int oldRank, final int newRank) {
@@ -163,13 +171,13 @@ public class PercolatorOutputToPepXML {
         }
 
         if (!Float.isNaN(nttNmc.spectralSimilarity)) {
-            sb.append(String.format("<search_score name=\"spectralsim\" value=\"%f\"/>\n", nttNmc.spectralSimilarity));
+            sb.append(String.format(Locale.US, "<search_score name=\"spectralsim\" value=\"%f\"/>\n", nttNmc.spectralSimilarity));
         }
         if (!Float.isNaN(nttNmc.RTscore)) {
-            sb.append(String.format("<search_score name=\"rtscore\" value=\"%f\"/>\n", nttNmc.RTscore));
+            sb.append(String.format(Locale.US, "<search_score name=\"rtscore\" value=\"%f\"/>\n", nttNmc.RTscore));
         }
         sb.append(
-                String.format(
+                String.format(Locale.US,
                         "<analysis_result analysis=\"peptideprophet\">\n" +
                                 "<peptideprophet_result probability=\"%f\" all_ntt_prob=\"(%f,%f,%f)\">\n" +
                                 "<search_score_summary>\n" +
@@ -258,8 +266,7 @@ public class PercolatorOutputToPepXML {
         final boolean is_DIA = DIA_DDA.equals("DIA");
         final int max_rank = get_max_rank(basename, is_DIA);
         if (max_rank < 1) {
-            System.err.println("Cannot find output_report_topN parameter from " + basename + "'s pepXML file.");
-            System.exit(1);
+            throw new IllegalStateException("Cannot find output_report_topN parameter from " + basename + "'s pepXML file.");
         }
 
         final Map<String, NttNmc[]> pinSpectrumRankNttNmc = new HashMap<>();
@@ -372,7 +379,7 @@ public class PercolatorOutputToPepXML {
                     out.write(line + "\n");
                     if (line.trim().startsWith("<msms_pipeline_analysis ")) {
                         final String now = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss").format(LocalDateTime.now());
-                        final String tmp = String.format(
+                        final String tmp = String.format(Locale.US,
                                 "<analysis_summary analysis=\"Percolator\" time=\"%s\">\n" +
                                 "<peptideprophet_summary min_prob=\"%.2f\">\n" +
                                 "<inputfile name=\"%s\"/>\n" +
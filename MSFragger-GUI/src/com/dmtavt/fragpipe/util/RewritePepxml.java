@@ -41,15 +41,26 @@ public class RewritePepxml {
   private static final Logger log = LoggerFactory.getLogger(RewritePepxml.class);
 
   public static void main(String[] args) throws IOException {
+    final int ret = run(args);
+    if (ret != 0) {
+      System.exit(ret);
+    }
+  }
+
+  /**
+   * Same as {@link #main(String[])}, but returns the exit code instead of exiting the JVM.
+   */
+  public static int run(String[] args) throws IOException {
     Optional<Path> notExists = Arrays.stream(args).map(Paths::get).filter(Files::notExists).findFirst();
     if (notExists.isPresent()) {
       System.err.printf("Not all given paths exist: %s\n", notExists);
-      System.exit(1);
+      return 1;
     }
     Path pepxml = Paths.get(args[0]);
     final String[] replacements = Arrays.copyOfRange(args, 1, args.length);
     System.out.printf("Fixing pepxml: %s\n", pepxml);
     rewriteRawPath(pepxml, true, replacements);
+    return 0;
   }
 
   public static Path rewriteRawPath(Path origPepxml, boolean replaceOriginal, String... replacement) throws IOException {
@@ -113,8 +124,7 @@ public class RewritePepxml {
                   .toMap(path -> StringUtils.upToLastDot(path.getFileName().toString()), path -> path);
               Path correctRaw = mapFnLessExtToFull.get(origPathFn.toString());
               if (correctRaw == null) {
-                System.err.printf("Didn't find correct mapping for raw file path in pepxml: %s", origPath);
-                System.exit(1);
+                throw new IllegalStateException("Didn't find correct mapping for raw file path in pepxml: " + origPath);
               }
               String ext = StringUtils.afterLastDot(correctRaw.getFileName().toString());
               rewrite = String.format(
@@ -0,0 +1,287 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.github.chhh.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Memory and CPU limits of the cgroup FragPipe runs in, on Linux. Docker, Kubernetes and SLURM
+ * put jobs in cgroups, while /proc/meminfo and the number of CPUs still describe the whole host.
+ * Both cgroup v1 and v2 are read, every level up to the root of the mounted hierarchy counts.
+ * Without cgroup limits the memory and CPUs SLURM has given the job, if any, are used.
+ * Child processes run in the same cgroup, so these are the limits for the tools as well.
+ */
+public final class CgroupLimits {
+  private static final Logger log = LoggerFactory.getLogger(CgroupLimits.class);
+  /** Cgroup v1 reports "no limit" as a huge page-aligned number. */
+  private static final long V1_UNLIMITED = 1L << 62;
+  private static volatile CgroupLimits current;
+
+  /** -1 if not limited. */
+  public final long memoryBytes;
+  /** CPU time quota in cores, -1 if not limited. */
+  public final double cpuQuota;
+  /** Number of CPUs in the cpuset, -1 if not limited. */
+  public final int cpusetCpus;
+
+  CgroupLimits(long memoryBytes, double cpuQuota, int cpusetCpus) {
+    this.memoryBytes = memoryBytes;
+    this.cpuQuota = cpuQuota;
+    this.cpusetCpus = cpusetCpus;
+  }
+
+  /**
+   * Read once, limits of a running process rarely change.
+   */
+  public static CgroupLimits get() {
+    if (current == null) {
+      synchronized (CgroupLimits.class) {
+        if (current == null) {
+          current = OsUtils.isWindows() || OsUtils.isMac()
+              ? new CgroupLimits(-1, -1, -1)
+              : read(Paths.get("/"), System.getenv());
+          log.debug("Cgroup limits: {}", current);
+        }
+      }
+    }
+    return current;
+  }
+
+  public boolean isLimited() {
+    return memoryBytes > 0 || cpus() > 0;
+  }
+
+  /**
+   * @return Whole CPUs the cgroup may use, -1 if not limited.
+   */
+  public int cpus() {
+    int n = cpusetCpus;
+    if (cpuQuota > 0) {
+      final int q = Math.max(1, (int) Math.ceil(cpuQuota));
+      n = n > 0 ? Math.min(n, q) : q;
+    }
+    return n;
+  }
+
+  /**
+   * @param root File system root, "/" except in tests.
+   */
+  static CgroupLimits read(Path root, Map<String, String> env) {
+    long mem = -1;
+    double quota = -1;
+    int cpuset = -1;
+    try {
+      final List<String> cgroups = readLines(root.resolve("proc/self/cgroup"));
+      final List<String> mounts = readLines(root.resolve("proc/self/mountinfo"));
+      for (String line : cgroups) {
+        final String[] parts = line.split(":", 3);
+        if (parts.length < 3) {
+          continue;
+        }
+        final boolean v2 = parts[1].isEmpty();
+        final List<String> controllers = Arrays.asList(parts[1].split(","));
+        for (Path dir : dirsUp(root, mounts, v2, controllers, parts[2])) {
+          if (v2) {
+            mem = min(mem, readLimit(dir.resolve("memory.max"), Long.MAX_VALUE));
+            quota = min(quota, readCpuMax(dir.resolve("cpu.max")));
+            cpuset = (int) min(cpuset, countCpus(readFirst(dir.resolve("cpuset.cpus.effective"))));
+          } else {
+            if (controllers.contains("memory")) {
+              mem = min(mem, readLimit(dir.resolve("memory.limit_in_bytes"), V1_UNLIMITED));
+            }
+            if (controllers.contains("cpu")) {
+              final long q = readLimit(dir.resolve("cpu.cfs_quota_us"), Long.MAX_VALUE);
+              final long period = readLimit(dir.resolve("cpu.cfs_period_us"), Long.MAX_VALUE);
+              if (q > 0 && period > 0) {
+                quota = min(quota, (double) q / period);
+              }
+            }
+            if (controllers.contains("cpuset")) {
+              String cpus = readFirst(dir.resolve("cpuset.effective_cpus"));
+              if (cpus == null) {
+                cpus = readFirst(dir.resolve("cpuset.cpus"));
+              }
+              cpuset = (int) min(cpuset, countCpus(cpus));
+            }
+          }
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      log.debug("Could not read cgroup limits", e);
+    }
+    if (mem < 0) {
+      mem = slurmMemory(env);
+    }
+    if (quota < 0 && cpuset < 0) {
+      cpuset = (int) parseLong(env.get("SLURM_CPUS_PER_TASK"), parseLong(env.get("SLURM_CPUS_ON_NODE"), -1));
+    }
+    return new CgroupLimits(mem, quota, cpuset);
+  }
+
+  /**
+   * Directories of the cgroup and all of its parents within the mount of the hierarchy.
+   */
+  private static List<Path> dirsUp(Path root, List<String> mounts, boolean v2, List<String> controllers, String cgroupPath) {
+    final List<Path> dirs = new ArrayList<>();
+    for (String line : mounts) {
+      // 36 35 98:0 /root /mount/point rw,noatime shared:1 - cgroup cgroup rw,memory
+      final int dash = line.indexOf(" - ");
+      if (dash < 0) {
+        continue;
+      }
+      final String[] left = line.substring(0, dash).split(" ");
+      final String[] right = line.substring(dash + 3).split(" ");
+      if (left.length < 5 || right.length < 3) {
+        continue;
+      }
+      if (v2 ? !"cgroup2".equals(right[0])
+          : !"cgroup".equals(right[0]) || !Arrays.asList(right[2].split(",")).containsAll(controllers)) {
+        continue;
+      }
+      final String mountRoot = unescape(left[3]);
+      final Path mountPoint = root.resolve(unescape(left[4]).substring(1));
+      // inside a container the mount root is the container's own cgroup
+      String rel = cgroupPath;
+      if (!"/".equals(mountRoot)) {
+        rel = cgroupPath.startsWith(mountRoot) ? cgroupPath.substring(mountRoot.length()) : "/";
+      }
+      Path dir = mountPoint.resolve(rel.startsWith("/") ? rel.substring(1) : rel).normalize();
+      while (dir != null && dir.startsWith(mountPoint)) {
+        dirs.add(dir);
+        dir = dir.getParent();
+      }
+      break;
+    }
+    return dirs;
+  }
+
+  private static long slurmMemory(Map<String, String> env) {
+    final long perNode = parseLong(env.get("SLURM_MEM_PER_NODE"), -1);
+    if (perNode > 0) {
+      return perNode * 1024 * 1024;
+    }
+    final long perCpu = parseLong(env.get("SLURM_MEM_PER_CPU"), -1);
+    final long cpus = parseLong(env.get("SLURM_CPUS_ON_NODE"), -1);
+    return perCpu > 0 && cpus > 0 ? perCpu * cpus * 1024 * 1024 : -1;
+  }
+
+  /**
+   * @return -1 if the file is missing or has no limit.
+   */
+  private static long readLimit(Path p, long unlimited) {
+    final String s = readFirst(p);
+    if (s == null || "max".equals(s)) {
+      return -1;
+    }
+    final long v = parseLong(s, -1);
+    return v >= unlimited ? -1 : v;
+  }
+
+  /**
+   * @return Cores of a "quota period" line, -1 for "max" or a missing file.
+   */
+  private static double readCpuMax(Path p) {
+    final String s = readFirst(p);
+    if (s == null) {
+      return -1;
+    }
+    final String[] parts = s.split("\\s+");
+    final long q = "max".equals(parts[0]) ? -1 : parseLong(parts[0], -1);
+    final long period = parts.length > 1 ? parseLong(parts[1], -1) : 100000;
+    return q > 0 && period > 0 ? (double) q / period : -1;
+  }
+
+  /**
+   * @param cpus E.g. "0-3,8,10-11".
+   * @return -1 if empty or not parsable.
+   */
+  static int countCpus(String cpus) {
+    if (StringUtils.isNullOrWhitespace(cpus)) {
+      return -1;
+    }
+    int n = 0;
+    for (String range : cpus.trim().split(",")) {
+      final int dash = range.indexOf('-');
+      try {
+        final int from = Integer.parseInt((dash < 0 ? range : range.substring(0, dash)).trim());
+        final int to = dash < 0 ? from : Integer.parseInt(range.substring(dash + 1).trim());
+        n += to - from + 1;
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+    return n > 0 ? n : -1;
+  }
+
+  private static long min(long a, long b) {
+    return a < 0 ? b : (b < 0 ? a : Math.min(a, b));
+  }
+
+  private static double min(double a, double b) {
+    return a < 0 ? b : (b < 0 ? a : Math.min(a, b));
+  }
+
+  private static long parseLong(String s, long dflt) {
+    try {
+      return s == null ? dflt : Long.parseLong(s.trim());
+    } catch (NumberFormatException e) {
+      return dflt;
+    }
+  }
+
+  private static List<String> readLines(Path p) throws IOException {
+    return Files.readAllLines(p, UTF_8);
+  }
+
+  private static String readFirst(Path p) {
+    try {
+      final List<String> lines = Files.readAllLines(p, UTF_8);
+      return lines.isEmpty() ? null : lines.get(0).trim();
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /** Mountinfo escapes spaces and a few other characters as octal. */
+  private static String unescape(String s) {
+    return s.replace("\\040", " ").replace("\\011", "\t").replace("\\012", "\n").replace("\\134", "\\");
+  }
+
+  @Override
+  public String toString() {
+    final List<String> parts = new ArrayList<>();
+    if (cpus() > 0) {
+      parts.add(cpus() + (cpus() == 1 ? " CPU" : " CPUs"));
+    }
+    if (memoryBytes > 0) {
+      parts.add(String.format(Locale.ROOT, "%.1f GB memory", memoryBytes / (1024.0 * 1024 * 1024)));
+    }
+    return parts.isEmpty() ? "no limits" : String.join(", ", parts);
+  }
+}
@@ -29,6 +29,16 @@ import java.nio.file.StandardCopyOption;
  */
 public class FileCopy {
     public static void main(String[] args) throws IOException {
+        final int ret = run(args);
+        if (ret != 0) {
+            System.exit(ret);
+        }
+    }
+
+    /**
+     * Same as {@link #main(String[])}, but returns the exit code instead of exiting the JVM.
+     */
+    public static int run(String[] args) throws IOException {
         if (args.length != 2) {
             throw new IllegalArgumentException("Input must be exactly 2 arguments: origin and destination");
         }
@@ -40,17 +50,18 @@ public class FileCopy {
             destination = Paths.get(args[1]);
         } catch (InvalidPathException e) {
             System.err.println("Given paths are not valid: " + e.getMessage());
-            System.exit(1);
+            return 1;
         }
         if (!Files.exists(origin)) {
             System.err.println("Origin file does not exist: " + origin.toString());
-            System.exit(1);
+            return 1;
         }
         if (!Files.exists(destination.getParent())) {
             System.err.println("Destination directory does not exist: " + destination.getParent());
-            System.exit(1);
+            return 1;
         }
 
         Files.copy(origin, destination, StandardCopyOption.REPLACE_EXISTING);
+        return 0;
     }
 }
@@ -37,12 +37,20 @@ public class FileDelete {
 //    private static final org.slf4j.Logger log = LoggerFactory.getLogger(FileDelete.class);
 
     public static void main(String[] args) throws IOException {
+        run(args);
+    }
+
+    /**
+     * Same as {@link #main(String[])}, but returns the exit code instead of exiting the JVM.
+     */
+    public static int run(String[] args) throws IOException {
         if (args.length != 1)
             throw new IllegalArgumentException("Must provide exactly one argument - the file or directory to delete.");
         Path path = Paths.get(args[0]);
         if (!Files.exists(path))
-            return;
+            return 0;
         deleteFileOrFolder(path);
+        return 0;
     }
 
     public static void deleteFileOrFolder(final Path path) throws IOException {
@@ -38,6 +38,16 @@ public class FileMove {
      * @throws IOException
      */
     public static void main(String[] args) throws IOException {
+        final int ret = run(args);
+        if (ret != 0) {
+            System.exit(ret);
+        }
+    }
+
+    /**
+     * Same as {@link #main(String[])}, but returns the exit code instead of exiting the JVM.
+     */
+    public static int run(String[] args) throws IOException {
         if (args.length != 2 && args.length != 3) {
             throw new IllegalArgumentException("Input must be either 2 arguments: origin and destination "
                 + "or optionally prepended with --no-err ot suppress file existence checks.");
@@ -51,7 +61,7 @@ public class FileMove {
         Path destination = Paths.get(args[ptr++]);
         if (!noErrors && !Files.exists(origin)) {
             System.err.printf("File does not exist: %s", origin);
-            System.exit(1);
+            return 1;
         }
         try {
             if (Files.isDirectory(origin))
@@ -62,6 +72,7 @@ public class FileMove {
             if (!noErrors)
                 throw e;
         }
+        return 0;
     }
 
 
@@ -132,6 +132,11 @@ public class OsUtils {
                 freeMem = operatingSystemMXBean.getFreePhysicalMemorySize() / 1024.0 / 1024.0 / 1024.0;
             }
         }
+        final long cgroupMem = CgroupLimits.get().memoryBytes;
+        if (cgroupMem > 0) {
+            // the numbers above are the host's, the cgroup may allow much less, our own heap included
+            freeMem = Math.min(freeMem, (cgroupMem - Runtime.getRuntime().totalMemory()) / 1024.0 / 1024.0 / 1024.0);
+        }
         if (freeMem > 120) {
             return (int) (freeMem * 0.9);
         } else if ((int) freeMem - 2 > 0) {
@@ -141,6 +146,17 @@ public class OsUtils {
         }
     }
 
+    /**
+     * Number of processors FragPipe and the tools it runs may use. Same as
+     * {@link Runtime#availableProcessors()}, but within the CPU limits of the cgroup on Linux, e.g.
+     * in a container or a SLURM job.
+     */
+    public static int getAvailableProcessors() {
+        final int n = Runtime.getRuntime().availableProcessors();
+        final int limit = CgroupLimits.get().cpus();
+        return limit > 0 ? Math.max(1, Math.min(n, limit)) : n;
+    }
+
     /**
      * Make a string as a single argument, in Windows an argument with spaces need to be quoted
      */
@@ -0,0 +1,119 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.github.chhh.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Fixed size ring buffer keeping only the last bytes written to it. Used to hold the tail of
+ * long-running process output in memory without growing the heap.
+ */
+public class TailBuffer {
+  private final byte[] buf;
+  private int start = 0;
+  private int size = 0;
+  private long total = 0;
+
+  public TailBuffer(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive");
+    }
+    this.buf = new byte[capacity];
+  }
+
+  public synchronized void append(byte[] bytes) {
+    append(bytes, 0, bytes.length);
+  }
+
+  public synchronized void append(byte[] bytes, int off, int len) {
+    if (len <= 0) {
+      return;
+    }
+    total += len;
+    final int cap = buf.length;
+    if (len >= cap) {
+      System.arraycopy(bytes, off + len - cap, buf, 0, cap);
+      start = 0;
+      size = cap;
+      return;
+    }
+    int end = (start + size) % cap;
+    final int first = Math.min(len, cap - end);
+    System.arraycopy(bytes, off, buf, end, first);
+    if (first < len) {
+      System.arraycopy(bytes, off + first, buf, 0, len - first);
+    }
+    final int overflow = size + len - cap;
+    if (overflow > 0) {
+      start = (start + overflow) % cap;
+      size = cap;
+    } else {
+      size += len;
+    }
+  }
+
+  public synchronized byte[] toByteArray() {
+    final byte[] out = new byte[size];
+    final int first = Math.min(size, buf.length - start);
+    System.arraycopy(buf, start, out, 0, first);
+    if (first < size) {
+      System.arraycopy(buf, 0, out, first, size - first);
+    }
+    return out;
+  }
+
+  public int capacity() {
+    return buf.length;
+  }
+
+  /** @return Number of bytes ever appended, including the ones no longer held. */
+  public synchronized long getTotalBytes() {
+    return total;
+  }
+
+  public synchronized boolean isTruncated() {
+    return total > size;
+  }
+
+  public synchronized void clear() {
+    start = 0;
+    size = 0;
+    total = 0;
+  }
+
+  /**
+   * Decodes the held bytes as UTF-8. If older bytes were dropped, a partial character at the
+   * start of the buffer is skipped.
+   */
+  @Override
+  public String toString() {
+    final byte[] bytes;
+    final boolean truncated;
+    synchronized (this) {
+      bytes = toByteArray();
+      truncated = isTruncated();
+    }
+    int from = 0;
+    if (truncated) {
+      while (from < bytes.length && (bytes[from] & 0xC0) == 0x80) {
+        from++;
+      }
+    }
+    return new String(bytes, from, bytes.length - from, UTF_8);
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.cmd;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CmdPercolatorTest {
+
+  @Test
+  public void fewerThreadsThanFiles() {
+    // as many instances as there are 4 threads for, threads left over are spread over them
+    Assert.assertEquals(4, CmdPercolator.threadsPerInstance(8, 20));
+    Assert.assertEquals(5, CmdPercolator.threadsPerInstance(11, 20));
+    Assert.assertEquals(3, CmdPercolator.threadsPerInstance(3, 20));
+    Assert.assertEquals(1, CmdPercolator.threadsPerInstance(1, 20));
+  }
+
+  @Test
+  public void moreThreadsThanFourPerFile() {
+    // one instance per file, the threads are all used
+    Assert.assertEquals(16, CmdPercolator.threadsPerInstance(32, 2));
+    Assert.assertEquals(6, CmdPercolator.threadsPerInstance(20, 3));
+  }
+
+  @Test
+  public void singleFileGetsAllThreads() {
+    Assert.assertEquals(16, CmdPercolator.threadsPerInstance(16, 1));
+    Assert.assertEquals(1, CmdPercolator.threadsPerInstance(1, 1));
+    Assert.assertEquals(8, CmdPercolator.threadsPerInstance(8, 0));
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dmtavt.fragpipe.process;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ArgFilesTest {
+
+  @Test
+  public void writtenArgumentsParseBack() throws IOException {
+    Path file = Files.createTempFile("fragger_dda_inputs", ".txt");
+    List<String> args = Arrays.asList("MSFragger.jar", "C:\\data\\fragger.params", "/data/with space/a.mzML", "quote\"d");
+    ArgFiles.write(file, args);
+    Assert.assertEquals(args, ArgFiles.parse(new String(Files.readAllBytes(file), "US-ASCII")));
+  }
+
+  @Test
+  public void parsesLauncherSyntax() {
+    Assert.assertEquals(Arrays.asList("-jar", "a b.jar", "c", "d\\e"),
+        ArgFiles.parse("# comment\n-jar 'a b.jar'\n  c # more\n\"d\\\\e\"\n"));
+  }
+
+  @Test
+  public void expandsAndCollapses() throws IOException {
+    Path file = Files.createTempFile("fragger_dia_inputs", ".txt");
+    ArgFiles.write(file, Arrays.asList("MSFragger.jar", "fragger.params", "a.mzML", "b.mzML"));
+    List<String> cmd = Arrays.asList("java", "-Xmx8G", "@" + file);
+    List<String> expanded = ArgFiles.expand(cmd);
+    Assert.assertEquals(Arrays.asList("java", "-Xmx8G", "MSFragger.jar", "fragger.params", "a.mzML", "b.mzML"), expanded);
+
+    List<String> kept = new ArrayList<>(expanded);
+    kept.remove("a.mzML");
+    Assert.assertSame(cmd, ArgFiles.collapse(cmd, kept));
+    Assert.assertEquals(Arrays.asList("MSFragger.jar", "fragger.params", "b.mzML"),
+        ArgFiles.parse(new String(Files.readAllBytes(file), "US-ASCII")));
+    Assert.assertEquals(kept, ArgFiles.expand(cmd));
+  }
+
+  @Test
+  public void leavesOtherCommandsAlone() {
+    List<String> cmd = Arrays.asList("java", "-jar", "x.jar", "user@host");
+    Assert.assertSame(cmd, ArgFiles.expand(cmd));
+    Assert.assertFalse(ArgFiles.canWrite(Arrays.asList("/data/\u00e9chantillon.mzML")));
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import com.dmtavt.fragpipe.cmd.CmdMsfragger;
+import com.dmtavt.fragpipe.cmd.CmdPeptideProphet;
+import com.dmtavt.fragpipe.cmd.ProcessBuilderInfo;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FailedInputsTest {
+
+  private static ProcessBuilderInfo pbi(String name, String... cmd) {
+    return new ProcessBuilderInfo(new ProcessBuilder(cmd), name, null, null, null);
+  }
+
+  @Test
+  public void baseNames() {
+    Assert.assertEquals("sample01", FailedInputs.baseName("/data/sample01.mzML"));
+    Assert.assertEquals("sample01", FailedInputs.baseName("C:\\data\\interact-sample01.pep.xml"));
+    Assert.assertEquals("sample01", FailedInputs.baseName("sample01.d"));
+    Assert.assertEquals("sample01.raw", FailedInputs.baseName("sample01.raw.mzML"));
+    Assert.assertNull(FailedInputs.baseName("fragger.params"));
+    Assert.assertNull(FailedInputs.baseName(".mzML"));
+    Assert.assertNull(FailedInputs.baseName("-Xmx8G"));
+  }
+
+  @Test
+  public void findsFilesOfFailedInputs() throws IOException {
+    final Path wd = Files.createTempDirectory("failed-inputs");
+    try {
+      final FailedInputs fi = FailedInputs.start(wd);
+      Assert.assertTrue(fi.failed(pbi(CmdPeptideProphet.NAME, "philosopher", "peptideprophet", "/data/sample01.pepXML"), 1));
+      Assert.assertEquals("sample01", fi.failedInputOf("/data/sample01.mzML"));
+      Assert.assertEquals("sample01", fi.failedInputOf("/data/sample01_calibrated.mgf"));
+      Assert.assertEquals("sample01", fi.failedInputOf("interact-sample01.pep.xml"));
+      Assert.assertNull(fi.failedInputOf("/data/sample010.mzML"));
+      Assert.assertNull(fi.failedInputOf("/data/sample01"));
+      Assert.assertNull(fi.failedInputOf("/data/sample02.mzML"));
+    } finally {
+      FailedInputs.stop(wd);
+    }
+  }
+
+  @Test
+  public void tellsInputsWithTheSamePrefixApart() throws IOException {
+    final Path wd = Files.createTempDirectory("failed-inputs");
+    try {
+      final FailedInputs fi = FailedInputs.start(wd);
+      Assert.assertTrue(fi.beforeStart(pbi(CmdMsfragger.NAME, "java", "-jar", "MSFragger.jar", "/data/sample.mzML", "/data/sample_2.mzML")).isEmpty());
+      Assert.assertTrue(fi.failed(pbi(CmdPeptideProphet.NAME, "philosopher", "peptideprophet", "/data/sample.pepXML"), 1));
+      Assert.assertEquals("sample", fi.failedInputOf("/data/sample_rank1.pepXML"));
+      Assert.assertNull(fi.failedInputOf("/data/sample_2.pepXML"));
+      Assert.assertNull(fi.failedInputOf("interact-sample_2.pep.xml"));
+      Assert.assertTrue(fi.beforeStart(pbi(CmdPeptideProphet.NAME, "philosopher", "peptideprophet", "/data/sample_2.pepXML")).isEmpty());
+      Assert.assertEquals(Collections.singleton("sample"),
+          fi.beforeStart(pbi(CmdPeptideProphet.NAME, "philosopher", "peptideprophet", "/data/sample.pepXML")));
+    } finally {
+      FailedInputs.stop(wd);
+    }
+  }
+
+  @Test
+  public void onlyPerFileTasksAreIsolated() throws IOException {
+    final Path wd = Files.createTempDirectory("failed-inputs");
+    try {
+      final FailedInputs fi = FailedInputs.start(wd);
+      final ProcessBuilderInfo proteinProphet = pbi("ProteinProphet", "philosopher", "proteinprophet", "interact-sample01.pep.xml");
+      Assert.assertFalse(fi.failed(proteinProphet, 1));
+      Assert.assertFalse(FailedInputs.isIsolated(proteinProphet));
+      Assert.assertFalse(fi.failed(pbi(CmdPeptideProphet.NAME, "philosopher", "peptideprophet", "--nonparam"), 1));
+      Assert.assertTrue(fi.isEmpty());
+
+      final ProcessBuilderInfo peptideProphet = pbi(CmdPeptideProphet.NAME, "philosopher", "peptideprophet", "sample01.pepXML");
+      Assert.assertTrue(fi.failed(peptideProphet, 1));
+      Assert.assertTrue(FailedInputs.isIsolated(peptideProphet));
+    } finally {
+      FailedInputs.stop(wd);
+    }
+  }
+
+  @Test
+  public void skipsTasksOfFailedInputs() throws IOException {
+    final Path wd = Files.createTempDirectory("failed-inputs");
+    try {
+      final FailedInputs fi = FailedInputs.start(wd);
+      Assert.assertTrue(fi.beforeStart(pbi(CmdPeptideProphet.NAME, "philosopher", "sample01.pepXML")).isEmpty());
+      Assert.assertTrue(fi.failed(pbi(CmdPeptideProphet.NAME, "philosopher", "sample01.pepXML"), 1));
+
+      Assert.assertEquals(Collections.singleton("sample01"),
+          fi.beforeStart(pbi("Rewrite pepxml", "java", "RewritePepxml", "interact-sample01.pep.xml")));
+      Assert.assertTrue(fi.beforeStart(pbi(CmdPeptideProphet.NAME, "philosopher", "sample02.pepXML")).isEmpty());
+      Assert.assertTrue(fi.beforeStart(pbi("ProteinProphet", "philosopher", "interact-sample01.pep.xml")).isEmpty());
+
+      // a search of several files goes on without the failed one
+      final ProcessBuilderInfo search = pbi(CmdMsfragger.NAME, "java", "-jar", "MSFragger.jar", "fragger.params",
+          "/data/sample01.mzML", "/data/sample02.mzML");
+      Assert.assertTrue(fi.beforeStart(search).isEmpty());
+      Assert.assertEquals(Arrays.asList("java", "-jar", "MSFragger.jar", "fragger.params", "/data/sample02.mzML"), search.pb.command());
+      Assert.assertTrue(fi.summary().contains("sample01: PeptideProphet failed, exit code 1, Rewrite pepxml skipped, MSFragger left it out"));
+    } finally {
+      FailedInputs.stop(wd);
+    }
+  }
+
+  @Test
+  public void bisectsToTheInputsThatFail() throws IOException, InterruptedException {
+    final List<String> inputs = Arrays.asList("a.mzML", "b.mzML", "c.mzML", "d.mzML", "e.mzML");
+    final List<String> bad = Arrays.asList("b.mzML", "e.mzML");
+    final List<List<String>> searched = new ArrayList<>();
+    final List<String> culprits = FailedInputs.culprits(inputs, subset -> {
+      searched.add(new ArrayList<>(subset));
+      return Collections.disjoint(subset, bad);
+    });
+    Assert.assertEquals(bad, culprits);
+    Assert.assertFalse(searched.contains(inputs));
+    Assert.assertTrue(searched.contains(Collections.singletonList("b.mzML")));
+    Assert.assertTrue(searched.contains(Collections.singletonList("e.mzML")));
+    Assert.assertEquals(8, searched.size());
+  }
+
+  @Test
+  public void noCulpritsIfOnlyAllInputsFail() throws IOException, InterruptedException {
+    final List<String> inputs = Arrays.asList("a.mzML", "b.mzML", "c.mzML");
+    Assert.assertTrue(FailedInputs.culprits(inputs, subset -> true).isEmpty());
+  }
+}
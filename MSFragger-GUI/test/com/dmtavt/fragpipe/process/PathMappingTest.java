@@ -0,0 +1,52 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dmtavt.fragpipe.process;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PathMappingTest {
+
+  @Test
+  public void mapsWholeComponentsOnly() {
+    PathMapping m = PathMapping.parse("/mnt/data=/data; /mnt/data/fast/=/scratch");
+    Assert.assertEquals("/data/run1/a.mzML", m.map("/mnt/data/run1/a.mzML"));
+    Assert.assertEquals("/scratch/a.mzML", m.map("/mnt/data/fast/a.mzML"));
+    Assert.assertEquals("/mnt/data2/a.mzML", m.map("/mnt/data2/a.mzML"));
+    Assert.assertEquals("/data", m.map("/mnt/data"));
+  }
+
+  @Test
+  public void mapsInsideArguments() {
+    PathMapping m = PathMapping.parse("/mnt/data=/data");
+    Assert.assertEquals("--out=/data/wd", m.map("--out=/mnt/data/wd"));
+    Assert.assertEquals("/data/a.pepXML,/data/b.pepXML", m.map("/mnt/data/a.pepXML,/mnt/data/b.pepXML"));
+    Assert.assertEquals("x/mnt/data/a", m.map("x/mnt/data/a"));
+  }
+
+  @Test
+  public void blankIsIdentity() {
+    Assert.assertTrue(PathMapping.parse(" ").isIdentity());
+    Assert.assertEquals("/mnt/data/a", PathMapping.parse(null).map("/mnt/data/a"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsPairWithoutRemote() {
+    PathMapping.parse("/mnt/data");
+  }
+}
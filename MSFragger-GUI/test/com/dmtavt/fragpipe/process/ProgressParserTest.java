@@ -0,0 +1,67 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import com.dmtavt.fragpipe.cmd.PbiBuilder;
+import com.dmtavt.fragpipe.cmd.ProcessBuilderInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProgressParserTest {
+
+  private static ProcessBuilderInfo pbi(String name, String... cmd) {
+    return new PbiBuilder().setName(name).setPb(new ProcessBuilder(cmd)).create();
+  }
+
+  @Test
+  public void msfraggerFilesAndPercent() {
+    ProgressParser p = ProgressParser.of(pbi("MSFragger", "java", "-jar", "msfragger.jar", "fragger.params", "a.mzML", "b.mzML"));
+    p.feed(false, "*******************MAIN SEARCH*******************\nOperating on slice 1 of 2:\n\t001. a.mzML 0.5 s\n");
+    TaskProgress tp = p.feed(false, "\t\t[progress: 2000/8000 (25%) - 1000 spectra/s]\r");
+    Assert.assertEquals("MAIN SEARCH, slice 1/2, 1/2, 25%", tp.toString());
+    Assert.assertEquals(13, tp.overallPercent());
+    Assert.assertNull(p.feed(false, "\t\t[progress: 2000/8000 (25%) - 1000 spectra/s]\r"));
+  }
+
+  @Test
+  public void linesSplitAcrossChunks() {
+    ProgressParser p = ProgressParser.of(pbi("DIA-NN", "diann"));
+    Assert.assertNull(p.feed(true, "[0:12] File #3"));
+    Assert.assertEquals("3/10", p.feed(true, "/10\n").toString());
+  }
+
+  @Test
+  public void percentOnUnfinishedLine() {
+    ProgressParser p = ProgressParser.of(pbi("ProteinProphet", "/opt/philosopher/philosopher", "proteinprophet"));
+    Assert.assertEquals("ProteinProphet", p.feed(false, "INFO[12:00:01] Executing ProteinProphet  v4.8.1\n").toString());
+    Assert.assertEquals("ProteinProphet, 20%", p.feed(false, "Computing degenerate peptides: 0%...10%...20%").toString());
+    Assert.assertEquals("ProteinProphet, 30%", p.feed(false, "...30%").toString());
+  }
+
+  @Test
+  public void countersOnlyOnFinishedLines() {
+    ProgressParser p = ProgressParser.of(pbi("IonQuant", "java", "-jar", "IonQuant.jar"));
+    Assert.assertNull(p.feed(false, "Building index 3 of 12\n"));
+    Assert.assertNull(p.feed(false, "Processing file 3 of 12"));
+    Assert.assertEquals("3/12", p.feed(false, "\n").toString());
+  }
+
+  @Test
+  public void noParserForOtherTools() {
+    Assert.assertNull(ProgressParser.of(pbi("Crystal-C", "java", "-jar", "crystalc.jar")));
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.dmtavt.fragpipe.cmd.ProcessBuilderInfo;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Runs tasks through a worker on this machine.
+ */
+public class RemoteExecutorTest {
+  private static final String TOKEN = "secret";
+
+  private interface WithWorker {
+    void run(String address) throws Exception;
+  }
+
+  private static void withWorker(WithWorker test) throws Exception {
+    Assume.assumeTrue(new File("/bin/sh").canExecute());
+    final RemoteWorker worker = new RemoteWorker(InetAddress.getLoopbackAddress(), 0, 2, TOKEN);
+    final Thread t = new Thread(() -> {
+      try {
+        worker.serve();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }, "test-worker");
+    t.setDaemon(true);
+    t.start();
+    try {
+      test.run(InetAddress.getLoopbackAddress().getHostAddress() + ":" + worker.getPort());
+    } finally {
+      worker.close();
+    }
+  }
+
+  private static Process start(String address, String token, String... cmd) throws IOException {
+    final RemoteExecutor ex = new RemoteExecutor(Collections.singletonList(address), PathMapping.IDENTITY, token);
+    return ex.start(new ProcessBuilderInfo(new ProcessBuilder(cmd), "test", null, null, null));
+  }
+
+  private static String readAll(InputStream is) throws IOException {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    final byte[] buf = new byte[1024];
+    int read;
+    while ((read = is.read(buf)) >= 0) {
+      bos.write(buf, 0, read);
+    }
+    return new String(bos.toByteArray(), UTF_8);
+  }
+
+  @Test
+  public void forwardsOutputAndExitCode() throws Exception {
+    withWorker(address -> {
+      final Process p = start(address, TOKEN, "/bin/sh", "-c", "echo out; echo err >&2; exit 3");
+      Assert.assertEquals("out\n", readAll(p.getInputStream()));
+      Assert.assertEquals("err\n", readAll(p.getErrorStream()));
+      Assert.assertEquals(3, p.waitFor());
+      Assert.assertFalse(p.isAlive());
+      Assert.assertEquals(3, p.exitValue());
+    });
+  }
+
+  @Test
+  public void reportsCommandsThatCantStart() throws Exception {
+    withWorker(address -> {
+      try {
+        start(address, TOKEN, "/nonexistent/command");
+        Assert.fail("Started a command that doesn't exist");
+      } catch (IOException e) {
+        Assert.assertTrue(e.getMessage(), e.getMessage().contains("could not start test"));
+      }
+    });
+  }
+
+  @Test
+  public void rejectsWrongToken() throws Exception {
+    withWorker(address -> {
+      try {
+        start(address, "guess", "/bin/sh", "-c", "exit 0");
+        Assert.fail("Ran a task with a wrong token");
+      } catch (IOException e) {
+        Assert.assertTrue(e.getMessage(), e.getMessage().contains("Wrong token"));
+      }
+    });
+  }
+
+  @Test
+  public void killsOnRequest() throws Exception {
+    withWorker(address -> {
+      final Process p = start(address, TOKEN, "/bin/sh", "-c", "echo started; sleep 60");
+      final byte[] line = new byte["started\n".length()];
+      int read = 0;
+      while (read < line.length) {
+        read += p.getInputStream().read(line, read, line.length - read);
+      }
+      Assert.assertTrue(p.isAlive());
+      p.destroy();
+      Assert.assertTrue(p.waitFor(10, TimeUnit.SECONDS));
+      Assert.assertNotEquals(0, p.exitValue());
+    });
+  }
+
+  @Test
+  public void failsWithoutReachableWorker() throws Exception {
+    final int port;
+    try (ServerSocket s = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      port = s.getLocalPort();
+    }
+    try {
+      start(InetAddress.getLoopbackAddress().getHostAddress() + ":" + port, TOKEN, "/bin/sh", "-c", "exit 0");
+      Assert.fail("Started a task without a worker");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("None of the workers"));
+    }
+  }
+}
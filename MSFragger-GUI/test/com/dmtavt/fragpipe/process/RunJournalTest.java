@@ -0,0 +1,121 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.process;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.dmtavt.fragpipe.cmd.ProcessBuilderInfo;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RunJournalTest {
+
+  private static ProcessBuilderInfo pbi(Path dir, String name, List<Path> outputs, String... cmd) {
+    return new ProcessBuilderInfo(new ProcessBuilder(cmd).directory(dir.toFile()), name, null, null, null, null, outputs);
+  }
+
+  private static void write(Path p, String text) throws IOException {
+    Files.write(p, text.getBytes(UTF_8));
+    // as old as a file of an earlier day, times don't tell it was written now
+    Files.setLastModifiedTime(p, FileTime.fromMillis(946684800000L));
+  }
+
+  private static void delete(Path dir) throws IOException {
+    try (Stream<Path> s = Files.walk(dir)) {
+      for (Path p : s.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+        Files.delete(p);
+      }
+    }
+  }
+
+  @Test
+  public void movedFilesAreOutputs() throws IOException {
+    final Path wd = Files.createTempDirectory("run-journal");
+    try {
+      final Path in = Files.createDirectories(wd.resolve("in"));
+      final Path mzml = in.resolve("sample.mzML");
+      write(mzml, "spectra");
+      final Path created = in.resolve("sample.pepXML");
+      final Path moved = wd.resolve("sample.pepXML");
+      final ProcessBuilderInfo search = pbi(wd, "MSFragger", Collections.emptyList(), "msfragger", mzml.toString());
+      final ProcessBuilderInfo move = pbi(wd, "MSFragger move pepxml", Collections.emptyList(), "java", "FileMove", created.toString(), moved.toString());
+
+      try (RunJournal j = RunJournal.open(wd, false)) {
+        final RunJournal.Attempt a = j.started(search);
+        write(created, "psms");
+        j.finished(a, 0);
+        final RunJournal.Attempt b = j.started(move);
+        Files.move(created, moved);
+        j.finished(b, 0);
+      }
+      try (RunJournal j = RunJournal.open(wd, true)) {
+        Assert.assertTrue(j.isComplete(search));
+        Assert.assertTrue(j.isComplete(move));
+      }
+
+      write(moved, "truncated");
+      try (RunJournal j = RunJournal.open(wd, true)) {
+        Assert.assertFalse(j.isComplete(move));
+        Assert.assertFalse("the search output was moved to a file that changed", j.isComplete(search));
+      }
+    } finally {
+      delete(wd);
+    }
+  }
+
+  @Test
+  public void declaredOutputsCountInSharedDirs() throws IOException {
+    final Path wd = Files.createTempDirectory("run-journal");
+    try {
+      final Path a = wd.resolve("a.pepXML");
+      final Path b = wd.resolve("b.pepXML");
+      final ProcessBuilderInfo searchA = pbi(wd, "MSFragger", Collections.singletonList(a), "msfragger", "a.mzML");
+      final ProcessBuilderInfo searchB = pbi(wd, "MSFragger", Collections.singletonList(b), "msfragger", "b.mzML");
+
+      try (RunJournal j = RunJournal.open(wd, false)) {
+        final RunJournal.Attempt attemptA = j.started(searchA);
+        final RunJournal.Attempt attemptB = j.started(searchB);
+        write(a, "psms of a");
+        write(b, "psms of b");
+        j.finished(attemptA, 0);
+        j.finished(attemptB, 0);
+      }
+
+      write(b, "psms of b, changed");
+      try (RunJournal j = RunJournal.open(wd, true)) {
+        Assert.assertTrue("b is not an output of the search of a", j.isComplete(searchA));
+        Assert.assertFalse(j.isComplete(searchB));
+      }
+
+      write(a, "psms of a, changed");
+      try (RunJournal j = RunJournal.open(wd, true)) {
+        Assert.assertFalse(j.isComplete(searchA));
+      }
+    } finally {
+      delete(wd);
+    }
+  }
+}
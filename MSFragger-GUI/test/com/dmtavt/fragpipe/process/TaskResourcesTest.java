@@ -0,0 +1,65 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dmtavt.fragpipe.process;
+
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TaskResourcesTest {
+
+  @Test
+  public void inferJavaTool() {
+    TaskResources r = TaskResources.infer(Arrays.asList("java", "-Xmx24G", "-jar", "IonQuant.jar", "--threads", "8", "--psm", "psm.tsv"));
+    Assert.assertEquals(8, r.threads);
+    Assert.assertEquals(24 * 1024, r.ramMb);
+  }
+
+  @Test
+  public void inferNativeTool() {
+    TaskResources r = TaskResources.infer(Arrays.asList("percolator", "--num-threads", "4", "a.pin"));
+    Assert.assertEquals(4, r.threads);
+    Assert.assertEquals(0, r.ramMb);
+
+    r = TaskResources.infer(Arrays.asList("java", "-Xmx512m", "-cp", "fragpipe.jar", "FileMove", "a", "b"));
+    Assert.assertEquals(1, r.threads);
+    Assert.assertEquals(512, r.ramMb);
+  }
+
+  @Test
+  public void budgetClampsOversizedDemand() throws InterruptedException {
+    ResourceBudget budget = ResourceBudget.ofGb(4, 8);
+    TaskResources taken = budget.acquire(TaskResources.ofGb(16, 64), "huge");
+    Assert.assertEquals(4, taken.threads);
+    Assert.assertEquals(8 * 1024, taken.ramMb);
+    budget.release(taken);
+    Assert.assertEquals(0, budget.getThreadsUsed());
+    Assert.assertEquals(0, budget.getRamMbUsed());
+  }
+
+  @Test
+  public void budgetPacksSmallDemands() throws InterruptedException {
+    ResourceBudget budget = ResourceBudget.ofGb(8, 16);
+    TaskResources a = budget.acquire(TaskResources.ofGb(4, 8), "a");
+    TaskResources b = budget.acquire(TaskResources.ofGb(4, 8), "b");
+    Assert.assertEquals(8, budget.getThreadsUsed());
+    Assert.assertEquals(16 * 1024, budget.getRamMbUsed());
+    budget.release(a);
+    budget.release(b);
+  }
+}
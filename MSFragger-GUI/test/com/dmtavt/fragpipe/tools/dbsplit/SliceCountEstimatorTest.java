@@ -0,0 +1,93 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.tools.dbsplit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.dmtavt.fragpipe.tools.fragger.MsfraggerParams;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SliceCountEstimatorTest {
+
+  private static MsfraggerParams params(int termini, int missed) {
+    final MsfraggerParams p = new MsfraggerParams();
+    p.getProps().setProp(MsfraggerParams.PROP_search_enzyme_cut_1, "KR");
+    p.getProps().setProp(MsfraggerParams.PROP_search_enzyme_nocut_1, "");
+    p.getProps().setProp(MsfraggerParams.PROP_search_enzyme_sense_1, "C");
+    p.getProps().setProp(MsfraggerParams.PROP_num_enzyme_termini, Integer.toString(termini));
+    p.getProps().setProp(MsfraggerParams.PROP_allowed_missed_cleavage_1, Integer.toString(missed));
+    p.getProps().setProp(MsfraggerParams.PROP_digest_min_length, "1");
+    p.getProps().setProp(MsfraggerParams.PROP_digest_max_length, "50");
+    p.getProps().setProp(MsfraggerParams.PROP_digest_mass_range, "0 100000");
+    p.getProps().setProp(MsfraggerParams.PROP_clip_nTerm_M, "0");
+    for (int i = 1; i <= MsfraggerParams.VAR_MOD_COUNT_MAX; i++) {
+      final String name = String.format(Locale.ROOT, "%s_%02d", MsfraggerParams.PROP_variable_mod, i);
+      if (p.getProps().getProp(name) != null) {
+        p.getProps().setProp(name, "0.0 site_" + i + " 1", false);
+      }
+    }
+    return p;
+  }
+
+  @Test
+  public void countsEnzymaticPeptides() {
+    final SliceCountEstimator full = new SliceCountEstimator(params(2, 1));
+    full.digest("AAKGGRCC");
+    // AAK AAKGGR GGR GGRCC CC
+    Assert.assertEquals(5, full.peptides, 0);
+
+    final SliceCountEstimator semi = new SliceCountEstimator(params(1, 0));
+    semi.digest("AAKGGRCC");
+    // 8 with an enzymatic start, 5 more with only an enzymatic end
+    Assert.assertEquals(13, semi.peptides, 0);
+  }
+
+  @Test
+  public void countsModifiedForms() {
+    final MsfraggerParams p = params(2, 0);
+    p.getProps().setProp(MsfraggerParams.PROP_variable_mod + "_01", "15.9949 M 2", true);
+    p.getProps().setProp(MsfraggerParams.PROP_variable_mod + "_02", "42.0106 [^ 1", true);
+    final SliceCountEstimator e = new SliceCountEstimator(p);
+    e.digest("MMKMMMR");
+    // MMK: 1 + 2 + 1 with oxidations, doubled by the protein n-term acetyl
+    // MMMR: 1 + 3 + 3 with at most 2 oxidations
+    Assert.assertEquals(2, e.peptides, 0);
+    Assert.assertEquals(8 + 7, e.forms, 0);
+  }
+
+  @Test
+  public void recommendsSmallestSliceCountThatFits() throws IOException {
+    final MsfraggerParams p = params(2, 0);
+    // about 114 GB of index
+    Assert.assertEquals(1, SliceCountEstimator.recommend(p, 1e9, 0, 256, 9999));
+    Assert.assertEquals(3, SliceCountEstimator.recommend(p, 1e9, 0, 64, 9999));
+    Assert.assertEquals(-1, SliceCountEstimator.recommend(p, 1e9, 0, 64, 2));
+    Assert.assertEquals(-1, SliceCountEstimator.recommend(p, 1e9, 0, 1, 9999));
+
+    final Path fasta = Files.createTempFile("slices", ".fasta");
+    Files.write(fasta, ">p1\nAAKGG\nRCC\n>p2\nAAKGGRCC\n".getBytes(UTF_8));
+    final SliceCountEstimator.Estimate est = SliceCountEstimator.estimate(fasta, params(2, 1), 0, 8);
+    Assert.assertEquals(2, est.proteins);
+    Assert.assertEquals(10, est.peptides, 1e-9);
+    Assert.assertEquals(1, est.slices);
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.tools.dbsplit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SliceMergeTest {
+
+  private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+      + "<msms_pipeline_analysis date=\"2020-01-01T00:00:00\" summary_xml=\"part.pepXML\">\n"
+      + "<msms_run_summary base_name=\"/data/a\" raw_data=\"mzML\">\n"
+      + "<search_summary base_name=\"/data/a\">\n"
+      + "<search_database local_path=\"db.fasta\" type=\"AA\"/>\n"
+      + "</search_summary>\n";
+  private static final String FOOTER = "</msms_run_summary>\n</msms_pipeline_analysis>\n";
+
+  @Test
+  public void splitsFastaAtProteins() throws IOException {
+    final Path dir = Files.createTempDirectory("dbsplit");
+    final Path fasta = dir.resolve("db.fasta");
+    final String db = ">p1 a\nAAAA\nCC\n>p2\nDDDD\n>p3\nEE>E\n>p4\nFFFF\n>p5\nGGGG\n";
+    Files.write(fasta, db.getBytes(UTF_8));
+    final List<Path> slices = Arrays.asList(dir.resolve("0.fasta"), dir.resolve("1.fasta"));
+
+    Assert.assertEquals(5, SplitSearch.countProteins(fasta));
+    final int[] counts = SplitSearch.splitFasta(fasta, slices);
+    Assert.assertEquals(3, counts[0]);
+    Assert.assertEquals(2, counts[1]);
+    Assert.assertEquals(">p1 a\nAAAA\nCC\n>p2\nDDDD\n>p3\nEE>E\n", new String(Files.readAllBytes(slices.get(0)), UTF_8));
+    Assert.assertEquals(">p4\nFFFF\n>p5\nGGGG\n", new String(Files.readAllBytes(slices.get(1)), UTF_8));
+  }
+
+  @Test
+  public void mergesPepxmlHitsOfSlices() throws IOException {
+    final Path dir = Files.createTempDirectory("dbsplit");
+    final Path part0 = dir.resolve("0.pepXML");
+    final Path part1 = dir.resolve("1.pepXML");
+    Files.write(part0, (HEADER
+        + query(1, 100) + hit("PEPA", "P1", 10.0, 3.0) + END_QUERY
+        + FOOTER).getBytes(UTF_8));
+    Files.write(part1, (HEADER
+        + query(1, 100) + hit("PEPB", "P2", 12.0, 10.0) + hit("PEPA", "P3", 10.0, 2.0) + END_QUERY
+        + query(2, 101) + hit("PEPC", "P4", 8.0, 1.0) + END_QUERY
+        + FOOTER).getBytes(UTF_8));
+    final Path expectFile = dir.resolve("a_expectscore.tsv");
+    Files.write(expectFile, "0 -0.1 0.001\n0 -0.1 0.001\n".getBytes(UTF_8));
+    final List<List<Path>> bySlice = Arrays.asList(Collections.singletonList(part0), Collections.singletonList(part1));
+
+    final PepxmlSliceMerger merger = new PepxmlSliceMerger(2, 50, ExpectFunctions.read(expectFile),
+        PepxmlSliceMerger.sharedProteins(bySlice), Collections.singletonMap("\"db.fasta\"", "\"/db/db.fasta\""), s -> {});
+    final Path merged = dir.resolve("a.pepXML");
+    final ScanIndex scans = new ScanIndex();
+    merger.merge(Arrays.asList(part0, part1), merged, scans);
+    final String xml = new String(Files.readAllBytes(merged), UTF_8);
+
+    Assert.assertTrue(xml.contains("local_path=\"/db/db.fasta\""));
+    Assert.assertTrue(xml.contains("summary_xml=\"" + merged + "\""));
+    final List<String> hits = new ArrayList<>();
+    for (String line : xml.split("\n")) {
+      if (line.startsWith("<search_hit ")) {
+        hits.add(PepxmlSliceMerger.attr(line, "peptide") + " " + PepxmlSliceMerger.attr(line, "hit_rank")
+            + " " + PepxmlSliceMerger.attr(line, "num_tot_proteins"));
+      }
+    }
+    Assert.assertEquals(Arrays.asList("PEPB 1 1", "PEPA 2 2", "PEPC 1 1"), hits);
+    Assert.assertTrue(xml.contains("<search_score name=\"nextscore\" value=\"10.000\"/>"));
+    Assert.assertTrue(xml.contains("<search_score name=\"expect\" value=\"6.310e-02\"/>"));
+    Assert.assertTrue(xml.contains("<alternative_protein protein_descr=\"P3 descr\" protein=\"P3\""));
+    Assert.assertTrue(xml.endsWith(FOOTER));
+    Assert.assertEquals(2, scans.get(101));
+  }
+
+  @Test
+  public void mergesPinRowsOfSlices() throws IOException {
+    final Path dir = Files.createTempDirectory("dbsplit");
+    final String header = "SpecId\tLabel\tScanNr\trank\thyperscore\tdelta_hyperscore\tabs_ppm\tPeptide\tProteins\n";
+    final Path part0 = dir.resolve("0.pin");
+    final Path part1 = dir.resolve("1.pin");
+    Files.write(part0, (header
+        + "a.100.100.2_1\t1\t100\t1\t10.0\t0.0\t1.0\tK.PEPA.R\tP1\n"
+        + "a.101.101.2_1\t1\t101\t1\t7.0\t0.0\t1.0\tK.PEPD.R\tP5\n").getBytes(UTF_8));
+    Files.write(part1, (header
+        + "a.100.100.2_1\t1\t100\t1\t12.0\t2.0\t1.0\tK.PEPB.R\tP2\n"
+        + "a.100.100.2_2\t1\t100\t2\t10.0\t0.0\t1.0\tK.PEPA.R\tP3\n").getBytes(UTF_8));
+    final Path merged = dir.resolve("a.pin");
+    new TableSliceMerger(TableSliceMerger.Format.PIN, 5, 50, null, new ScanIndex(), s -> {})
+        .merge(Arrays.asList(part0, part1), merged);
+
+    Assert.assertEquals(Arrays.asList(header.trim(),
+        "a.100.100.2_1\t1\t100\t1\t12.0\t2.0\t1.0\tK.PEPB.R\tP2",
+        "a.100.100.2_2\t1\t100\t2\t10.0\t0.0\t1.0\tK.PEPA.R\tP1\tP3",
+        "a.101.101.2_1\t1\t101\t1\t7.0\t0.0\t1.0\tK.PEPD.R\tP5"),
+        Files.readAllLines(merged, UTF_8));
+  }
+
+  private static final String END_QUERY = "</search_result>\n</spectrum_query>\n";
+
+  private static String query(int index, int scan) {
+    return "<spectrum_query start_scan=\"" + scan + "\" assumed_charge=\"2\" spectrum=\"a." + scan + "." + scan
+        + ".2\" end_scan=\"" + scan + "\" index=\"" + index + "\">\n<search_result>\n";
+  }
+
+  private static String hit(String peptide, String protein, double hyperscore, double nextscore) {
+    return "<search_hit peptide=\"" + peptide + "\" massdiff=\"0.001\" calc_neutral_pep_mass=\"500.0\""
+        + " peptide_next_aa=\"R\" num_tol_term=\"2\" protein_descr=\"" + protein + " descr\" num_tot_proteins=\"1\""
+        + " hit_rank=\"1\" protein=\"" + protein + "\" peptide_prev_aa=\"K\">\n"
+        + "<search_score name=\"hyperscore\" value=\"" + hyperscore + "\"/>\n"
+        + "<search_score name=\"nextscore\" value=\"" + nextscore + "\"/>\n"
+        + "<search_score name=\"expect\" value=\"1.0e+00\"/>\n"
+        + "</search_hit>\n";
+  }
+}
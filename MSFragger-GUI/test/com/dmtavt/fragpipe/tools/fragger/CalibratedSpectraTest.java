@@ -0,0 +1,105 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.dmtavt.fragpipe.tools.fragger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CalibratedSpectraTest {
+
+  private static MsfraggerParams params() {
+    final MsfraggerParams p = new MsfraggerParams();
+    p.getProps().setProp(MsfraggerParams.PROP_calibrate_mass, "2");
+    p.getProps().setProp(MsfraggerParams.PROP_fragment_mass_tolerance, "20");
+    p.getProps().setProp(MsfraggerParams.PROP_num_threads, "8");
+    return p;
+  }
+
+  @Test
+  public void keyIgnoresSettingsThatDontChangeCalibration() throws IOException {
+    final Path fasta = Files.createTempFile("calibrated", ".fasta");
+    Files.write(fasta, ">p1\nPEPTIDEK\n".getBytes(UTF_8));
+    final String key = CalibratedSpectra.settingsKey(params(), fasta, "3.8");
+
+    final MsfraggerParams threads = params();
+    threads.getProps().setProp(MsfraggerParams.PROP_num_threads, "2");
+    Assert.assertEquals(key, CalibratedSpectra.settingsKey(threads, fasta, "3.8"));
+
+    final MsfraggerParams tolerance = params();
+    tolerance.getProps().setProp(MsfraggerParams.PROP_fragment_mass_tolerance, "10");
+    Assert.assertNotEquals(key, CalibratedSpectra.settingsKey(tolerance, fasta, "3.8"));
+    Assert.assertNotEquals(key, CalibratedSpectra.settingsKey(params(), fasta, "3.7"));
+  }
+
+  @Test
+  public void findsRecordedSpectraUntilInputChanges() throws IOException {
+    final Path dir = Files.createTempDirectory("calibrated");
+    final Path input = dir.resolve("run1.mzML");
+    Files.write(input, "spectra".getBytes(UTF_8));
+    final Path mgf = dir.resolve("run1_calibrated.mgf");
+    Files.write(mgf, "calibrated".getBytes(UTF_8));
+    final Path log = dir.resolve("fragger.log");
+    Files.write(log, Arrays.asList("New fragment_mass_tolerance = 7 PPM",
+        "New precursor_true_tolerance = 5 PPM", "New use_topN_peaks = 150"), UTF_8);
+
+    CalibratedSpectra.record("key", 2, log, Collections.singletonList(input));
+    Assert.assertNull(CalibratedSpectra.find(input, "other key"));
+    final CalibratedSpectra.Record r = CalibratedSpectra.find(input, "key");
+    Assert.assertNotNull(r);
+    Assert.assertEquals(mgf.toAbsolutePath().normalize(), r.calibrated);
+    Assert.assertEquals("7", r.params.get(MsfraggerParams.PROP_fragment_mass_tolerance));
+    Assert.assertEquals("1", r.params.get(MsfraggerParams.PROP_precursor_true_units));
+    Assert.assertEquals("150", r.params.get(MsfraggerParams.PROP_use_topN_peaks));
+
+    Files.setLastModifiedTime(input, FileTime.fromMillis(Files.getLastModifiedTime(input).toMillis() + 1000));
+    Assert.assertNull(CalibratedSpectra.find(input, "key"));
+  }
+
+  @Test
+  public void optimizedParamsNeedOneFragmentTolerance() {
+    Assert.assertNull(CalibratedSpectra.optimizedParams(Collections.singletonList("New use_topN_peaks = 150")));
+    Assert.assertNull(CalibratedSpectra.optimizedParams(Arrays.asList(
+        "New fragment_mass_tolerance = 7 PPM", "New fragment_mass_tolerance = 9 PPM")));
+    final Map<String, String> p = CalibratedSpectra.optimizedParams(Collections.singletonList("New fragment_mass_tolerance = 7 PPM"));
+    Assert.assertEquals(2, p.size());
+  }
+
+  @Test
+  public void restoresNamesOfInputs() throws IOException {
+    final Path dir = Files.createTempDirectory("calibrated");
+    final Path pin = dir.resolve("run1_calibrated.pin");
+    final StringBuilder sb = new StringBuilder("SpecId\tLabel\n");
+    for (int i = 0; i < 20000; i++) {
+      sb.append("run1_calibrated.").append(i).append('.').append(i).append(".2_1\t1\n");
+    }
+    Files.write(pin, sb.toString().getBytes(UTF_8));
+
+    CalibratedSpectra.restore(pin, "run1_calibrated", "run1");
+    Assert.assertFalse(Files.exists(pin));
+    final String restored = new String(Files.readAllBytes(dir.resolve("run1.pin")), UTF_8);
+    Assert.assertEquals(sb.toString().replace("run1_calibrated", "run1"), restored);
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.dmtavt.fragpipe.tools.fragger;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MsfraggerBatchPlannerTest {
+
+  @Test
+  public void sharesRamAndThreadsWhenEverythingFits() {
+    List<MsfraggerBatchPlanner.Batch> batches = Arrays.asList(
+        new MsfraggerBatchPlanner.Batch("DDA", 8 * 1024, 30L << 30),
+        new MsfraggerBatchPlanner.Batch("DIA", 16 * 1024, 90L << 30));
+    Assert.assertTrue(MsfraggerBatchPlanner.plan(batches, 64, 32));
+    MsfraggerBatchPlanner.Batch dda = batches.get(0);
+    MsfraggerBatchPlanner.Batch dia = batches.get(1);
+    Assert.assertEquals(64, dda.getRamGb() + dia.getRamGb());
+    Assert.assertEquals(32, dda.getThreads() + dia.getThreads());
+    Assert.assertTrue(dda.getRamGb() >= 8 && dia.getRamGb() >= 16);
+    Assert.assertTrue(dia.getThreads() > dda.getThreads());
+  }
+
+  @Test
+  public void runsOneAfterAnotherWhenShortOfRam() {
+    List<MsfraggerBatchPlanner.Batch> batches = Arrays.asList(
+        new MsfraggerBatchPlanner.Batch("DDA", 20 * 1024, 1L << 30),
+        new MsfraggerBatchPlanner.Batch("GPF-DIA", 20 * 1024, 1L << 30));
+    Assert.assertFalse(MsfraggerBatchPlanner.plan(batches, 48, 32));
+    for (MsfraggerBatchPlanner.Batch b : batches) {
+      Assert.assertEquals(48, b.getRamGb());
+      Assert.assertEquals(32, b.getThreads());
+    }
+  }
+
+  @Test
+  public void singleBatchGetsEverything() {
+    List<MsfraggerBatchPlanner.Batch> batches = Arrays.asList(new MsfraggerBatchPlanner.Batch("DDA", 2048, 1L << 30));
+    Assert.assertFalse(MsfraggerBatchPlanner.plan(batches, 16, 8));
+    Assert.assertEquals(16, batches.get(0).getRamGb());
+    Assert.assertEquals(8, batches.get(0).getThreads());
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.github.chhh.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CgroupLimitsTest {
+
+  @Test
+  public void countsCpuRanges() {
+    Assert.assertEquals(4, CgroupLimits.countCpus("0-3"));
+    Assert.assertEquals(7, CgroupLimits.countCpus("0-3,8,10-11"));
+    Assert.assertEquals(-1, CgroupLimits.countCpus(""));
+    Assert.assertEquals(-1, CgroupLimits.countCpus("x"));
+  }
+
+  @Test
+  public void readsCgroupV2() throws IOException {
+    Path root = Files.createTempDirectory("cgroup-test");
+    write(root.resolve("proc/self/cgroup"), "0::/job/step\n");
+    write(root.resolve("proc/self/mountinfo"), "30 25 0:26 / /sys/fs/cgroup rw,nosuid - cgroup2 cgroup2 rw\n");
+    write(root.resolve("sys/fs/cgroup/job/step/memory.max"), "max\n");
+    write(root.resolve("sys/fs/cgroup/job/step/cpu.max"), "250000 100000\n");
+    write(root.resolve("sys/fs/cgroup/job/memory.max"), "8589934592\n");
+    write(root.resolve("sys/fs/cgroup/job/cpuset.cpus.effective"), "0-7\n");
+
+    CgroupLimits cl = CgroupLimits.read(root, Collections.emptyMap());
+    Assert.assertEquals(8589934592L, cl.memoryBytes);
+    Assert.assertEquals(3, cl.cpus());
+  }
+
+  @Test
+  public void readsCgroupV1() throws IOException {
+    Path root = Files.createTempDirectory("cgroup-test");
+    write(root.resolve("proc/self/cgroup"), "5:memory:/docker/abc\n4:cpu,cpuacct:/docker/abc\n");
+    write(root.resolve("proc/self/mountinfo"),
+        "40 30 0:35 /docker/abc /sys/fs/cgroup/memory ro - cgroup cgroup rw,memory\n"
+            + "41 30 0:36 /docker/abc /sys/fs/cgroup/cpu,cpuacct ro - cgroup cgroup rw,cpu,cpuacct\n");
+    write(root.resolve("sys/fs/cgroup/memory/memory.limit_in_bytes"), "4294967296\n");
+    write(root.resolve("sys/fs/cgroup/cpu,cpuacct/cpu.cfs_quota_us"), "-1\n");
+    write(root.resolve("sys/fs/cgroup/cpu,cpuacct/cpu.cfs_period_us"), "100000\n");
+
+    CgroupLimits cl = CgroupLimits.read(root, Collections.emptyMap());
+    Assert.assertEquals(4294967296L, cl.memoryBytes);
+    Assert.assertEquals(-1, cl.cpus());
+  }
+
+  @Test
+  public void fallsBackToSlurm() throws IOException {
+    Path root = Files.createTempDirectory("cgroup-test");
+    Map<String, String> env = new HashMap<>();
+    env.put("SLURM_MEM_PER_CPU", "2000");
+    env.put("SLURM_CPUS_ON_NODE", "6");
+    env.put("SLURM_CPUS_PER_TASK", "4");
+
+    CgroupLimits cl = CgroupLimits.read(root, env);
+    Assert.assertEquals(12000L * 1024 * 1024, cl.memoryBytes);
+    Assert.assertEquals(4, cl.cpus());
+  }
+
+  private static void write(Path p, String content) throws IOException {
+    Files.createDirectories(p.getParent());
+    Files.write(p, content.getBytes(UTF_8));
+  }
+}
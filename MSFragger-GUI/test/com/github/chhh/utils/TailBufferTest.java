@@ -0,0 +1,57 @@
+/*
+ * This file is part of FragPipe.
+ *
+ * FragPipe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FragPipe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with FragPipe.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.github.chhh.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TailBufferTest {
+
+  @Test
+  public void keepsEverythingBelowCapacity() {
+    TailBuffer tb = new TailBuffer(16);
+    tb.append("hello ".getBytes(UTF_8));
+    tb.append("world".getBytes(UTF_8));
+    Assert.assertEquals("hello world", tb.toString());
+    Assert.assertFalse(tb.isTruncated());
+    Assert.assertEquals(11, tb.getTotalBytes());
+  }
+
+  @Test
+  public void keepsOnlyTheTail() {
+    TailBuffer tb = new TailBuffer(8);
+    for (int i = 0; i < 10; i++) {
+      tb.append(Integer.toString(i).getBytes(UTF_8));
+    }
+    Assert.assertEquals("23456789", tb.toString());
+    tb.append("abcdefghijkl".getBytes(UTF_8));
+    Assert.assertEquals("efghijkl", tb.toString());
+    Assert.assertTrue(tb.isTruncated());
+    Assert.assertEquals(22, tb.getTotalBytes());
+  }
+
+  @Test
+  public void skipsPartialCharacterAfterTruncation() {
+    TailBuffer tb = new TailBuffer(4);
+    tb.append("a\u00e9\u00e9".getBytes(UTF_8)); // 1 + 2 + 2 bytes
+    tb.append("b".getBytes(UTF_8));
+    Assert.assertEquals("\u00e9b", tb.toString());
+  }
+}